@@ -0,0 +1,131 @@
+package net.i2cat.netconf.server.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.datastore.ConfigFilter;
+import net.i2cat.netconf.server.datastore.ConfigNode;
+import net.i2cat.netconf.server.datastore.Datastore;
+import net.i2cat.netconf.server.datastore.Datastores;
+import net.i2cat.netconf.server.datastore.EditOperation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures edit-config throughput of a datastore, the latency of get-config snapshots while another thread edits it, and the
+ * latency of a get-config whose subtree filter selects a single interface.
+ * <p>
+ * Compiled with the benchmarks profile, <code>mvn -Pbenchmarks test-compile</code>, and run from test classpath, e.g.
+ * <code>java -cp target/test-classes:target/classes:&lt;dependencies&gt;
+ * net.i2cat.netconf.server.benchmark.DatastoreBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DatastoreBenchmark {
+
+	// number of different edits, applied in turns
+	private static final int	EDITS	= 16;
+
+	/** Number of interfaces in the datastore */
+	@Param({ "10", "1000" })
+	private int					interfaces;
+
+	private Datastore			running;
+	private ConfigNode[]		edits;
+	private Query				filteredQuery;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		StringBuilder config = new StringBuilder("<configuration xmlns=\"urn:jnx\"><interfaces>");
+		for (int i = 0; i < interfaces; i++) {
+			config.append("<interface><name>ge-0/0/").append(i).append("</name><description>uplink</description>")
+					.append("<unit><name>0</name><family><inet><address><name>10.0.").append(i % 256)
+					.append(".1/24</name></address></inet></family></unit></interface>");
+		}
+		config.append("</interfaces></configuration>");
+		running = new Datastores(config.toString()).getRunning();
+
+		// descriptions of a few interfaces
+		edits = new ConfigNode[EDITS];
+		for (int i = 0; i < edits.length; i++) {
+			edits[i] = Datastores.parse("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/" +
+					(i * interfaces / edits.length) + "</name><description>edit " + i + "</description></interface>" +
+					"</interfaces></configuration>");
+		}
+
+		filteredQuery = new Query();
+		filteredQuery.setOperation(Operation.GET_CONFIG);
+		filteredQuery.setMessageId("1");
+		filteredQuery.setFilter("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/" + (interfaces / 2) +
+				"</name></interface></interfaces></configuration>");
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void editConfig(EditCounter counter) {
+		running.edit(edits[counter.next()], EditOperation.MERGE);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(1)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void writer(EditCounter counter) {
+		running.edit(edits[counter.next()], EditOperation.MERGE);
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(3)
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String reader() {
+		return running.getConfig().childrenToXML();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public String getConfigFiltered() {
+		return ConfigFilter.filter(filteredQuery, running.getConfig());
+	}
+
+	/**
+	 * Edit applied next by a thread
+	 */
+	@State(Scope.Thread)
+	public static class EditCounter {
+
+		private int	next;
+
+		private int next() {
+			next = (next + 1) % EDITS;
+			return next;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(DatastoreBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,102 @@
+package net.i2cat.netconf.server.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import net.i2cat.netconf.messageQueue.MessageQueue;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.transport.ParserPool;
+import net.i2cat.netconf.server.transport.ParserPool.PooledParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xml.sax.InputSource;
+
+/**
+ * Measures parse throughput of Netconf messages by a pooled parser and its handler, without transport. Bytes allocated per
+ * message are reported by the GC profiler (<code>gc.alloc.rate.norm</code>), enabled in {@link #main(String[])} or with
+ * <code>-prof gc</code>.
+ * <p>
+ * Compiled with the benchmarks profile, <code>mvn -Pbenchmarks test-compile</code>, and run from test classpath, e.g.
+ * <code>java -cp target/test-classes:target/classes:&lt;dependencies&gt;
+ * net.i2cat.netconf.server.benchmark.ParserBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParserBenchmark {
+
+	/** Number of interfaces in the edit-config payload */
+	@Param({ "1", "100" })
+	private int				interfaces;
+
+	private ParserPool		parserPool;
+	private PooledParser	parser;
+	private MessageQueue	messageQueue;
+
+	private byte[]			editConfig;
+	private byte[]			getConfig;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		parserPool = new ParserPool(1);
+		parser = parserPool.borrow();
+		messageQueue = new MessageQueue();
+		parser.getHandler().setMessageQueue(messageQueue);
+
+		StringBuilder config = new StringBuilder();
+		for (int i = 0; i < interfaces; i++) {
+			config.append("<interface><name>ge-0/0/").append(i).append("</name>")
+					.append("<description>uplink &amp; backup</description>")
+					.append("<unit><name>0</name><family><inet><address><name>10.0.").append(i % 256)
+					.append(".1/24</name></address></inet></family></unit></interface>");
+		}
+		editConfig = ("<rpc message-id=\"101\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><edit-config>" +
+				"<target><candidate/></target><config><configuration><interfaces>" + config +
+				"</interfaces></configuration></config></edit-config></rpc>").getBytes("UTF-8");
+		getConfig = ("<rpc message-id=\"102\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><get-config>" +
+				"<source><running/></source></get-config></rpc>").getBytes("UTF-8");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		parserPool.release(parser);
+	}
+
+	@Benchmark
+	public RPCElement parseEditConfig() throws Exception {
+		return parse(editConfig);
+	}
+
+	@Benchmark
+	public RPCElement parseGetConfig() throws Exception {
+		return parse(getConfig);
+	}
+
+	private RPCElement parse(byte[] message) throws Exception {
+		parser.getReader().parse(new InputSource(new ByteArrayInputStream(message)));
+		return messageQueue.blockingConsume();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ParserBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+	}
+}
@@ -1,20 +1,30 @@
 package net.i2cat.netconf.server;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import net.i2cat.netconf.rpc.Query;
 import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.matcher.MatchContext;
+import net.i2cat.netconf.server.matcher.QueryMatcher;
 
 /**
- * Netconf behaviour defined by a {@link Query} and a {@link Reply}
+ * Netconf behaviour defined by a {@link Query} and a {@link Reply}, or a {@link ReplyTemplate}. Received queries match it if
+ * they have the same operation, and they are matched by its {@link QueryMatcher} if any.
  * 
  * @author Julio Carlos Barrera
  * 
  */
 public class Behaviour {
 
-	private Query	query;
-	private Reply	reply;
+	private Query						query;
+	private Reply						reply;
+
+	private boolean						consume;
+	private AtomicBoolean				consumed	= new AtomicBoolean(false);
+	private QueryMatcher				matcher;
 
-	private boolean	consume;
+	// reply sent to clients, serialized once or compiled from a template
+	private volatile PreparedReply		preparedReply;
 
 	/**
 	 * Creates a Behaviour that NOT consumes itself
@@ -42,6 +52,52 @@ public class Behaviour {
 		this.consume = consume;
 	}
 
+	/**
+	 * Creates a Behaviour matching only some queries of its operation
+	 * 
+	 * @param query
+	 * @param reply
+	 * @param consume
+	 *            if true, the behaviour will be consumed when Query matched; otherwise not
+	 * @param matcher
+	 *            predicate on query contents, e.g. target datastore or config elements
+	 */
+	public Behaviour(Query query, Reply reply, boolean consume, QueryMatcher matcher) {
+		this(query, reply, consume);
+		this.matcher = matcher;
+	}
+
+	/**
+	 * Creates a Behaviour replying a template filled with each matched query
+	 * 
+	 * @param query
+	 * @param template
+	 *            compiled reply template
+	 * @param consume
+	 *            if true, the behaviour will be consumed when Query matched; otherwise not
+	 * @param matcher
+	 *            predicate on query contents, null to match all queries of the operation
+	 */
+	public Behaviour(Query query, ReplyTemplate template, boolean consume, QueryMatcher matcher) {
+		this.query = query;
+		this.consume = consume;
+		this.matcher = matcher;
+		this.preparedReply = template;
+	}
+
+	/**
+	 * Creates a Behaviour whose replies are selected by a subclass, see {@link #claimReply(String)}
+	 * 
+	 * @param query
+	 * @param consume
+	 * @param matcher
+	 */
+	protected Behaviour(Query query, boolean consume, QueryMatcher matcher) {
+		this.query = query;
+		this.consume = consume;
+		this.matcher = matcher;
+	}
+
 	public Query getQuery() {
 		return query;
 	}
@@ -50,8 +106,88 @@ public class Behaviour {
 		return reply;
 	}
 
+	/**
+	 * Returns the template of the behaviour, or serializes the reply the first time it is called: later changes to the
+	 * {@link Reply} are not sent. Behaviour containers call it when the behaviour is defined.
+	 * 
+	 * @return reply sent when a query matches this behaviour
+	 */
+	public PreparedReply getPreparedReply() {
+		PreparedReply prepared = preparedReply;
+		if (prepared == null) {
+			synchronized (this) {
+				prepared = preparedReply;
+				if (prepared == null) {
+					prepared = SerializedReply.serialize(reply);
+					preparedReply = prepared;
+				}
+			}
+		}
+		return prepared;
+	}
+
 	public boolean isConsume() {
 		return consume;
 	}
 
+	public QueryMatcher getMatcher() {
+		return matcher;
+	}
+
+	/**
+	 * 
+	 * @param context
+	 *            received query, with the same operation as this behaviour
+	 * @return true if it is matched by the matcher of this behaviour, or there is no matcher
+	 */
+	public boolean matches(MatchContext context) {
+		return matcher == null || matcher.matches(context);
+	}
+
+	/**
+	 * Claims this behaviour to reply a query. A consumed behaviour can only be claimed once, even by concurrent sessions.
+	 * 
+	 * @return true if the behaviour can be used, false if it has already been consumed
+	 */
+	public boolean claim() {
+		return !consume || consumed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Claims this behaviour to reply a query of a session, selecting the reply to send
+	 * 
+	 * @param sessionId
+	 *            id of the session replying the query
+	 * @return reply to send, or null if the behaviour does not reply this query, e.g. it has already been consumed
+	 */
+	public PreparedReply claimReply(String sessionId) {
+		return claim() ? getPreparedReply() : null;
+	}
+
+	/**
+	 * 
+	 * @return true if the behaviour will not reply any other query, so it can be removed from its container
+	 */
+	public boolean isConsumed() {
+		return consumed.get();
+	}
+
+	/**
+	 * Discards the state kept for a session, called when the session ends
+	 * 
+	 * @param sessionId
+	 *            id of the ended session
+	 */
+	public void endSession(String sessionId) {
+	}
+
+	/**
+	 * Marks this behaviour as consumed
+	 * 
+	 * @return true if it was not consumed yet
+	 */
+	protected boolean markConsumed() {
+		return consumed.compareAndSet(false, true);
+	}
+
 }
@@ -0,0 +1,347 @@
+package net.i2cat.netconf.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.matcher.AllMatcher;
+import net.i2cat.netconf.server.matcher.DatastoreMatcher;
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+import net.i2cat.netconf.server.matcher.QueryMatcher;
+import net.i2cat.netconf.server.matcher.SubtreeMatcher;
+import net.i2cat.netconf.server.transport.ParserPool;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * {@link BehaviourContainer} loaded from a directory, reloaded while the server is running when its files change. Each
+ * behaviour is defined by two files, loaded in name order:
+ * <ul>
+ * <li><code>name.query.xml</code>: Netconf &lt;rpc&gt; with the operation of the behaviour. Its target and source datastores, and
+ * its config and filter subtrees, if any, must be matched by received queries (see {@link SubtreeMatcher}).</li>
+ * <li><code>name.reply.xml</code>: reply sent, compiled as a {@link ReplyTemplate}, e.g.
+ * <code>&lt;rpc-reply message-id="${message-id}" ...&gt;</code></li>
+ * </ul>
+ * Catalog behaviours are never consumed. Behaviours defined with {@link #defineBehaviour(Behaviour)} are kept across reloads,
+ * after catalog ones.
+ * <p>
+ * A reload builds a new index in the background and publishes it atomically, so matching queries never waits for a reload
+ * nor sees a partially loaded catalog. If any file can not be loaded the previous index is kept.
+ */
+public class BehaviourCatalog implements MatchingBehaviourContainer {
+
+	public static final String									QUERY_SUFFIX		= ".query.xml";
+	public static final String									REPLY_SUFFIX		= ".reply.xml";
+
+	private static final Log									log					= LogFactory.getLog(BehaviourCatalog.class);
+
+	private final File											directory;
+	private final long											pollIntervalMillis;
+
+	// index used by sessions, replaced as a whole by reloads
+	private final AtomicReference<IndexedBehaviourContainer>	index				= new AtomicReference<IndexedBehaviourContainer>(
+																							new IndexedBehaviourContainer());
+
+	// following fields are only accessed holding the catalog lock
+	private final ParserPool									parserPool			= new ParserPool(1);
+	private final List<Behaviour>								definedBehaviours	= new ArrayList<Behaviour>();
+	// size and modification time of each loaded file
+	private Map<String, String>									loadedFiles			= Collections.emptyMap();
+	private ScheduledExecutorService							poller;
+
+	// metrics
+	private final AtomicLong									reloads				= new AtomicLong();
+	private final AtomicLong									failedReloads		= new AtomicLong();
+	private volatile long										lastReloadMillis	= -1;
+	private volatile int										size				= 0;
+
+	/**
+	 *
+	 * @param directory
+	 *            directory containing query and reply files
+	 * @param pollIntervalMillis
+	 *            interval between checks of directory changes, 0 to load it only when started
+	 */
+	public BehaviourCatalog(File directory, long pollIntervalMillis) {
+		this.directory = directory;
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	/**
+	 * Loads the catalog and starts checking directory changes
+	 *
+	 * @throws ServerException
+	 *             if the catalog can not be loaded
+	 */
+	public synchronized void start() throws ServerException {
+		if (poller != null) {
+			return;
+		}
+		reload();
+		if (pollIntervalMillis > 0) {
+			poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Behaviour catalog " + directory.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			poller.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reloadIfChanged();
+					} catch (RuntimeException e) {
+						log.error("Error checking behaviour catalog changes", e);
+					}
+				}
+			}, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops checking directory changes, loaded behaviours are kept
+	 */
+	public synchronized void stop() {
+		if (poller != null) {
+			poller.shutdownNow();
+			poller = null;
+		}
+	}
+
+	/**
+	 * Loads the catalog, replacing the current one
+	 *
+	 * @throws ServerException
+	 *             if any file can not be loaded, current catalog is kept
+	 */
+	public synchronized void reload() throws ServerException {
+		long start = System.nanoTime();
+		// taken before reading files, so changes while loading trigger another reload
+		loadedFiles = listFiles();
+		List<Behaviour> loaded;
+		try {
+			loaded = load();
+		} catch (ServerException e) {
+			failedReloads.incrementAndGet();
+			throw e;
+		}
+
+		IndexedBehaviourContainer newIndex = new IndexedBehaviourContainer();
+		for (Behaviour behaviour : loaded) {
+			newIndex.defineBehaviour(behaviour);
+		}
+		for (Iterator<Behaviour> it = definedBehaviours.iterator(); it.hasNext();) {
+			Behaviour behaviour = it.next();
+			if (behaviour.isConsumed()) {
+				it.remove();
+			} else {
+				newIndex.defineBehaviour(behaviour);
+			}
+		}
+		index.set(newIndex);
+
+		size = loaded.size();
+		reloads.incrementAndGet();
+		lastReloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		log.info("Behaviour catalog " + directory + " loaded: " + size + " behaviours in " + lastReloadMillis + " ms");
+	}
+
+	/**
+	 * Reloads the catalog if any file has been added, removed or modified since last reload. Load errors are logged.
+	 *
+	 * @return true if the catalog has been reloaded
+	 */
+	public synchronized boolean reloadIfChanged() {
+		if (listFiles().equals(loadedFiles)) {
+			return false;
+		}
+		try {
+			reload();
+			return true;
+		} catch (ServerException e) {
+			log.error("Error reloading behaviour catalog " + directory + ", keeping previous one", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Defines a behaviour after catalog ones, kept across reloads
+	 */
+	@Override
+	public synchronized void defineBehaviour(Behaviour behaviour) {
+		index.get().defineBehaviour(behaviour);
+		definedBehaviours.add(behaviour);
+	}
+
+	@Override
+	public List<Behaviour> getBehaviours() {
+		return index.get().getBehaviours();
+	}
+
+	@Override
+	public BehaviourMatch matchBehaviour(Query query, String sessionId) {
+		return index.get().matchBehaviour(query, sessionId);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 *
+	 * @return number of behaviours loaded from the directory
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return successful reloads
+	 */
+	public long getReloads() {
+		return reloads.get();
+	}
+
+	/**
+	 *
+	 * @return reloads failed, keeping the previous catalog
+	 */
+	public long getFailedReloads() {
+		return failedReloads.get();
+	}
+
+	/**
+	 *
+	 * @return duration of the last successful reload, -1 if never loaded
+	 */
+	public long getLastReloadMillis() {
+		return lastReloadMillis;
+	}
+
+	private Map<String, String> listFiles() {
+		Map<String, String> files = new HashMap<String, String>();
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File file : children) {
+				if (file.getName().endsWith(QUERY_SUFFIX) || file.getName().endsWith(REPLY_SUFFIX)) {
+					files.put(file.getName(), file.length() + "@" + file.lastModified());
+				}
+			}
+		}
+		return files;
+	}
+
+	private List<Behaviour> load() throws ServerException {
+		String[] names = directory.list();
+		if (names == null) {
+			throw new ServerException("Behaviour catalog directory can not be read: " + directory);
+		}
+		Arrays.sort(names);
+
+		List<Behaviour> behaviours = new ArrayList<Behaviour>();
+		for (String name : names) {
+			if (name.endsWith(QUERY_SUFFIX)) {
+				String behaviourName = name.substring(0, name.length() - QUERY_SUFFIX.length());
+				behaviours.add(loadBehaviour(new File(directory, name), new File(directory, behaviourName + REPLY_SUFFIX)));
+			} else if (name.endsWith(REPLY_SUFFIX)) {
+				String behaviourName = name.substring(0, name.length() - REPLY_SUFFIX.length());
+				if (!new File(directory, behaviourName + QUERY_SUFFIX).isFile()) {
+					throw new ServerException("Reply without query in behaviour catalog: " + name);
+				}
+			}
+		}
+		return behaviours;
+	}
+
+	private Behaviour loadBehaviour(File queryFile, File replyFile) throws ServerException {
+		Query query = parseQuery(queryFile);
+		if (query.getOperation() == null) {
+			throw new ServerException("Query without a known operation in behaviour catalog: " + queryFile);
+		}
+
+		ReplyTemplate reply;
+		try {
+			reply = ReplyTemplate.compile(FileUtils.readFileToString(replyFile, "UTF-8").trim());
+		} catch (IOException e) {
+			throw new ServerException("Error reading reply " + replyFile, e);
+		} catch (IllegalArgumentException e) {
+			throw new ServerException("Invalid reply " + replyFile, e);
+		}
+
+		List<QueryMatcher> matchers = new ArrayList<QueryMatcher>();
+		try {
+			if (query.getTarget() != null) {
+				matchers.add(new DatastoreMatcher(DatastoreMatcher.Parameter.TARGET, query.getTarget()));
+			}
+			if (query.getSource() != null) {
+				matchers.add(new DatastoreMatcher(DatastoreMatcher.Parameter.SOURCE, query.getSource()));
+			}
+			if (query.getConfig() != null && query.getConfig().trim().length() > 0) {
+				matchers.add(new SubtreeMatcher(Payload.CONFIG, query.getConfig()));
+			}
+			if (query.getFilter() != null && query.getFilter().trim().length() > 0) {
+				matchers.add(new SubtreeMatcher(Payload.FILTER, query.getFilter()));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ServerException("Invalid query " + queryFile, e);
+		}
+
+		QueryMatcher matcher = null;
+		if (matchers.size() == 1) {
+			matcher = matchers.get(0);
+		} else if (matchers.size() > 1) {
+			matcher = new AllMatcher(matchers.toArray(new QueryMatcher[matchers.size()]));
+		}
+		return new Behaviour(query, reply, false, matcher);
+	}
+
+	private Query parseQuery(File queryFile) throws ServerException {
+		RPCElement parsed;
+		InputStream in = null;
+		try {
+			in = new FileInputStream(queryFile);
+			parsed = parserPool.parse(new InputSource(in));
+		} catch (SAXException e) {
+			throw new ServerException("Error parsing query " + queryFile, e);
+		} catch (IOException e) {
+			throw new ServerException("Error reading query " + queryFile, e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					log.warn("Error closing " + queryFile, e);
+				}
+			}
+		}
+
+		if (!(parsed instanceof Query)) {
+			throw new ServerException("Query file must contain a Netconf rpc: " + queryFile);
+		}
+		return (Query) parsed;
+	}
+}
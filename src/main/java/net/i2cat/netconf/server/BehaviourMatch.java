@@ -0,0 +1,23 @@
+package net.i2cat.netconf.server;
+
+/**
+ * {@link Behaviour} matched by a query, with the reply it selected for that query. Immutable.
+ */
+public final class BehaviourMatch {
+
+	private final Behaviour		behaviour;
+	private final PreparedReply	reply;
+
+	public BehaviourMatch(Behaviour behaviour, PreparedReply reply) {
+		this.behaviour = behaviour;
+		this.reply = reply;
+	}
+
+	public Behaviour getBehaviour() {
+		return behaviour;
+	}
+
+	public PreparedReply getReply() {
+		return reply;
+	}
+}
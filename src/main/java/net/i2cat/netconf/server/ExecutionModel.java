@@ -0,0 +1,137 @@
+package net.i2cat.netconf.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Execution model of Netconf sessions. Each session needs:
+ * <ul>
+ * <li>A long-lived task reading and parsing messages from the SSH channel, run by the session executor. It blocks on channel
+ * reads, so this executor must be able to run one task per open session.</li>
+ * <li>Short tasks processing received messages, run by the message executor. Messages of a session are processed in order,
+ * but no thread is dedicated to a session while it has no pending messages.</li>
+ * <li>Delayed flushes of buffered replies, see {@link FlushPolicy}. A single timer thread of the execution model schedules
+ * them, and they are run by the message executor, so a session blocked writing to its channel does not delay the others.</li>
+ * </ul>
+ */
+public final class ExecutionModel {
+
+	private static final Log				log	= LogFactory.getLog(ExecutionModel.class);
+
+	private final ExecutorService			sessionExecutor;
+	private final ExecutorService			messageExecutor;
+	private final ScheduledExecutorService	flushScheduler;
+
+	/**
+	 * Creates an execution model using given executors
+	 *
+	 * @param sessionExecutor
+	 *            executor for session reader tasks, one per open session
+	 * @param messageExecutor
+	 *            executor for message processing tasks
+	 */
+	public ExecutionModel(ExecutorService sessionExecutor, ExecutorService messageExecutor) {
+		this.sessionExecutor = sessionExecutor;
+		this.messageExecutor = messageExecutor;
+		this.flushScheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Reply flush timer"));
+	}
+
+	/**
+	 * Default execution model, shared by all servers. Threads are reused between sessions and discarded after being idle for one
+	 * minute.
+	 *
+	 * @return the default execution model. It must not be shut down.
+	 */
+	public static ExecutionModel getDefault() {
+		return DefaultHolder.DEFAULT;
+	}
+
+	/**
+	 * Creates an execution model where message processing of all sessions shares a bounded pool of threads
+	 *
+	 * @param messageThreads
+	 *            number of threads processing messages
+	 */
+	public static ExecutionModel sharedPool(int messageThreads) {
+		return new ExecutionModel(Executors.newCachedThreadPool(new NamedThreadFactory("Client thread")),
+				Executors.newFixedThreadPool(messageThreads, new NamedThreadFactory("Message processor")));
+	}
+
+	/**
+	 * Creates an execution model running every task in a new virtual thread, so the number of sessions is only bounded by
+	 * memory. Virtual threads are available since Java 21; in older JVMs a {@link #sharedPool(int)} with a thread per available
+	 * processor is returned.
+	 */
+	public static ExecutionModel virtualThreads() {
+		try {
+			Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new ExecutionModel((ExecutorService) factoryMethod.invoke(null), (ExecutorService) factoryMethod.invoke(null));
+		} catch (Exception e) {
+			log.warn("Virtual threads are not supported by this JVM, using a shared pool of platform threads");
+			return sharedPool(Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	public ExecutorService getSessionExecutor() {
+		return sessionExecutor;
+	}
+
+	public ExecutorService getMessageExecutor() {
+		return messageExecutor;
+	}
+
+	/**
+	 *
+	 * @return timer scheduling delayed flushes of replies. Its tasks must not block, they only submit work to the message
+	 *         executor.
+	 */
+	public ScheduledExecutorService getFlushScheduler() {
+		return flushScheduler;
+	}
+
+	/**
+	 * Stops accepting new tasks. Running sessions are not interrupted, and flushes already scheduled still run.
+	 */
+	public void shutdown() {
+		if (this == DefaultHolder.DEFAULT) {
+			// shared by all servers
+			return;
+		}
+		sessionExecutor.shutdown();
+		messageExecutor.shutdown();
+		flushScheduler.shutdown();
+	}
+
+	private static class DefaultHolder {
+		private static final ExecutionModel	DEFAULT	= new ExecutionModel(
+															Executors.newCachedThreadPool(new NamedThreadFactory("Client thread")),
+															Executors.newCachedThreadPool(new NamedThreadFactory("Message processor")));
+	}
+
+	/**
+	 * Daemon threads named with a prefix and a sequence number
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String		prefix;
+		private final AtomicInteger	counter	= new AtomicInteger();
+
+		public NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + " " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package net.i2cat.netconf.server;
+
+/**
+ * Policy deciding when replies written to a Netconf session are flushed to the SSH channel. Replies waiting to be flushed are
+ * coalesced into a single channel write.
+ * <p>
+ * A flush happens as soon as buffered replies reach the size threshold, and never later than the maximum delay after the first
+ * buffered reply.
+ */
+public final class FlushPolicy {
+
+	private static final FlushPolicy	IMMEDIATE	= new FlushPolicy(0, 0);
+
+	private final int					sizeThreshold;
+	private final long					maxDelayMillis;
+
+	private FlushPolicy(int sizeThreshold, long maxDelayMillis) {
+		if (sizeThreshold < 0 || maxDelayMillis < 0) {
+			throw new IllegalArgumentException("Flush size threshold and delay must not be negative");
+		}
+		this.sizeThreshold = sizeThreshold;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Flushes every reply as soon as it is written (default)
+	 */
+	public static FlushPolicy immediate() {
+		return IMMEDIATE;
+	}
+
+	/**
+	 * Flushes when buffered replies reach given size
+	 * 
+	 * @param sizeThreshold
+	 *            bytes to buffer before flushing
+	 * @param maxDelayMillis
+	 *            maximum time a reply may wait in the buffer, so the last replies of a burst are not delayed forever
+	 */
+	public static FlushPolicy sizeBased(int sizeThreshold, long maxDelayMillis) {
+		return new FlushPolicy(sizeThreshold, maxDelayMillis);
+	}
+
+	/**
+	 * Flushes buffered replies periodically
+	 * 
+	 * @param delayMillis
+	 *            maximum time a reply may wait in the buffer
+	 */
+	public static FlushPolicy timeBased(long delayMillis) {
+		return new FlushPolicy(Integer.MAX_VALUE, delayMillis);
+	}
+
+	public int getSizeThreshold() {
+		return sizeThreshold;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "FlushPolicy [sizeThreshold=" + sizeThreshold + ", maxDelayMillis=" + maxDelayMillis + "]";
+	}
+}
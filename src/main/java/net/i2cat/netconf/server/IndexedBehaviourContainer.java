@@ -0,0 +1,94 @@
+package net.i2cat.netconf.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.matcher.MatchContext;
+
+/**
+ * {@link BehaviourContainer} indexing behaviours by the operation of their query, so matching a query does not depend on the
+ * number of behaviours defined for other operations. Content matchers of behaviours are only evaluated for queries of their
+ * operation, sharing the parsed payloads. Behaviours may be defined and matched concurrently by several sessions.
+ */
+public class IndexedBehaviourContainer implements MatchingBehaviourContainer {
+
+	// behaviours of each operation name, in definition order
+	private final ConcurrentMap<String, Queue<Behaviour>>	behaviours	= new ConcurrentHashMap<String, Queue<Behaviour>>();
+
+	@Override
+	public void defineBehaviour(Behaviour behaviour) {
+		String operationName = operationName(behaviour.getQuery());
+		if (operationName == null) {
+			throw new IllegalArgumentException("Behaviour query must have an operation");
+		}
+		Queue<Behaviour> operationBehaviours = behaviours.get(operationName);
+		if (operationBehaviours == null) {
+			Queue<Behaviour> newBehaviours = new ConcurrentLinkedQueue<Behaviour>();
+			operationBehaviours = behaviours.putIfAbsent(operationName, newBehaviours);
+			if (operationBehaviours == null) {
+				operationBehaviours = newBehaviours;
+			}
+		}
+		// prepare reply before any session sends it
+		behaviour.getPreparedReply();
+		operationBehaviours.add(behaviour);
+	}
+
+	/**
+	 *
+	 * @return a snapshot of behaviours not consumed yet, in definition order for each operation
+	 */
+	@Override
+	public List<Behaviour> getBehaviours() {
+		List<Behaviour> snapshot = new ArrayList<Behaviour>();
+		for (Queue<Behaviour> operationBehaviours : behaviours.values()) {
+			snapshot.addAll(operationBehaviours);
+		}
+		return Collections.unmodifiableList(snapshot);
+	}
+
+	@Override
+	public BehaviourMatch matchBehaviour(Query query, String sessionId) {
+		String operationName = operationName(query);
+		if (operationName == null) {
+			return null;
+		}
+		Queue<Behaviour> operationBehaviours = behaviours.get(operationName);
+		if (operationBehaviours == null) {
+			return null;
+		}
+		// payloads are parsed by the first matcher needing them
+		MatchContext context = null;
+		for (Behaviour behaviour : operationBehaviours) {
+			if (behaviour.getMatcher() != null) {
+				if (context == null) {
+					context = new MatchContext(query);
+				}
+				if (!behaviour.matches(context)) {
+					continue;
+				}
+			}
+			// behaviours claimed by other sessions are skipped, they are being removed
+			PreparedReply reply = behaviour.claimReply(sessionId);
+			if (behaviour.isConsumed()) {
+				operationBehaviours.remove(behaviour);
+			}
+			if (reply != null) {
+				return new BehaviourMatch(behaviour, reply);
+			}
+		}
+		return null;
+	}
+
+	private static String operationName(Query query) {
+		Operation operation = query.getOperation();
+		return operation == null ? null : operation.getName();
+	}
+}
@@ -0,0 +1,22 @@
+package net.i2cat.netconf.server;
+
+import net.i2cat.netconf.rpc.Query;
+
+/**
+ * {@link BehaviourContainer} matching received queries itself, e.g. using an index of its behaviours. Sessions scan
+ * {@link #getBehaviours()} of containers not implementing it.
+ */
+public interface MatchingBehaviourContainer extends BehaviourContainer {
+
+	/**
+	 * Finds the behaviour matching a received query. Behaviours are claimed, so consumed ones are returned only once and
+	 * sequenced ones select the reply of this call.
+	 * 
+	 * @param query
+	 *            received Netconf query
+	 * @param sessionId
+	 *            id of the session receiving the query
+	 * @return first defined behaviour replying the query and its reply, or null if none matches
+	 */
+	public BehaviourMatch matchBehaviour(Query query, String sessionId);
+}
@@ -0,0 +1,203 @@
+package net.i2cat.netconf.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2cat.netconf.server.exceptions.MemoryBudgetExceededException;
+
+/**
+ * Global limit of memory used by Netconf sessions to hold received messages: frame bytes being parsed and payloads kept in
+ * memory until their message is processed. Each session has its own limit too, see {@link #newSession()}.
+ * <p>
+ * When a session exceeds its own limit, the message is rejected and the session closed. When the global limit is exceeded, the
+ * message is rejected too, unless the policy is {@link Policy#THROTTLE}: then the session stops reading until other sessions
+ * release memory, and it is only rejected if that takes longer than the maximum wait.
+ */
+public final class MemoryBudget {
+
+	/**
+	 * What to do with a session exceeding the global limit
+	 */
+	public enum Policy {
+		REJECT,
+		THROTTLE
+	}
+
+	private final long			globalLimit;
+	private final long			sessionLimit;
+	private final Policy		policy;
+	private final long			maxWaitMillis;
+
+	// guarded by this
+	private long				used			= 0;
+
+	// statistics
+	private final AtomicLong	rejections		= new AtomicLong();
+	private final AtomicLong	throttles		= new AtomicLong();
+
+	/**
+	 * Creates a budget rejecting messages exceeding it
+	 * 
+	 * @param globalLimit
+	 *            maximum bytes held by all sessions
+	 * @param sessionLimit
+	 *            maximum bytes held by a single session
+	 */
+	public MemoryBudget(long globalLimit, long sessionLimit) {
+		this(globalLimit, sessionLimit, Policy.REJECT, 0);
+	}
+
+	/**
+	 * Creates a budget
+	 * 
+	 * @param globalLimit
+	 *            maximum bytes held by all sessions
+	 * @param sessionLimit
+	 *            maximum bytes held by a single session
+	 * @param policy
+	 *            what to do with sessions exceeding the global limit
+	 * @param maxWaitMillis
+	 *            maximum time a throttled session waits for memory before its message is rejected
+	 */
+	public MemoryBudget(long globalLimit, long sessionLimit, Policy policy, long maxWaitMillis) {
+		if (globalLimit <= 0 || sessionLimit <= 0 || maxWaitMillis < 0) {
+			throw new IllegalArgumentException("Memory limits must be positive and maximum wait must not be negative");
+		}
+		this.globalLimit = globalLimit;
+		this.sessionLimit = sessionLimit;
+		this.policy = policy;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * 
+	 * @return a new session sharing this budget
+	 */
+	public Session newSession() {
+		return new Session();
+	}
+
+	public long getGlobalLimit() {
+		return globalLimit;
+	}
+
+	public long getSessionLimit() {
+		return sessionLimit;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * 
+	 * @return bytes currently held by all sessions
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * 
+	 * @return number of rejected reservations
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	/**
+	 * 
+	 * @return number of reservations that had to wait for memory
+	 */
+	public long getThrottles() {
+		return throttles.get();
+	}
+
+	private synchronized void reserveGlobal(long bytes) throws MemoryBudgetExceededException {
+		if (used + bytes <= globalLimit) {
+			used += bytes;
+			return;
+		}
+		if (policy == Policy.THROTTLE && bytes <= globalLimit) {
+			throttles.incrementAndGet();
+			long deadline = System.currentTimeMillis() + maxWaitMillis;
+			long remaining;
+			while (used + bytes > globalLimit && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (used + bytes <= globalLimit) {
+				used += bytes;
+				return;
+			}
+		}
+		rejections.incrementAndGet();
+		throw new MemoryBudgetExceededException("Global memory budget exceeded: " + used + " bytes used, " + bytes +
+				" bytes requested, limit is " + globalLimit);
+	}
+
+	private synchronized void releaseGlobal(long bytes) {
+		used -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Memory held by a single session. Memory is reserved by the session reader, and may be released by any thread.
+	 */
+	public final class Session {
+
+		private final AtomicLong	used	= new AtomicLong();
+
+		private Session() {
+		}
+
+		/**
+		 * Reserves memory, waiting for it if the budget is throttling
+		 * 
+		 * @param bytes
+		 *            bytes to reserve
+		 * @throws MemoryBudgetExceededException
+		 *             if the session or global limit is exceeded
+		 */
+		public void reserve(long bytes) throws MemoryBudgetExceededException {
+			if (used.get() + bytes > sessionLimit) {
+				rejections.incrementAndGet();
+				throw new MemoryBudgetExceededException("Session memory budget exceeded: " + used.get() + " bytes used, " + bytes +
+						" bytes requested, limit is " + sessionLimit);
+			}
+			reserveGlobal(bytes);
+			used.addAndGet(bytes);
+		}
+
+		/**
+		 * Releases reserved memory
+		 * 
+		 * @param bytes
+		 *            bytes to release, previously reserved
+		 */
+		public void release(long bytes) {
+			if (bytes > 0) {
+				used.addAndGet(-bytes);
+				releaseGlobal(bytes);
+			}
+		}
+
+		/**
+		 * Releases all memory reserved by this session
+		 */
+		public void releaseAll() {
+			release(used.get());
+		}
+
+		/**
+		 * 
+		 * @return bytes currently held by this session
+		 */
+		public long getUsed() {
+			return used.get();
+		}
+	}
+}
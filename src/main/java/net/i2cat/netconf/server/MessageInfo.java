@@ -0,0 +1,54 @@
+package net.i2cat.netconf.server;
+
+import net.i2cat.netconf.rpc.RPCElement;
+
+/**
+ * Netconf message exchanged in a session, with the session id, direction and time of the exchange. Immutable.
+ */
+public final class MessageInfo {
+
+	/**
+	 * Direction of a message, from the server side
+	 */
+	public enum Direction {
+		RECEIVED,
+		SENT
+	}
+
+	private final String		sessionId;
+	private final Direction		direction;
+	private final long			timestamp;
+	private final RPCElement	message;
+
+	/**
+	 *
+	 * @param sessionId
+	 *            session id, null if unknown
+	 * @param direction
+	 * @param timestamp
+	 *            time of the exchange, in milliseconds since the epoch
+	 * @param message
+	 */
+	public MessageInfo(String sessionId, Direction direction, long timestamp, RPCElement message) {
+		this.sessionId = sessionId;
+		this.direction = direction;
+		this.timestamp = timestamp;
+		this.message = message;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public RPCElement getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,33 @@
+package net.i2cat.netconf.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.i2cat.netconf.rpc.Query;
+
+/**
+ * Behaviour reply prepared when the behaviour is defined, written directly to session buffers for each matched query.
+ * Implementations must be thread safe, they are shared by all sessions.
+ */
+public interface PreparedReply {
+
+	/**
+	 * Writes the reply of a query
+	 * 
+	 * @param out
+	 *            destination stream
+	 * @param query
+	 *            matched query
+	 * @param sessionId
+	 *            id of the session replying the query
+	 * @throws IOException
+	 *             if an error occurs writing the stream
+	 */
+	public void writeTo(OutputStream out, Query query, String sessionId) throws IOException;
+
+	/**
+	 * 
+	 * @return the reply of a query, e.g. to log it
+	 */
+	public String toString(Query query, String sessionId);
+}
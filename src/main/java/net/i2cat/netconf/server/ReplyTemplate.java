@@ -0,0 +1,248 @@
+package net.i2cat.netconf.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.matcher.MatchContext;
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+import net.i2cat.netconf.server.matcher.XPathMatcher;
+
+import org.w3c.dom.Document;
+
+/**
+ * Reply compiled from a template into literal UTF-8 segments and variable slots, filled from the matched query when the reply
+ * is written. Variables are written as <code>${name}</code>, and <code>$${</code> is written as a literal <code>${</code>:
+ * <ul>
+ * <li><code>${message-id}</code>: message-id of the query</li>
+ * <li><code>${target}</code>, <code>${source}</code>: datastores of the query</li>
+ * <li><code>${session-id}</code>: id of the session replying the query</li>
+ * <li><code>${timestamp}</code>: current time, in RFC 3339 format (UTC)</li>
+ * <li><code>${counter}</code>: number of replies written by this template, starting at 1</li>
+ * <li><code>${config:expression}</code>, <code>${filter:expression}</code>: string value of an XPath expression evaluated on
+ * the config or filter of the query (see {@link XPathMatcher} for namespaces), empty if the query has no such payload</li>
+ * </ul>
+ * Values are escaped, so they can be written in text and attribute values. Immutable and thread safe.
+ * <p>
+ * E.g. <code>&lt;rpc-reply message-id="${message-id}" xmlns="urn:ietf:params:xml:ns:netconf:base:1.0"&gt;&lt;data&gt;
+ * &lt;name&gt;${config:/configuration/interfaces/interface/name}&lt;/name&gt;&lt;/data&gt;&lt;/rpc-reply&gt;</code>
+ */
+public final class ReplyTemplate implements PreparedReply {
+
+	private final List<Object>	segments;
+	private final AtomicLong	counter	= new AtomicLong();
+
+	private ReplyTemplate(List<Object> segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Compiles a template
+	 *
+	 * @param template
+	 *            reply template
+	 * @throws IllegalArgumentException
+	 *             if a variable is unknown or not closed, or an XPath expression is not valid
+	 */
+	public static ReplyTemplate compile(String template) {
+		return compile(template, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * Compiles a template
+	 *
+	 * @param template
+	 *            reply template
+	 * @param namespaces
+	 *            namespace URIs of the prefixes used in XPath expressions
+	 * @throws IllegalArgumentException
+	 *             if a variable is unknown or not closed, or an XPath expression is not valid
+	 */
+	public static ReplyTemplate compile(String template, Map<String, String> namespaces) {
+		List<Object> segments = new ArrayList<Object>();
+		StringBuilder literal = new StringBuilder();
+		int i = 0;
+		while (i < template.length()) {
+			if (template.startsWith("$${", i)) {
+				literal.append("${");
+				i += 3;
+			} else if (template.startsWith("${", i)) {
+				int end = template.indexOf('}', i + 2);
+				if (end < 0) {
+					throw new IllegalArgumentException("Variable not closed at " + i + ": " + template);
+				}
+				if (literal.length() > 0) {
+					segments.add(SerializedReply.utf8(literal.toString()));
+					literal.setLength(0);
+				}
+				segments.add(Slot.compile(template.substring(i + 2, end), namespaces));
+				i = end + 1;
+			} else {
+				literal.append(template.charAt(i++));
+			}
+		}
+		if (literal.length() > 0) {
+			segments.add(SerializedReply.utf8(literal.toString()));
+		}
+		return new ReplyTemplate(Collections.unmodifiableList(segments));
+	}
+
+	@Override
+	public void writeTo(OutputStream out, Query query, String sessionId) throws IOException {
+		Values values = new Values(query, sessionId, counter.incrementAndGet());
+		for (Object segment : segments) {
+			if (segment instanceof byte[]) {
+				out.write((byte[]) segment);
+			} else {
+				out.write(SerializedReply.utf8(SerializedReply.escape(((Slot) segment).value(values))));
+			}
+		}
+	}
+
+	/**
+	 * Fills the template without counting it as a written reply
+	 */
+	@Override
+	public String toString(Query query, String sessionId) {
+		Values values = new Values(query, sessionId, counter.get());
+		StringBuilder reply = new StringBuilder();
+		try {
+			for (Object segment : segments) {
+				if (segment instanceof byte[]) {
+					reply.append(new String((byte[]) segment, "UTF-8"));
+				} else {
+					reply.append(SerializedReply.escape(((Slot) segment).value(values)));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		return reply.toString();
+	}
+
+	/**
+	 * Sources of variable values while a reply is written
+	 */
+	private static class Values {
+
+		private final Query		query;
+		private final String	sessionId;
+		private final long		count;
+		// payloads are parsed once, if a slot needs them
+		private MatchContext	context;
+
+		private Values(Query query, String sessionId, long count) {
+			this.query = query;
+			this.sessionId = sessionId;
+			this.count = count;
+		}
+
+		private MatchContext getContext() {
+			if (context == null) {
+				context = new MatchContext(query);
+			}
+			return context;
+		}
+	}
+
+	/**
+	 * Variable of the template
+	 */
+	private static abstract class Slot {
+
+		// date formats are not thread safe
+		private static final ThreadLocal<DateFormat>	timestampFormats	= new ThreadLocal<DateFormat>() {
+																				@Override
+																				protected DateFormat initialValue() {
+																					DateFormat format = new SimpleDateFormat(
+																							"yyyy-MM-dd'T'HH:mm:ss'Z'");
+																					format.setTimeZone(TimeZone.getTimeZone("UTC"));
+																					return format;
+																				}
+																			};
+
+		abstract String value(Values values);
+
+		static Slot compile(String variable, Map<String, String> namespaces) {
+			if ("message-id".equals(variable)) {
+				return new Slot() {
+					@Override
+					String value(Values values) {
+						return values.query.getMessageId();
+					}
+				};
+			} else if ("target".equals(variable)) {
+				return new Slot() {
+					@Override
+					String value(Values values) {
+						return values.query.getTarget();
+					}
+				};
+			} else if ("source".equals(variable)) {
+				return new Slot() {
+					@Override
+					String value(Values values) {
+						return values.query.getSource();
+					}
+				};
+			} else if ("session-id".equals(variable)) {
+				return new Slot() {
+					@Override
+					String value(Values values) {
+						return values.sessionId;
+					}
+				};
+			} else if ("timestamp".equals(variable)) {
+				return new Slot() {
+					@Override
+					String value(Values values) {
+						return timestampFormats.get().format(new Date());
+					}
+				};
+			} else if ("counter".equals(variable)) {
+				return new Slot() {
+					@Override
+					String value(Values values) {
+						return Long.toString(values.count);
+					}
+				};
+			} else if (variable.startsWith("config:")) {
+				return new PayloadSlot(Payload.CONFIG, variable.substring("config:".length()), namespaces);
+			} else if (variable.startsWith("filter:")) {
+				return new PayloadSlot(Payload.FILTER, variable.substring("filter:".length()), namespaces);
+			}
+			throw new IllegalArgumentException("Unknown template variable: " + variable);
+		}
+	}
+
+	/**
+	 * XPath expression evaluated on a payload of the query
+	 */
+	private static class PayloadSlot extends Slot {
+
+		private final Payload		payload;
+		private final XPathMatcher	expression;
+
+		private PayloadSlot(Payload payload, String expression, Map<String, String> namespaces) {
+			this.payload = payload;
+			this.expression = new XPathMatcher(payload, expression, namespaces);
+		}
+
+		@Override
+		String value(Values values) {
+			Document document = values.getContext().getDocument(payload);
+			return document == null ? "" : expression.evaluate(document);
+		}
+	}
+}
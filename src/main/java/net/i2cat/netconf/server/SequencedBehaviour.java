@@ -0,0 +1,300 @@
+package net.i2cat.netconf.server;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.matcher.QueryMatcher;
+
+/**
+ * {@link Behaviour} replying successive queries with different replies. Calls are the queries reaching this behaviour, i.e.
+ * those with its operation, matched by its {@link QueryMatcher} and not matched by a previously defined behaviour. They are
+ * counted with atomic counters, for all sessions or for each session, so concurrent sessions do not block each other.
+ * <p>
+ * E.g. failing the 3rd commit: <code>SequencedBehaviour.nthCall(commit, null, Scope.GLOBAL, true, error, 3)</code>
+ */
+public class SequencedBehaviour extends Behaviour {
+
+	/**
+	 * How the reply of each call is selected
+	 */
+	public enum Selection {
+		/**
+		 * Replies in order, the last one repeated unless the behaviour is consumed by it
+		 */
+		ORDERED,
+		/**
+		 * Replies in rotation
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Random reply, with a probability proportional to its weight
+		 */
+		WEIGHTED_RANDOM,
+		/**
+		 * Only some calls are replied, others are left to following behaviours
+		 */
+		NTH_CALL
+	}
+
+	/**
+	 * Calls counted by each counter
+	 */
+	public enum Scope {
+		/**
+		 * Calls of all sessions
+		 */
+		GLOBAL,
+		/**
+		 * Calls of each session
+		 */
+		SESSION
+	}
+
+	// random generators are contended if shared
+	private static final ThreadLocal<Random>		randoms	= new ThreadLocal<Random>() {
+																@Override
+																protected Random initialValue() {
+																	return new Random();
+																}
+															};
+
+	private final Selection							selection;
+	private final Scope								scope;
+	private final PreparedReply[]					replies;
+	// cumulative weights of replies, for weighted random selection
+	private final long[]							weights;
+	// replied calls, sorted and starting at 1, for nth call selection
+	private final long[]							calls;
+
+	private final AtomicLong						globalCalls;
+	private final ConcurrentMap<String, AtomicLong>	sessionCalls;
+
+	private SequencedBehaviour(Query query, QueryMatcher matcher, Selection selection, Scope scope, boolean consume,
+			PreparedReply[] replies, long[] weights, long[] calls) {
+		super(query, consume, matcher);
+		if (replies.length == 0) {
+			throw new IllegalArgumentException("Sequenced behaviour must have replies");
+		}
+		this.selection = selection;
+		this.scope = scope;
+		this.replies = replies.clone();
+		this.weights = weights;
+		this.calls = calls;
+		this.globalCalls = new AtomicLong();
+		this.sessionCalls = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	/**
+	 * Creates a behaviour replying calls with replies in order
+	 *
+	 * @param query
+	 * @param matcher
+	 *            predicate on query contents, null to match all queries of the operation
+	 * @param scope
+	 *            calls of each sequence
+	 * @param consume
+	 *            if true, the behaviour does not reply after the last reply, otherwise the last reply is repeated
+	 * @param replies
+	 *            replies of successive calls
+	 */
+	public static SequencedBehaviour ordered(Query query, QueryMatcher matcher, Scope scope, boolean consume,
+			PreparedReply... replies) {
+		return new SequencedBehaviour(query, matcher, Selection.ORDERED, scope, consume, replies, null, null);
+	}
+
+	/**
+	 * Creates a behaviour replying calls with replies in rotation
+	 *
+	 * @param query
+	 * @param matcher
+	 *            predicate on query contents, null to match all queries of the operation
+	 * @param scope
+	 *            calls of each rotation
+	 * @param replies
+	 *            replies to rotate
+	 */
+	public static SequencedBehaviour roundRobin(Query query, QueryMatcher matcher, Scope scope, PreparedReply... replies) {
+		return new SequencedBehaviour(query, matcher, Selection.ROUND_ROBIN, scope, false, replies, null, null);
+	}
+
+	/**
+	 * Creates a behaviour replying each call with a random reply
+	 *
+	 * @param query
+	 * @param matcher
+	 *            predicate on query contents, null to match all queries of the operation
+	 * @param weights
+	 *            relative probability of each reply, not negative
+	 * @param replies
+	 *            replies to select
+	 */
+	public static SequencedBehaviour weightedRandom(Query query, QueryMatcher matcher, int[] weights, PreparedReply... replies) {
+		if (weights.length != replies.length) {
+			throw new IllegalArgumentException("Each reply must have a weight");
+		}
+		long[] cumulative = new long[weights.length];
+		long total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] < 0) {
+				throw new IllegalArgumentException("Weights must not be negative");
+			}
+			total += weights[i];
+			cumulative[i] = total;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("At least one weight must be positive");
+		}
+		return new SequencedBehaviour(query, matcher, Selection.WEIGHTED_RANDOM, Scope.GLOBAL, false, replies, cumulative, null);
+	}
+
+	/**
+	 * Creates a behaviour replying only some calls, e.g. to fail the 3rd one. Other calls are left to following behaviours, or
+	 * default processing.
+	 *
+	 * @param query
+	 * @param matcher
+	 *            predicate on query contents, null to match all queries of the operation
+	 * @param scope
+	 *            calls counted
+	 * @param consume
+	 *            if true, the behaviour is removed after the last replied call; only with global scope
+	 * @param reply
+	 *            reply of the replied calls
+	 * @param calls
+	 *            replied calls, starting at 1
+	 */
+	public static SequencedBehaviour nthCall(Query query, QueryMatcher matcher, Scope scope, boolean consume,
+			PreparedReply reply, long... calls) {
+		if (calls.length == 0) {
+			throw new IllegalArgumentException("Replied calls must be specified");
+		}
+		long[] sorted = calls.clone();
+		Arrays.sort(sorted);
+		if (sorted[0] < 1) {
+			throw new IllegalArgumentException("Calls start at 1");
+		}
+		return new SequencedBehaviour(query, matcher, Selection.NTH_CALL, scope, consume, new PreparedReply[] { reply }, null,
+				sorted);
+	}
+
+	public Selection getSelection() {
+		return selection;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	/**
+	 *
+	 * @return first reply of the behaviour
+	 */
+	@Override
+	public PreparedReply getPreparedReply() {
+		return replies[0];
+	}
+
+	@Override
+	public PreparedReply claimReply(String sessionId) {
+		if (isConsumed()) {
+			return null;
+		}
+		switch (selection) {
+			case ORDERED:
+				return ordered(nextCall(sessionId));
+			case ROUND_ROBIN:
+				return replies[(int) (nextCall(sessionId) % replies.length)];
+			case WEIGHTED_RANDOM:
+				return weightedRandom();
+			case NTH_CALL:
+				return nthCall(nextCall(sessionId) + 1);
+			default:
+				throw new IllegalStateException("Unknown selection " + selection);
+		}
+	}
+
+	/**
+	 *
+	 * @param sessionId
+	 *            session id, ignored with global scope
+	 * @return calls counted so far
+	 */
+	public long getCalls(String sessionId) {
+		if (scope == Scope.GLOBAL) {
+			return globalCalls.get();
+		}
+		AtomicLong counter = sessionCalls.get(sessionId);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * Restarts counting calls of all sessions. Consumed behaviours are not restored.
+	 */
+	public void resetCalls() {
+		globalCalls.set(0);
+		sessionCalls.clear();
+	}
+
+	/**
+	 * Discards the calls counted for an ended session
+	 */
+	@Override
+	public void endSession(String sessionId) {
+		sessionCalls.remove(sessionId);
+	}
+
+	/**
+	 *
+	 * @return call number of this call, starting at 0
+	 */
+	private long nextCall(String sessionId) {
+		if (scope == Scope.GLOBAL) {
+			return globalCalls.getAndIncrement();
+		}
+		AtomicLong counter = sessionCalls.get(sessionId);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = sessionCalls.putIfAbsent(sessionId, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter.getAndIncrement();
+	}
+
+	private PreparedReply ordered(long call) {
+		int last = replies.length - 1;
+		if (call < last) {
+			return replies[(int) call];
+		}
+		if (!isConsume()) {
+			return replies[last];
+		}
+		// consumed sequences of a session do not remove the behaviour for other sessions
+		if (scope == Scope.GLOBAL) {
+			markConsumed();
+		}
+		return call == last ? replies[last] : null;
+	}
+
+	private PreparedReply weightedRandom() {
+		long value = (long) (randoms.get().nextDouble() * weights[weights.length - 1]);
+		for (int i = 0; i < weights.length; i++) {
+			if (value < weights[i]) {
+				return replies[i];
+			}
+		}
+		return replies[replies.length - 1];
+	}
+
+	private PreparedReply nthCall(long call) {
+		if (isConsume() && scope == Scope.GLOBAL && call >= calls[calls.length - 1]) {
+			markConsumed();
+		}
+		return Arrays.binarySearch(calls, call) >= 0 ? replies[0] : null;
+	}
+}
@@ -0,0 +1,140 @@
+package net.i2cat.netconf.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+
+/**
+ * {@link Reply} serialized once to UTF-8, with a slot where the message-id of each request is written. Sending it costs a copy
+ * of its bytes instead of a serialization, and it can be sent concurrently to several sessions. Immutable.
+ */
+public final class SerializedReply implements PreparedReply {
+
+	// message-id set while serializing, replaced by the slot
+	private static final String	MESSAGE_ID_MARKER	= "netconf-server-message-id-slot";
+
+	// bytes before and after the message-id slot, suffix is null if there is no slot
+	private final byte[]		prefix;
+	private final byte[]		suffix;
+
+	private SerializedReply(byte[] prefix, byte[] suffix) {
+		this.prefix = prefix;
+		this.suffix = suffix;
+	}
+
+	/**
+	 * Serializes a reply. Its message-id is replaced by a slot, and restored afterwards.
+	 *
+	 * @param reply
+	 *            reply to serialize, not modified by other threads while being serialized
+	 */
+	public static SerializedReply serialize(Reply reply) {
+		String xml;
+		synchronized (reply) {
+			String messageId = reply.getMessageId();
+			reply.setMessageId(MESSAGE_ID_MARKER);
+			try {
+				xml = reply.toXML();
+			} finally {
+				reply.setMessageId(messageId);
+			}
+		}
+
+		int slot = xml.indexOf(MESSAGE_ID_MARKER);
+		if (slot < 0) {
+			return new SerializedReply(utf8(xml), null);
+		}
+		return new SerializedReply(utf8(xml.substring(0, slot)), utf8(xml.substring(slot + MESSAGE_ID_MARKER.length())));
+	}
+
+	/**
+	 *
+	 * @return true if the reply has a message-id attribute
+	 */
+	public boolean hasMessageIdSlot() {
+		return suffix != null;
+	}
+
+	/**
+	 * Writes the reply with the message-id of the query, escaped
+	 */
+	@Override
+	public void writeTo(OutputStream out, Query query, String sessionId) throws IOException {
+		out.write(prefix);
+		if (suffix != null) {
+			out.write(utf8(escape(query.getMessageId())));
+			out.write(suffix);
+		}
+	}
+
+	@Override
+	public String toString(Query query, String sessionId) {
+		String messageId = query.getMessageId();
+		try {
+			if (suffix == null) {
+				return new String(prefix, "UTF-8");
+			}
+			return new String(prefix, "UTF-8") + escape(messageId) + new String(suffix, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Escapes a value to be written as attribute value or text
+	 */
+	static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		StringBuilder escaped = null;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String entity;
+			switch (c) {
+				case '&':
+					entity = "&amp;";
+					break;
+				case '<':
+					entity = "&lt;";
+					break;
+				case '>':
+					entity = "&gt;";
+					break;
+				case '"':
+					entity = "&quot;";
+					break;
+				case '\'':
+					entity = "&apos;";
+					break;
+				default:
+					entity = null;
+					break;
+			}
+			if (entity != null && escaped == null) {
+				escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+			}
+			if (escaped != null) {
+				if (entity != null) {
+					escaped.append(entity);
+				} else {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped == null ? value : escaped.toString();
+	}
+
+	static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+}
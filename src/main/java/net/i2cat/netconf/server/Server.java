@@ -1,16 +1,21 @@
 package net.i2cat.netconf.server;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import net.i2cat.netconf.rpc.Query;
 import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.datastore.Datastores;
 import net.i2cat.netconf.server.exceptions.ServerException;
 import net.i2cat.netconf.server.netconf.NetconfSubsystem;
 import net.i2cat.netconf.server.ssh.AlwaysTruePasswordAuthenticator;
+import net.i2cat.netconf.server.transport.ParserPool;
+import net.i2cat.netconf.server.transport.RawContent;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,18 +34,28 @@ import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
  * @author Julio Carlos Barrera
  * 
  */
-public class Server implements MessageStore, BehaviourContainer {
+public class Server implements SessionMessageStore, MatchingBehaviourContainer {
 
-	private static final Log	log				= LogFactory.getLog(Server.class);
+	private static final Log					log				= LogFactory.getLog(Server.class);
 
-	private SshServer			sshd;
+	private SshServer							sshd;
+	private NetconfSubsystem.Factory			netconfSubsystemFactory;
 
 	// stored messages
-	private boolean				storeMessages	= false;
-	private List<RPCElement>	messages;
+	private boolean								storeMessages	= false;
+	private List<RPCElement>					messages;
+	// replaces the messages list if set
+	private volatile MessageStore				messageStore;
 
-	// behaviours
-	private List<Behaviour>		behaviours;
+	// behaviours, replaced by a catalog if set
+	private volatile MatchingBehaviourContainer	behaviours		= new IndexedBehaviourContainer();
+	private BehaviourCatalog					behaviourCatalog;
+
+	// XML parsers shared by all sessions
+	private ParserPool							parserPool		= new ParserPool();
+
+	// threads running sessions and processing messages
+	private ExecutionModel						executionModel	= ExecutionModel.getDefault();
 
 	// hide default constructor, forcing using factory method
 	private Server() {
@@ -125,8 +140,12 @@ public class Server implements MessageStore, BehaviourContainer {
 		sshd.setPasswordAuthenticator(new AlwaysTruePasswordAuthenticator());
 		sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(""));
 
+		netconfSubsystemFactory = NetconfSubsystem.Factory.createFactory(this, this);
+		netconfSubsystemFactory.setParserPool(parserPool);
+		netconfSubsystemFactory.setExecutionModel(executionModel);
+
 		List<NamedFactory<Command>> subsystemFactories = new ArrayList<NamedFactory<Command>>();
-		subsystemFactories.add(NetconfSubsystem.Factory.createFactory(this, this));
+		subsystemFactories.add(netconfSubsystemFactory);
 		sshd.setSubsystemFactories(subsystemFactories);
 
 		log.info("Server configured.");
@@ -134,26 +153,137 @@ public class Server implements MessageStore, BehaviourContainer {
 
 	@Override
 	public void defineBehaviour(Behaviour behaviour) {
-		if (behaviours == null) {
-			behaviours = new ArrayList<Behaviour>();
-		}
-		synchronized (behaviours) {
-			behaviours.add(behaviour);
-		}
+		behaviours.defineBehaviour(behaviour);
 	}
 
+	/**
+	 * 
+	 * @return a snapshot of defined behaviours not consumed yet
+	 */
 	@Override
 	public List<Behaviour> getBehaviours() {
-		if (behaviours == null) {
-			return null;
+		return behaviours.getBehaviours();
+	}
+
+	@Override
+	public BehaviourMatch matchBehaviour(Query query, String sessionId) {
+		return behaviours.matchBehaviour(query, sessionId);
+	}
+
+	/**
+	 * Sets the policy used to flush replies of new sessions. By default every reply is flushed immediately.
+	 * 
+	 * @param flushPolicy
+	 *            policy allowing to coalesce several replies in a single channel write
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		netconfSubsystemFactory.setFlushPolicy(flushPolicy);
+	}
+
+	/**
+	 * Sets the execution model used by new sessions. By default {@link ExecutionModel#getDefault()} is used. The execution model
+	 * is shut down when the server is stopped.
+	 * 
+	 * @param executionModel
+	 *            execution model, e.g. {@link ExecutionModel#sharedPool(int)} to bound the number of threads processing messages
+	 */
+	public void setExecutionModel(ExecutionModel executionModel) {
+		this.executionModel = executionModel;
+		netconfSubsystemFactory.setExecutionModel(executionModel);
+	}
+
+	/**
+	 * Enables pipelining in new sessions: queries received from a client without waiting for previous replies are processed
+	 * concurrently, while replies are still sent in the order queries were received. Disabled by default.
+	 * 
+	 * @param maxInFlight
+	 *            maximum number of messages received from a session and not replied yet. When reached, the session stops reading
+	 *            until a reply is sent. 0 disables pipelining.
+	 */
+	public void setPipelining(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException("Maximum in-flight messages must not be negative: " + maxInFlight);
 		}
-		synchronized (behaviours) {
-			return behaviours;
+		netconfSubsystemFactory.setMaxInFlight(maxInFlight);
+	}
+
+	/**
+	 * Spills received payloads (e.g. the configuration of an edit-config) bigger than given size to temporary files, instead of
+	 * keeping them in memory. Spilled payloads are read with {@link net.i2cat.netconf.server.transport.RawContent#openStream()}.
+	 * Disabled by default.
+	 * 
+	 * @param spillThreshold
+	 *            payload size in bytes
+	 * @param spillDirectory
+	 *            directory of temporary files, or null to use the default temporary directory
+	 */
+	public void setPayloadSpilling(long spillThreshold, File spillDirectory) {
+		if (spillThreshold < 0) {
+			throw new IllegalArgumentException("Spill threshold must not be negative: " + spillThreshold);
 		}
+		netconfSubsystemFactory.setSpillThreshold(spillThreshold);
+		netconfSubsystemFactory.setSpillDirectory(spillDirectory);
+	}
+
+	/**
+	 * Limits the memory used by new sessions to receive messages and hold their payloads until they are processed. Sessions
+	 * exceeding it are closed or throttled, depending on the budget policy. Unlimited by default.
+	 * 
+	 * @param memoryBudget
+	 *            budget shared by all sessions, or null to remove limits
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		netconfSubsystemFactory.setMemoryBudget(memoryBudget);
+	}
+
+	/**
+	 * Keeps running, candidate and startup configurations changed by edit-config, copy-config, delete-config and commit, and
+	 * returned by get-config. Behaviours are still matched first. Without datastores, get-config is always replied with the
+	 * same configuration and the other operations with OK.
+	 * 
+	 * @param datastores
+	 *            datastores shared by all sessions, e.g. {@link Datastores#withDefaultConfig()}, or null to disable them
+	 */
+	public void setDatastores(Datastores datastores) {
+		netconfSubsystemFactory.setDatastores(datastores);
+	}
+
+	/**
+	 * Loads behaviours from a catalog directory when the server is started, reloading them while it runs. Behaviours already
+	 * defined are kept, after catalog ones. Must be called before starting the server.
+	 * 
+	 * @param behaviourCatalog
+	 *            catalog of behaviours
+	 */
+	public void setBehaviourCatalog(BehaviourCatalog behaviourCatalog) {
+		for (Behaviour behaviour : behaviours.getBehaviours()) {
+			behaviourCatalog.defineBehaviour(behaviour);
+		}
+		this.behaviourCatalog = behaviourCatalog;
+		this.behaviours = behaviourCatalog;
+	}
+
+	/**
+	 * 
+	 * @return the behaviour catalog, allowing to check its reload metrics, or null if not set
+	 */
+	public BehaviourCatalog getBehaviourCatalog() {
+		return behaviourCatalog;
+	}
+
+	/**
+	 * 
+	 * @return the pool of XML parsers shared by all sessions, allowing to check its hit/miss counts
+	 */
+	public ParserPool getParserPool() {
+		return parserPool;
 	}
 
 	public void startServer() throws ServerException {
 		log.info("Starting server...");
+		if (behaviourCatalog != null) {
+			behaviourCatalog.start();
+		}
 		try {
 			sshd.start();
 		} catch (IOException e) {
@@ -171,24 +301,60 @@ public class Server implements MessageStore, BehaviourContainer {
 			log.error("Error stopping server!");
 			throw new ServerException("Error stopping server", e);
 		}
+		executionModel.shutdown();
+		if (behaviourCatalog != null) {
+			behaviourCatalog.stop();
+		}
 		log.info("Server stopped.");
 	}
 
+	/**
+	 * Stores received messages in a message store instead of an unbounded list, e.g. a
+	 * {@link net.i2cat.netconf.server.store.RingBufferMessageStore}. A {@link SessionMessageStore} also records the session
+	 * and time of each message. Wrap it in an {@link net.i2cat.netconf.server.store.AsyncMessageStore} to store messages out of
+	 * the sessions' processing threads. Must be called before starting the server.
+	 * 
+	 * @param messageStore
+	 *            store of received messages, or null to store them as configured when the server was created
+	 */
+	public void setMessageStore(MessageStore messageStore) {
+		this.messageStore = messageStore;
+	}
+
 	@Override
 	public void storeMessage(RPCElement message) {
-		if (messages != null) {
+		MessageStore store = messageStore;
+		if (store != null) {
+			store.storeMessage(message);
+		} else if (messages != null) {
 			synchronized (messages) {
-				log.info("Storing message");
+				log.debug("Storing message");
+				// raw payloads are kept with the message
+				RawContent.retainPayloads(message);
 				messages.add(message);
 			}
 		}
 	}
 
+	@Override
+	public void storeMessage(MessageInfo info) {
+		MessageStore store = messageStore;
+		if (store instanceof SessionMessageStore) {
+			((SessionMessageStore) store).storeMessage(info);
+		} else {
+			storeMessage(info.getMessage());
+		}
+	}
+
 	@Override
 	public List<RPCElement> getStoredMessages() {
-		if (storeMessages) {
+		MessageStore store = messageStore;
+		if (store != null) {
+			return store.getStoredMessages();
+		} else if (storeMessages) {
+			// copy, a view of the list would fail when iterated while sessions store messages
 			synchronized (messages) {
-				return Collections.unmodifiableList(messages);
+				return Collections.unmodifiableList(new ArrayList<RPCElement>(messages));
 			}
 		} else {
 			throw new ServerException(new UnsupportedOperationException("Server is configured to not store messages!"));
@@ -0,0 +1,16 @@
+package net.i2cat.netconf.server;
+
+/**
+ * {@link MessageStore} recording the session, direction and time of stored messages. Sessions store messages with
+ * {@link #storeMessage(MessageInfo)} when their store implements this interface.
+ */
+public interface SessionMessageStore extends MessageStore {
+
+	/**
+	 * Store a Netconf message of a session
+	 *
+	 * @param info
+	 *            message to store, and how it was exchanged
+	 */
+	public void storeMessage(MessageInfo info);
+}
@@ -0,0 +1,179 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.server.exceptions.DatastoreException;
+
+/**
+ * Applies edit-config operations to configuration trees. Trees are never modified: edited nodes are copied, from the root down
+ * to the modified elements, and the rest of the tree is shared.
+ */
+final class ConfigEditor {
+
+	// siblings are searched by key in a map above this size
+	private static final int	LINEAR_SEARCH_LIMIT	= 8;
+
+	private ConfigEditor() {
+	}
+
+	/**
+	 * Applies an edit to a configuration
+	 *
+	 * @param config
+	 *            current configuration root
+	 * @param edit
+	 *            root of the edit, whose children are applied to the children of the configuration root
+	 * @param defaultOperation
+	 *            operation of elements without operation, nor a parent with operation. Replace replaces the whole
+	 *            configuration by the edit, applying the operations of its elements.
+	 * @return edited configuration root, or the same root if nothing changed
+	 * @throws DatastoreException
+	 *             if an element to create exists, or an element to delete does not exist
+	 */
+	static ConfigNode edit(ConfigNode config, ConfigNode edit, EditOperation defaultOperation) {
+		if (defaultOperation == EditOperation.REPLACE) {
+			// RFC 6241 Section 7.2: the config parameter completely replaces the configuration
+			return config.withChildren(replaceChildren(config.children(), edit.children()));
+		}
+		return config.withChildren(editChildren(config.children(), edit.children(), defaultOperation));
+	}
+
+	/**
+	 *
+	 * @return edited children, or the same array if nothing changed
+	 */
+	private static ConfigNode[] editChildren(ConfigNode[] children, ConfigNode[] edits, EditOperation parentOperation) {
+		List<ConfigNode> edited = null;
+		Map<String, Integer> positions = null;
+
+		for (ConfigNode edit : edits) {
+			EditOperation operation = edit.getOperation() != null ? edit.getOperation() : parentOperation;
+			List<ConfigNode> current = edited != null ? edited : Arrays.asList(children);
+			if (positions == null && current.size() > LINEAR_SEARCH_LIMIT) {
+				positions = index(current);
+			}
+			int position = find(current, positions, edit.getKey());
+			ConfigNode existing = position >= 0 ? current.get(position) : null;
+
+			ConfigNode result;
+			switch (operation) {
+				case CREATE:
+					if (existing != null) {
+						throw new DatastoreException(ErrorTag.DATA_EXISTS, "Element already exists: " + edit.getKey());
+					}
+					result = edit.withoutOperations();
+					break;
+				case DELETE:
+					if (existing == null) {
+						throw new DatastoreException(ErrorTag.DATA_MISSING, "Element does not exist: " + edit.getKey());
+					}
+					result = null;
+					break;
+				case REMOVE:
+					result = null;
+					break;
+				case REPLACE:
+					result = replace(existing, edit);
+					break;
+				case MERGE:
+					result = merge(existing, edit);
+					break;
+				default:
+					// none: only descendants with operations change the configuration
+					if (!edit.hasOperations() || edit.isLeaf()) {
+						continue;
+					}
+					ConfigNode container = existing != null ? existing : edit.withChildren(new ConfigNode[0]).withoutOperations();
+					result = container.withChildren(editChildren(container.children(), edit.children(), EditOperation.NONE));
+					if (existing == null && result.isLeaf()) {
+						// nothing created below it
+						continue;
+					}
+			}
+
+			if (result == existing) {
+				continue;
+			}
+			if (edited == null) {
+				edited = new ArrayList<ConfigNode>(Arrays.asList(children));
+			}
+			if (existing == null) {
+				edited.add(result);
+				if (positions != null) {
+					positions.put(result.getKey(), edited.size() - 1);
+				}
+			} else if (result != null) {
+				edited.set(position, result);
+			} else {
+				edited.remove(position);
+				// positions after it have changed
+				positions = null;
+			}
+		}
+		return edited == null ? children : edited.toArray(new ConfigNode[edited.size()]);
+	}
+
+	private static ConfigNode replace(ConfigNode existing, ConfigNode edit) {
+		if (edit.isLeaf() || !edit.hasOperations()) {
+			return edit.withoutOperations();
+		}
+		return edit.withChildren(replaceChildren(existing != null ? existing.children() : new ConfigNode[0], edit.children()));
+	}
+
+	/**
+	 * Replaces children by the edits. Operations set in the edits are applied to the current children, so that deleting a
+	 * missing element or creating an existing one fails.
+	 *
+	 * @return edited children, without the current ones not in the edits
+	 */
+	private static ConfigNode[] replaceChildren(ConfigNode[] children, ConfigNode[] edits) {
+		ConfigNode[] edited = editChildren(children, edits, EditOperation.REPLACE);
+		Set<String> keys = new HashSet<String>(edits.length * 2);
+		for (ConfigNode edit : edits) {
+			keys.add(edit.getKey());
+		}
+		List<ConfigNode> replaced = new ArrayList<ConfigNode>(edited.length);
+		for (ConfigNode child : edited) {
+			if (keys.contains(child.getKey())) {
+				replaced.add(child);
+			}
+		}
+		return replaced.toArray(new ConfigNode[replaced.size()]);
+	}
+
+	private static ConfigNode merge(ConfigNode existing, ConfigNode edit) {
+		if (existing == null || edit.isLeaf() || existing.isLeaf()) {
+			return edit.withoutOperations();
+		}
+		return existing.withChildren(editChildren(existing.children(), edit.children(), EditOperation.MERGE));
+	}
+
+	private static Map<String, Integer> index(List<ConfigNode> nodes) {
+		Map<String, Integer> positions = new HashMap<String, Integer>(nodes.size() * 2);
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			// first one wins
+			positions.put(nodes.get(i).getKey(), i);
+		}
+		return positions;
+	}
+
+	private static int find(List<ConfigNode> nodes, Map<String, Integer> positions, String key) {
+		if (positions != null) {
+			Integer position = positions.get(key);
+			return position != null ? position : -1;
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			if (nodes.get(i).getKey().equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,358 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.exceptions.DatastoreException;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+import net.i2cat.netconf.server.matcher.XPathMatcher;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Applies the filter of get and get-config queries to a configuration (RFC 6241 Section 6 and Section 8.9).
+ * <p>
+ * Subtree filters are evaluated directly on the {@link ConfigNode} tree. Each filter element only visits the children with its
+ * name, and a containment element with a &lt;name&gt; content match only visits that list entry, both found in the indexes of
+ * the tree, so selecting an entry of a big list does not scan the rest of the configuration. Filter elements without namespace
+ * match elements of any namespace.
+ * <p>
+ * XPath filters, whose <code>select</code> expression prefixes are resolved with the namespaces declared in the query, are
+ * evaluated on a DOM built from the configuration for each query, with the expression compiled once per thread. Selected nodes
+ * are returned with their ancestors and the &lt;name&gt; of ancestor list entries.
+ */
+public final class ConfigFilter {
+
+	/** Filter type of RFC 6241 subtree filters, the default one */
+	public static final String							SUBTREE			= "subtree";
+	/** Filter type of the :xpath capability */
+	public static final String							XPATH			= "xpath";
+
+	private static final ConfigNode[]					NOTHING			= new ConfigNode[0];
+
+	// DOM element property holding its configuration node
+	private static final String							NODE_PROPERTY	= ConfigFilter.class.getName();
+
+	// builders are not thread safe
+	private static final ThreadLocal<DocumentBuilder>	builders		= new ThreadLocal<DocumentBuilder>() {
+																			@Override
+																			protected DocumentBuilder initialValue() {
+																				return newDocumentBuilder();
+																			}
+																		};
+
+	// matchers of the last XPath filters, per thread so that their evaluations do not contend
+	private static final ThreadLocal<MatcherCache>		matchers		= new ThreadLocal<MatcherCache>() {
+																			@Override
+																			protected MatcherCache initialValue() {
+																				return new MatcherCache();
+																			}
+																		};
+
+	private ConfigFilter() {
+	}
+
+	/**
+	 *
+	 * @return true if a get or get-config query has a &lt;filter&gt; element
+	 */
+	public static boolean hasFilter(Query query) {
+		if (query instanceof RawQuery) {
+			RawQuery rawQuery = (RawQuery) query;
+			if (rawQuery.getRawFilter() != null || rawQuery.getFilterType() != null) {
+				return true;
+			}
+		}
+		return query.getFilter() != null;
+	}
+
+	/**
+	 * Applies the filter of a query, if it has one
+	 *
+	 * @param query
+	 *            get or get-config query
+	 * @param config
+	 *            configuration root, e.g. the contents of a datastore
+	 * @return selected configuration, serialized as the contents of the reply &lt;data&gt; element
+	 * @throws DatastoreException
+	 *             if the filter is not well formed, or its type is unknown
+	 */
+	public static String filter(Query query, ConfigNode config) {
+		String type = null;
+		String select = null;
+		Map<String, String> namespaces = Collections.emptyMap();
+		if (query instanceof RawQuery) {
+			RawQuery rawQuery = (RawQuery) query;
+			type = rawQuery.getFilterType();
+			select = rawQuery.getFilterSelect();
+			namespaces = rawQuery.getFilterNamespaces();
+		}
+
+		if (XPATH.equals(type)) {
+			return xpath(config, select, namespaces).childrenToXML();
+		} else if (type != null && !SUBTREE.equals(type)) {
+			throw new DatastoreException(ErrorTag.INVALID_VALUE, "Unknown filter type: " + type);
+		}
+		ConfigNode filter = parseFilter(query);
+		if (filter == null) {
+			return config.childrenToXML();
+		}
+		return subtree(config, filter).childrenToXML();
+	}
+
+	/**
+	 *
+	 * @return filter root, parsed as received if it is raw, or null if the query has no subtree filter
+	 */
+	private static ConfigNode parseFilter(Query query) {
+		if (query instanceof RawQuery) {
+			RawContent filter = ((RawQuery) query).getRawFilter();
+			if (filter != null) {
+				return ConfigParser.parse(filter);
+			}
+		}
+		return query.getFilter() != null ? ConfigParser.parse(query.getFilter()) : null;
+	}
+
+	/**
+	 * Applies a subtree filter
+	 *
+	 * @param config
+	 *            configuration root
+	 * @param filter
+	 *            filter root, whose children are the top-level filter elements
+	 * @return configuration root with the selected elements, sharing unmodified subtrees with the configuration
+	 */
+	static ConfigNode subtree(ConfigNode config, ConfigNode filter) {
+		// an empty filter selects nothing
+		ConfigNode[] selected = filter.isLeaf() ? null : select(config, filter.children());
+		return config.withChildren(selected != null ? selected : NOTHING);
+	}
+
+	/**
+	 * Applies an XPath filter
+	 *
+	 * @param config
+	 *            configuration root
+	 * @param select
+	 *            XPath expression selecting nodes of the configuration
+	 * @param namespaces
+	 *            namespace URIs of the prefixes used in the expression
+	 * @return configuration root with the selected elements
+	 */
+	static ConfigNode xpath(ConfigNode config, String select, Map<String, String> namespaces) {
+		if (select == null) {
+			throw new DatastoreException(ErrorTag.INVALID_VALUE, "XPath filter without select attribute");
+		}
+		XPathMatcher matcher = matcher(select, namespaces);
+
+		// top-level elements are the children of the root node of the expression
+		Document document = builders.get().newDocument();
+		Node root = document.createDocumentFragment();
+		for (ConfigNode child : config.children()) {
+			root.appendChild(toDOM(document, child));
+		}
+
+		NodeList nodes;
+		try {
+			nodes = matcher.select(root);
+		} catch (ServerException e) {
+			throw new DatastoreException(ErrorTag.INVALID_VALUE, e.getMessage(), e);
+		}
+
+		ConfigNode result = config.withChildren(NOTHING);
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Node node = nodes.item(i);
+			if (node == root) {
+				return config;
+			} else if (node.getNodeType() == Node.ATTRIBUTE_NODE) {
+				node = ((Attr) node).getOwnerElement();
+			} else if (node.getNodeType() != Node.ELEMENT_NODE) {
+				node = node.getParentNode();
+			}
+			result = ConfigEditor.edit(result, path(config, (Element) node), EditOperation.MERGE);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the matcher of an XPath filter, compiling it if the thread did not use it recently
+	 */
+	private static XPathMatcher matcher(String select, Map<String, String> namespaces) {
+		MatcherCache cache = matchers.get();
+		String key = select + ' ' + new TreeMap<String, String>(namespaces);
+		XPathMatcher matcher = cache.get(key);
+		if (matcher == null) {
+			try {
+				matcher = new XPathMatcher(Payload.CONFIG, select, namespaces);
+			} catch (IllegalArgumentException e) {
+				throw new DatastoreException(ErrorTag.INVALID_VALUE, e.getMessage(), e);
+			}
+			cache.put(key, matcher);
+		}
+		return matcher;
+	}
+
+	/**
+	 * Selects the children of a configuration element matching a set of sibling filter elements
+	 *
+	 * @return selected children in document order, or null if the element is not selected
+	 */
+	private static ConfigNode[] select(ConfigNode data, ConfigNode[] filters) {
+		// all content match nodes must match, and they alone select every child
+		boolean onlyContentMatches = true;
+		for (ConfigNode filter : filters) {
+			if (isContentMatch(filter)) {
+				if (!matchesAny(data, filter)) {
+					return null;
+				}
+			} else {
+				onlyContentMatches = false;
+			}
+		}
+		if (onlyContentMatches) {
+			return data.children();
+		}
+
+		ConfigNode[] children = data.children();
+		// positions of selected children, ordered as in the data
+		TreeMap<Integer, ConfigNode> selected = new TreeMap<Integer, ConfigNode>();
+		boolean found = false;
+		for (ConfigNode filter : filters) {
+			for (int position : data.find(filter.getName(), keyText(filter))) {
+				ConfigNode child = children[position];
+				if (!matches(filter, child)) {
+					continue;
+				}
+				ConfigNode result = child;
+				if (!filter.isLeaf()) {
+					ConfigNode[] grandchildren = select(child, filter.children());
+					if (grandchildren == null) {
+						continue;
+					}
+					result = child.withChildren(grandchildren);
+				}
+				found |= !isContentMatch(filter);
+				ConfigNode previous = selected.put(position, result);
+				if (previous != null && previous != result) {
+					// selected by several filter elements
+					selected.put(position, ConfigEditor.edit(previous, result, EditOperation.MERGE));
+				}
+			}
+		}
+		// content matches alone do not select an element whose other filter elements selected nothing
+		return found ? selected.values().toArray(new ConfigNode[selected.size()]) : null;
+	}
+
+	private static boolean matchesAny(ConfigNode data, ConfigNode filter) {
+		for (int position : data.find(filter.getName(), null)) {
+			if (matches(filter, data.children()[position])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(ConfigNode filter, ConfigNode data) {
+		if (filter.getNamespace() != null && !filter.getNamespace().equals(data.getNamespace())) {
+			return false;
+		}
+		String[] attributes = filter.attributes();
+		for (int i = 0; i < attributes.length; i += 2) {
+			if (!attributes[i + 1].equals(data.getAttribute(attributes[i]))) {
+				return false;
+			}
+		}
+		return !isContentMatch(filter) || data.isLeaf() && data.getText().trim().equals(filter.getText().trim());
+	}
+
+	private static boolean isContentMatch(ConfigNode filter) {
+		return filter.isLeaf() && filter.getText().trim().length() > 0;
+	}
+
+	/**
+	 *
+	 * @return text of the &lt;name&gt; content match of a containment filter element, or null if it has none
+	 */
+	private static String keyText(ConfigNode filter) {
+		ConfigNode key = filter.keyChild();
+		return key != null && isContentMatch(key) ? key.getText().trim() : null;
+	}
+
+	private static Element toDOM(Document document, ConfigNode node) {
+		Element element = document.createElementNS(node.getNamespace(), node.getName());
+		element.setUserData(NODE_PROPERTY, node, null);
+		String[] attributes = node.attributes();
+		for (int i = 0; i < attributes.length; i += 2) {
+			element.setAttribute(attributes[i], attributes[i + 1]);
+		}
+		if (node.isLeaf()) {
+			if (node.getText().length() > 0) {
+				element.appendChild(document.createTextNode(node.getText()));
+			}
+		} else {
+			for (ConfigNode child : node.children()) {
+				element.appendChild(toDOM(document, child));
+			}
+		}
+		return element;
+	}
+
+	/**
+	 *
+	 * @return configuration root containing the element, its ancestors and the key of ancestor list entries
+	 */
+	private static ConfigNode path(ConfigNode config, Element element) {
+		ConfigNode path = (ConfigNode) element.getUserData(NODE_PROPERTY);
+		for (Node parent = element.getParentNode(); parent.getNodeType() == Node.ELEMENT_NODE; parent = parent.getParentNode()) {
+			ConfigNode ancestor = (ConfigNode) parent.getUserData(NODE_PROPERTY);
+			ConfigNode key = ancestor.keyChild();
+			path = ancestor.withChildren(key != null && key != path ? new ConfigNode[] { key, path } : new ConfigNode[] { path });
+		}
+		return config.withChildren(new ConfigNode[] { path });
+	}
+
+	private static DocumentBuilder newDocumentBuilder() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try {
+			return factory.newDocumentBuilder();
+		} catch (ParserConfigurationException e) {
+			throw new ServerException("Cannot instantiate XML parser", e);
+		}
+	}
+
+	/**
+	 * Least recently used XPath matchers, by expression and namespaces
+	 */
+	private static class MatcherCache extends LinkedHashMap<String, XPathMatcher> {
+
+		private static final long	serialVersionUID	= -4638296650147219185L;
+
+		private static final int	MAX_SIZE			= 32;
+
+		private MatcherCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, XPathMatcher> eldest) {
+			return size() > MAX_SIZE;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable configuration element. Modified trees are new trees sharing unmodified subtrees with the original one, so a tree
+ * can be read by any number of threads while others build modified copies.
+ * <p>
+ * Without a data model, list entries are identified by their element name and the text of their &lt;name&gt; child element,
+ * if they have one, and other elements by their element name. Only unqualified attributes are kept.
+ */
+public final class ConfigNode {
+
+	private static final ConfigNode[]	NO_CHILDREN		= new ConfigNode[0];
+	private static final String[]		NO_ATTRIBUTES	= new String[0];
+	private static final int[]			NO_POSITIONS	= new int[0];
+
+	// children are searched in an index above this size
+	private static final int			INDEX_THRESHOLD	= 8;
+
+	// child element identifying list entries
+	private static final String			KEY_ELEMENT		= "name";
+
+	private final String				namespace;
+	private final String				name;
+	// unqualified attributes, as name and value pairs
+	private final String[]				attributes;
+	// text of elements without children, null if it has children
+	private final String				text;
+	private final ConfigNode[]			children;
+	// text of the key child, null if there is none
+	private final String				keyText;
+	private final String				key;
+
+	// operation of edit-config nodes, null in datastores
+	private final EditOperation			operation;
+	// true if this node or any descendant has an operation
+	private final boolean				edit;
+
+	// positions of children by name and key, built when first searched
+	private volatile ChildIndex			index;
+
+	ConfigNode(String namespace, String name, String[] attributes, String text, ConfigNode[] children, EditOperation operation) {
+		this.namespace = namespace;
+		this.name = name;
+		this.attributes = attributes != null ? attributes : NO_ATTRIBUTES;
+		this.children = children != null ? children : NO_CHILDREN;
+		this.text = this.children.length == 0 ? (text != null ? text : "") : null;
+		this.operation = operation;
+
+		boolean edit = operation != null;
+		String keyText = null;
+		for (ConfigNode child : this.children) {
+			edit |= child.edit;
+			if (keyText == null && child.isLeaf() && KEY_ELEMENT.equals(child.name) && equal(namespace, child.namespace)) {
+				keyText = child.text;
+			}
+		}
+		this.edit = edit;
+		this.keyText = keyText;
+		this.key = (namespace != null ? "{" + namespace + "}" + name : name) + (keyText != null ? "[" + keyText + "]" : "");
+	}
+
+	/**
+	 * Creates an element without children
+	 *
+	 * @param namespace
+	 *            namespace URI, null if the element has no namespace
+	 */
+	public static ConfigNode leaf(String namespace, String name, String text) {
+		return new ConfigNode(namespace, name, null, text, null, null);
+	}
+
+	/**
+	 * Creates an element with children
+	 *
+	 * @param namespace
+	 *            namespace URI, null if the element has no namespace
+	 */
+	public static ConfigNode element(String namespace, String name, List<ConfigNode> children) {
+		return new ConfigNode(namespace, name, null, null, children.toArray(new ConfigNode[children.size()]), null);
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @return text of an element without children, or null if it has children
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 *
+	 * @return value of an unqualified attribute, or null if the element does not have it
+	 */
+	public String getAttribute(String name) {
+		for (int i = 0; i < attributes.length; i += 2) {
+			if (attributes[i].equals(name)) {
+				return attributes[i + 1];
+			}
+		}
+		return null;
+	}
+
+	public List<ConfigNode> getChildren() {
+		return Collections.unmodifiableList(Arrays.asList(children));
+	}
+
+	public boolean isLeaf() {
+		return children.length == 0;
+	}
+
+	/**
+	 *
+	 * @return operation set by an edit-config, or null if it is inherited from its parent
+	 */
+	public EditOperation getOperation() {
+		return operation;
+	}
+
+	/**
+	 *
+	 * @return identity of this element among its siblings
+	 */
+	String getKey() {
+		return key;
+	}
+
+	ConfigNode[] children() {
+		return children;
+	}
+
+	String[] attributes() {
+		return attributes;
+	}
+
+	/**
+	 *
+	 * @return the child identifying this list entry, or null if it has none
+	 */
+	ConfigNode keyChild() {
+		if (keyText == null) {
+			return null;
+		}
+		for (ConfigNode child : children) {
+			if (child.isLeaf() && KEY_ELEMENT.equals(child.name) && equal(namespace, child.namespace)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Searches children by local name, in any namespace
+	 *
+	 * @param name
+	 *            local name of the children
+	 * @param keyText
+	 *            text of their key child, or null to find them all
+	 * @return positions of the children, in document order
+	 */
+	int[] find(String name, String keyText) {
+		if (children.length > INDEX_THRESHOLD) {
+			ChildIndex index = this.index;
+			if (index == null) {
+				// built again if several threads search at once, any of them is valid
+				index = new ChildIndex(children);
+				this.index = index;
+			}
+			int[] positions = keyText == null ? index.byName.get(name) : index.byKey.get(ChildIndex.key(name, keyText));
+			return positions != null ? positions : NO_POSITIONS;
+		}
+		int count = 0;
+		int[] positions = new int[children.length];
+		for (int i = 0; i < children.length; i++) {
+			if (children[i].name.equals(name) && (keyText == null || keyText.equals(children[i].keyText))) {
+				positions[count++] = i;
+			}
+		}
+		return count == positions.length ? positions : Arrays.copyOf(positions, count);
+	}
+
+	boolean hasOperations() {
+		return edit;
+	}
+
+	/**
+	 *
+	 * @return a copy of this element with other children, or this element if they are the same
+	 */
+	ConfigNode withChildren(ConfigNode[] children) {
+		if (children == this.children) {
+			return this;
+		}
+		return new ConfigNode(namespace, name, attributes, null, children, null);
+	}
+
+	/**
+	 *
+	 * @return this tree without edit-config operations, shared if it has none
+	 */
+	ConfigNode withoutOperations() {
+		if (!edit) {
+			return this;
+		}
+		ConfigNode[] stripped = children.length == 0 ? NO_CHILDREN : new ConfigNode[children.length];
+		for (int i = 0; i < children.length; i++) {
+			stripped[i] = children[i].withoutOperations();
+		}
+		return new ConfigNode(namespace, name, attributes, text, stripped, null);
+	}
+
+	/**
+	 *
+	 * @return the element serialized as XML
+	 */
+	public String toXML() {
+		StringBuilder xml = new StringBuilder();
+		appendXML(xml, null);
+		return xml.toString();
+	}
+
+	/**
+	 *
+	 * @return the children serialized as XML, e.g. the contents of a datastore
+	 */
+	public String childrenToXML() {
+		StringBuilder xml = new StringBuilder();
+		appendChildrenXML(xml);
+		return xml.toString();
+	}
+
+	void appendChildrenXML(StringBuilder xml) {
+		for (ConfigNode child : children) {
+			child.appendXML(xml, namespace);
+		}
+	}
+
+	/**
+	 * Appends the element, declaring its namespace if it is not the namespace of its parent
+	 */
+	void appendXML(StringBuilder xml, String parentNamespace) {
+		xml.append('<').append(name);
+		if (!equal(namespace, parentNamespace)) {
+			xml.append(" xmlns=\"");
+			escape(xml, namespace != null ? namespace : "", true);
+			xml.append('"');
+		}
+		for (int i = 0; i < attributes.length; i += 2) {
+			xml.append(' ').append(attributes[i]).append("=\"");
+			escape(xml, attributes[i + 1], true);
+			xml.append('"');
+		}
+		if (children.length == 0 && text.length() == 0) {
+			xml.append("/>");
+			return;
+		}
+		xml.append('>');
+		if (children.length == 0) {
+			escape(xml, text, false);
+		} else {
+			appendChildrenXML(xml);
+		}
+		xml.append("</").append(name).append('>');
+	}
+
+	@Override
+	public String toString() {
+		return toXML();
+	}
+
+	private static void escape(StringBuilder xml, String s, boolean attribute) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '&':
+					xml.append("&amp;");
+					break;
+				case '<':
+					xml.append("&lt;");
+					break;
+				case '>':
+					xml.append("&gt;");
+					break;
+				case '"':
+					xml.append(attribute ? "&quot;" : "\"");
+					break;
+				default:
+					xml.append(c);
+			}
+		}
+	}
+
+	static boolean equal(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	/**
+	 * Positions of children by local name, and by local name and key text. Immutable once built.
+	 */
+	private static final class ChildIndex {
+
+		private final Map<String, int[]>	byName	= new HashMap<String, int[]>();
+		private final Map<String, int[]>	byKey	= new HashMap<String, int[]>();
+
+		private ChildIndex(ConfigNode[] children) {
+			Map<String, List<Integer>> names = new HashMap<String, List<Integer>>();
+			Map<String, List<Integer>> keys = new HashMap<String, List<Integer>>();
+			for (int i = 0; i < children.length; i++) {
+				add(names, children[i].name, i);
+				if (children[i].keyText != null) {
+					add(keys, key(children[i].name, children[i].keyText), i);
+				}
+			}
+			toArrays(names, byName);
+			toArrays(keys, byKey);
+		}
+
+		private static String key(String name, String keyText) {
+			return name + '[' + keyText + ']';
+		}
+
+		private static void add(Map<String, List<Integer>> positions, String key, int position) {
+			List<Integer> list = positions.get(key);
+			if (list == null) {
+				list = new ArrayList<Integer>(1);
+				positions.put(key, list);
+			}
+			list.add(position);
+		}
+
+		private static void toArrays(Map<String, List<Integer>> lists, Map<String, int[]> arrays) {
+			for (Map.Entry<String, List<Integer>> entry : lists.entrySet()) {
+				int[] positions = new int[entry.getValue().size()];
+				for (int i = 0; i < positions.length; i++) {
+					positions[i] = entry.getValue().get(i);
+				}
+				arrays.put(entry.getKey(), positions);
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.server.exceptions.DatastoreException;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.transport.RawContent;
+
+import org.apache.commons.io.IOUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses configuration payloads into {@link ConfigNode} trees, without building a DOM
+ */
+final class ConfigParser {
+
+	static final String							NETCONF_NAMESPACE	= "urn:ietf:params:xml:ns:netconf:base:1.0";
+
+	// payloads are received without the declarations of their enclosing message, declare the usual prefixes of the base namespace
+	private static final String					FRAGMENT_START		= "<config xmlns:nc=\"" + NETCONF_NAMESPACE + "\" xmlns:xc=\"" +
+																			NETCONF_NAMESPACE + "\">";
+	private static final String[]				BASE_PREFIXES		= { "nc", "xc" };
+	private static final String					FRAGMENT_END		= "</config>";
+
+	private static final String					OPERATION_ATTRIBUTE	= "operation";
+
+	private static final String[]				FALSE_FEATURES		= {
+																	"http://xml.org/sax/features/external-general-entities",
+																	"http://xml.org/sax/features/external-parameter-entities",
+																	"http://apache.org/xml/features/nonvalidating/load-external-dtd" };
+
+	// parsers are not thread safe
+	private static final ThreadLocal<SAXParser>	parsers				= new ThreadLocal<SAXParser>() {
+																		@Override
+																		protected SAXParser initialValue() {
+																			return newParser();
+																		}
+																	};
+
+	private ConfigParser() {
+	}
+
+	/**
+	 * Parses a payload with any number of top-level elements
+	 *
+	 * @param xml
+	 *            payload, e.g. the contents of &lt;config&gt;
+	 * @return root node named config, without namespace, whose children are the top-level elements of the payload
+	 * @throws DatastoreException
+	 *             if the payload is not well formed, or has an unknown operation
+	 */
+	static ConfigNode parse(String xml) {
+		return parse(new InputSource(new StringReader(FRAGMENT_START + (xml != null ? xml : "") + FRAGMENT_END)));
+	}
+
+	/**
+	 * Parses a payload as received, reading it as a stream. Prefixes declared by its enclosing message are declared in the
+	 * fragment element, see {@link RawContent#getNamespaces()}.
+	 *
+	 * @param content
+	 *            payload, e.g. the contents of &lt;config&gt;
+	 * @return root node named config, without namespace, whose children are the top-level elements of the payload
+	 * @throws DatastoreException
+	 *             if the payload is not well formed, or has an unknown operation
+	 */
+	static ConfigNode parse(RawContent content) {
+		InputStream payload;
+		try {
+			payload = content.openStream();
+		} catch (IOException e) {
+			throw new ServerException("Error reading configuration", e);
+		}
+		try {
+			InputStream fragment = new SequenceInputStream(Collections.enumeration(Arrays.asList(new ByteArrayInputStream(
+					utf8(fragmentStart(content))), payload, new ByteArrayInputStream(utf8(FRAGMENT_END)))));
+			InputSource source = new InputSource(fragment);
+			source.setEncoding("UTF-8");
+			return parse(source);
+		} finally {
+			IOUtils.closeQuietly(payload);
+		}
+	}
+
+	/**
+	 *
+	 * @return fragment element declaring the prefixes in scope of the payload, and the base prefixes it does not redeclare
+	 */
+	private static String fragmentStart(RawContent content) {
+		if (content.getNamespaces().isEmpty()) {
+			return FRAGMENT_START;
+		}
+		StringBuilder start = new StringBuilder("<config").append(content.getNamespaceDeclarations());
+		for (String prefix : BASE_PREFIXES) {
+			if (!content.getNamespaces().containsKey(prefix)) {
+				start.append(" xmlns:").append(prefix).append("=\"").append(NETCONF_NAMESPACE).append('"');
+			}
+		}
+		return start.append('>').toString();
+	}
+
+	private static ConfigNode parse(InputSource source) {
+		SAXParser parser = parsers.get();
+		TreeBuilder builder = new TreeBuilder();
+		try {
+			parser.parse(source, builder);
+		} catch (SAXException e) {
+			throw new DatastoreException(ErrorTag.INVALID_VALUE, "Configuration is not well formed: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new ServerException("Error reading configuration", e);
+		} finally {
+			parser.reset();
+		}
+		return builder.root;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static SAXParser newParser() {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setValidating(false);
+		for (String feature : FALSE_FEATURES) {
+			try {
+				factory.setFeature(feature, false);
+			} catch (Exception e) {
+				// feature not supported by this parser
+			}
+		}
+		try {
+			return factory.newSAXParser();
+		} catch (Exception e) {
+			throw new ServerException("Cannot instantiate XML parser", e);
+		}
+	}
+
+	/**
+	 * Builds nodes when their elements end, children first
+	 */
+	private static class TreeBuilder extends DefaultHandler {
+
+		private final List<Element>	stack	= new ArrayList<Element>();
+		private ConfigNode			root;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			Element element = new Element();
+			element.namespace = uri.length() > 0 ? uri : null;
+			element.name = localName;
+			List<String> values = null;
+			for (int i = 0; i < attributes.getLength(); i++) {
+				String attributeUri = attributes.getURI(i);
+				if (attributeUri.length() == 0) {
+					if (values == null) {
+						values = new ArrayList<String>();
+					}
+					values.add(attributes.getLocalName(i));
+					values.add(attributes.getValue(i));
+				} else if (NETCONF_NAMESPACE.equals(attributeUri) && OPERATION_ATTRIBUTE.equals(attributes.getLocalName(i))) {
+					element.operation = EditOperation.fromName(attributes.getValue(i));
+				}
+			}
+			if (values != null) {
+				element.attributes = values.toArray(new String[values.size()]);
+			}
+			stack.add(element);
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			Element element = stack.get(stack.size() - 1);
+			if (element.children == null) {
+				if (element.text == null) {
+					element.text = new StringBuilder();
+				}
+				element.text.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			Element element = stack.remove(stack.size() - 1);
+			ConfigNode[] children = null;
+			String text = null;
+			if (element.children != null) {
+				children = element.children.toArray(new ConfigNode[element.children.size()]);
+			} else if (element.text != null && !isWhitespace(element.text)) {
+				text = element.text.toString();
+			}
+			ConfigNode node = new ConfigNode(element.namespace, element.name, element.attributes, text, children,
+					element.operation);
+
+			if (stack.isEmpty()) {
+				// fragment element
+				root = node;
+			} else {
+				Element parent = stack.get(stack.size() - 1);
+				if (parent.children == null) {
+					// text of elements with children is ignored
+					parent.children = new ArrayList<ConfigNode>();
+					parent.text = null;
+				}
+				parent.children.add(node);
+			}
+		}
+
+		private static boolean isWhitespace(CharSequence text) {
+			for (int i = 0; i < text.length(); i++) {
+				if (!Character.isWhitespace(text.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Element being parsed
+	 */
+	private static class Element {
+
+		private String				namespace;
+		private String				name;
+		private String[]			attributes;
+		private EditOperation		operation;
+		private StringBuilder		text;
+		private List<ConfigNode>	children;
+	}
+}
@@ -0,0 +1,117 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Configuration datastore. Its contents are an immutable {@link ConfigNode} tree, replaced by an edited copy on each change,
+ * so readers get a consistent snapshot with {@link #getConfig()} without blocking nor being blocked by writers.
+ * <p>
+ * Writers build the edited tree from the current one and publish it only if no other writer published a tree meanwhile,
+ * retrying otherwise. Concurrent edits are applied one after the other, and none of them is lost.
+ */
+public class Datastore {
+
+	private final String					name;
+	private final AtomicReference<Snapshot>	snapshot;
+
+	// statistics
+	private final AtomicLong				conflicts	= new AtomicLong();
+
+	/**
+	 *
+	 * @param name
+	 *            datastore name, e.g. "running"
+	 * @param config
+	 *            initial contents, root element whose children are the top-level configuration elements
+	 */
+	public Datastore(String name, ConfigNode config) {
+		this.name = name;
+		this.snapshot = new AtomicReference<Snapshot>(new Snapshot(config, 0));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @return current contents, never modified
+	 */
+	public ConfigNode getConfig() {
+		return snapshot.get().config;
+	}
+
+	/**
+	 *
+	 * @return number of changes applied to this datastore
+	 */
+	public long getVersion() {
+		return snapshot.get().version;
+	}
+
+	/**
+	 *
+	 * @return number of times a change was computed again because another writer changed the datastore first
+	 */
+	public long getConflicts() {
+		return conflicts.get();
+	}
+
+	/**
+	 * Applies an edit-config
+	 *
+	 * @param edit
+	 *            contents of the &lt;config&gt; element, as parsed by {@link Datastores#parse(String)}
+	 * @param defaultOperation
+	 *            operation of elements without operation
+	 * @throws net.i2cat.netconf.server.exceptions.DatastoreException
+	 *             if the edit can not be applied, the datastore is not changed
+	 */
+	public void edit(ConfigNode edit, EditOperation defaultOperation) {
+		while (true) {
+			Snapshot current = snapshot.get();
+			ConfigNode edited = ConfigEditor.edit(current.config, edit, defaultOperation);
+			if (edited == current.config || publish(current, edited)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the contents of the datastore, e.g. by a copy-config
+	 *
+	 * @param config
+	 *            new contents
+	 */
+	public void replace(ConfigNode config) {
+		config = config.withoutOperations();
+		while (true) {
+			if (publish(snapshot.get(), config)) {
+				return;
+			}
+		}
+	}
+
+	private boolean publish(Snapshot current, ConfigNode config) {
+		if (snapshot.compareAndSet(current, new Snapshot(config, current.version + 1))) {
+			return true;
+		}
+		conflicts.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Contents of the datastore and their version, published together
+	 */
+	private static final class Snapshot {
+
+		private final ConfigNode	config;
+		private final long			version;
+
+		private Snapshot(ConfigNode config, long version) {
+			this.config = config;
+			this.version = version;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.i2cat.netconf.rpc.ErrorFactory;
+import net.i2cat.netconf.rpc.ErrorSeverity;
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.rpc.ErrorType;
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.rpc.ReplyFactory;
+import net.i2cat.netconf.server.exceptions.DatastoreException;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Running, candidate and startup datastores of a server, shared by all its sessions. Processes the configuration operations
+ * of received queries: get-config, get, edit-config, copy-config, delete-config, commit and discard-changes.
+ * <p>
+ * Edit-configs apply their &lt;default-operation&gt; (merge, replace or none), merge if they have none, and elements may set
+ * another {@link EditOperation} with the <code>operation</code> attribute. Copy-configs copy a datastore or an inline
+ * &lt;config&gt; source.
+ */
+public class Datastores {
+
+	private static final Log	log				= LogFactory.getLog(Datastores.class);
+
+	public static final String	RUNNING			= "running";
+	public static final String	CANDIDATE		= "candidate";
+	public static final String	STARTUP			= "startup";
+
+	private static final String	DEFAULT_CONFIG	= "/router_configs/router_config_A.xml";
+
+	private final Datastore		running;
+	private final Datastore		candidate;
+	private final Datastore		startup;
+
+	/**
+	 * Creates empty datastores
+	 */
+	public Datastores() {
+		this("");
+	}
+
+	/**
+	 * Creates datastores with the same initial contents
+	 *
+	 * @param config
+	 *            initial configuration, any number of top-level elements
+	 * @throws DatastoreException
+	 *             if the configuration is not well formed
+	 */
+	public Datastores(String config) {
+		ConfigNode root = parse(config);
+		running = new Datastore(RUNNING, root);
+		candidate = new Datastore(CANDIDATE, root);
+		startup = new Datastore(STARTUP, root);
+	}
+
+	/**
+	 *
+	 * @return datastores containing the configuration previously returned to all get-config queries
+	 */
+	public static Datastores withDefaultConfig() {
+		InputStream config = Datastores.class.getResourceAsStream(DEFAULT_CONFIG);
+		try {
+			return new Datastores(IOUtils.toString(config));
+		} catch (IOException e) {
+			throw new ServerException("Error reading configuration", e);
+		} finally {
+			IOUtils.closeQuietly(config);
+		}
+	}
+
+	/**
+	 * Parses a configuration payload, e.g. the contents of the &lt;config&gt; element of an edit-config
+	 *
+	 * @return root element whose children are the top-level elements of the payload
+	 * @throws DatastoreException
+	 *             if the payload is not well formed
+	 */
+	public static ConfigNode parse(String config) {
+		return ConfigParser.parse(config);
+	}
+
+	/**
+	 * Parses the &lt;config&gt; element of a query, as received if it is a {@link RawQuery}
+	 *
+	 * @return root element whose children are the top-level elements of the payload
+	 * @throws DatastoreException
+	 *             if the payload is not well formed
+	 */
+	public static ConfigNode parseConfig(Query query) {
+		if (query instanceof RawQuery) {
+			RawContent config = ((RawQuery) query).getRawConfig();
+			if (config != null) {
+				return ConfigParser.parse(config);
+			}
+		}
+		return parse(query.getConfig());
+	}
+
+	public Datastore getRunning() {
+		return running;
+	}
+
+	public Datastore getCandidate() {
+		return candidate;
+	}
+
+	public Datastore getStartup() {
+		return startup;
+	}
+
+	/**
+	 *
+	 * @param name
+	 *            datastore name
+	 * @throws DatastoreException
+	 *             if there is no such datastore
+	 */
+	public Datastore getDatastore(String name) {
+		if (RUNNING.equals(name)) {
+			return running;
+		} else if (CANDIDATE.equals(name)) {
+			return candidate;
+		} else if (STARTUP.equals(name)) {
+			return startup;
+		}
+		throw new DatastoreException(ErrorTag.INVALID_VALUE, "Unknown datastore: " + name);
+	}
+
+	/**
+	 * Processes a configuration operation. Get-config and get replies only contain the configuration selected by the query
+	 * filter, see {@link ConfigFilter}.
+	 *
+	 * @return reply to the query, an error reply if the operation failed, or null if it is not a configuration operation
+	 */
+	public Reply process(Query query) {
+		Operation operation = query.getOperation();
+		try {
+			if (Operation.GET_CONFIG.equals(operation)) {
+				log.debug("Get-config received.");
+				Datastore source = getDatastore(query.getSource() != null ? query.getSource() : RUNNING);
+				return ReplyFactory.newGetConfigReply(query, null, ConfigFilter.filter(query, source.getConfig()));
+			} else if (Operation.GET.equals(operation)) {
+				log.debug("Get received.");
+				return ReplyFactory.newGetConfigReply(query, null, ConfigFilter.filter(query, running.getConfig()));
+			} else if (Operation.EDIT_CONFIG.equals(operation)) {
+				log.debug("Edit-config received.");
+				getDatastore(query.getTarget()).edit(parseConfig(query), defaultOperation(query));
+			} else if (Operation.COPY_CONFIG.equals(operation)) {
+				log.debug("Copy-config received.");
+				Datastore target = getDatastore(query.getTarget());
+				ConfigNode config = query.getSource() != null ? getDatastore(query.getSource()).getConfig() : parseConfig(query);
+				target.replace(config);
+			} else if (Operation.DELETE_CONFIG.equals(operation)) {
+				log.debug("Delete-config received.");
+				Datastore target = getDatastore(query.getTarget());
+				if (target == running) {
+					throw new DatastoreException(ErrorTag.OPERATION_FAILED, "Running datastore can not be deleted");
+				}
+				target.replace(parse(""));
+			} else if (Operation.COMMIT.equals(operation)) {
+				log.debug("Commit received.");
+				running.replace(candidate.getConfig());
+			} else if (Operation.DISCARD.equals(operation)) {
+				log.debug("Discard-changes received.");
+				candidate.replace(running.getConfig());
+			} else {
+				return null;
+			}
+			return ReplyFactory.newOk(query, null);
+		} catch (DatastoreException e) {
+			log.debug("Error processing " + operation.getName() + ": " + e.getMessage());
+			return errorReply(query, e);
+		}
+	}
+
+	/**
+	 *
+	 * @return default operation of an edit-config, merge if it has none
+	 * @throws DatastoreException
+	 *             if it is not merge, replace nor none
+	 */
+	private static EditOperation defaultOperation(Query query) {
+		String name = query instanceof RawQuery ? ((RawQuery) query).getDefaultOperation() : null;
+		if (name == null) {
+			return EditOperation.MERGE;
+		}
+		if (!EditOperation.MERGE.getName().equals(name) && !EditOperation.REPLACE.getName().equals(name) &&
+				!EditOperation.NONE.getName().equals(name)) {
+			throw new DatastoreException(ErrorTag.INVALID_VALUE, "Unknown default-operation: " + name);
+		}
+		return EditOperation.fromName(name);
+	}
+
+	/**
+	 *
+	 * @return reply to the query with the error of a failed configuration operation
+	 */
+	public static Reply errorReply(Query query, DatastoreException e) {
+		Reply reply = new Reply();
+		reply.setMessageId(query.getMessageId());
+		reply.addError(ErrorFactory.newError(ErrorType.APPLICATION, e.getErrorTag(), ErrorSeverity.ERROR, null, null, e
+				.getMessage(), null));
+		return reply;
+	}
+}
@@ -0,0 +1,61 @@
+package net.i2cat.netconf.server.datastore;
+
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.server.exceptions.DatastoreException;
+
+/**
+ * Operation applied by an edit-config to a configuration node, set with the <code>operation</code> attribute of the Netconf
+ * base namespace, or inherited from its parent
+ */
+public enum EditOperation {
+	/**
+	 * Merges the node with the existing one, creating it if it does not exist
+	 */
+	MERGE("merge"),
+	/**
+	 * Replaces the existing node, creating it if it does not exist
+	 */
+	REPLACE("replace"),
+	/**
+	 * Creates the node, failing if it exists
+	 */
+	CREATE("create"),
+	/**
+	 * Deletes the node, failing if it does not exist
+	 */
+	DELETE("delete"),
+	/**
+	 * Deletes the node if it exists
+	 */
+	REMOVE("remove"),
+	/**
+	 * Leaves the node as it is, only used as default operation so that operations of descendants are applied
+	 */
+	NONE("none");
+
+	private final String	name;
+
+	private EditOperation(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 *
+	 * @param name
+	 *            operation name, e.g. "merge"
+	 * @throws DatastoreException
+	 *             if there is no such operation
+	 */
+	public static EditOperation fromName(String name) {
+		for (EditOperation operation : values()) {
+			if (operation.name.equals(name)) {
+				return operation;
+			}
+		}
+		throw new DatastoreException(ErrorTag.INVALID_VALUE, "Unknown edit-config operation: " + name);
+	}
+}
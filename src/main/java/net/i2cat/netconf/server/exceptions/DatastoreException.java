@@ -0,0 +1,27 @@
+package net.i2cat.netconf.server.exceptions;
+
+import net.i2cat.netconf.rpc.ErrorTag;
+
+/**
+ * Thrown when a datastore operation can not be applied, reported to the client as an &lt;rpc-error&gt; with its error tag
+ */
+public class DatastoreException extends ServerException {
+
+	private static final long	serialVersionUID	= -2296104418315934761L;
+
+	private final ErrorTag		errorTag;
+
+	public DatastoreException(ErrorTag errorTag, String message) {
+		super(message);
+		this.errorTag = errorTag;
+	}
+
+	public DatastoreException(ErrorTag errorTag, String message, Throwable cause) {
+		super(message, cause);
+		this.errorTag = errorTag;
+	}
+
+	public ErrorTag getErrorTag() {
+		return errorTag;
+	}
+}
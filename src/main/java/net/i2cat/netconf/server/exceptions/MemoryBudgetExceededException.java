@@ -0,0 +1,15 @@
+package net.i2cat.netconf.server.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown while receiving a message when the memory needed to hold it exceeds the session or global memory budget
+ */
+public class MemoryBudgetExceededException extends IOException {
+
+	private static final long	serialVersionUID	= -4650283517062749621L;
+
+	public MemoryBudgetExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,33 @@
+package net.i2cat.netconf.server.matcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches queries matched by all its matchers. Matchers are evaluated in the given order, so cheap ones (e.g.
+ * {@link DatastoreMatcher}) should go before the ones parsing payloads.
+ */
+public class AllMatcher implements QueryMatcher {
+
+	private final List<QueryMatcher>	matchers;
+
+	public AllMatcher(QueryMatcher... matchers) {
+		this.matchers = new ArrayList<QueryMatcher>(Arrays.asList(matchers));
+	}
+
+	@Override
+	public boolean matches(MatchContext context) {
+		for (QueryMatcher matcher : matchers) {
+			if (!matcher.matches(context)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "all of " + matchers;
+	}
+}
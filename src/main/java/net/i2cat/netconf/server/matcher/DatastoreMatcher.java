@@ -0,0 +1,43 @@
+package net.i2cat.netconf.server.matcher;
+
+import net.i2cat.netconf.rpc.Query;
+
+/**
+ * Matches queries by the datastore they act on, e.g. get-config queries of the candidate configuration
+ */
+public class DatastoreMatcher implements QueryMatcher {
+
+	/**
+	 * Query parameter naming a datastore
+	 */
+	public enum Parameter {
+		TARGET,
+		SOURCE
+	}
+
+	private final Parameter	parameter;
+	private final String	datastore;
+
+	/**
+	 * 
+	 * @param parameter
+	 *            parameter to check
+	 * @param datastore
+	 *            datastore name, e.g. running, compared ignoring case
+	 */
+	public DatastoreMatcher(Parameter parameter, String datastore) {
+		this.parameter = parameter;
+		this.datastore = datastore;
+	}
+
+	@Override
+	public boolean matches(MatchContext context) {
+		Query query = context.getQuery();
+		return datastore.equalsIgnoreCase(parameter == Parameter.TARGET ? query.getTarget() : query.getSource());
+	}
+
+	@Override
+	public String toString() {
+		return parameter + " " + datastore;
+	}
+}
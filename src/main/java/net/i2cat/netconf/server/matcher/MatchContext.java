@@ -0,0 +1,200 @@
+package net.i2cat.netconf.server.matcher;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Query being matched by {@link QueryMatcher}s. Payloads are only parsed if a matcher inspects them, and once per query for all
+ * matchers. Not thread safe, a context is used by the session matching the query.
+ */
+public final class MatchContext {
+
+	/**
+	 * Query payload inspected by content matchers
+	 */
+	public enum Payload {
+		CONFIG,
+		FILTER
+	}
+
+	/** Element wrapping payloads with several top-level nodes, so they can be parsed as a document */
+	public static final String						FRAGMENT_ELEMENT	= "fragment";
+
+	private static final Log						log					= LogFactory.getLog(MatchContext.class);
+
+	// parse errors are reported by exceptions, avoid printing them
+	private static final DefaultHandler				QUIET_ERROR_HANDLER	= new DefaultHandler();
+
+	// document builders are not thread safe
+	private static final ThreadLocal<DocumentBuilder>	documentBuilders	= new ThreadLocal<DocumentBuilder>() {
+																			@Override
+																			protected DocumentBuilder initialValue() {
+																				return newDocumentBuilder();
+																			}
+																		};
+
+	private final Query								query;
+
+	// parsed payloads, a null value if payload is missing or not well formed
+	private final Map<Payload, Document>			documents			= new EnumMap<Payload, Document>(Payload.class);
+	private final Set<Payload>						fragments			= EnumSet.noneOf(Payload.class);
+
+	public MatchContext(Query query) {
+		this.query = query;
+	}
+
+	public Query getQuery() {
+		return query;
+	}
+
+	/**
+	 * Parses a payload of the query. Payloads with a single root element are parsed as is, other payloads are wrapped in a
+	 * {@link #FRAGMENT_ELEMENT} element. Prefixes declared by the enclosing message of received payloads are resolved (see
+	 * {@link RawContent#getNamespaces()}).
+	 *
+	 * @return payload document, or null if the query has no such payload or it is not well formed
+	 */
+	public Document getDocument(Payload payload) {
+		if (!documents.containsKey(payload)) {
+			documents.put(payload, parse(payload, payload == Payload.CONFIG ? query.getConfig() : query.getFilter(),
+					getNamespaceDeclarations(payload)));
+		}
+		return documents.get(payload);
+	}
+
+	/**
+	 *
+	 * @return top-level elements of a payload, empty if the query has no such payload or it is not well formed
+	 */
+	public List<Element> getElements(Payload payload) {
+		Document document = getDocument(payload);
+		if (document == null) {
+			return Collections.emptyList();
+		}
+		Element root = document.getDocumentElement();
+		if (!fragments.contains(payload)) {
+			return Collections.singletonList(root);
+		}
+		List<Element> elements = new ArrayList<Element>();
+		for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				elements.add((Element) child);
+			}
+		}
+		return elements;
+	}
+
+	private Document parse(Payload payload, String xml, String namespaceDeclarations) {
+		if (xml == null || xml.trim().length() == 0) {
+			return null;
+		}
+		Document document = parse(xml);
+		if (document == null) {
+			// several top-level nodes, or prefixes declared by the enclosing message
+			document = parse("<" + FRAGMENT_ELEMENT + namespaceDeclarations + ">" + xml + "</" + FRAGMENT_ELEMENT + ">");
+			if (document == null) {
+				log.debug("Payload is not well formed, content matchers will not match it");
+				return null;
+			}
+			Element root = document.getDocumentElement();
+			Element single = getSingleElement(root);
+			if (single != null) {
+				// the wrapper only declared prefixes
+				root.removeChild(single);
+				document.replaceChild(single, root);
+			} else {
+				fragments.add(payload);
+			}
+		}
+		return document;
+	}
+
+	/**
+	 * 
+	 * @return declarations of the prefixes in scope of a received payload, empty if it has none
+	 */
+	private String getNamespaceDeclarations(Payload payload) {
+		if (!(query instanceof RawQuery)) {
+			return "";
+		}
+		RawQuery rawQuery = (RawQuery) query;
+		RawContent content = payload == Payload.CONFIG ? rawQuery.getRawConfig() : rawQuery.getRawFilter();
+		return content != null ? content.getNamespaceDeclarations() : "";
+	}
+
+	/**
+	 * 
+	 * @return the only child element of given element, or null if it has other elements or text
+	 */
+	private static Element getSingleElement(Element element) {
+		Element single = null;
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				if (single != null) {
+					return null;
+				}
+				single = (Element) child;
+			} else if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().length() > 0) {
+				return null;
+			}
+		}
+		return single;
+	}
+
+	/**
+	 * 
+	 * @return parsed document, or null if it is not well formed
+	 */
+	private static Document parse(String xml) {
+		DocumentBuilder builder = documentBuilders.get();
+		try {
+			return builder.parse(new InputSource(new StringReader(xml)));
+		} catch (SAXException e) {
+			return null;
+		} catch (IOException e) {
+			throw new ServerException("Error reading payload", e);
+		} finally {
+			builder.reset();
+			builder.setErrorHandler(QUIET_ERROR_HANDLER);
+		}
+	}
+
+	private static DocumentBuilder newDocumentBuilder() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setCoalescing(true);
+		factory.setIgnoringComments(true);
+		try {
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			builder.setErrorHandler(QUIET_ERROR_HANDLER);
+			return builder;
+		} catch (ParserConfigurationException e) {
+			throw new ServerException("Cannot instantiate XML parser", e);
+		}
+	}
+}
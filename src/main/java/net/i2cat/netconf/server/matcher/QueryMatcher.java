@@ -0,0 +1,16 @@
+package net.i2cat.netconf.server.matcher;
+
+/**
+ * Predicate on the contents of a received query, allowing a {@link net.i2cat.netconf.server.Behaviour} to match only some queries
+ * of its operation. Implementations must be thread safe, they are shared by all sessions.
+ */
+public interface QueryMatcher {
+
+	/**
+	 * 
+	 * @param context
+	 *            received query, its operation already matches the behaviour one
+	 * @return true if the query matches
+	 */
+	public boolean matches(MatchContext context);
+}
@@ -0,0 +1,171 @@
+package net.i2cat.netconf.server.matcher;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Matches queries whose payload contains a subtree. The pattern matches if each of its top-level elements matches a top-level
+ * element of the payload, where an element matches if:
+ * <ul>
+ * <li>it has the same local name, and the same namespace if the pattern element declares one</li>
+ * <li>it has all the attributes of the pattern element, with the same values</li>
+ * <li>if the pattern element only contains text, its trimmed text is the same</li>
+ * <li>each child element of the pattern element matches a child element of it</li>
+ * </ul>
+ * The pattern is compiled once, when the matcher is created.
+ */
+public class SubtreeMatcher implements QueryMatcher {
+
+	private final Payload			payload;
+	private final List<PatternNode>	pattern;
+
+	/**
+	 *
+	 * @param payload
+	 *            payload to search the subtree in
+	 * @param subtree
+	 *            pattern, one or more XML elements
+	 * @throws IllegalArgumentException
+	 *             if the pattern is not well formed
+	 */
+	public SubtreeMatcher(Payload payload, String subtree) {
+		this.payload = payload;
+		this.pattern = compile(subtree);
+	}
+
+	@Override
+	public boolean matches(MatchContext context) {
+		List<Element> elements = context.getElements(payload);
+		for (PatternNode node : pattern) {
+			if (!node.matchesAny(elements)) {
+				return false;
+			}
+		}
+		return !elements.isEmpty();
+	}
+
+	private static List<PatternNode> compile(String subtree) {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setIgnoringComments(true);
+		factory.setCoalescing(true);
+		Element root;
+		try {
+			root = factory.newDocumentBuilder()
+					.parse(new InputSource(new StringReader("<" + MatchContext.FRAGMENT_ELEMENT + ">" + subtree + "</" +
+							MatchContext.FRAGMENT_ELEMENT + ">"))).getDocumentElement();
+		} catch (SAXException e) {
+			throw new IllegalArgumentException("Subtree pattern is not well formed: " + subtree, e);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Error reading subtree pattern", e);
+		} catch (ParserConfigurationException e) {
+			throw new IllegalArgumentException("Cannot instantiate XML parser", e);
+		}
+		List<PatternNode> nodes = PatternNode.compileChildren(root);
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Subtree pattern has no elements: " + subtree);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Compiled pattern element, immutable so it can be shared by all sessions
+	 */
+	private static class PatternNode {
+
+		private final String				namespace;
+		private final String				localName;
+		private final Map<String, String>	attributes;
+		// text to match, null if the element has child elements or no text
+		private final String				text;
+		private final List<PatternNode>		children;
+
+		private PatternNode(Element element) {
+			namespace = element.getNamespaceURI();
+			localName = element.getLocalName();
+
+			Map<String, String> attributes = new HashMap<String, String>();
+			NamedNodeMap attributeNodes = element.getAttributes();
+			for (int i = 0; i < attributeNodes.getLength(); i++) {
+				Attr attribute = (Attr) attributeNodes.item(i);
+				if (!"http://www.w3.org/2000/xmlns/".equals(attribute.getNamespaceURI())) {
+					attributes.put(attribute.getLocalName(), attribute.getValue());
+				}
+			}
+			this.attributes = Collections.unmodifiableMap(attributes);
+
+			children = compileChildren(element);
+			String trimmed = element.getTextContent().trim();
+			text = children.isEmpty() && trimmed.length() > 0 ? trimmed : null;
+		}
+
+		private static List<PatternNode> compileChildren(Element element) {
+			List<PatternNode> nodes = new ArrayList<PatternNode>();
+			for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child.getNodeType() == Node.ELEMENT_NODE) {
+					nodes.add(new PatternNode((Element) child));
+				}
+			}
+			return Collections.unmodifiableList(nodes);
+		}
+
+		private boolean matchesAny(List<Element> elements) {
+			for (Element element : elements) {
+				if (matches(element)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean matches(Element element) {
+			if (!localName.equals(element.getLocalName())) {
+				return false;
+			}
+			if (namespace != null && !namespace.equals(element.getNamespaceURI())) {
+				return false;
+			}
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				if (!element.hasAttributeNS(null, attribute.getKey()) ||
+						!attribute.getValue().equals(element.getAttributeNS(null, attribute.getKey()))) {
+					return false;
+				}
+			}
+			if (text != null && !text.equals(element.getTextContent().trim())) {
+				return false;
+			}
+			if (children.isEmpty()) {
+				return true;
+			}
+			List<Element> childElements = new ArrayList<Element>();
+			for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child.getNodeType() == Node.ELEMENT_NODE) {
+					childElements.add((Element) child);
+				}
+			}
+			for (PatternNode child : children) {
+				if (!child.matchesAny(childElements)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
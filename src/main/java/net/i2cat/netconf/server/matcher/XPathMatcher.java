@@ -0,0 +1,170 @@
+package net.i2cat.netconf.server.matcher;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Matches queries whose payload satisfies an XPath expression, evaluated as a boolean on the payload document (see
+ * {@link MatchContext#getDocument(Payload)}). Queries without that payload do not match.
+ * <p>
+ * Elements in a namespace must be selected with a prefix bound in the namespaces of the matcher, as XPath 1.0 does not use the
+ * default namespace of the payload. E.g. <code>/jnx:configuration/jnx:interfaces/jnx:interface[jnx:name='ge-0/0/0']</code>
+ * with <code>jnx</code> bound to the configuration namespace.
+ */
+public class XPathMatcher implements QueryMatcher {
+
+	// factories are not thread safe, they only create the XPath compiling each matcher
+	private static final XPathFactory	factory	= XPathFactory.newInstance();
+
+	private final Payload				payload;
+	private final String				expression;
+	// compiled once, evaluations are serialized as compiled expressions are not thread safe
+	private final XPathExpression		compiledExpression;
+
+	/**
+	 *
+	 * @param payload
+	 *            payload to evaluate the expression on
+	 * @param expression
+	 *            XPath expression selecting elements without namespace
+	 * @throws IllegalArgumentException
+	 *             if the expression is not valid
+	 */
+	public XPathMatcher(Payload payload, String expression) {
+		this(payload, expression, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 *
+	 * @param payload
+	 *            payload to evaluate the expression on
+	 * @param expression
+	 *            XPath expression
+	 * @param namespaces
+	 *            namespace URIs of the prefixes used in the expression
+	 * @throws IllegalArgumentException
+	 *             if the expression is not valid
+	 */
+	public XPathMatcher(Payload payload, String expression, Map<String, String> namespaces) {
+		this.payload = payload;
+		this.expression = expression;
+		XPath xpath;
+		synchronized (factory) {
+			xpath = factory.newXPath();
+		}
+		xpath.setNamespaceContext(new MapNamespaceContext(new HashMap<String, String>(namespaces)));
+		try {
+			this.compiledExpression = xpath.compile(expression);
+		} catch (XPathExpressionException e) {
+			throw new IllegalArgumentException("Invalid XPath expression: " + expression, e);
+		}
+	}
+
+	@Override
+	public boolean matches(MatchContext context) {
+		Document document = context.getDocument(payload);
+		if (document == null) {
+			return false;
+		}
+		try {
+			return (Boolean) evaluate(document, XPathConstants.BOOLEAN);
+		} catch (XPathExpressionException e) {
+			throw new ServerException("Error evaluating XPath expression " + expression, e);
+		}
+	}
+
+	/**
+	 * Evaluates the expression as a string
+	 *
+	 * @param document
+	 *            payload document
+	 * @return string value of the expression, empty if it selects nothing
+	 */
+	public String evaluate(Document document) {
+		try {
+			return (String) evaluate(document, XPathConstants.STRING);
+		} catch (XPathExpressionException e) {
+			throw new ServerException("Error evaluating XPath expression " + expression, e);
+		}
+	}
+
+	/**
+	 * Evaluates the expression as a node set
+	 *
+	 * @param context
+	 *            context node, e.g. a document or a document fragment
+	 * @return selected nodes, in document order
+	 * @throws ServerException
+	 *             if the expression does not select nodes
+	 */
+	public NodeList select(Node context) {
+		try {
+			return (NodeList) evaluate(context, XPathConstants.NODESET);
+		} catch (XPathExpressionException e) {
+			throw new ServerException("Error evaluating XPath expression " + expression, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return payload + " XPath " + expression;
+	}
+
+	private Object evaluate(Object item, QName returnType) throws XPathExpressionException {
+		synchronized (compiledExpression) {
+			return compiledExpression.evaluate(item, returnType);
+		}
+	}
+
+	/**
+	 * Immutable prefix to namespace URI mappings
+	 */
+	private static class MapNamespaceContext implements NamespaceContext {
+
+		private final Map<String, String>	namespaces;
+
+		private MapNamespaceContext(Map<String, String> namespaces) {
+			this.namespaces = namespaces;
+		}
+
+		@Override
+		public String getNamespaceURI(String prefix) {
+			String namespace = namespaces.get(prefix);
+			return namespace == null ? XMLConstants.NULL_NS_URI : namespace;
+		}
+
+		@Override
+		public String getPrefix(String namespaceURI) {
+			for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+				if (entry.getValue().equals(namespaceURI)) {
+					return entry.getKey();
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public Iterator<String> getPrefixes(String namespaceURI) {
+			String prefix = getPrefix(namespaceURI);
+			return prefix == null ? Collections.<String> emptyList().iterator() : Collections.singletonList(prefix).iterator();
+		}
+	}
+}
@@ -1,13 +1,17 @@
 package net.i2cat.netconf.server.netconf;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2cat.netconf.messageQueue.MessageQueue;
 import net.i2cat.netconf.messageQueue.MessageQueueListener;
@@ -20,7 +24,30 @@ import net.i2cat.netconf.rpc.Reply;
 import net.i2cat.netconf.rpc.ReplyFactory;
 import net.i2cat.netconf.server.Behaviour;
 import net.i2cat.netconf.server.BehaviourContainer;
+import net.i2cat.netconf.server.BehaviourMatch;
+import net.i2cat.netconf.server.ExecutionModel;
+import net.i2cat.netconf.server.FlushPolicy;
+import net.i2cat.netconf.server.MatchingBehaviourContainer;
+import net.i2cat.netconf.server.MemoryBudget;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
 import net.i2cat.netconf.server.MessageStore;
+import net.i2cat.netconf.server.PreparedReply;
+import net.i2cat.netconf.server.SessionMessageStore;
+import net.i2cat.netconf.server.datastore.ConfigFilter;
+import net.i2cat.netconf.server.datastore.ConfigNode;
+import net.i2cat.netconf.server.datastore.Datastores;
+import net.i2cat.netconf.server.exceptions.DatastoreException;
+import net.i2cat.netconf.server.exceptions.MemoryBudgetExceededException;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.matcher.MatchContext;
+import net.i2cat.netconf.server.transport.FrameDecoder;
+import net.i2cat.netconf.server.transport.FrameRecorder;
+import net.i2cat.netconf.server.transport.ParserPool;
+import net.i2cat.netconf.server.transport.ParserPool.PooledParser;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+import net.i2cat.netconf.server.transport.RawReply;
 import net.i2cat.netconf.server.transport.ServerTransportContentParser;
 
 import org.apache.commons.io.IOUtils;
@@ -30,7 +57,6 @@ import org.apache.sshd.server.ExitCallback;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
  * Netconf client processor
@@ -40,10 +66,27 @@ import org.xml.sax.helpers.XMLReaderFactory;
  */
 public class NetconfProcessor implements Runnable, MessageQueueListener {
 
-	private static final String				END_CHAR_SEQUENCE	= "]]>]]>";
-
 	private static final Log				log					= LogFactory.getLog(NetconfProcessor.class);
 
+	// operations acting on the session, never processed concurrently with other messages
+	private static final Set<String>		BARRIER_OPERATIONS	= new HashSet<String>(Arrays.asList(
+																	Operation.CLOSE_SESSION.getName(),
+																	Operation.KILL_SESSION.getName(),
+																	Operation.LOCK.getName(),
+																	Operation.UNLOCK.getName()));
+	// operations changing the datastores, processed alone when the session has datastores so that later queries see them
+	private static final Set<String>		CONFIG_OPERATIONS	= new HashSet<String>(Arrays.asList(
+																	Operation.EDIT_CONFIG.getName(),
+																	Operation.COPY_CONFIG.getName(),
+																	Operation.DELETE_CONFIG.getName(),
+																	Operation.COMMIT.getName(),
+																	Operation.DISCARD.getName()));
+
+	private static final String				DEFAULT_CONFIG		= "/router_configs/router_config_A.xml";
+	// configuration replied without datastores, read when first requested
+	private static volatile String			defaultConfig;
+	private static volatile ConfigNode		defaultConfigTree;
+
 	// message counter
 	private int								messageCounter		= 100;
 
@@ -58,21 +101,64 @@ public class NetconfProcessor implements Runnable, MessageQueueListener {
 	private OutputStream					out;
 	private OutputStream					err;
 
+	// outbound messages
+	private FlushPolicy						flushPolicy;
+	private ReplyWriter						replyWriter;
+
 	// callback
 	private ExitCallback					callback;
 
-	// status fields
-	private Status							status;
+	// status fields, accessed from reader and message processing tasks
+	private volatile Status					status;
 
 	private String							sessionId;
+	// hello sent to the client, prepared before reading its hello
+	private String							serverHello;
+	// true if the server hello announces base:1.1
+	private boolean							base11Announced;
 
 	// XML parser & handler
+	private ParserPool						parserPool;
+	private PooledParser					pooledParser;
 	private XMLReader						xmlParser;
 	private ServerTransportContentParser	xmlHandler;
 	private MessageQueue					messageQueue;
 
-	// message processor thread
-	private Thread							messageProcessorThread;
+	// message processing
+	private ExecutionModel					executionModel;
+	// queued messages not processed yet, a drain task is scheduled while it is greater than zero
+	private final AtomicInteger				pendingMessages		= new AtomicInteger();
+	private final Object					drainLock			= new Object();
+	private final Runnable					drainTask			= new Runnable() {
+																	@Override
+																	public void run() {
+																		drainMessages();
+																	}
+																};
+	// reschedules the drain task once the replies a held barrier message waits for have been sent
+	private final Runnable					resumeTask			= new Runnable() {
+																	@Override
+																	public void run() {
+																		resumeDrain();
+																	}
+																};
+	// barrier message consumed by the drain task, waiting for previous replies. Only accessed by the drain task.
+	private RPCElement						heldBarrier;
+	private long							heldBarrierBytes;
+
+	// pipelining, disabled if maxInFlight is 0
+	private int								maxInFlight			= 0;
+	private Semaphore						inFlightPermits;
+	private ReplySequencer					replySequencer;
+
+	// received payloads
+	private long							spillThreshold		= Long.MAX_VALUE;
+	private File							spillDirectory;
+	private MemoryBudget					memoryBudget;
+	private MemoryBudget.Session			sessionBudget;
+
+	// configuration operations, replied with the default configuration and OK if null
+	private Datastores						datastores;
 
 	public NetconfProcessor(InputStream in, OutputStream out, OutputStream err, ExitCallback callback) {
 		this.in = in;
@@ -89,113 +175,262 @@ public class NetconfProcessor implements Runnable, MessageQueueListener {
 		this.behaviourContainer = behaviourContainer;
 	}
 
+	public void setParserPool(ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public void setExecutionModel(ExecutionModel executionModel) {
+		this.executionModel = executionModel;
+	}
+
+	/**
+	 * Enables pipelining: queries are processed concurrently in the message executor, while replies are still sent in arrival
+	 * order. Hello, replies and session operations (close-session, kill-session, lock, unlock) wait for previous messages and are
+	 * processed alone, as well as operations changing the datastores if they are set with {@link #setDatastores(Datastores)}.
+	 * 
+	 * @param maxInFlight
+	 *            maximum number of received messages not replied yet, the session stops reading when reached. 0 disables
+	 *            pipelining.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Sets the size of received payloads (e.g. edit-config contents) to spill to a temporary file instead of keeping them in
+	 * memory
+	 * 
+	 * @param spillThreshold
+	 *            threshold in bytes, {@link Long#MAX_VALUE} to keep payloads always in memory
+	 */
+	public void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Sets the budget of memory used to receive messages and hold their payloads until they are processed
+	 * 
+	 * @param memoryBudget
+	 *            budget shared with other sessions, or null to use memory without limits
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the datastores processing get-config, edit-config and the rest of configuration operations
+	 * 
+	 * @param datastores
+	 *            datastores shared with other sessions, or null to reply the default configuration and OK
+	 */
+	public void setDatastores(Datastores datastores) {
+		this.datastores = datastores;
+	}
+
 	@Override
 	public void run() {
 		// initialize XML parser & handler and message queue
 		try {
 			messageQueue = new MessageQueue();
+			if (parserPool == null) {
+				parserPool = ParserPool.getDefault();
+			}
+			if (executionModel == null) {
+				executionModel = ExecutionModel.getDefault();
+			}
+			replyWriter = new ReplyWriter(out, flushPolicy, executionModel);
+			if (maxInFlight > 0) {
+				inFlightPermits = new Semaphore(maxInFlight);
+				replySequencer = new ReplySequencer(replyWriter);
+			}
+			pooledParser = parserPool.borrow();
+
+			FrameRecorder recorder = pooledParser.getRecorder();
+			recorder.setSpillThreshold(spillThreshold);
+			recorder.setSpillDirectory(spillDirectory);
+			if (memoryBudget != null) {
+				sessionBudget = memoryBudget.newSession();
+				recorder.setMemoryBudget(sessionBudget);
+			}
 
-			xmlHandler = new ServerTransportContentParser();
+			xmlHandler = pooledParser.getHandler();
 			xmlHandler.setMessageQueue(messageQueue);
 			messageQueue.addListener(this);
 
-			xmlParser = XMLReaderFactory.createXMLReader();
-			xmlParser.setContentHandler(xmlHandler);
-			xmlParser.setErrorHandler(xmlHandler);
+			xmlParser = pooledParser.getReader();
 		} catch (SAXException e) {
 			log.error("Cannot instantiate XML parser", e);
 			return;
 		}
 
-		status = Status.INIT;
+		// hello is prepared before reading messages, the reader needs to know the announced capabilities
+		prepareHello();
 
-		// start message processor
-		startMessageProcessor();
-		// wait for message processor to continue
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			log.warn("Error waiting for message processor thread.", e);
-		}
+		// messages are processed by the message executor as they are queued
+		status = Status.INIT;
 
 		// process messages
 		try {
-			StringBuilder message = new StringBuilder();
+			FrameDecoder frameDecoder = new FrameDecoder(in);
+			boolean helloFrameReceived = false;
 
 			while (status != Status.SESSION_CLOSED) {
-				BufferedReader br = new BufferedReader(new InputStreamReader(in));
-
 				log.debug("Start reading new message...");
 
-				// read message
-				String line;
-				while ((line = br.readLine()) != null) {
-					log.trace("Line read: '" + line + "'");
-					if (line.endsWith(END_CHAR_SEQUENCE)) {
-						log.trace("Detected end message.");
-						// remove end char sequence from message
-						line = line.replace(END_CHAR_SEQUENCE, "");
-						message.append(line + '\n');
-						// process data
-						process(message.toString());
-						// reset message
-						message.setLength(0);
+				// wait for a new message
+				InputStream frame = frameDecoder.nextFrame();
+				if (frame == null) {
+					// exit loop if stream closed
+					break;
+				}
+				// process data while it is being received
+				process(frame);
+				log.trace("Detected end message.");
+
+				// first frame must be client hello, switch framing if both peers support it
+				if (!helloFrameReceived) {
+					helloFrameReceived = true;
+					if (isChunkedFramingNegotiated()) {
+						log.debug("Client supports base:1.1, switching to chunked framing.");
+						frameDecoder.setChunkedFraming(true);
 					}
-					message.append(line + '\n');
 				}
-				// exit loop if stream closed
-				break;
 			}
 		} catch (Exception e) {
 			log.error("Exception caught in Netconf subsystem", e);
 		} finally {
 			waitAndInterruptThreads();
+			try {
+				replyWriter.close();
+			} catch (IOException e) {
+				log.warn("Error flushing pending replies", e);
+			}
+			endBehaviourSessions();
+			parserPool.release(pooledParser);
+			if (sessionBudget != null) {
+				sessionBudget.releaseAll();
+			}
 			callback.onExit(0);
 		}
 	}
 
-	private void process(final String message) throws IOException, SAXException {
+	private void process(final InputStream frame) throws IOException, SAXException {
 		log.debug("Starting parser..");
 		try {
-			log.trace("Parsing message:\n" + message);
-			xmlParser.parse(new InputSource(new StringReader(message)));
+			// record frame while it is parsed, so payloads are sliced from it
+			xmlParser.parse(new InputSource(pooledParser.getRecorder().record(frame)));
+		} catch (MemoryBudgetExceededException e) {
+			log.warn("Rejecting message, closing session: " + e.getMessage());
+			status = Status.SESSION_CLOSED;
 		} catch (SAXException e) {
-			if (e.getMessage().contentEquals("Content is not allowed in trailing section.")) {
+			if (e.getException() instanceof MemoryBudgetExceededException) {
+				log.warn("Rejecting message, closing session: " + e.getException().getMessage());
+				status = Status.SESSION_CLOSED;
+			} else if ("Content is not allowed in trailing section.".equals(e.getMessage())) {
 				// Using shitty non-xml delimiters forces us to detect
 				// end-of-frame by a SAX error.
 				// Do nothing will just restart the parser.
 				// Blame netconf
 			}
 			else {
-				log.error("Error parsing. Message: \n" + message, e);
+				log.error("Error parsing message", e);
 				status = Status.SESSION_CLOSED;
 			}
 			log.info("End of parsing.");
 		} catch (Exception e) {
 			log.error("Error parsing message", e);
 			status = Status.SESSION_CLOSED;
+		} finally {
+			pooledParser.getRecorder().clear();
 		}
 	}
 
-	private void sendHello() throws IOException {
+	private void prepareHello() {
 		// create a server hello message
-		Hello serverHello = new Hello();
+		Hello hello = new Hello();
 		// generate a random session ID
 		sessionId = "" + (int) (Math.random() * (Integer.MAX_VALUE));
-		serverHello.setSessionId(sessionId);
+		hello.setSessionId(sessionId);
 
-		// add only base capability
+		// add only base capabilities
 		ArrayList<Capability> capabilities = new ArrayList<Capability>();
 		capabilities.add(Capability.BASE);
-		serverHello.setCapabilities(capabilities);
+		hello.setCapabilities(capabilities);
+
+		// base:1.1 is not a known Capability, add it to the serialized hello
+		String helloXML = hello.toXML();
+		int capabilitiesEnd = helloXML.indexOf("</capabilities>");
+		if (capabilitiesEnd >= 0) {
+			helloXML = helloXML.substring(0, capabilitiesEnd) +
+					"<capability>" + ServerTransportContentParser.CAPABILITY_BASE_1_1 + "</capability>" +
+					helloXML.substring(capabilitiesEnd);
+			base11Announced = true;
+		} else {
+			log.warn("Server hello has no capabilities element, base:1.1 is not announced and framing will not be switched");
+			base11Announced = false;
+		}
+		serverHello = helloXML;
+	}
+
+	private void sendHello() throws IOException {
+		send(serverHello);
+	}
 
-		send(serverHello.toXML());
+	/**
+	 * 
+	 * @return true if both hellos announce base:1.1, so messages after them use chunked framing
+	 */
+	private boolean isChunkedFramingNegotiated() {
+		return base11Announced && xmlHandler.isBase11CapabilityReceived();
 	}
 
 	public void sendFakeConfig(Query configQuery) throws IOException {
-		InputStream configFileIs = this.getClass().getResourceAsStream("/router_configs/router_config_A.xml");
-		Reply reply = ReplyFactory.newGetConfigReply(configQuery, null, IOUtils.toString(configFileIs));
-		sendReply(reply);
+		sendReply(fakeConfigReply(configQuery));
+	}
+
+	private Reply fakeConfigReply(Query configQuery) {
+		if (!ConfigFilter.hasFilter(configQuery)) {
+			return ReplyFactory.newGetConfigReply(configQuery, null, defaultConfig());
+		}
+		try {
+			return ReplyFactory.newGetConfigReply(configQuery, null, ConfigFilter.filter(configQuery, defaultConfigTree()));
+		} catch (DatastoreException e) {
+			log.debug("Error filtering configuration: " + e.getMessage());
+			return Datastores.errorReply(configQuery, e);
+		}
+	}
+
+	private static String defaultConfig() {
+		String config = defaultConfig;
+		if (config == null) {
+			InputStream configFileIs = NetconfProcessor.class.getResourceAsStream(DEFAULT_CONFIG);
+			try {
+				config = IOUtils.toString(configFileIs);
+			} catch (IOException e) {
+				throw new ServerException("Error reading configuration", e);
+			} finally {
+				IOUtils.closeQuietly(configFileIs);
+			}
+			defaultConfig = config;
+		}
+		return config;
+	}
+
+	private static ConfigNode defaultConfigTree() {
+		ConfigNode config = defaultConfigTree;
+		if (config == null) {
+			config = Datastores.parse(defaultConfig());
+			defaultConfigTree = config;
+		}
+		return config;
 	}
 
 	private void sendCloseSession() throws IOException {
@@ -221,10 +456,7 @@ public class NetconfProcessor implements Runnable, MessageQueueListener {
 
 	private void send(String xmlMessage) throws IOException {
 		log.trace("Sending message:\n" + xmlMessage);
-		out.write(xmlMessage.getBytes("UTF-8"));
-		// send final sequence
-		out.write((END_CHAR_SEQUENCE + "\n").getBytes("UTF-8"));
-		out.flush();
+		replyWriter.write(xmlMessage);
 	}
 
 	/**
@@ -248,137 +480,398 @@ public class NetconfProcessor implements Runnable, MessageQueueListener {
 		}
 	}
 
-	private void startMessageProcessor() {
-		log.info("Creating new message processor...");
-		messageProcessorThread = new Thread("Message processor") {
-			@Override
-			public void run() {
-				while (status.getIndex() < Status.SESSION_CLOSED.getIndex()) {
-
-					RPCElement message = messageQueue.blockingConsume();
-
-					log.trace("Message body:\n" + message.toXML() + '\n');
+	/**
+	 * Processes queued messages in order, until there are no more pending messages. Only one drain task per session is
+	 * scheduled at a time.
+	 */
+	private void drainMessages() {
+		try {
+			do {
+				// a held barrier is processed first, previous replies have been sent
+				RPCElement message = heldBarrier;
+				long payloadBytes = heldBarrierBytes;
+				heldBarrier = null;
+
+				if (message == null) {
+					message = messageQueue.blockingConsume();
+					payloadBytes = heldPayloadBytes(message);
+
+					// avoid serializing the message, payloads are decoded lazily
+					if (log.isTraceEnabled()) {
+						log.trace("Message body:\n" + message.toXML() + '\n');
+					}
 
-					// store message if necessary
-					if (messageStore != null) {
+					// store message if necessary, in arrival order
+					if (messageStore instanceof SessionMessageStore) {
+						((SessionMessageStore) messageStore).storeMessage(new MessageInfo(sessionId, Direction.RECEIVED, System
+								.currentTimeMillis(), message));
+					} else if (messageStore != null) {
 						messageStore.storeMessage(message);
 					}
 
-					// avoid message processing when session is already closed
-					if (status == Status.SESSION_CLOSED) {
-						log.warn("Session is closing or is already closed, message will not be processed");
-						return;
+					if (replySequencer != null && !isBarrier(message)) {
+						dispatch((Query) message, replySequencer.register(), payloadBytes);
+						continue;
 					}
 
-					// process message
-					try {
-						// user defined behaviours
-						if (message instanceof Query) {
-							Query query = (Query) message;
-							List<Behaviour> behaviours = behaviourContainer.getBehaviours();
-							if (behaviours != null) {
-								Behaviour behaviour = null;
-								for (Behaviour b : behaviours) {
-									if (b.getQuery().getOperation().equals(query.getOperation())) {
-										behaviour = b;
-										break;
-									}
-								}
-								if (behaviour != null) {
-									log.info("Behaviour matched.");
-									if (behaviour.isConsume()) {
-										log.info("Behaviour matched. Sending reply...");
-										behaviours.remove(behaviour);
-									}
-									log.info("Sending matched reply...");
-									behaviour.getReply().setMessageId(query.getMessageId());
-									sendReply(behaviour.getReply());
-									// next iteration
-									continue;
-								}
-							}
+					if (replySequencer != null) {
+						// previous replies must be sent before processing it. Replies may be waiting for tasks queued in this
+						// executor, so the drain task ends and it is rescheduled by the sequencer instead of waiting.
+						heldBarrier = message;
+						heldBarrierBytes = payloadBytes;
+						if (replySequencer.whenIdle(resumeTask)) {
+							return;
 						}
+						heldBarrier = null;
+					}
+				}
+
+				try {
+					processMessage(message);
+				} catch (RuntimeException e) {
+					log.error("Error processing message", e);
+				} finally {
+					RawContent.releasePayloads(message);
+					releasePayload(payloadBytes);
+					if (inFlightPermits != null) {
+						inFlightPermits.release();
+					}
+				}
+			} while (pendingMessages.decrementAndGet() > 0);
+		} finally {
+			synchronized (drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Schedules the drain task again to process a held barrier message
+	 */
+	private void resumeDrain() {
+		try {
+			executionModel.getMessageExecutor().execute(drainTask);
+		} catch (RejectedExecutionException e) {
+			log.error("Message executor is not accepting tasks, closing session", e);
+			status = Status.SESSION_CLOSED;
+			drainMessages();
+		}
+	}
+
+	private boolean isBarrier(RPCElement message) {
+		if (!(message instanceof Query) || status != Status.HELLO_RECEIVED) {
+			return true;
+		}
+		Operation operation = ((Query) message).getOperation();
+		return operation == null || BARRIER_OPERATIONS.contains(operation.getName()) || datastores != null &&
+				CONFIG_OPERATIONS.contains(operation.getName());
+	}
 
-						// default message processing
-						if (message instanceof Hello) {
-							if (status.getIndex() < Status.HELLO_RECEIVED.getIndex()) {
-								status = Status.HELLO_RECEIVED;
-								// send hello
-								log.debug("Sending hello...");
-								sendHello();
-							} else {
-								log.error("Hello already received. Aborting");
-								sendCloseSession();
-								status = Status.CLOSING_SESSION;
-							}
-						} else if (message instanceof Query) {
-							Query query = (Query) message;
-							Operation operation = query.getOperation();
-
-							if (operation.equals(Operation.CLOSE_SESSION)) {
-								log.info("Close-session received.");
-								status = Status.CLOSING_SESSION;
-								sendOk(query);
-								status = Status.SESSION_CLOSED;
-								log.info("Session closed.");
-								// next iteration
-								continue;
-							} else if (operation.equals(Operation.GET_CONFIG)) {
-								log.info("Get-config received.");
-								sendFakeConfig(query);
-								// next iteration
-								continue;
-							} else {
-								log.info("Unknown query received, replying OK");
-								sendOk(query);
-								// next iteration
-								continue;
-							}
-						} else if (message instanceof Reply) {
-							if (status == Status.CLOSING_SESSION) {
-								log.info("Client confirms the close session request.");
-								status = Status.SESSION_CLOSED;
-								// next iteration
-								continue;
-							} else {
-								log.error("Unknown reply received!");
-								// next iteration
-								continue;
-							}
+	/**
+	 * 
+	 * @return bytes of the message payload reserved from the memory budget when it was received
+	 */
+	private long heldPayloadBytes(RPCElement message) {
+		if (sessionBudget == null) {
+			return 0;
+		}
+		if (message instanceof RawQuery) {
+			RawQuery query = (RawQuery) message;
+			return inMemoryBytes(query.getRawConfig()) + inMemoryBytes(query.getRawFilter());
+		} else if (message instanceof RawReply) {
+			return inMemoryBytes(((RawReply) message).getRawContain());
+		}
+		return 0;
+	}
+
+	private static long inMemoryBytes(RawContent payload) {
+		return payload != null && payload.isInMemory() ? payload.length() : 0;
+	}
+
+	/**
+	 * Returns memory held by a processed message payload to the memory budget
+	 */
+	private void releasePayload(long payloadBytes) {
+		if (sessionBudget != null) {
+			sessionBudget.release(payloadBytes);
+		}
+	}
+
+	/**
+	 * Processes a query in a new message executor task, its reply is sent by the {@link ReplySequencer}
+	 */
+	private void dispatch(final Query query, final long sequence, final long payloadBytes) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				BehaviourMatch match = null;
+				String xmlReply = null;
+				try {
+					match = matchBehaviour(query);
+					if (match == null) {
+						xmlReply = processQuery(query);
+					}
+				} catch (RuntimeException e) {
+					log.error("Error processing message", e);
+				} finally {
+					try {
+						if (match != null) {
+							// payloads are released by the sequencer once the reply is written
+							replySequencer.complete(sequence, match.getReply(), query, sessionId);
 						} else {
-							log.warn("Unknown message: " + message.toXML());
-							// next iteration
-							continue;
+							RawContent.releasePayloads(query);
+							replySequencer.complete(sequence, xmlReply);
 						}
 					} catch (IOException e) {
 						log.error("Error sending reply", e);
-						break;
+						status = Status.SESSION_CLOSED;
+					}
+					releasePayload(payloadBytes);
+					inFlightPermits.release();
+					synchronized (drainLock) {
+						drainLock.notifyAll();
 					}
 				}
-				log.trace("Message processor ended");
 			}
 		};
-		messageProcessorThread.start();
-		log.info("Message processor started.");
+		try {
+			executionModel.getMessageExecutor().execute(task);
+		} catch (RejectedExecutionException e) {
+			log.error("Message executor is not accepting tasks, closing session", e);
+			status = Status.SESSION_CLOSED;
+			task.run();
+		}
 	}
 
-	public void waitAndInterruptThreads() {
-		// wait for thread
+	/**
+	 * Processes a query that does not change session status and does not match any behaviour
+	 * 
+	 * @return reply to send
+	 */
+	private String processQuery(Query query) {
+		if (datastores != null) {
+			Reply reply = datastores.process(query);
+			if (reply != null) {
+				return reply.toXML();
+			}
+		}
+		if (query.getOperation().equals(Operation.GET_CONFIG)) {
+			log.info("Get-config received.");
+			return fakeConfigReply(query).toXML();
+		}
+		log.info("Unknown query received, replying OK");
+		return ReplyFactory.newOk(query, null).toXML();
+	}
+
+	private BehaviourMatch matchBehaviour(Query query) {
+		BehaviourMatch match;
+		if (behaviourContainer instanceof MatchingBehaviourContainer) {
+			match = ((MatchingBehaviourContainer) behaviourContainer).matchBehaviour(query, sessionId);
+		} else {
+			match = scanBehaviours(query);
+		}
+		if (match != null) {
+			log.info("Behaviour matched.");
+			if (match.getBehaviour().isConsumed()) {
+				log.info("Behaviour consumed.");
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Finds the first behaviour of a container without matching support that replies the query, removing it if it is consumed
+	 */
+	private BehaviourMatch scanBehaviours(Query query) {
+		List<Behaviour> behaviours = behaviourContainer.getBehaviours();
+		if (behaviours == null) {
+			return null;
+		}
+		// claimed and removed by one session at a time
+		synchronized (behaviourContainer) {
+			MatchContext context = null;
+			for (Behaviour behaviour : behaviours) {
+				if (!behaviour.getQuery().getOperation().equals(query.getOperation())) {
+					continue;
+				}
+				if (behaviour.getMatcher() != null) {
+					if (context == null) {
+						context = new MatchContext(query);
+					}
+					if (!behaviour.matches(context)) {
+						continue;
+					}
+				}
+				PreparedReply reply = behaviour.claimReply(sessionId);
+				if (behaviour.isConsumed()) {
+					behaviours.remove(behaviour);
+				}
+				if (reply != null) {
+					return new BehaviourMatch(behaviour, reply);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the state kept by behaviours for this session
+	 */
+	private void endBehaviourSessions() {
+		if (behaviourContainer == null) {
+			return;
+		}
+		List<Behaviour> behaviours;
+		// containers without matching support are modified holding their lock, see scanBehaviours
+		synchronized (behaviourContainer) {
+			behaviours = behaviourContainer.getBehaviours();
+			if (behaviours == null) {
+				return;
+			}
+			behaviours = new ArrayList<Behaviour>(behaviours);
+		}
+		for (Behaviour behaviour : behaviours) {
+			behaviour.endSession(sessionId);
+		}
+	}
+
+	private void sendBehaviourReply(BehaviourMatch match, Query query) throws IOException {
+		log.info("Sending matched reply...");
+		PreparedReply reply = match.getReply();
+		if (log.isTraceEnabled()) {
+			log.trace("Sending message:\n" + reply.toString(query, sessionId));
+		}
+		// reply is shared by all sessions, query values are only written to the session buffer
+		replyWriter.write(reply, query, sessionId);
+	}
+
+	private void processMessage(RPCElement message) {
+		// avoid message processing when session is already closed
+		if (status == Status.SESSION_CLOSED) {
+			log.warn("Session is closing or is already closed, message will not be processed");
+			return;
+		}
+
+		// process message
 		try {
-			messageProcessorThread.join(2000);
-		} catch (InterruptedException e) {
-			log.error("Error waiting for thread end", e);
+			// user defined behaviours
+			if (message instanceof Query) {
+				Query query = (Query) message;
+				BehaviourMatch match = matchBehaviour(query);
+				if (match != null) {
+					sendBehaviourReply(match, query);
+					return;
+				}
+			}
+
+			// default message processing
+			if (message instanceof Hello) {
+				if (status.getIndex() < Status.HELLO_RECEIVED.getIndex()) {
+					status = Status.HELLO_RECEIVED;
+					// send hello
+					log.debug("Sending hello...");
+					sendHello();
+					// both hellos exchanged, switch framing if both peers support it
+					if (isChunkedFramingNegotiated()) {
+						replyWriter.setChunkedFraming(true);
+					}
+				} else {
+					log.error("Hello already received. Aborting");
+					sendCloseSession();
+					status = Status.CLOSING_SESSION;
+				}
+			} else if (message instanceof Query) {
+				Query query = (Query) message;
+				Operation operation = query.getOperation();
+
+				if (operation.equals(Operation.CLOSE_SESSION)) {
+					log.info("Close-session received.");
+					status = Status.CLOSING_SESSION;
+					sendOk(query);
+					status = Status.SESSION_CLOSED;
+					log.info("Session closed.");
+				} else {
+					send(processQuery(query));
+				}
+			} else if (message instanceof Reply) {
+				if (status == Status.CLOSING_SESSION) {
+					log.info("Client confirms the close session request.");
+					status = Status.SESSION_CLOSED;
+				} else {
+					log.error("Unknown reply received!");
+				}
+			} else {
+				log.warn("Unknown message: " + message.toXML());
+			}
+		} catch (IOException e) {
+			log.error("Error sending reply", e);
+			status = Status.SESSION_CLOSED;
+		}
+	}
+
+	/**
+	 * Waits for queued messages to be processed, up to 2 seconds. Messages still queued after that are discarded.
+	 */
+	public void waitAndInterruptThreads() {
+		long deadline = System.currentTimeMillis() + 2000;
+		synchronized (drainLock) {
+			long remaining;
+			while ((pendingMessages.get() > 0 || (replySequencer != null && !replySequencer.isIdle()))
+					&& (remaining = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					drainLock.wait(remaining);
+				} catch (InterruptedException e) {
+					log.error("Error waiting for message processing end", e);
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
 		}
 
-		// kill thread if it don't finish naturally
-		if (messageProcessorThread != null && messageProcessorThread.isAlive()) {
-			log.debug("Killing message processor thread");
-			messageProcessorThread.interrupt();
+		if (pendingMessages.get() > 0) {
+			log.debug("Discarding pending messages");
+			status = Status.SESSION_CLOSED;
 		}
 	}
 
 	@Override
 	public void receiveRPCElement(RPCElement element) {
 		log.info("Message received");
+		// schedule message processing, unless a drain task is already scheduled
+		if (inFlightPermits != null) {
+			try {
+				inFlightPermits.acquire();
+			} catch (InterruptedException e) {
+				log.warn("Interrupted waiting for in-flight messages, message will not be processed");
+				status = Status.SESSION_CLOSED;
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (pendingMessages.getAndIncrement() == 0) {
+			try {
+				executionModel.getMessageExecutor().execute(drainTask);
+			} catch (RejectedExecutionException e) {
+				log.error("Message executor is not accepting tasks, closing session", e);
+				status = Status.SESSION_CLOSED;
+				discardMessage();
+			}
+		}
+	}
+
+	/**
+	 * Discards the only queued message, when no drain task could be scheduled to process it
+	 */
+	private void discardMessage() {
+		RPCElement message = messageQueue.blockingConsume();
+		releasePayload(heldPayloadBytes(message));
+		RawContent.releasePayloads(message);
+		pendingMessages.decrementAndGet();
+		if (inFlightPermits != null) {
+			inFlightPermits.release();
+		}
+		synchronized (drainLock) {
+			drainLock.notifyAll();
+		}
 	}
 }
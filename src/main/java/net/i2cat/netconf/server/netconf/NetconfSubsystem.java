@@ -1,11 +1,21 @@
 package net.i2cat.netconf.server.netconf;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import net.i2cat.netconf.server.BehaviourContainer;
+import net.i2cat.netconf.server.ExecutionModel;
+import net.i2cat.netconf.server.FlushPolicy;
+import net.i2cat.netconf.server.MemoryBudget;
 import net.i2cat.netconf.server.MessageStore;
+import net.i2cat.netconf.server.datastore.Datastores;
+import net.i2cat.netconf.server.transport.ParserPool;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,15 +47,55 @@ public class NetconfSubsystem implements Command, SessionAware {
 
 	private MessageStore		messageStore;
 	private BehaviourContainer	behaviourContainer	= null;
+	private ParserPool			parserPool			= null;
+	private FlushPolicy			flushPolicy			= null;
+	private ExecutionModel		executionModel		= null;
+	private int					maxInFlight			= 0;
+	private long				spillThreshold		= Long.MAX_VALUE;
+	private File				spillDirectory		= null;
+	private MemoryBudget		memoryBudget		= null;
+	private Datastores			datastores			= null;
 
 	private NetconfProcessor	netconfProcessor;
-	private Thread				clientThread;
+	private Future<?>			clientTask;
 
 	public NetconfSubsystem(MessageStore messageStore, BehaviourContainer behaviourContainer) {
 		this.messageStore = messageStore;
 		this.behaviourContainer = behaviourContainer;
 	}
 
+	public void setParserPool(ParserPool parserPool) {
+		this.parserPool = parserPool;
+	}
+
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public void setExecutionModel(ExecutionModel executionModel) {
+		this.executionModel = executionModel;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	public void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public void setDatastores(Datastores datastores) {
+		this.datastores = datastores;
+	}
+
 	public InputStream getInputStream() {
 		return in;
 	}
@@ -86,20 +136,35 @@ public class NetconfSubsystem implements Command, SessionAware {
 		netconfProcessor = new NetconfProcessor(in, out, err, callback);
 		netconfProcessor.setMessageStore(messageStore);
 		netconfProcessor.setBehaviors(behaviourContainer);
+		netconfProcessor.setParserPool(parserPool);
+		netconfProcessor.setFlushPolicy(flushPolicy);
+		if (executionModel == null) {
+			executionModel = ExecutionModel.getDefault();
+		}
+		netconfProcessor.setExecutionModel(executionModel);
+		netconfProcessor.setMaxInFlight(maxInFlight);
+		netconfProcessor.setSpillThreshold(spillThreshold);
+		netconfProcessor.setSpillDirectory(spillDirectory);
+		netconfProcessor.setMemoryBudget(memoryBudget);
+		netconfProcessor.setDatastores(datastores);
 
-		log.info("Starting new client thread...");
-		(clientThread = new Thread(netconfProcessor, "Client thread")).start();
+		log.info("Starting new client task...");
+		clientTask = executionModel.getSessionExecutor().submit(netconfProcessor);
 	}
 
 	@Override
 	public void destroy() {
 		netconfProcessor.waitAndInterruptThreads();
 		try {
-			clientThread.join(2000);
+			clientTask.get(2000, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
-			log.warn("Error joining Client thread" + e.getMessage());
+			log.warn("Error waiting for client task" + e.getMessage());
+		} catch (ExecutionException e) {
+			log.warn("Error in client task" + e.getMessage());
+		} catch (TimeoutException e) {
+			log.debug("Client task did not finish, interrupting it");
 		}
-		clientThread.interrupt();
+		clientTask.cancel(true);
 		log.info("Netconf Subsystem destroyed");
 	}
 
@@ -119,6 +184,14 @@ public class NetconfSubsystem implements Command, SessionAware {
 
 		private MessageStore		messageStore		= null;
 		private BehaviourContainer	behaviourContainer	= null;
+		private ParserPool			parserPool			= null;
+		private FlushPolicy			flushPolicy			= null;
+		private ExecutionModel		executionModel		= null;
+		private int					maxInFlight			= 0;
+		private long				spillThreshold		= Long.MAX_VALUE;
+		private File				spillDirectory		= null;
+		private MemoryBudget		memoryBudget		= null;
+		private Datastores			datastores			= null;
 
 		private Factory(MessageStore messageStore, BehaviourContainer behaviourContainer) {
 			this.messageStore = messageStore;
@@ -129,9 +202,98 @@ public class NetconfSubsystem implements Command, SessionAware {
 			return new Factory(messageStore, behaviourContainer);
 		}
 
+		/**
+		 * Sets the pool created subsystems will take XML parsers from
+		 * 
+		 * @param parserPool
+		 *            pool shared by all sessions
+		 */
+		public void setParserPool(ParserPool parserPool) {
+			this.parserPool = parserPool;
+		}
+
+		/**
+		 * Sets the policy created subsystems will use to flush their replies
+		 * 
+		 * @param flushPolicy
+		 *            flush policy, or null to flush every reply immediately
+		 */
+		public void setFlushPolicy(FlushPolicy flushPolicy) {
+			this.flushPolicy = flushPolicy;
+		}
+
+		/**
+		 * Sets the execution model created subsystems will run their tasks in
+		 * 
+		 * @param executionModel
+		 *            execution model, or null to use {@link ExecutionModel#getDefault()}
+		 */
+		public void setExecutionModel(ExecutionModel executionModel) {
+			this.executionModel = executionModel;
+		}
+
+		/**
+		 * Sets the maximum number of messages created subsystems will process concurrently
+		 * 
+		 * @param maxInFlight
+		 *            maximum number of messages not replied yet per session, or 0 to process messages one by one
+		 */
+		public void setMaxInFlight(int maxInFlight) {
+			this.maxInFlight = maxInFlight;
+		}
+
+		/**
+		 * Sets the size of received payloads created subsystems will spill to temporary files
+		 * 
+		 * @param spillThreshold
+		 *            threshold in bytes, {@link Long#MAX_VALUE} to keep payloads always in memory
+		 */
+		public void setSpillThreshold(long spillThreshold) {
+			this.spillThreshold = spillThreshold;
+		}
+
+		/**
+		 * Sets the directory created subsystems will spill payloads to
+		 * 
+		 * @param spillDirectory
+		 *            directory, or null to use the default temporary directory
+		 */
+		public void setSpillDirectory(File spillDirectory) {
+			this.spillDirectory = spillDirectory;
+		}
+
+		/**
+		 * Sets the memory budget created subsystems will receive messages within
+		 * 
+		 * @param memoryBudget
+		 *            budget shared by all sessions, or null to use memory without limits
+		 */
+		public void setMemoryBudget(MemoryBudget memoryBudget) {
+			this.memoryBudget = memoryBudget;
+		}
+
+		/**
+		 * Sets the datastores created subsystems will process configuration operations with
+		 * 
+		 * @param datastores
+		 *            datastores shared by all sessions, or null to reply the default configuration and OK
+		 */
+		public void setDatastores(Datastores datastores) {
+			this.datastores = datastores;
+		}
+
 		public Command create() {
 			log.info("Creating Netconf Subsystem Factory");
-			return new NetconfSubsystem(messageStore, behaviourContainer);
+			NetconfSubsystem subsystem = new NetconfSubsystem(messageStore, behaviourContainer);
+			subsystem.setParserPool(parserPool);
+			subsystem.setFlushPolicy(flushPolicy);
+			subsystem.setExecutionModel(executionModel);
+			subsystem.setMaxInFlight(maxInFlight);
+			subsystem.setSpillThreshold(spillThreshold);
+			subsystem.setSpillDirectory(spillDirectory);
+			subsystem.setMemoryBudget(memoryBudget);
+			subsystem.setDatastores(datastores);
+			return subsystem;
 		}
 
 		public String getName() {
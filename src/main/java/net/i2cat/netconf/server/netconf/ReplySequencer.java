@@ -0,0 +1,182 @@
+package net.i2cat.netconf.server.netconf;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.PreparedReply;
+import net.i2cat.netconf.server.transport.RawContent;
+
+/**
+ * Emits replies of concurrently processed messages in arrival order. Each message gets a sequence number when it is received,
+ * and its reply is written once replies of all previous messages have been written, by whichever thread completes the
+ * sequence first.
+ */
+public class ReplySequencer {
+
+	// marks messages without reply, map does not allow null values
+	private static final Object					NO_REPLY		= new Object();
+
+	private final ReplyWriter					replyWriter;
+
+	// completed replies waiting for previous ones: XML strings or prepared replies
+	private final ConcurrentMap<Long, Object>	completed		= new ConcurrentHashMap<Long, Object>();
+	private final Lock							writeLock		= new ReentrantLock();
+
+	// next sequence number to assign, only modified by the thread receiving messages
+	private volatile long						nextSequence	= 0;
+	// next sequence number to write, only modified holding the write lock
+	private volatile long						nextToWrite		= 0;
+
+	// task to run when idle, guarded by this
+	private Runnable							idleTask;
+
+	public ReplySequencer(ReplyWriter replyWriter) {
+		this.replyWriter = replyWriter;
+	}
+
+	/**
+	 * Assigns a sequence number to a received message. Must be called in arrival order, from a single thread.
+	 *
+	 * @return sequence number to complete with {@link #complete(long, String)}
+	 */
+	public long register() {
+		return nextSequence++;
+	}
+
+	/**
+	 * Sets the reply of a message, writing it and following completed replies if all previous ones have been written
+	 *
+	 * @param sequence
+	 *            sequence number of the message
+	 * @param xmlReply
+	 *            reply to send, or null if the message has no reply
+	 * @throws IOException
+	 *             if an error occurs writing replies. Sequence is not stalled by write errors.
+	 */
+	public void complete(long sequence, String xmlReply) throws IOException {
+		completed.put(sequence, xmlReply != null ? xmlReply : NO_REPLY);
+		writeCompleted();
+	}
+
+	/**
+	 * Sets the reply of a message, writing it and following completed replies if all previous ones have been written
+	 *
+	 * @param sequence
+	 *            sequence number of the message
+	 * @param reply
+	 *            prepared reply to send
+	 * @param query
+	 *            the message, its raw payloads are released once the reply is written
+	 * @param sessionId
+	 *            id of the session
+	 * @throws IOException
+	 *             if an error occurs writing replies. Sequence is not stalled by write errors.
+	 */
+	public void complete(long sequence, PreparedReply reply, Query query, String sessionId) throws IOException {
+		completed.put(sequence, new SplicedReply(reply, query, sessionId));
+		writeCompleted();
+	}
+
+	private void writeCompleted() throws IOException {
+		IOException error = null;
+		// check again after releasing the lock, a reply may be completed while it was held
+		while (completed.containsKey(nextToWrite) && writeLock.tryLock()) {
+			try {
+				Object reply;
+				while ((reply = completed.remove(nextToWrite)) != null) {
+					try {
+						if (reply instanceof SplicedReply) {
+							SplicedReply spliced = (SplicedReply) reply;
+							try {
+								replyWriter.write(spliced.reply, spliced.query, spliced.sessionId);
+							} finally {
+								// reply values may be read from query payloads
+								RawContent.releasePayloads(spliced.query);
+							}
+						} else if (reply != NO_REPLY) {
+							replyWriter.write((String) reply);
+						}
+					} catch (IOException e) {
+						if (error == null) {
+							error = e;
+						}
+					} finally {
+						nextToWrite++;
+					}
+				}
+			} finally {
+				writeLock.unlock();
+			}
+			Runnable task = null;
+			synchronized (this) {
+				notifyAll();
+				if (idleTask != null && isIdle()) {
+					task = idleTask;
+					idleTask = null;
+				}
+			}
+			if (task != null) {
+				task.run();
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 *
+	 * @return true if replies of all registered messages have been written
+	 */
+	public boolean isIdle() {
+		return nextToWrite == nextSequence;
+	}
+
+	/**
+	 * Waits until replies of all registered messages have been written
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (!isIdle()) {
+			wait();
+		}
+	}
+
+	/**
+	 * Runs a task once replies of all registered messages have been written, without blocking the calling thread. Only one task
+	 * may be waiting at a time, and messages must not be registered until it runs.
+	 *
+	 * @param task
+	 *            task to run by the thread writing the last pending reply
+	 * @return true if the task will be run, false if there are no pending replies and the task will not be run
+	 */
+	public synchronized boolean whenIdle(Runnable task) {
+		if (isIdle()) {
+			return false;
+		}
+		idleTask = task;
+		return true;
+	}
+
+	/**
+	 * Prepared reply and the values to write in it
+	 */
+	private static class SplicedReply {
+
+		private final PreparedReply	reply;
+		private final Query			query;
+		private final String		sessionId;
+
+		private SplicedReply(PreparedReply reply, Query query, String sessionId) {
+			this.reply = reply;
+			this.query = query;
+			this.sessionId = sessionId;
+		}
+	}
+}
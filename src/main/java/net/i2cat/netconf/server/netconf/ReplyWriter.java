@@ -0,0 +1,292 @@
+package net.i2cat.netconf.server.netconf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.ExecutionModel;
+import net.i2cat.netconf.server.FlushPolicy;
+import net.i2cat.netconf.server.PreparedReply;
+import net.i2cat.netconf.server.transport.FrameDecoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Outbound writer of a Netconf session. Messages are encoded in a reusable buffer together with their framing (end-of-message
+ * delimiter or chunk header and end-of-chunks), and several buffered messages are sent in a single channel write according to
+ * the {@link FlushPolicy}.
+ */
+public class ReplyWriter {
+
+	private static final Log		log					= LogFactory.getLog(ReplyWriter.class);
+
+	private static final int		INITIAL_BUFFER_SIZE	= 8192;
+	// bigger buffers are released after flushing, so a huge reply does not retain memory for the whole session
+	private static final int		MAX_RETAINED_SIZE	= 1024 * 1024;
+
+	// LF HASH chunk-size LF
+	private static final int		MAX_HEADER_LENGTH	= 13;
+	private static final byte[]		END_OF_CHUNKS		= { '\n', '#', '#', '\n' };
+
+	private final OutputStream		out;
+	private final FlushPolicy		flushPolicy;
+	// delayed flushes are scheduled by the timer and written to the channel by the message executor
+	private final ExecutionModel	executionModel;
+
+	private final CharsetEncoder	encoder				= Charset.forName("UTF-8").newEncoder()
+																.onMalformedInput(CodingErrorAction.REPLACE)
+																.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// buffered messages, not flushed yet
+	private byte[]					buffer				= new byte[INITIAL_BUFFER_SIZE];
+	private int						count				= 0;
+
+	private boolean					chunkedFraming		= false;
+	private boolean					flushScheduled		= false;
+	private boolean					closed				= false;
+
+	// appends to the buffer
+	private final OutputStream		bufferStream		= new OutputStream() {
+															@Override
+															public void write(int b) {
+																append((byte) b);
+															}
+
+															@Override
+															public void write(byte[] b, int off, int len) {
+																ensureCapacity(len);
+																System.arraycopy(b, off, buffer, count, len);
+																count += len;
+															}
+														};
+
+	private final Runnable			delayedFlush		= new Runnable() {
+															@Override
+															public void run() {
+																synchronized (ReplyWriter.this) {
+																	flushScheduled = false;
+																	try {
+																		flush();
+																	} catch (IOException e) {
+																		log.error("Error flushing replies", e);
+																	}
+																}
+															}
+														};
+
+	// run by the timer, must not block on the channel
+	private final Runnable			scheduledFlush		= new Runnable() {
+															@Override
+															public void run() {
+																try {
+																	executionModel.getMessageExecutor().execute(delayedFlush);
+																} catch (RejectedExecutionException e) {
+																	delayedFlush.run();
+																}
+															}
+														};
+
+	/**
+	 * Creates a writer whose delayed flushes run in the default execution model
+	 */
+	public ReplyWriter(OutputStream out, FlushPolicy flushPolicy) {
+		this(out, flushPolicy, ExecutionModel.getDefault());
+	}
+
+	/**
+	 *
+	 * @param executionModel
+	 *            execution model of the session, running its delayed flushes
+	 */
+	public ReplyWriter(OutputStream out, FlushPolicy flushPolicy, ExecutionModel executionModel) {
+		this.out = out;
+		this.flushPolicy = flushPolicy != null ? flushPolicy : FlushPolicy.immediate();
+		this.executionModel = executionModel;
+	}
+
+	/**
+	 * Switches the framing mechanism used for next messages
+	 *
+	 * @param chunkedFraming
+	 *            if true, RFC 6242 chunked framing will be used; otherwise end-of-message framing
+	 */
+	public synchronized void setChunkedFraming(boolean chunkedFraming) {
+		this.chunkedFraming = chunkedFraming;
+	}
+
+	/**
+	 * Writes a message, flushing it according to the flush policy
+	 *
+	 * @param xmlMessage
+	 *            message to send
+	 * @throws IOException
+	 *             if an error occurs writing to the channel
+	 */
+	public synchronized void write(String xmlMessage) throws IOException {
+		int messageStart = startMessage();
+		encode(xmlMessage);
+		endMessage(messageStart);
+	}
+
+	/**
+	 * Writes a prepared reply, flushing it according to the flush policy
+	 *
+	 * @param reply
+	 *            reply to send
+	 * @param query
+	 *            request being replied
+	 * @param sessionId
+	 *            id of the session
+	 * @throws IOException
+	 *             if an error occurs writing to the channel
+	 */
+	public synchronized void write(PreparedReply reply, Query query, String sessionId) throws IOException {
+		int messageStart = startMessage();
+		reply.writeTo(bufferStream, query, sessionId);
+		endMessage(messageStart);
+	}
+
+	/**
+	 * Starts buffering a message
+	 *
+	 * @return buffer offset of the message
+	 */
+	private int startMessage() throws IOException {
+		if (closed) {
+			throw new IOException("Writer is closed");
+		}
+
+		int messageStart = count;
+		if (chunkedFraming) {
+			// leave room for the chunk header, not known until message is encoded
+			ensureCapacity(MAX_HEADER_LENGTH);
+			count += MAX_HEADER_LENGTH;
+		}
+		return messageStart;
+	}
+
+	/**
+	 * Frames the message buffered since given offset
+	 */
+	private void endMessage(int messageStart) throws IOException {
+		int bodyStart = chunkedFraming ? messageStart + MAX_HEADER_LENGTH : messageStart;
+		if (chunkedFraming) {
+			// whole message is sent as a single chunk
+			byte[] header = ("\n#" + (count - bodyStart) + "\n").getBytes("US-ASCII");
+			System.arraycopy(header, 0, buffer, messageStart, header.length);
+			int gap = MAX_HEADER_LENGTH - header.length;
+			System.arraycopy(buffer, bodyStart, buffer, bodyStart - gap, count - bodyStart);
+			count -= gap;
+			append(END_OF_CHUNKS);
+		} else {
+			append(FrameDecoder.END_OF_MESSAGE);
+			append((byte) '\n');
+		}
+
+		applyFlushPolicy();
+	}
+
+	/**
+	 * Sends all buffered messages to the channel
+	 *
+	 * @throws IOException
+	 *             if an error occurs writing to the channel
+	 */
+	public synchronized void flush() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		try {
+			out.write(buffer, 0, count);
+			out.flush();
+		} finally {
+			count = 0;
+			if (buffer.length > MAX_RETAINED_SIZE) {
+				buffer = new byte[INITIAL_BUFFER_SIZE];
+			}
+		}
+	}
+
+	/**
+	 * Flushes buffered messages, further writes will fail
+	 *
+	 * @throws IOException
+	 *             if an error occurs writing to the channel
+	 */
+	public synchronized void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			flush();
+		}
+	}
+
+	private void applyFlushPolicy() throws IOException {
+		if (count >= flushPolicy.getSizeThreshold() || flushPolicy.getMaxDelayMillis() == 0) {
+			flush();
+		} else if (!flushScheduled) {
+			try {
+				executionModel.getFlushScheduler().schedule(scheduledFlush, flushPolicy.getMaxDelayMillis(), TimeUnit.MILLISECONDS);
+				flushScheduled = true;
+			} catch (RejectedExecutionException e) {
+				// execution model shut down
+				flush();
+			}
+		}
+	}
+
+	private void encode(String message) throws CharacterCodingException {
+		CharBuffer chars = CharBuffer.wrap(message);
+		ensureCapacity((int) (chars.remaining() * encoder.averageBytesPerChar()));
+
+		encoder.reset();
+		CoderResult result;
+		do {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, count, buffer.length - count);
+			result = encoder.encode(chars, bytes, true);
+			count = bytes.position();
+			if (result.isOverflow()) {
+				ensureCapacity(Math.max(16, (int) (chars.remaining() * encoder.maxBytesPerChar())));
+			} else if (result.isError()) {
+				result.throwException();
+			}
+		} while (!result.isUnderflow());
+
+		do {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, count, buffer.length - count);
+			result = encoder.flush(bytes);
+			count = bytes.position();
+			if (result.isOverflow()) {
+				ensureCapacity(16);
+			}
+		} while (!result.isUnderflow());
+	}
+
+	private void append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void append(byte b) {
+		ensureCapacity(1);
+		buffer[count++] = b;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(count + extra, buffer.length * 2)];
+			System.arraycopy(buffer, 0, newBuffer, 0, count);
+			buffer = newBuffer;
+		}
+	}
+}
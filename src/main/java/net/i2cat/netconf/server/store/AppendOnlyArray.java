@@ -0,0 +1,93 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Unbounded array written once per index, without locks. It is made of chunks doubling their size, allocated when first
+ * written, so small arrays use little memory and big ones are never copied.
+ */
+final class AppendOnlyArray<E> {
+
+	// size of the first chunk, chunk k has FIRST_CHUNK << k elements
+	static final int											FIRST_CHUNK	= 8;
+	// about 2^31 elements, bigger chunks would not fit in an array
+	private static final int									CHUNKS		= 28;
+
+	private final AtomicReferenceArray<AtomicReferenceArray<E>>	chunks		= new AtomicReferenceArray<AtomicReferenceArray<E>>(
+																				CHUNKS);
+
+	void set(long index, E element) {
+		int chunk = chunk(index);
+		AtomicReferenceArray<E> elements = chunks.get(chunk);
+		if (elements == null) {
+			chunks.compareAndSet(chunk, null, new AtomicReferenceArray<E>(FIRST_CHUNK << chunk));
+			elements = chunks.get(chunk);
+		}
+		elements.set(offset(index, chunk), element);
+	}
+
+	/**
+	 *
+	 * @return element at index, null if not written yet
+	 */
+	E get(long index) {
+		int chunk = chunk(index);
+		AtomicReferenceArray<E> elements = chunks.get(chunk);
+		return elements == null ? null : elements.get(offset(index, chunk));
+	}
+
+	static int chunk(long index) {
+		return 63 - Long.numberOfLeadingZeros(index / FIRST_CHUNK + 1);
+	}
+
+	static int offset(long index, int chunk) {
+		return (int) (index - FIRST_CHUNK * ((1L << chunk) - 1));
+	}
+
+	/**
+	 * Unbounded list of longs, appended concurrently without locks
+	 */
+	static final class LongList {
+
+		private final AtomicReferenceArray<AtomicLongArray>	chunks	= new AtomicReferenceArray<AtomicLongArray>(CHUNKS);
+		private final AtomicLong							size	= new AtomicLong();
+
+		/**
+		 * Appends a value, visible to readers of the list once written
+		 *
+		 * @param value
+		 *            value, not negative
+		 */
+		void add(long value) {
+			long index = size.getAndIncrement();
+			int chunk = chunk(index);
+			AtomicLongArray values = chunks.get(chunk);
+			if (values == null) {
+				chunks.compareAndSet(chunk, null, new AtomicLongArray(FIRST_CHUNK << chunk));
+				values = chunks.get(chunk);
+			}
+			// stored plus one, so 0 marks values being appended
+			values.set(offset(index, chunk), value + 1);
+		}
+
+		/**
+		 *
+		 * @return number of appended values, some of them may be being written
+		 */
+		long size() {
+			return size.get();
+		}
+
+		/**
+		 *
+		 * @return value at index, or -1 if it is being written
+		 */
+		long get(long index) {
+			int chunk = chunk(index);
+			AtomicLongArray values = chunks.get(chunk);
+			return values == null ? -1 : values.get(offset(index, chunk)) - 1;
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package net.i2cat.netconf.server.store;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+import net.i2cat.netconf.server.MessageStore;
+import net.i2cat.netconf.server.SessionMessageStore;
+import net.i2cat.netconf.server.transport.RawContent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link SessionMessageStore} storing messages in another store from a background thread, so sessions processing messages
+ * do not wait for it nor contend on its locks. Messages are queued without locks and the appender thread stores them in
+ * batches, in the order they were queued.
+ * <p>
+ * The queue is bounded: when it is full, messages are dropped or the session waits, depending on the {@link Overflow} policy.
+ * {@link #getStoredMessages()} waits until messages queued before calling it are stored, and returns the messages of the
+ * other store.
+ */
+public class AsyncMessageStore implements SessionMessageStore, Closeable {
+
+	private static final Log	log					= LogFactory.getLog(AsyncMessageStore.class);
+
+	public static final int		DEFAULT_CAPACITY	= 64 * 1024;
+	public static final int		DEFAULT_BATCH_SIZE	= 256;
+
+	// maximum time the appender sleeps without checking the queue
+	private static final long	IDLE_PARK_NANOS		= TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * What to do with a message when the queue is full
+	 */
+	public enum Overflow {
+		/**
+		 * Drop the message
+		 */
+		DROP,
+		/**
+		 * Wait until there is room for the message
+		 */
+		BLOCK,
+		/**
+		 * Drop the message, and when the queue is more than half full queue only 1 in N messages
+		 */
+		SAMPLE
+	}
+
+	private final MessageStore							store;
+	private final int									capacity;
+	private final int									batchSize;
+	private final Overflow								overflow;
+	private final int									keepOneIn;
+
+	private final ConcurrentLinkedQueue<MessageInfo>	queue			= new ConcurrentLinkedQueue<MessageInfo>();
+	// free room in the queue
+	private final Semaphore								room;
+	private final Thread								appender;
+	private final AtomicBoolean							idle			= new AtomicBoolean();
+	private volatile boolean							closed			= false;
+
+	// statistics
+	private final AtomicLong							queued			= new AtomicLong();
+	private final AtomicLong							processed		= new AtomicLong();
+	private final AtomicLong							failed			= new AtomicLong();
+	private final AtomicLong							dropped			= new AtomicLong();
+	private final AtomicLong							sampledOut		= new AtomicLong();
+	// messages offered while sampling
+	private final AtomicLong							sampled			= new AtomicLong();
+	private final AtomicLong							overflowed		= new AtomicLong();
+	private final AtomicLong							blocked			= new AtomicLong();
+	private final AtomicLong							blockedNanos	= new AtomicLong();
+	private final AtomicLong							enqueueNanos	= new AtomicLong();
+	private final AtomicLong							maxEnqueueNanos	= new AtomicLong();
+	private final AtomicLong							batches			= new AtomicLong();
+	private final AtomicLong							storeNanos		= new AtomicLong();
+
+	/**
+	 * Creates a store with {@link #DEFAULT_CAPACITY} and {@link #DEFAULT_BATCH_SIZE}, dropping messages when it is full
+	 *
+	 * @param store
+	 *            store where messages are stored
+	 */
+	public AsyncMessageStore(MessageStore store) {
+		this(store, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, Overflow.DROP, 1);
+	}
+
+	/**
+	 *
+	 * @param store
+	 *            store where messages are stored, messages keep their session when it is a {@link SessionMessageStore}
+	 * @param capacity
+	 *            maximum number of queued messages
+	 * @param batchSize
+	 *            maximum number of messages stored at once by the appender
+	 * @param overflow
+	 *            what to do when the queue is full
+	 * @param keepOneIn
+	 *            N of {@link Overflow#SAMPLE} policy, ignored by other policies
+	 */
+	public AsyncMessageStore(MessageStore store, int capacity, int batchSize, Overflow overflow, int keepOneIn) {
+		if (capacity <= 0 || batchSize <= 0 || keepOneIn <= 0) {
+			throw new IllegalArgumentException("Capacity, batch size and sampling rate must be positive");
+		}
+		this.store = store;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.overflow = overflow;
+		this.keepOneIn = keepOneIn;
+		this.room = new Semaphore(capacity);
+
+		appender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				append();
+			}
+		}, "Message store appender");
+		appender.setDaemon(true);
+		appender.start();
+	}
+
+	/**
+	 * Queues a message without session
+	 */
+	@Override
+	public void storeMessage(RPCElement message) {
+		storeMessage(new MessageInfo(null, Direction.RECEIVED, System.currentTimeMillis(), message));
+	}
+
+	/**
+	 * Queues a message, or drops it if the queue is full and the policy is not {@link Overflow#BLOCK}
+	 */
+	@Override
+	public void storeMessage(MessageInfo info) {
+		long start = System.nanoTime();
+		if (closed) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (!reserve()) {
+			dropped.incrementAndGet();
+			return;
+		}
+		// raw payloads are read when the message is stored
+		RawContent.retainPayloads(info.getMessage());
+		queued.incrementAndGet();
+		queue.offer(info);
+		if (closed && !appender.isAlive()) {
+			// the appender stopped before seeing the message
+			discardQueued();
+			return;
+		}
+		if (idle.get() && idle.compareAndSet(true, false)) {
+			LockSupport.unpark(appender);
+		}
+
+		long elapsed = System.nanoTime() - start;
+		enqueueNanos.addAndGet(elapsed);
+		long max = maxEnqueueNanos.get();
+		while (elapsed > max && !maxEnqueueNanos.compareAndSet(max, elapsed)) {
+			max = maxEnqueueNanos.get();
+		}
+	}
+
+	/**
+	 * Waits until queued messages are stored
+	 *
+	 * @return messages of the other store
+	 */
+	@Override
+	public List<RPCElement> getStoredMessages() {
+		flush();
+		return store.getStoredMessages();
+	}
+
+	/**
+	 * Waits until messages queued before calling it are stored, or dropped if this store is closed
+	 */
+	public void flush() {
+		long target = queued.get();
+		synchronized (this) {
+			while (processed.get() < target && appender.isAlive()) {
+				try {
+					wait(10);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores queued messages and stops the appender. Later messages are dropped, and their raw payloads released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(appender);
+		try {
+			appender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		// queued by sessions that checked it before it was closed
+		discardQueued();
+	}
+
+	/**
+	 *
+	 * @return number of messages waiting to be stored
+	 */
+	public int getPending() {
+		return capacity - room.availablePermits();
+	}
+
+	/**
+	 *
+	 * @return number of queued messages
+	 */
+	public long getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 *
+	 * @return number of queued messages that the other store failed to store
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 *
+	 * @return number of messages not stored because the queue was full or this store closed, including sampled out ones
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 *
+	 * @return number of messages not queued by {@link Overflow#SAMPLE} policy while the queue was not full
+	 */
+	public long getSampledOut() {
+		return sampledOut.get();
+	}
+
+	/**
+	 *
+	 * @return number of times the queue was full
+	 */
+	public long getOverflows() {
+		return overflowed.get();
+	}
+
+	/**
+	 *
+	 * @return number of times a session waited for room in the queue
+	 */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/**
+	 *
+	 * @return total time sessions waited for room in the queue, in nanoseconds
+	 */
+	public long getBlockedNanos() {
+		return blockedNanos.get();
+	}
+
+	/**
+	 *
+	 * @return total time sessions spent storing messages, in nanoseconds
+	 */
+	public long getEnqueueNanos() {
+		return enqueueNanos.get();
+	}
+
+	/**
+	 *
+	 * @return maximum time a session spent storing a message, in nanoseconds
+	 */
+	public long getMaxEnqueueNanos() {
+		return maxEnqueueNanos.get();
+	}
+
+	/**
+	 *
+	 * @return number of batches stored by the appender
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 *
+	 * @return total time the appender spent in the other store, in nanoseconds
+	 */
+	public long getStoreNanos() {
+		return storeNanos.get();
+	}
+
+	/**
+	 * Reserves room for a message in the queue, applying the overflow policy
+	 *
+	 * @return true if there is room for the message
+	 */
+	private boolean reserve() {
+		if (overflow == Overflow.SAMPLE && room.availablePermits() < capacity / 2 && sampled.getAndIncrement() % keepOneIn != 0) {
+			sampledOut.incrementAndGet();
+			return false;
+		}
+		if (room.tryAcquire()) {
+			return true;
+		}
+		overflowed.incrementAndGet();
+		if (overflow != Overflow.BLOCK) {
+			return false;
+		}
+
+		blocked.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			// closing wakes nobody up, so check it periodically
+			while (!room.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Drops the messages left in the queue once the appender has stopped
+	 */
+	private void discardQueued() {
+		MessageInfo info;
+		while ((info = queue.poll()) != null) {
+			dropped.incrementAndGet();
+			room.release();
+			RawContent.releasePayloads(info.getMessage());
+		}
+	}
+
+	private void append() {
+		List<MessageInfo> batch = new ArrayList<MessageInfo>(batchSize);
+		while (true) {
+			MessageInfo info;
+			while (batch.size() < batchSize && (info = queue.poll()) != null) {
+				batch.add(info);
+			}
+
+			if (batch.isEmpty()) {
+				if (closed) {
+					return;
+				}
+				// check the queue again after announcing it, a message may have been queued meanwhile
+				idle.set(true);
+				if (queue.isEmpty() && !closed) {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+				idle.set(false);
+				continue;
+			}
+
+			long start = System.nanoTime();
+			for (MessageInfo message : batch) {
+				try {
+					if (store instanceof SessionMessageStore) {
+						((SessionMessageStore) store).storeMessage(message);
+					} else {
+						store.storeMessage(message.getMessage());
+					}
+				} catch (RuntimeException e) {
+					failed.incrementAndGet();
+					log.error("Error storing message", e);
+				} finally {
+					RawContent.releasePayloads(message.getMessage());
+				}
+			}
+			storeNanos.addAndGet(System.nanoTime() - start);
+			batches.incrementAndGet();
+
+			room.release(batch.size());
+			processed.addAndGet(batch.size());
+			batch.clear();
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.i2cat.netconf.rpc.Hello;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+import net.i2cat.netconf.server.SessionMessageStore;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.transport.ParserPool;
+
+/**
+ * {@link SessionMessageStore} keeping messages as their serialized UTF-8 bytes instead of {@link RPCElement} objects, which
+ * take several times more memory. Messages are only parsed when they are read, every time they are read.
+ * <p>
+ * Bytes are appended to a block buffer reused for all blocks. When a block is full it is copied to an array of its exact size,
+ * compressed if compression is enabled and it makes the block smaller, and appended messages go to the buffer again. A small
+ * header of each message is kept apart, so the type, operation, message-id, session and time of messages can be read without
+ * parsing them, see {@link #getMessages()}.
+ */
+public class CompactMessageStore implements SessionMessageStore {
+
+	public static final int		DEFAULT_BLOCK_SIZE	= 64 * 1024;
+
+	private static final int	INITIAL_CAPACITY	= 1024;
+
+	/**
+	 * Kind of stored message
+	 */
+	public enum MessageType {
+		HELLO,
+		QUERY,
+		REPLY,
+		OTHER
+	}
+
+	private final int				blockSize;
+	private final boolean			compress;
+	private final ParserPool		parserPool		= new ParserPool(4);
+
+	// guarded by this, headers are never modified once added so snapshots share the array
+	private StoredMessage[]			messages		= new StoredMessage[INITIAL_CAPACITY];
+	private int						size			= 0;
+	private final byte[]			buffer;
+	private Block					open			= new Block();
+	private final Deflater			deflater;
+	private long					storedBytes		= 0;
+	private long					messageBytes	= 0;
+
+	// last decompressed block, so reading consecutive messages decompresses it once
+	private volatile Inflated		inflated;
+
+	/**
+	 * Creates a store with {@link #DEFAULT_BLOCK_SIZE} blocks, without compression
+	 */
+	public CompactMessageStore() {
+		this(DEFAULT_BLOCK_SIZE, false);
+	}
+
+	/**
+	 *
+	 * @param blockSize
+	 *            size of blocks in bytes, bigger messages are kept in a block of their own
+	 * @param compress
+	 *            true to compress full blocks
+	 */
+	public CompactMessageStore(int blockSize, boolean compress) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		}
+		this.blockSize = blockSize;
+		this.compress = compress;
+		this.buffer = new byte[blockSize];
+		this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+	}
+
+	/**
+	 * Stores a message without session
+	 */
+	@Override
+	public void storeMessage(RPCElement message) {
+		storeMessage(new MessageInfo(null, Direction.RECEIVED, System.currentTimeMillis(), message));
+	}
+
+	@Override
+	public void storeMessage(MessageInfo info) {
+		RPCElement message = info.getMessage();
+		byte[] bytes = MessageCodec.encode(message);
+
+		synchronized (this) {
+			Block block;
+			int offset;
+			if (bytes.length > blockSize) {
+				// own block, not copied to the buffer
+				seal();
+				block = new Block();
+				block.seal(bytes, bytes.length);
+				offset = 0;
+			} else {
+				if (open.length + bytes.length > blockSize) {
+					seal();
+				}
+				block = open;
+				offset = open.length;
+				System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+				open.length += bytes.length;
+			}
+
+			if (size == messages.length) {
+				messages = Arrays.copyOf(messages, size * 2);
+			}
+			messages[size++] = new StoredMessage(type(message), MessageQuery.operationName(message), message.getMessageId(),
+					info.getSessionId(), info.getDirection(), info.getTimestamp(), block, offset, bytes.length);
+			messageBytes += bytes.length;
+		}
+	}
+
+	/**
+	 * Stored messages, parsed when they are read. The list is a snapshot, not modified by later messages.
+	 */
+	@Override
+	public List<RPCElement> getStoredMessages() {
+		final List<StoredMessage> snapshot = getMessages();
+		return new AbstractList<RPCElement>() {
+
+			@Override
+			public RPCElement get(int index) {
+				return snapshot.get(index).getMessage();
+			}
+
+			@Override
+			public int size() {
+				return snapshot.size();
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @return snapshot of stored messages, not modified by later messages
+	 */
+	public List<StoredMessage> getMessages() {
+		final StoredMessage[] messages;
+		final int size;
+		synchronized (this) {
+			messages = this.messages;
+			size = this.size;
+		}
+		return new AbstractList<StoredMessage>() {
+
+			@Override
+			public StoredMessage get(int index) {
+				if (index < 0 || index >= size) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+				}
+				return messages[index];
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @return number of stored messages
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return bytes held by blocks, compressed or not, including the block being filled
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes + open.length;
+	}
+
+	/**
+	 *
+	 * @return serialized size of stored messages, before compression
+	 */
+	public synchronized long getMessageBytes() {
+		return messageBytes;
+	}
+
+	/**
+	 * Copies the open block out of the buffer, compressing it if enabled, and starts a new one
+	 */
+	private void seal() {
+		if (open.length == 0) {
+			return;
+		}
+		open.seal(buffer, open.length);
+		open = new Block();
+	}
+
+	private static MessageType type(RPCElement message) {
+		if (message instanceof Query) {
+			return MessageType.QUERY;
+		} else if (message instanceof Reply) {
+			return MessageType.REPLY;
+		} else if (message instanceof Hello) {
+			return MessageType.HELLO;
+		}
+		return MessageType.OTHER;
+	}
+
+	/**
+	 * Stored message header, and the location of its bytes
+	 */
+	public final class StoredMessage {
+
+		private final MessageType	type;
+		private final String		operation;
+		private final String		messageId;
+		private final String		sessionId;
+		private final Direction		direction;
+		private final long			timestamp;
+		private final Block			block;
+		private final int			offset;
+		private final int			length;
+
+		private StoredMessage(MessageType type, String operation, String messageId, String sessionId, Direction direction,
+				long timestamp, Block block, int offset, int length) {
+			this.type = type;
+			this.operation = operation;
+			this.messageId = messageId;
+			this.sessionId = sessionId;
+			this.direction = direction;
+			this.timestamp = timestamp;
+			this.block = block;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public MessageType getType() {
+			return type;
+		}
+
+		/**
+		 *
+		 * @return operation name of queries, null for other messages
+		 */
+		public String getOperation() {
+			return operation;
+		}
+
+		public String getMessageId() {
+			return messageId;
+		}
+
+		/**
+		 *
+		 * @return session id, null if unknown
+		 */
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		public Direction getDirection() {
+			return direction;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 *
+		 * @return serialized size of the message in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Parses the message from its stored bytes
+		 *
+		 * @return a new instance of the message
+		 */
+		public RPCElement getMessage() {
+			byte[] copy = null;
+			byte[] data;
+			synchronized (CompactMessageStore.this) {
+				data = block.data;
+				if (data == null) {
+					// block buffer is reused once sealed, copy the message while holding the lock and parse it after
+					copy = Arrays.copyOfRange(buffer, offset, offset + length);
+				}
+			}
+			if (copy != null) {
+				return MessageCodec.decode(parserPool, copy, 0, length);
+			}
+			if (block.compressed) {
+				data = inflate(block);
+			}
+			return MessageCodec.decode(parserPool, data, offset, length);
+		}
+
+		/**
+		 *
+		 * @return the message with its session, direction and time
+		 */
+		public MessageInfo toMessageInfo() {
+			return new MessageInfo(sessionId, direction, timestamp, getMessage());
+		}
+	}
+
+	private byte[] inflate(Block block) {
+		Inflated last = inflated;
+		if (last != null && last.block == block) {
+			return last.data;
+		}
+		byte[] data = new byte[block.length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(block.data);
+			int n = 0;
+			while (n < data.length && !inflater.finished()) {
+				n += inflater.inflate(data, n, data.length - n);
+			}
+		} catch (DataFormatException e) {
+			throw new ServerException("Error decompressing stored messages", e);
+		} finally {
+			inflater.end();
+		}
+		inflated = new Inflated(block, data);
+		return data;
+	}
+
+	/**
+	 * Bytes of consecutive messages. Data is null while the block is open and its bytes are in the block buffer.
+	 */
+	private final class Block {
+
+		// guarded by the store lock until sealed, then never modified
+		private int			length;
+		private byte[]		data;
+		private boolean		compressed;
+
+		private void seal(byte[] bytes, int length) {
+			this.length = length;
+			if (compress) {
+				byte[] output = new byte[length];
+				deflater.reset();
+				deflater.setInput(bytes, 0, length);
+				deflater.finish();
+				int n = 0;
+				while (!deflater.finished() && n < output.length) {
+					n += deflater.deflate(output, n, output.length - n);
+				}
+				if (deflater.finished() && n < length) {
+					data = Arrays.copyOf(output, n);
+					compressed = true;
+					storedBytes += n;
+					return;
+				}
+			}
+			data = bytes == buffer ? Arrays.copyOf(bytes, length) : bytes;
+			storedBytes += length;
+		}
+	}
+
+	private static final class Inflated {
+
+		private final Block		block;
+		private final byte[]	data;
+
+		private Inflated(Block block, byte[] data) {
+			this.block = block;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+import net.i2cat.netconf.server.SessionMessageStore;
+import net.i2cat.netconf.server.store.AppendOnlyArray.LongList;
+import net.i2cat.netconf.server.transport.RawContent;
+
+/**
+ * {@link SessionMessageStore} indexing stored messages by operation, session id, message-id and arrival time, so they can be
+ * selected with a {@link MessageQuery} without scanning all of them. Messages are kept until the store is discarded.
+ * <p>
+ * Writers append messages and their index entries without taking locks, and messages are published in the order they were
+ * appended. Readers see a snapshot of published messages: {@link #getStoredMessages()} and {@link #query(MessageQuery)}
+ * never block writers, and are not affected by messages stored after they were called.
+ */
+public class IndexedMessageStore implements SessionMessageStore {
+
+	private final AppendOnlyArray<Entry>			log			= new AppendOnlyArray<Entry>();
+	// next sequence to append, and number of published messages
+	private final AtomicLong						sequence	= new AtomicLong();
+	private final AtomicLong						published	= new AtomicLong();
+
+	// sequences of messages by key
+	private final ConcurrentMap<String, LongList>	operations	= new ConcurrentHashMap<String, LongList>();
+	private final ConcurrentMap<String, LongList>	sessions	= new ConcurrentHashMap<String, LongList>();
+	private final ConcurrentMap<String, LongList>	messageIds	= new ConcurrentHashMap<String, LongList>();
+
+	@Override
+	public void storeMessage(RPCElement message) {
+		storeMessage(new MessageInfo(null, Direction.RECEIVED, System.currentTimeMillis(), message));
+	}
+
+	@Override
+	public void storeMessage(MessageInfo info) {
+		// raw payloads are kept with the message
+		RawContent.retainPayloads(info.getMessage());
+		long seq = sequence.getAndIncrement();
+
+		// indexed before being published, so snapshots find all their messages in the indexes
+		index(operations, MessageQuery.operationName(info.getMessage()), seq);
+		index(sessions, info.getSessionId(), seq);
+		index(messageIds, info.getMessage().getMessageId(), seq);
+
+		log.set(seq, new Entry(info));
+		publish();
+	}
+
+	/**
+	 *
+	 * @return snapshot of stored messages, in arrival order
+	 */
+	@Override
+	public List<RPCElement> getStoredMessages() {
+		final int size = (int) Math.min(published.get(), Integer.MAX_VALUE);
+		return new AbstractList<RPCElement>() {
+
+			@Override
+			public RPCElement get(int index) {
+				if (index < 0 || index >= size) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+				}
+				return log.get(index).info.getMessage();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Selects stored messages. Messages stored while iterating are not returned.
+	 *
+	 * @param query
+	 *            criteria of selected messages
+	 * @return iterator over a snapshot of the selected messages, in arrival order
+	 */
+	public Iterator<MessageInfo> query(MessageQuery query) {
+		long snapshot = published.get();
+		long from = search(query.getSince(), snapshot);
+		long to = search(query.getUntil(), snapshot);
+
+		LongList postings = smallest(smallest(postings(operations, query.getOperation()), postings(sessions,
+				query.getSessionId())), postings(messageIds, query.getMessageId()));
+		if (postings == null) {
+			// no keys, or a key without messages
+			if (query.getOperation() != null || query.getSessionId() != null || query.getMessageId() != null) {
+				return new Cursor(query, new long[0], 0, 0);
+			}
+			return new Cursor(query, null, from, to);
+		}
+
+		// sequences may be indexed out of order by concurrent writers
+		long[] sequences = new long[(int) postings.size()];
+		int count = 0;
+		for (int i = 0; i < sequences.length; i++) {
+			long seq = postings.get(i);
+			// values being written belong to unpublished messages
+			if (seq >= from && seq < to) {
+				sequences[count++] = seq;
+			}
+		}
+		Arrays.sort(sequences, 0, count);
+		return new Cursor(query, sequences, 0, count);
+	}
+
+	/**
+	 *
+	 * @return number of stored messages
+	 */
+	public long size() {
+		return published.get();
+	}
+
+	private static void index(ConcurrentMap<String, LongList> index, String key, long seq) {
+		if (key == null) {
+			return;
+		}
+		LongList postings = index.get(key);
+		if (postings == null) {
+			LongList created = new LongList();
+			postings = index.putIfAbsent(key, created);
+			if (postings == null) {
+				postings = created;
+			}
+		}
+		postings.add(seq);
+	}
+
+	/**
+	 *
+	 * @return postings of the key, null if there is no key, or an empty list if it has no messages
+	 */
+	private static LongList postings(ConcurrentMap<String, LongList> index, String key) {
+		if (key == null) {
+			return null;
+		}
+		LongList postings = index.get(key);
+		return postings == null ? new LongList() : postings;
+	}
+
+	private static LongList smallest(LongList l1, LongList l2) {
+		if (l1 == null) {
+			return l2;
+		}
+		if (l2 == null) {
+			return l1;
+		}
+		return l1.size() <= l2.size() ? l1 : l2;
+	}
+
+	/**
+	 * Publishes appended messages in sequence order, as long as there are no gaps. A writer that finds the previous message
+	 * still being written leaves it to its writer to publish both.
+	 */
+	private void publish() {
+		while (true) {
+			long next = published.get();
+			Entry entry = log.get(next);
+			if (entry == null) {
+				return;
+			}
+			// arrival times never decrease, so time ranges can be searched
+			entry.arrival = next == 0 ? entry.info.getTimestamp() : Math.max(log.get(next - 1).arrival, entry.info
+					.getTimestamp());
+			published.compareAndSet(next, next + 1);
+		}
+	}
+
+	/**
+	 *
+	 * @return first published sequence arrived at time or later
+	 */
+	private long search(long time, long snapshot) {
+		long low = 0;
+		long high = snapshot;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (log.get(middle).arrival < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static final class Entry {
+
+		private final MessageInfo	info;
+		// set once when publishing, before the message is visible to readers
+		private volatile long		arrival;
+
+		private Entry(MessageInfo info) {
+			this.info = info;
+		}
+	}
+
+	/**
+	 * Iterates over a range of sequences, or a sorted array of them, returning messages matching the query
+	 */
+	private final class Cursor implements Iterator<MessageInfo> {
+
+		private final MessageQuery	query;
+		private final long[]		sequences;
+		private final long			end;
+		private long				position;
+		private MessageInfo			next;
+
+		private Cursor(MessageQuery query, long[] sequences, long start, long end) {
+			this.query = query;
+			this.sequences = sequences;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && position < end) {
+				long seq = sequences == null ? position : sequences[(int) position];
+				position++;
+				MessageInfo info = log.get(seq).info;
+				if (query.matches(info)) {
+					next = info;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public MessageInfo next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			MessageInfo info = next;
+			next = null;
+			return info;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Stored messages can not be removed");
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package net.i2cat.netconf.server.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+import net.i2cat.netconf.server.SessionMessageStore;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.transport.ParserPool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * {@link SessionMessageStore} appending messages to memory-mapped segment files, so stored messages survive restarts and are
+ * not held in the heap. Each message is recorded with its session id, direction and timestamp, and gets a sequential index.
+ * When a segment is full a new one is created, and the oldest segments beyond the retention limit are deleted.
+ * <p>
+ * Storing a message copies its serialized bytes to the mapped segment; a background thread forces written segments to disk
+ * in batches, every flush interval. Records become valid when their length is written, after their contents, so records
+ * partially written when the process stops are ignored when the journal is opened again.
+ * <p>
+ * Stored messages are decoded lazily by {@link #replay(long)} and {@link #getStoredMessages()}, reading a snapshot of the
+ * journal without loading it into memory. Record offsets are kept in a sparse index, one every {@value #INDEX_INTERVAL}
+ * records, rebuilt when the journal is opened.
+ */
+public class JournalMessageStore implements SessionMessageStore, Closeable {
+
+	public static final int				DEFAULT_SEGMENT_SIZE	= 64 * 1024 * 1024;
+
+	static final int					INDEX_INTERVAL			= 32;
+
+	private static final Log			log						= LogFactory.getLog(JournalMessageStore.class);
+
+	private static final String			SEGMENT_PREFIX			= "journal-";
+	private static final String			SEGMENT_SUFFIX			= ".log";
+	// record: length, timestamp, direction, session id length, session id, message
+	private static final int			HEADER_SIZE				= 8 + 1 + 2;
+	private static final Direction[]	DIRECTIONS				= Direction.values();
+
+	private final File					directory;
+	private final int					segmentSize;
+	private final int					maxSegments;
+	private final ParserPool			parserPool				= new ParserPool(4);
+
+	// following fields are guarded by the journal lock
+	private final LinkedList<Segment>	segments				= new LinkedList<Segment>();
+	private boolean						closed;
+
+	private ScheduledExecutorService	flusher;
+
+	/**
+	 * Opens a journal, creating it if the directory does not contain one
+	 *
+	 * @param directory
+	 *            directory of segment files
+	 * @param segmentSize
+	 *            size of each segment file, bigger messages get a segment of their own
+	 * @param maxSegments
+	 *            segments kept, oldest ones are deleted when a new one is created
+	 * @param flushIntervalMillis
+	 *            interval between forcing written segments to disk, 0 to force them only when flushed or closed
+	 * @throws IOException
+	 *             if an error occurs opening or creating segment files
+	 */
+	public JournalMessageStore(File directory, int segmentSize, int maxSegments, long flushIntervalMillis) throws IOException {
+		if (segmentSize <= 4 + HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+		if (maxSegments <= 0) {
+			throw new IllegalArgumentException("Maximum segments must be positive: " + maxSegments);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Journal directory can not be created: " + directory);
+		}
+		open();
+
+		if (flushIntervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Journal flusher " + JournalMessageStore.this.directory.getName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (RuntimeException e) {
+						log.error("Error flushing journal " + JournalMessageStore.this.directory, e);
+					}
+				}
+			}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stores a message without session
+	 */
+	@Override
+	public void storeMessage(RPCElement message) {
+		storeMessage(new MessageInfo(null, Direction.RECEIVED, System.currentTimeMillis(), message));
+	}
+
+	@Override
+	public void storeMessage(MessageInfo info) {
+		byte[] sessionId = MessageCodec.utf8(info.getSessionId() != null ? info.getSessionId() : "");
+		if (sessionId.length > 0xFFFF) {
+			throw new IllegalArgumentException("Session id too long");
+		}
+		byte[] message = MessageCodec.encode(info.getMessage());
+		int length = HEADER_SIZE + sessionId.length + message.length;
+
+		synchronized (this) {
+			if (closed) {
+				throw new ServerException("Journal is closed: " + directory);
+			}
+			Segment segment = segments.getLast();
+			if (!segment.fits(length)) {
+				try {
+					segment = rollover(length);
+				} catch (IOException e) {
+					throw new ServerException("Error creating journal segment in " + directory, e);
+				}
+			}
+			segment.append(length, info.getTimestamp(), (byte) info.getDirection().ordinal(), sessionId, message);
+		}
+	}
+
+	/**
+	 * Stored messages, decoded when they are read. The list is a snapshot, not modified by later messages.
+	 */
+	@Override
+	public List<RPCElement> getStoredMessages() {
+		return new MessageList(snapshot());
+	}
+
+	/**
+	 * Iterates stored messages in order, from the oldest one kept. Iterated messages are a snapshot, not modified by later
+	 * messages.
+	 */
+	public Iterator<MessageInfo> replay() {
+		return replay(0);
+	}
+
+	/**
+	 * Iterates stored messages in order
+	 *
+	 * @param fromIndex
+	 *            index of the first message, older messages not kept are skipped
+	 */
+	public Iterator<MessageInfo> replay(long fromIndex) {
+		return new Replay(snapshot(), fromIndex);
+	}
+
+	/**
+	 *
+	 * @return index of the oldest message kept
+	 */
+	public synchronized long getFirstIndex() {
+		return segments.getFirst().baseIndex;
+	}
+
+	/**
+	 *
+	 * @return index of the next stored message
+	 */
+	public synchronized long getNextIndex() {
+		Segment last = segments.getLast();
+		return last.baseIndex + last.count;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Forces written segments to disk
+	 */
+	public void flush() {
+		List<Segment> dirty = new ArrayList<Segment>();
+		synchronized (this) {
+			for (Segment segment : segments) {
+				if (segment.dirty) {
+					segment.dirty = false;
+					dirty.add(segment);
+				}
+			}
+		}
+		// appends are not blocked while forcing
+		for (Segment segment : dirty) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Stops flushing, forcing written segments to disk. Stored messages can not be read after that.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (flusher != null) {
+			flusher.shutdownNow();
+		}
+		flush();
+		synchronized (this) {
+			closed = true;
+			for (Segment segment : segments) {
+				segment.close();
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		String[] names = directory.list();
+		List<Long> baseIndexes = new ArrayList<Long>();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						baseIndexes.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() -
+								SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						log.warn("Ignoring file in journal directory: " + name);
+					}
+				}
+			}
+		}
+		Collections.sort(baseIndexes);
+
+		for (long baseIndex : baseIndexes) {
+			Segment segment = Segment.open(segmentFile(baseIndex), baseIndex);
+			if (!segments.isEmpty()) {
+				Segment previous = segments.getLast();
+				if (previous.baseIndex + previous.count != baseIndex) {
+					log.warn("Journal segment " + segment.file + " does not follow " + previous.file + ", records may be lost");
+				}
+			}
+			segments.add(segment);
+		}
+		if (segments.isEmpty()) {
+			segments.add(Segment.create(segmentFile(0), 0, segmentSize));
+		}
+		log.info("Journal " + directory + " opened: messages " + getFirstIndex() + " to " + getNextIndex() + " in " +
+				segments.size() + " segments");
+	}
+
+	private Segment rollover(int length) throws IOException {
+		long baseIndex = getNextIndex();
+		Segment segment = Segment.create(segmentFile(baseIndex), baseIndex, Math.max(segmentSize, 4 + length));
+		segments.add(segment);
+		while (segments.size() > maxSegments) {
+			Segment oldest = segments.removeFirst();
+			// snapshots still reading it keep its mapping
+			oldest.close();
+			if (!oldest.file.delete()) {
+				log.warn("Journal segment can not be deleted: " + oldest.file);
+			}
+		}
+		return segment;
+	}
+
+	private File segmentFile(long baseIndex) {
+		return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, baseIndex, SEGMENT_SUFFIX));
+	}
+
+	private synchronized List<SegmentView> snapshot() {
+		if (closed) {
+			throw new ServerException("Journal is closed: " + directory);
+		}
+		List<SegmentView> views = new ArrayList<SegmentView>(segments.size());
+		for (Segment segment : segments) {
+			views.add(segment.view());
+		}
+		return views;
+	}
+
+	private MessageInfo read(ByteBuffer view, int offset) {
+		// views may be read by several threads
+		ByteBuffer buffer = view.duplicate();
+		int length = buffer.getInt(offset);
+		long timestamp = buffer.getLong(offset + 4);
+		Direction direction = DIRECTIONS[buffer.get(offset + 12)];
+		byte[] sessionId = new byte[buffer.getShort(offset + 13) & 0xFFFF];
+		byte[] message = new byte[length - HEADER_SIZE - sessionId.length];
+		buffer.position(offset + 4 + HEADER_SIZE);
+		buffer.get(sessionId);
+		buffer.get(message);
+
+		RPCElement element = MessageCodec.decode(parserPool, message, 0, message.length);
+		String session = sessionId.length > 0 ? MessageCodec.string(sessionId) : null;
+		return new MessageInfo(session, direction, timestamp, element);
+	}
+
+	/**
+	 * Mapped segment file. Records are appended holding the journal lock.
+	 */
+	private static class Segment {
+
+		private final File				file;
+		private final RandomAccessFile	raf;
+		private final MappedByteBuffer	buffer;
+		private final long				baseIndex;
+
+		private int						count;
+		private int						position;
+		// offset of every INDEX_INTERVAL-th record, only appended
+		private int[]					offsets	= new int[16];
+		private volatile boolean		dirty;
+		private boolean					closed;
+
+		private Segment(File file, RandomAccessFile raf, long baseIndex) throws IOException {
+			this.file = file;
+			this.raf = raf;
+			this.baseIndex = baseIndex;
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+
+		static Segment create(File file, long baseIndex, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				// zero filled, an empty length ends the records
+				raf.setLength(size);
+				return new Segment(file, raf, baseIndex);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		static Segment open(File file, long baseIndex) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			Segment segment;
+			try {
+				segment = new Segment(file, raf, baseIndex);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+			// recover records, stopping at the first empty or incomplete one
+			int capacity = segment.buffer.capacity();
+			while (segment.position + 4 <= capacity) {
+				int length = segment.buffer.getInt(segment.position);
+				if (length < HEADER_SIZE || segment.position + 4L + length > capacity) {
+					break;
+				}
+				segment.indexRecord();
+			}
+			return segment;
+		}
+
+		boolean fits(int length) {
+			return position + 4L + length <= buffer.capacity();
+		}
+
+		void append(int length, long timestamp, byte direction, byte[] sessionId, byte[] message) {
+			buffer.position(position + 4);
+			buffer.putLong(timestamp);
+			buffer.put(direction);
+			buffer.putShort((short) sessionId.length);
+			buffer.put(sessionId);
+			buffer.put(message);
+			// written last, the record is valid from now on
+			buffer.putInt(position, length);
+			indexRecord();
+			dirty = true;
+		}
+
+		private void indexRecord() {
+			if (count % INDEX_INTERVAL == 0) {
+				int slot = count / INDEX_INTERVAL;
+				if (slot == offsets.length) {
+					// old array is still used by snapshots, it is not modified
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				offsets[slot] = position;
+			}
+			position += 4 + buffer.getInt(position);
+			count++;
+		}
+
+		SegmentView view() {
+			return new SegmentView(baseIndex, count, offsets, buffer.duplicate());
+		}
+
+		synchronized void force() {
+			if (!closed) {
+				buffer.force();
+			}
+		}
+
+		synchronized void close() {
+			if (!closed) {
+				closed = true;
+				buffer.force();
+				try {
+					raf.close();
+				} catch (IOException e) {
+					log.warn("Error closing journal segment " + file, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records of a segment when the snapshot was taken
+	 */
+	private static class SegmentView {
+
+		private final long			baseIndex;
+		private final int			count;
+		private final int[]			offsets;
+		// duplicate of the segment buffer, so positions are not shared
+		private final ByteBuffer	buffer;
+
+		private SegmentView(long baseIndex, int count, int[] offsets, ByteBuffer buffer) {
+			this.baseIndex = baseIndex;
+			this.count = count;
+			this.offsets = offsets;
+			this.buffer = buffer;
+		}
+
+		/**
+		 *
+		 * @param record
+		 *            record number in this segment
+		 * @return offset of the record
+		 */
+		private int offset(int record) {
+			int offset = offsets[record / INDEX_INTERVAL];
+			for (int i = 0; i < record % INDEX_INTERVAL; i++) {
+				offset += 4 + buffer.getInt(offset);
+			}
+			return offset;
+		}
+	}
+
+	/**
+	 * Iterator over the records of a snapshot
+	 */
+	private class Replay implements Iterator<MessageInfo> {
+
+		private final Iterator<SegmentView>	views;
+		private SegmentView					view;
+		private int							record;
+		private int							offset;
+
+		private Replay(List<SegmentView> snapshot, long fromIndex) {
+			views = snapshot.iterator();
+			while (views.hasNext()) {
+				SegmentView candidate = views.next();
+				if (fromIndex < candidate.baseIndex + candidate.count) {
+					view = candidate;
+					record = (int) Math.max(0, fromIndex - candidate.baseIndex);
+					offset = record < candidate.count ? candidate.offset(record) : 0;
+					break;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (view != null && record >= view.count) {
+				view = views.hasNext() ? views.next() : null;
+				record = 0;
+				offset = 0;
+			}
+			return view != null;
+		}
+
+		@Override
+		public MessageInfo next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			MessageInfo info = read(view.buffer, offset);
+			offset += 4 + view.buffer.getInt(offset);
+			record++;
+			return info;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Journal is append only");
+		}
+	}
+
+	/**
+	 * Messages of a snapshot, decoded when read
+	 */
+	private class MessageList extends AbstractList<RPCElement> {
+
+		private final List<SegmentView>	views;
+		private final long				firstIndex;
+		private final int				size;
+
+		private MessageList(List<SegmentView> views) {
+			this.views = views;
+			this.firstIndex = views.get(0).baseIndex;
+			SegmentView last = views.get(views.size() - 1);
+			long messages = last.baseIndex + last.count - firstIndex;
+			this.size = (int) Math.min(Integer.MAX_VALUE, messages);
+		}
+
+		@Override
+		public RPCElement get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+			}
+			long journalIndex = firstIndex + index;
+			for (SegmentView view : views) {
+				if (journalIndex < view.baseIndex + view.count) {
+					return read(view.buffer, view.offset((int) (journalIndex - view.baseIndex))).getMessage();
+				}
+			}
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Iterator<RPCElement> iterator() {
+			final Replay replay = new Replay(views, firstIndex);
+			return new Iterator<RPCElement>() {
+				@Override
+				public boolean hasNext() {
+					return replay.hasNext();
+				}
+
+				@Override
+				public RPCElement next() {
+					return replay.next().getMessage();
+				}
+
+				@Override
+				public void remove() {
+					replay.remove();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package net.i2cat.netconf.server.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.exceptions.ServerException;
+import net.i2cat.netconf.server.transport.ParserPool;
+import net.i2cat.netconf.server.transport.RawQuery;
+import net.i2cat.netconf.server.transport.RawReply;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Encodes stored messages as UTF-8 XML, and parses them back
+ */
+final class MessageCodec {
+
+	private MessageCodec() {
+	}
+
+	static byte[] encode(RPCElement message) {
+		// raw payloads are copied as received, neither decoded nor kept decoded in the message
+		try {
+			if (message instanceof RawQuery) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				((RawQuery) message).writeTo(out);
+				return out.toByteArray();
+			} else if (message instanceof RawReply) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				((RawReply) message).writeTo(out);
+				return out.toByteArray();
+			}
+		} catch (IOException e) {
+			throw new ServerException("Error reading message payload", e);
+		}
+		return utf8(message.toXML());
+	}
+
+	static RPCElement decode(ParserPool parserPool, byte[] bytes, int offset, int length) {
+		try {
+			return parserPool.parse(new InputSource(new ByteArrayInputStream(bytes, offset, length)));
+		} catch (SAXException e) {
+			throw new ServerException("Error parsing stored message", e);
+		} catch (IOException e) {
+			throw new ServerException("Error reading stored message", e);
+		}
+	}
+
+	static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String string(byte[] utf8) {
+		try {
+			return new String(utf8, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package net.i2cat.netconf.server.store;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+
+/**
+ * Criteria selecting stored messages, all of them must be met. Immutable, each method returns a new query adding a criterion.
+ * <p>
+ * E.g. edit-configs of a session in the last minute:
+ * <code>MessageQuery.all().operation("edit-config").sessionId(id).since(System.currentTimeMillis() - 60000)</code>
+ */
+public final class MessageQuery {
+
+	private static final MessageQuery	ALL	= new MessageQuery(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE);
+
+	private final String				operation;
+	private final String				sessionId;
+	private final String				messageId;
+	// arrival time range, inclusive start and exclusive end
+	private final long					since;
+	private final long					until;
+
+	private MessageQuery(String operation, String sessionId, String messageId, long since, long until) {
+		this.operation = operation;
+		this.sessionId = sessionId;
+		this.messageId = messageId;
+		this.since = since;
+		this.until = until;
+	}
+
+	/**
+	 *
+	 * @return query selecting all messages
+	 */
+	public static MessageQuery all() {
+		return ALL;
+	}
+
+	/**
+	 *
+	 * @param operation
+	 *            operation name of selected queries, e.g. "edit-config"
+	 */
+	public MessageQuery operation(String operation) {
+		return new MessageQuery(operation, sessionId, messageId, since, until);
+	}
+
+	public MessageQuery sessionId(String sessionId) {
+		return new MessageQuery(operation, sessionId, messageId, since, until);
+	}
+
+	public MessageQuery messageId(String messageId) {
+		return new MessageQuery(operation, sessionId, messageId, since, until);
+	}
+
+	/**
+	 *
+	 * @param time
+	 *            earliest arrival time, in milliseconds since the epoch
+	 */
+	public MessageQuery since(long time) {
+		return new MessageQuery(operation, sessionId, messageId, time, until);
+	}
+
+	/**
+	 *
+	 * @param time
+	 *            arrival time of selected messages must be before it, in milliseconds since the epoch
+	 */
+	public MessageQuery until(long time) {
+		return new MessageQuery(operation, sessionId, messageId, since, time);
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public String getMessageId() {
+		return messageId;
+	}
+
+	public long getSince() {
+		return since;
+	}
+
+	public long getUntil() {
+		return until;
+	}
+
+	/**
+	 *
+	 * @return true if the message meets all criteria but the arrival time
+	 */
+	boolean matches(MessageInfo info) {
+		if (sessionId != null && !sessionId.equals(info.getSessionId())) {
+			return false;
+		}
+		if (messageId != null && !messageId.equals(info.getMessage().getMessageId())) {
+			return false;
+		}
+		return operation == null || operation.equals(operationName(info.getMessage()));
+	}
+
+	/**
+	 *
+	 * @return operation name of queries, null for other messages
+	 */
+	static String operationName(RPCElement message) {
+		if (message instanceof Query) {
+			Operation operation = ((Query) message).getOperation();
+			return operation == null ? null : operation.getName();
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageQuery [operation=" + operation + ", sessionId=" + sessionId + ", messageId=" + messageId + ", since=" +
+				since + ", until=" + until + "]";
+	}
+}
@@ -0,0 +1,45 @@
+package net.i2cat.netconf.server.store;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+import net.i2cat.netconf.server.transport.RawReply;
+
+/**
+ * Approximate heap size of stored messages, dominated by their payloads. Raw payloads are not decoded to be measured.
+ */
+final class MessageSize {
+
+	// object headers, fields and short strings of a message
+	static final long	OVERHEAD	= 256;
+
+	private MessageSize() {
+	}
+
+	static long estimate(RPCElement message) {
+		long size = OVERHEAD;
+		if (message instanceof RawQuery) {
+			RawQuery query = (RawQuery) message;
+			size += raw(query.getRawConfig()) + raw(query.getRawFilter());
+		} else if (message instanceof Query) {
+			Query query = (Query) message;
+			size += chars(query.getConfig()) + chars(query.getFilter());
+		} else if (message instanceof RawReply) {
+			size += raw(((RawReply) message).getRawContain());
+		} else if (message instanceof Reply) {
+			size += chars(((Reply) message).getContain());
+		}
+		return size;
+	}
+
+	private static long raw(RawContent content) {
+		// file-backed payloads are not held in memory
+		return content != null && content.isInMemory() ? content.length() : 0;
+	}
+
+	private static long chars(String s) {
+		return s == null ? 0 : 2L * s.length();
+	}
+}
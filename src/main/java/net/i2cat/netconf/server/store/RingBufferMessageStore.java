@@ -0,0 +1,391 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageStore;
+import net.i2cat.netconf.server.transport.RawContent;
+
+/**
+ * Bounded {@link MessageStore} keeping the most recent messages in preallocated ring buffers. Messages are evicted when the
+ * capacity of their ring is reached, or when the approximate size of stored messages exceeds the byte limit, oldest first.
+ * Depending on the {@link Eviction} policy, messages are stored in a single ring, only 1 in N messages are stored, or each
+ * operation has its own ring with a quota of messages.
+ * <p>
+ * Writers claim slots with atomic counters and never take a lock, so concurrent sessions storing messages do not block each
+ * other. {@link #getStoredMessages()} returns a snapshot in arrival order.
+ */
+public class RingBufferMessageStore implements MessageStore {
+
+	/**
+	 * Messages kept when the store is full
+	 */
+	public enum Eviction {
+		/**
+		 * Most recent messages
+		 */
+		OLDEST,
+		/**
+		 * Most recent messages of 1 in N received messages
+		 */
+		SAMPLING,
+		/**
+		 * Most recent messages of each operation, up to its quota
+		 */
+		OPERATION_QUOTA
+	}
+
+	// key of messages without operation, and of the single ring of other policies
+	private static final String					DEFAULT_KEY	= "";
+
+	private static final Comparator<Entry>		ARRIVAL		= new Comparator<Entry>() {
+																@Override
+																public int compare(Entry e1, Entry e2) {
+																	return e1.sequence < e2.sequence ? -1 : (e1.sequence == e2.sequence ? 0 : 1);
+																}
+															};
+
+	private final Eviction						eviction;
+	private final long							maxBytes;
+	private final int							keepOneIn;
+	private final Map<String, Integer>			quotas;
+	private final int							defaultCapacity;
+
+	private final ConcurrentMap<String, Ring>	rings		= new ConcurrentHashMap<String, Ring>();
+
+	private final AtomicLong					sequence	= new AtomicLong();
+	private final AtomicLong					received	= new AtomicLong();
+	private final AtomicLong					sampledOut	= new AtomicLong();
+	private final AtomicLong					evicted		= new AtomicLong();
+	private final AtomicLong					size		= new AtomicLong();
+	private final AtomicLong					bytes		= new AtomicLong();
+
+	/**
+	 * Creates a store keeping the most recent messages
+	 *
+	 * @param capacity
+	 *            maximum number of stored messages
+	 */
+	public RingBufferMessageStore(int capacity) {
+		this(capacity, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a store keeping the most recent messages
+	 *
+	 * @param capacity
+	 *            maximum number of stored messages
+	 * @param maxBytes
+	 *            maximum approximate size of stored messages
+	 */
+	public RingBufferMessageStore(int capacity, long maxBytes) {
+		this(Eviction.OLDEST, capacity, maxBytes, 1, Collections.<String, Integer> emptyMap());
+	}
+
+	private RingBufferMessageStore(Eviction eviction, int capacity, long maxBytes, int keepOneIn, Map<String, Integer> quotas) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Maximum bytes must be positive: " + maxBytes);
+		}
+		if (keepOneIn <= 0) {
+			throw new IllegalArgumentException("Sampling rate must be positive: " + keepOneIn);
+		}
+		for (Map.Entry<String, Integer> quota : quotas.entrySet()) {
+			if (quota.getValue() <= 0) {
+				throw new IllegalArgumentException("Quota of " + quota.getKey() + " must be positive: " + quota.getValue());
+			}
+		}
+		this.eviction = eviction;
+		this.defaultCapacity = capacity;
+		this.maxBytes = maxBytes;
+		this.keepOneIn = keepOneIn;
+		this.quotas = quotas;
+		// preallocated, other rings are allocated by the first message of their operation
+		rings.put(DEFAULT_KEY, new Ring(capacity));
+	}
+
+	/**
+	 * Creates a store keeping the most recent messages of 1 in N received messages
+	 *
+	 * @param capacity
+	 *            maximum number of stored messages
+	 * @param maxBytes
+	 *            maximum approximate size of stored messages, {@link Long#MAX_VALUE} for no limit
+	 * @param keepOneIn
+	 *            N, e.g. 10 to store messages 1, 11, 21...
+	 */
+	public static RingBufferMessageStore sampling(int capacity, long maxBytes, int keepOneIn) {
+		return new RingBufferMessageStore(Eviction.SAMPLING, capacity, maxBytes, keepOneIn, Collections.<String, Integer> emptyMap());
+	}
+
+	/**
+	 * Creates a store keeping the most recent messages of each operation
+	 *
+	 * @param quotas
+	 *            maximum number of stored messages of each operation, by operation name (e.g. "edit-config")
+	 * @param defaultQuota
+	 *            maximum number of stored messages of other operations, and of messages without operation (e.g. hello)
+	 * @param maxBytes
+	 *            maximum approximate size of all stored messages, {@link Long#MAX_VALUE} for no limit
+	 */
+	public static RingBufferMessageStore operationQuotas(Map<String, Integer> quotas, int defaultQuota, long maxBytes) {
+		return new RingBufferMessageStore(Eviction.OPERATION_QUOTA, defaultQuota, maxBytes, 1, Collections
+				.unmodifiableMap(new HashMap<String, Integer>(quotas)));
+	}
+
+	@Override
+	public void storeMessage(RPCElement message) {
+		if (keepOneIn > 1 && received.getAndIncrement() % keepOneIn != 0) {
+			sampledOut.incrementAndGet();
+			return;
+		}
+
+		// stored raw payloads are released when evicted
+		RawContent.retainPayloads(message);
+		Ring ring = ring(message);
+		Entry entry = new Entry(sequence.getAndIncrement(), ring.claim(), message, MessageSize.estimate(message));
+		Entry replaced = ring.put(entry);
+		if (replaced == entry) {
+			// overtaken by a whole ring of newer messages
+			evicted.incrementAndGet();
+			RawContent.releasePayloads(message);
+			return;
+		}
+		size.incrementAndGet();
+		bytes.addAndGet(entry.bytes);
+		if (replaced != null) {
+			evicted(replaced);
+		}
+		if (maxBytes != Long.MAX_VALUE) {
+			trim();
+		}
+	}
+
+	/**
+	 *
+	 * @return a snapshot of stored messages, in arrival order
+	 */
+	@Override
+	public List<RPCElement> getStoredMessages() {
+		List<Entry> entries = new ArrayList<Entry>();
+		for (Ring ring : rings.values()) {
+			ring.collect(entries);
+		}
+		Collections.sort(entries, ARRIVAL);
+		List<RPCElement> messages = new ArrayList<RPCElement>(entries.size());
+		for (Entry entry : entries) {
+			messages.add(entry.message);
+		}
+		return Collections.unmodifiableList(messages);
+	}
+
+	public Eviction getEviction() {
+		return eviction;
+	}
+
+	/**
+	 *
+	 * @return number of stored messages
+	 */
+	public long getSize() {
+		return size.get();
+	}
+
+	/**
+	 *
+	 * @return approximate size of stored messages
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 *
+	 * @return messages removed from the store to store newer ones
+	 */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	/**
+	 *
+	 * @return messages not stored by sampling
+	 */
+	public long getSampledOut() {
+		return sampledOut.get();
+	}
+
+	private Ring ring(RPCElement message) {
+		if (eviction != Eviction.OPERATION_QUOTA) {
+			return rings.get(DEFAULT_KEY);
+		}
+		String key = DEFAULT_KEY;
+		if (message instanceof Query) {
+			Operation operation = ((Query) message).getOperation();
+			if (operation != null && quotas.containsKey(operation.getName())) {
+				key = operation.getName();
+			}
+		}
+		Ring ring = rings.get(key);
+		if (ring == null) {
+			Ring newRing = new Ring(quotas.get(key));
+			ring = rings.putIfAbsent(key, newRing);
+			if (ring == null) {
+				ring = newRing;
+			}
+		}
+		return ring;
+	}
+
+	/**
+	 * Evicts the oldest messages of all rings until stored messages fit in the byte limit
+	 */
+	private void trim() {
+		while (bytes.get() > maxBytes) {
+			Ring oldestRing = null;
+			Entry oldest = null;
+			for (Ring ring : rings.values()) {
+				Entry entry = ring.peekOldest();
+				if (entry != null && (oldest == null || entry.sequence < oldest.sequence)) {
+					oldestRing = ring;
+					oldest = entry;
+				}
+			}
+			if (oldest == null) {
+				return;
+			}
+			// fails if a concurrent writer has already evicted it
+			if (oldestRing.remove(oldest)) {
+				evicted(oldest);
+			}
+		}
+	}
+
+	private void evicted(Entry entry) {
+		evicted.incrementAndGet();
+		size.decrementAndGet();
+		bytes.addAndGet(-entry.bytes);
+		RawContent.releasePayloads(entry.message);
+	}
+
+	/**
+	 * Stored message
+	 */
+	private static class Entry {
+
+		// arrival order in the store
+		private final long			sequence;
+		// position in its ring
+		private final long			ringSequence;
+		private final RPCElement	message;
+		private final long			bytes;
+
+		private Entry(long sequence, long ringSequence, RPCElement message, long bytes) {
+			this.sequence = sequence;
+			this.ringSequence = ringSequence;
+			this.message = message;
+			this.bytes = bytes;
+		}
+
+		private boolean isRemoved() {
+			return message == null;
+		}
+	}
+
+	/**
+	 * Preallocated ring of entries, entry n is stored in slot n % capacity
+	 */
+	private static class Ring {
+
+		private final AtomicReferenceArray<Entry>	slots;
+		private final AtomicLong					next	= new AtomicLong();
+		// lowest ring sequence that may still be stored, or not stored yet by its writer
+		private final AtomicLong					oldest	= new AtomicLong();
+
+		private Ring(int capacity) {
+			slots = new AtomicReferenceArray<Entry>(capacity);
+		}
+
+		private long claim() {
+			return next.getAndIncrement();
+		}
+
+		/**
+		 *
+		 * @return the replaced entry, null if the slot was empty or its entry removed, or the entry itself if a newer entry is
+		 *         already stored in its slot
+		 */
+		private Entry put(Entry entry) {
+			int slot = slot(entry.ringSequence);
+			while (true) {
+				Entry current = slots.get(slot);
+				if (current != null && current.ringSequence > entry.ringSequence) {
+					return entry;
+				}
+				if (slots.compareAndSet(slot, current, entry)) {
+					return current == null || current.isRemoved() ? null : current;
+				}
+			}
+		}
+
+		private boolean remove(Entry entry) {
+			// the removed entry stays marked in its slot, so that an empty slot always is a claimed entry not stored yet
+			return slots.compareAndSet(slot(entry.ringSequence), entry, new Entry(entry.sequence, entry.ringSequence, null, 0));
+		}
+
+		/**
+		 *
+		 * @return oldest stored entry, or null if the ring is empty
+		 */
+		private Entry peekOldest() {
+			long claimed = next.get();
+			long first = oldest.get();
+			// oldest only moves past entries that were stored, not past entries claimed by a writer that did not store them yet
+			long done = first;
+			Entry found = null;
+			for (long candidate = first; candidate < claimed && found == null; candidate++) {
+				Entry entry = slots.get(slot(candidate));
+				if (entry == null || entry.ringSequence < candidate) {
+					// not stored yet, newer entries are only skipped
+					continue;
+				}
+				if (entry.ringSequence == candidate && !entry.isRemoved()) {
+					found = entry;
+				} else if (done == candidate) {
+					// removed or overwritten
+					done++;
+				}
+			}
+			if (done > first) {
+				oldest.compareAndSet(first, done);
+			}
+			return found;
+		}
+
+		private void collect(List<Entry> entries) {
+			for (int i = 0; i < slots.length(); i++) {
+				Entry entry = slots.get(i);
+				if (entry != null && !entry.isRemoved()) {
+					entries.add(entry);
+				}
+			}
+		}
+
+		private int slot(long ringSequence) {
+			return (int) (ringSequence % slots.length());
+		}
+	}
+}
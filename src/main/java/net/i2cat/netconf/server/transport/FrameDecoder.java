@@ -0,0 +1,308 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Netconf frame decoder. It reads raw bytes from a Netconf channel and splits them in frames, without splitting lines nor
+ * decoding characters. Two framing mechanisms are supported:
+ * <ul>
+ * <li>End-of-message framing, frames delimited by the sequence defined in RFC 4742 Section 4.2 (default)</li>
+ * <li>Chunked framing defined in RFC 6242 Section 4.2, used when both peers support base:1.1 capability</li>
+ * </ul>
+ * Frames are not accumulated: the returned frame stream reads from the channel as bytes arrive, so a parser consuming it
+ * processes the message while it is still being received. Only the last bytes that may be part of an end-of-message delimiter
+ * are held back until the next read. Chunk data is handed to the reader straight from the channel, without intermediate
+ * copies. The returned frame stream is only valid until next call to {@link #nextFrame()}.
+ */
+public class FrameDecoder {
+
+	public static final byte[]		END_OF_MESSAGE		= { ']', ']', '>', ']', ']', '>' };
+
+	private static final int		BUFFER_SIZE			= 8192;
+
+	// RFC 6242 Section 4.2: maximum allowed chunk-size
+	private static final long		MAX_CHUNK_SIZE		= 4294967295L;
+	// LF HASH chunk-size LF
+	private static final int		MAX_HEADER_LENGTH	= 13;
+
+	private final InputStream		in;
+
+	// read buffer, pending bytes are in [position, limit)
+	private final byte[]			buffer				= new byte[BUFFER_SIZE];
+	private int						position			= 0;
+	private int						limit				= 0;
+
+	private boolean					chunkedFraming		= false;
+
+	// current frame status
+	private boolean					frameEnded			= true;
+	private long					chunkRemaining		= 0;
+
+	private final FrameInputStream	frame				= new FrameInputStream();
+
+	public FrameDecoder(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Switches the framing mechanism used for next frames
+	 *
+	 * @param chunkedFraming
+	 *            if true, RFC 6242 chunked framing will be used; otherwise end-of-message framing
+	 */
+	public void setChunkedFraming(boolean chunkedFraming) {
+		this.chunkedFraming = chunkedFraming;
+	}
+
+	public boolean isChunkedFraming() {
+		return chunkedFraming;
+	}
+
+	/**
+	 * Skips the rest of current frame and waits for the beginning of the next one
+	 *
+	 * @return an {@link InputStream} reading frame bytes (without delimiters nor chunk headers) as they are received, or null if
+	 *         the channel has been closed
+	 * @throws IOException
+	 *             if an error occurs reading from the channel or received chunked framing is not valid
+	 */
+	public InputStream nextFrame() throws IOException {
+		frame.skipRemaining();
+
+		// tolerate whitespace between frames, e.g. new line sent after an end-of-message delimiter
+		while (true) {
+			if (!fill(1)) {
+				return null;
+			}
+			byte b = buffer[position];
+			if (!chunkedFraming && b == END_OF_MESSAGE[0]) {
+				// ignore empty frames
+				if (!fill(END_OF_MESSAGE.length)) {
+					return null;
+				}
+				if (indexOfDelimiter() == position) {
+					position += END_OF_MESSAGE.length;
+					continue;
+				}
+			}
+			if (!isWhitespace(b)) {
+				break;
+			}
+			if (chunkedFraming && b == '\n') {
+				if (!fill(2)) {
+					return null;
+				}
+				if (buffer[position + 1] == '#') {
+					break;
+				}
+			}
+			position++;
+		}
+
+		frameEnded = false;
+		chunkRemaining = 0;
+		return frame;
+	}
+
+	/**
+	 * Reads frame bytes into given array, blocking until at least one is available
+	 *
+	 * @return read bytes, or -1 if frame is over
+	 */
+	private int readFrame(byte[] b, int off, int len) throws IOException {
+		if (frameEnded) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (chunkedFraming) {
+			return readChunk(b, off, len);
+		}
+		return readUntilDelimiter(b, off, len);
+	}
+
+	private int readUntilDelimiter(byte[] b, int off, int len) throws IOException {
+		while (true) {
+			int index = indexOfDelimiter();
+			if (index == position) {
+				position += END_OF_MESSAGE.length;
+				frameEnded = true;
+				return -1;
+			}
+
+			// hold back bytes that may be the beginning of a delimiter split between reads
+			int end = index >= 0 ? index : limit - delimiterPrefixLength();
+			if (end > position) {
+				int n = Math.min(len, end - position);
+				System.arraycopy(buffer, position, b, off, n);
+				position += n;
+				return n;
+			}
+
+			if (!fill(limit - position + 1)) {
+				// channel closed in the middle of a frame
+				frameEnded = true;
+				return -1;
+			}
+		}
+	}
+
+	private int readChunk(byte[] b, int off, int len) throws IOException {
+		if (chunkRemaining == 0) {
+			readChunkHeader();
+			if (frameEnded) {
+				return -1;
+			}
+		}
+
+		int n = (int) Math.min(len, chunkRemaining);
+		if (position < limit) {
+			n = Math.min(n, limit - position);
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+		} else {
+			// nothing buffered, read chunk data directly into reader array
+			n = in.read(b, off, n);
+			if (n < 0) {
+				throw new IOException("Channel closed in the middle of a chunk");
+			}
+		}
+		chunkRemaining -= n;
+		return n;
+	}
+
+	/**
+	 * Reads a chunk header: LF HASH chunk-size LF, or end-of-chunks: LF HASH HASH LF
+	 */
+	private void readChunkHeader() throws IOException {
+		if (!fill(4)) {
+			throw new IOException("Channel closed waiting for a chunk header");
+		}
+		if (buffer[position] != '\n' || buffer[position + 1] != '#') {
+			throw new IOException("Invalid chunk header received");
+		}
+		if (buffer[position + 2] == '#') {
+			if (buffer[position + 3] != '\n') {
+				throw new IOException("Invalid end of chunks received");
+			}
+			position += 4;
+			frameEnded = true;
+			return;
+		}
+
+		long chunkSize = 0;
+		int index = 2;
+		while (true) {
+			if (index == MAX_HEADER_LENGTH || !fill(index + 1)) {
+				throw new IOException("Invalid chunk header received");
+			}
+			byte b = buffer[position + index++];
+			if (b == '\n') {
+				break;
+			}
+			if (b < '0' || b > '9' || (b == '0' && chunkSize == 0)) {
+				throw new IOException("Invalid chunk size received");
+			}
+			chunkSize = chunkSize * 10 + (b - '0');
+		}
+		if (chunkSize == 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IOException("Invalid chunk size received: " + chunkSize);
+		}
+		position += index;
+		chunkRemaining = chunkSize;
+	}
+
+	/**
+	 * Reads from the channel until the buffer contains at least given number of pending bytes
+	 *
+	 * @return false if the channel has been closed before
+	 */
+	private boolean fill(int minPending) throws IOException {
+		while (limit - position < minPending) {
+			if (buffer.length - position < minPending) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				position = 0;
+			}
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				return false;
+			}
+			limit += read;
+		}
+		return true;
+	}
+
+	private int indexOfDelimiter() {
+		int last = limit - END_OF_MESSAGE.length;
+		for (int i = position; i <= last; i++) {
+			if (buffer[i] != END_OF_MESSAGE[0]) {
+				continue;
+			}
+			int j = 1;
+			while (j < END_OF_MESSAGE.length && buffer[i + j] == END_OF_MESSAGE[j]) {
+				j++;
+			}
+			if (j == END_OF_MESSAGE.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 *
+	 * @return length of the longest pending suffix that is a prefix of the end-of-message delimiter
+	 */
+	private int delimiterPrefixLength() {
+		for (int length = Math.min(END_OF_MESSAGE.length - 1, limit - position); length > 0; length--) {
+			int j = 0;
+			while (j < length && buffer[limit - length + j] == END_OF_MESSAGE[j]) {
+				j++;
+			}
+			if (j == length) {
+				return length;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	/**
+	 * Stream of current frame bytes. Closing it skips the rest of the frame, but does not close the underlying channel.
+	 */
+	private class FrameInputStream extends InputStream {
+
+		private final byte[]	single	= new byte[1];
+
+		@Override
+		public int read() throws IOException {
+			return readFrame(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readFrame(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			skipRemaining();
+		}
+
+		private void skipRemaining() throws IOException {
+			byte[] skipBuffer = null;
+			while (!frameEnded) {
+				if (skipBuffer == null) {
+					skipBuffer = new byte[BUFFER_SIZE];
+				}
+				readFrame(skipBuffer, 0, skipBuffer.length);
+			}
+		}
+	}
+}
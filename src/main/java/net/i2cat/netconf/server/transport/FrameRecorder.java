@@ -0,0 +1,309 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import net.i2cat.netconf.server.MemoryBudget;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stream recording the bytes of a frame while the XML parser reads them, so payloads can be sliced from the frame as received
+ * instead of being rebuilt from parser events. Bytes are addressed by their offset from the beginning of the frame, and bytes
+ * no longer needed can be discarded while the frame is being parsed.
+ * <p>
+ * A payload being captured is spilled to a temporary file when more than the spill threshold bytes of it are held in memory, so
+ * oversized payloads (e.g. a full configuration in an edit-config) are never kept entirely in memory. Memory used by the
+ * recording buffer and by captured payloads kept in memory can be reserved from a {@link MemoryBudget}.
+ */
+public class FrameRecorder extends InputStream {
+
+	private static final Log			log					= LogFactory.getLog(FrameRecorder.class);
+
+	private static final int			INITIAL_BUFFER_SIZE	= 8192;
+	// bigger buffers are released before recording next frame
+	private static final int			MAX_RETAINED_SIZE	= 1024 * 1024;
+
+	private InputStream					in;
+
+	// recorded bytes, buffer[0] is at frame offset discarded
+	private byte[]						buffer				= new byte[INITIAL_BUFFER_SIZE];
+	private int							count				= 0;
+	private long						discarded			= 0;
+
+	// spill configuration
+	private long						spillThreshold		= Long.MAX_VALUE;
+	private File						spillDirectory;
+
+	// memory budget, and bytes reserved from it for the buffer
+	private MemoryBudget.Session		memoryBudget;
+	private long						reservedBuffer		= 0;
+
+	// payload being captured, locator is null if there is none
+	private RawSubtreeLocator			captureLocator;
+	// frame offset after bytes already written to spill file
+	private long						spilledEnd;
+	private File						spillFile;
+	private OutputStream				spillOut;
+
+	/**
+	 * Sets the number of bytes of a captured payload that can be held in memory before spilling it to a temporary file
+	 *
+	 * @param spillThreshold
+	 *            threshold in bytes, {@link Long#MAX_VALUE} to keep payloads always in memory
+	 */
+	public void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 *
+	 * @param spillDirectory
+	 *            directory of spill files, or null to use the default temporary directory
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Sets the budget to reserve memory from. Reservations are not released by this recorder, except when its buffer shrinks:
+	 * memory held by captured payloads must be released by their consumer, and remaining reservations by the budget owner.
+	 *
+	 * @param memoryBudget
+	 *            session budget, or null to use memory without limits
+	 */
+	public void setMemoryBudget(MemoryBudget.Session memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		reservedBuffer = 0;
+	}
+
+	/**
+	 * Starts recording a new frame
+	 *
+	 * @param frame
+	 *            stream of frame bytes
+	 * @return stream to be read by the parser, recording read bytes
+	 */
+	public InputStream record(InputStream frame) {
+		clear();
+		in = frame;
+		return this;
+	}
+
+	/**
+	 * Stops recording and discards recorded bytes
+	 */
+	public void clear() {
+		abortCapture();
+		in = null;
+		count = 0;
+		discarded = 0;
+		if (buffer.length > MAX_RETAINED_SIZE) {
+			buffer = new byte[INITIAL_BUFFER_SIZE];
+			if (memoryBudget != null) {
+				memoryBudget.release(reservedBuffer);
+			}
+			reservedBuffer = 0;
+		}
+	}
+
+	/**
+	 * Clears recording and its configuration, allowing to reuse this recorder in another session
+	 */
+	public void reset() {
+		setMemoryBudget(null);
+		clear();
+		spillThreshold = Long.MAX_VALUE;
+		spillDirectory = null;
+	}
+
+	/**
+	 *
+	 * @return true if a frame is being recorded
+	 */
+	public boolean isRecording() {
+		return in != null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			ensureCapacity(1);
+			buffer[count++] = (byte) b;
+			spillIfNeeded();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n > 0) {
+			ensureCapacity(n);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			spillIfNeeded();
+		}
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+	/**
+	 *
+	 * @return frame offset after the last recorded byte
+	 */
+	long end() {
+		return discarded + count;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            frame offset of a recorded byte, not discarded
+	 */
+	byte byteAt(long offset) {
+		return buffer[(int) (offset - discarded)];
+	}
+
+	/**
+	 * Starts capturing a payload. Captured bytes may be spilled and discarded while locator tokenizes them.
+	 *
+	 * @param locator
+	 *            locator that found the payload start
+	 * @param start
+	 *            frame offset of first payload byte, not discarded
+	 */
+	void startCapture(RawSubtreeLocator locator, long start) {
+		abortCapture();
+		captureLocator = locator;
+		spilledEnd = start;
+	}
+
+	/**
+	 * Ends capturing current payload
+	 *
+	 * @param end
+	 *            frame offset after last payload byte
+	 * @param namespaces
+	 *            namespace URIs of the prefixes in scope of the payload
+	 * @return captured payload, in memory or in a spill file
+	 * @throws IOException
+	 *             if payload can not be written to spill file, or memory budget is exceeded
+	 */
+	RawContent endCapture(long end, Map<String, String> namespaces) throws IOException {
+		try {
+			if (spillOut == null) {
+				byte[] bytes = new byte[(int) (end - spilledEnd)];
+				if (memoryBudget != null) {
+					memoryBudget.reserve(bytes.length);
+				}
+				System.arraycopy(buffer, (int) (spilledEnd - discarded), bytes, 0, bytes.length);
+				return RawContent.fromBytes(bytes, namespaces);
+			}
+
+			spillOut.write(buffer, (int) (spilledEnd - discarded), (int) (end - spilledEnd));
+			spillOut.close();
+			spillOut = null;
+			RawContent content = RawContent.fromFile(spillFile, namespaces);
+			spillFile = null;
+			return content;
+		} finally {
+			abortCapture();
+		}
+	}
+
+	/**
+	 * Discards a captured payload that will not be part of a message, returning its memory to the budget
+	 */
+	void discard(RawContent content) {
+		if (memoryBudget != null && content.isInMemory()) {
+			memoryBudget.release(content.length());
+		}
+		content.release();
+	}
+
+	/**
+	 * Discards recorded bytes before given frame offset
+	 */
+	void discardBefore(long offset) {
+		int n = (int) Math.min(offset - discarded, count);
+		if (n <= 0) {
+			return;
+		}
+		System.arraycopy(buffer, n, buffer, 0, count - n);
+		count -= n;
+		discarded += n;
+	}
+
+	/**
+	 * Writes captured bytes already tokenized to the spill file, if captured bytes held exceed the threshold
+	 */
+	private void spillIfNeeded() throws IOException {
+		if (captureLocator == null || end() - Math.max(spilledEnd, discarded) <= spillThreshold) {
+			return;
+		}
+
+		captureLocator.advance();
+		long spillEnd = captureLocator.getCaptureEnd();
+		if (spillEnd == RawSubtreeLocator.NOT_FOUND) {
+			spillEnd = captureLocator.getPosition();
+		}
+		if (spillEnd <= spilledEnd) {
+			// nothing tokenized yet
+			return;
+		}
+
+		if (spillOut == null) {
+			spillFile = File.createTempFile("netconf-payload", ".xml", spillDirectory);
+			spillOut = new BufferedOutputStream(new FileOutputStream(spillFile));
+			log.debug("Spilling payload bigger than " + spillThreshold + " bytes to " + spillFile);
+		}
+		spillOut.write(buffer, (int) (spilledEnd - discarded), (int) (spillEnd - spilledEnd));
+		spilledEnd = spillEnd;
+		discardBefore(spillEnd);
+	}
+
+	/**
+	 * Stops capturing current payload, deleting its spill file
+	 */
+	private void abortCapture() {
+		captureLocator = null;
+		if (spillOut != null) {
+			IOUtils.closeQuietly(spillOut);
+			spillOut = null;
+		}
+		if (spillFile != null) {
+			if (!spillFile.delete()) {
+				log.warn("Error deleting spill file " + spillFile);
+			}
+			spillFile = null;
+		}
+	}
+
+	private void ensureCapacity(int extra) throws IOException {
+		if (count + extra > buffer.length) {
+			int newLength = Math.max(count + extra, buffer.length * 2);
+			if (memoryBudget != null) {
+				memoryBudget.reserve(newLength - buffer.length);
+				reservedBuffer += newLength - buffer.length;
+			}
+			byte[] newBuffer = new byte[newLength];
+			System.arraycopy(buffer, 0, newBuffer, 0, count);
+			buffer = newBuffer;
+		}
+	}
+}
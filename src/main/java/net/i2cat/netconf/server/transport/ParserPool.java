@@ -0,0 +1,218 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import net.i2cat.netconf.messageQueue.MessageQueue;
+import net.i2cat.netconf.messageQueue.MessageQueueListener;
+import net.i2cat.netconf.rpc.RPCElement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Bounded pool of XML parsers shared across Netconf sessions. Each pooled parser is an {@link XMLReader} already wired to its
+ * {@link ServerTransportContentParser} handler and its {@link FrameRecorder}.
+ * <p>
+ * The parser factory is resolved only once, and configured to be namespace aware and not to load DTDs nor external entities.
+ * Parsers are reset when released, and discarded if the pool is full.
+ */
+public class ParserPool {
+
+	private static final Log					log				= LogFactory.getLog(ParserPool.class);
+
+	public static final int						DEFAULT_SIZE	= 32;
+
+	private static final String[]				FALSE_FEATURES	= {
+																"http://xml.org/sax/features/external-general-entities",
+																"http://xml.org/sax/features/external-parameter-entities",
+																"http://apache.org/xml/features/nonvalidating/load-external-dtd" };
+
+	private final SAXParserFactory				factory;
+	private final BlockingQueue<PooledParser>	idleParsers;
+
+	// statistics
+	private final AtomicLong					hits			= new AtomicLong();
+	private final AtomicLong					misses			= new AtomicLong();
+
+	/**
+	 * Creates a pool with {@link #DEFAULT_SIZE} capacity
+	 */
+	public ParserPool() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * Creates a pool
+	 *
+	 * @param size
+	 *            maximum number of idle parsers kept in the pool
+	 */
+	public ParserPool(int size) {
+		idleParsers = new ArrayBlockingQueue<PooledParser>(size);
+
+		factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setValidating(false);
+		for (String feature : FALSE_FEATURES) {
+			try {
+				factory.setFeature(feature, false);
+			} catch (Exception e) {
+				log.debug("XML parser feature not supported: " + feature);
+			}
+		}
+	}
+
+	/**
+	 * Default pool, shared by sessions not given one
+	 *
+	 * @return the default pool, with {@link #DEFAULT_SIZE} capacity, created when first used
+	 */
+	public static ParserPool getDefault() {
+		return DefaultHolder.DEFAULT;
+	}
+
+	/**
+	 * Takes an idle parser from the pool, or creates a new one if there is none
+	 *
+	 * @return a parser ready to be used
+	 * @throws SAXException
+	 *             if a new parser can not be created
+	 */
+	public PooledParser borrow() throws SAXException {
+		PooledParser parser = idleParsers.poll();
+		if (parser != null) {
+			hits.incrementAndGet();
+			return parser;
+		}
+
+		misses.incrementAndGet();
+		XMLReader reader;
+		try {
+			// factories are not guaranteed to be thread safe
+			synchronized (factory) {
+				reader = factory.newSAXParser().getXMLReader();
+			}
+		} catch (ParserConfigurationException e) {
+			throw new SAXException("Error configuring XML parser", e);
+		}
+		return new PooledParser(reader, new ServerTransportContentParser());
+	}
+
+	/**
+	 * Parses a document containing a single message, e.g. a stored message, with a pooled parser
+	 *
+	 * @param source
+	 *            XML document
+	 * @return the parsed message, or null if the document is not a Netconf message
+	 * @throws SAXException
+	 *             if the document is not well formed
+	 * @throws IOException
+	 *             if an error occurs reading the document
+	 */
+	public RPCElement parse(InputSource source) throws SAXException, IOException {
+		final List<RPCElement> parsed = new ArrayList<RPCElement>(1);
+		MessageQueue queue = new MessageQueue();
+		queue.addListener(new MessageQueueListener() {
+			@Override
+			public void receiveRPCElement(RPCElement element) {
+				parsed.add(element);
+			}
+		});
+
+		PooledParser parser = borrow();
+		try {
+			parser.getHandler().setMessageQueue(queue);
+			parser.getReader().parse(source);
+		} finally {
+			release(parser);
+		}
+		return parsed.isEmpty() ? null : parsed.get(0);
+	}
+
+	/**
+	 * Returns a parser to the pool. It must not be used after that.
+	 *
+	 * @param parser
+	 *            parser obtained using {@link #borrow()}
+	 */
+	public void release(PooledParser parser) {
+		parser.getHandler().reset();
+		if (!idleParsers.offer(parser)) {
+			log.debug("Parser pool is full, discarding parser");
+		}
+	}
+
+	/**
+	 *
+	 * @return number of times an idle parser was reused
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 *
+	 * @return number of times a new parser had to be created
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 *
+	 * @return number of idle parsers currently in the pool
+	 */
+	public int getIdleCount() {
+		return idleParsers.size();
+	}
+
+	private static class DefaultHolder {
+		private static final ParserPool	DEFAULT	= new ParserPool();
+	}
+
+	/**
+	 * {@link XMLReader}, its {@link ServerTransportContentParser} handler and the {@link FrameRecorder} of parsed frames
+	 */
+	public static class PooledParser {
+
+		private final XMLReader						reader;
+		private final ServerTransportContentParser	handler;
+		private final FrameRecorder					recorder;
+
+		private PooledParser(XMLReader reader, ServerTransportContentParser handler) {
+			this.reader = reader;
+			this.handler = handler;
+			this.recorder = new FrameRecorder();
+			reader.setContentHandler(handler);
+			reader.setErrorHandler(handler);
+			handler.setFrameRecorder(recorder);
+		}
+
+		public XMLReader getReader() {
+			return reader;
+		}
+
+		public ServerTransportContentParser getHandler() {
+			return handler;
+		}
+
+		/**
+		 * 
+		 * @return recorder to wrap frames with before parsing them, so handler can slice payloads from them
+		 */
+		public FrameRecorder getRecorder() {
+			return recorder;
+		}
+	}
+}
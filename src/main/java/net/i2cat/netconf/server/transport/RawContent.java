@@ -0,0 +1,387 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2cat.netconf.rpc.RPCElement;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Immutable view of a message payload (e.g. the contents of &lt;config&gt; or &lt;data&gt;) as received, in UTF-8. The payload is
+ * only decoded to a {@link String} if it is read with {@link #toString()}.
+ * <p>
+ * Payloads exceeding the spill threshold of the {@link FrameRecorder} are kept in a temporary file instead of memory, and should
+ * be read as streams. The file is deleted when the content is released by its last user (see {@link #retain()}), or when it is
+ * garbage collected if it never is.
+ * <p>
+ * Prefixes used in the payload may be declared by elements of the message enclosing it, e.g. &lt;rpc xmlns:t="..."&gt;. They
+ * are kept with the payload, see {@link #getNamespaces()}.
+ */
+public abstract class RawContent implements Serializable {
+
+	private static final long			serialVersionUID	= 1L;
+
+	private static final Log			log					= LogFactory.getLog(RawContent.class);
+
+	private final Map<String, String>	namespaces;
+	// users of the content, initially the message it was received in
+	private final AtomicInteger			references			= new AtomicInteger(1);
+
+	// hide constructor, only the subclasses below are allowed
+	private RawContent(Map<String, String> namespaces) {
+		this.namespaces = namespaces.isEmpty() ? Collections.<String, String> emptyMap() : Collections
+				.unmodifiableMap(new HashMap<String, String>(namespaces));
+	}
+
+	/**
+	 *
+	 * @param bytes
+	 *            UTF-8 encoded payload, not copied
+	 */
+	public static RawContent fromBytes(byte[] bytes) {
+		return fromBytes(bytes, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 *
+	 * @param bytes
+	 *            UTF-8 encoded payload, not copied
+	 * @param namespaces
+	 *            namespace URIs of the prefixes in scope of the payload, see {@link #getNamespaces()}
+	 */
+	public static RawContent fromBytes(byte[] bytes, Map<String, String> namespaces) {
+		return new InMemory(bytes, namespaces);
+	}
+
+	/**
+	 *
+	 * @param file
+	 *            temporary file containing the UTF-8 encoded payload, owned by the returned content
+	 */
+	public static RawContent fromFile(File file) {
+		return fromFile(file, Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 *
+	 * @param file
+	 *            temporary file containing the UTF-8 encoded payload, owned by the returned content
+	 * @param namespaces
+	 *            namespace URIs of the prefixes in scope of the payload, see {@link #getNamespaces()}
+	 */
+	public static RawContent fromFile(File file, Map<String, String> namespaces) {
+		return new Spilled(file, namespaces);
+	}
+
+	/**
+	 * Prefixes declared by the element containing the payload and its ancestors, that payload elements may use without
+	 * declaring them. The default namespace is not included: payload elements without namespace declaration are read without
+	 * namespace, as in the rest of the server.
+	 *
+	 * @return namespace URIs of the prefixes in scope of the payload, by prefix
+	 */
+	public Map<String, String> getNamespaces() {
+		return namespaces;
+	}
+
+	/**
+	 *
+	 * @return declarations of {@link #getNamespaces()} as attributes of an element wrapping the payload, e.g.
+	 *         <code> xmlns:t="urn:x"</code>, or an empty string if there are none
+	 */
+	public String getNamespaceDeclarations() {
+		if (namespaces.isEmpty()) {
+			return "";
+		}
+		StringBuilder declarations = new StringBuilder();
+		for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+			declarations.append(" xmlns:").append(namespace.getKey()).append("=\"")
+					.append(namespace.getValue().replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;")).append('"');
+		}
+		return declarations.toString();
+	}
+
+	/**
+	 *
+	 * @return payload length in bytes
+	 */
+	public abstract long length();
+
+	/**
+	 *
+	 * @return true if the payload is kept in memory, false if it has been spilled to a file
+	 */
+	public abstract boolean isInMemory();
+
+	/**
+	 *
+	 * @return a stream reading payload bytes
+	 * @throws IOException
+	 *             if spilled payload can not be read
+	 */
+	public abstract InputStream openStream() throws IOException;
+
+	/**
+	 * Writes payload bytes to given stream
+	 *
+	 * @param out
+	 *            destination stream
+	 * @throws IOException
+	 *             if an error occurs reading the payload or writing the stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = openStream();
+		try {
+			IOUtils.copy(in, out);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 *
+	 * @return a copy of payload bytes
+	 * @throws IOException
+	 *             if spilled payload can not be read
+	 */
+	public byte[] toByteArray() throws IOException {
+		InputStream in = openStream();
+		try {
+			return IOUtils.toByteArray(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Adds a user of this content, e.g. a message store keeping the message, that must call {@link #release()} when it does not
+	 * need it anymore
+	 *
+	 * @return this content
+	 * @throws IllegalStateException
+	 *             if the content has already been released by all its users
+	 */
+	public RawContent retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Content has already been released");
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/**
+	 * Releases this content. Resources are freed when all its users have released it, and it can not be read after that.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			free();
+		}
+	}
+
+	/**
+	 * Frees resources held by this content
+	 */
+	void free() {
+	}
+
+	/**
+	 * Retains raw payloads of a message, see {@link #retain()}
+	 *
+	 * @param message
+	 *            message, payloads of other messages than {@link RawQuery} and {@link RawReply} are not retained
+	 */
+	public static void retainPayloads(RPCElement message) {
+		if (message instanceof RawQuery) {
+			RawQuery query = (RawQuery) message;
+			retain(query.getRawConfig());
+			retain(query.getRawFilter());
+		} else if (message instanceof RawReply) {
+			retain(((RawReply) message).getRawContain());
+		}
+	}
+
+	/**
+	 * Releases raw payloads of a message, see {@link #release()}
+	 *
+	 * @param message
+	 *            message, payloads of other messages than {@link RawQuery} and {@link RawReply} are not released
+	 */
+	public static void releasePayloads(RPCElement message) {
+		if (message instanceof RawQuery) {
+			RawQuery query = (RawQuery) message;
+			release(query.getRawConfig());
+			release(query.getRawFilter());
+		} else if (message instanceof RawReply) {
+			release(((RawReply) message).getRawContain());
+		}
+	}
+
+	/**
+	 * Writes a serialized message as UTF-8, replacing each slot by the bytes of its content
+	 *
+	 * @param slots
+	 *            markers written in the message instead of the contents
+	 * @param contents
+	 *            content of each slot, or null if the slot is not in the message
+	 */
+	static void writeSpliced(OutputStream out, String xml, String[] slots, RawContent[] contents) throws IOException {
+		int start = 0;
+		while (true) {
+			int next = -1;
+			int slot = -1;
+			for (int i = 0; i < slots.length; i++) {
+				if (contents[i] != null) {
+					int position = xml.indexOf(slots[i], start);
+					if (position >= 0 && (next < 0 || position < next)) {
+						next = position;
+						slot = i;
+					}
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			out.write(xml.substring(start, next).getBytes("UTF-8"));
+			contents[slot].writeTo(out);
+			start = next + slots[slot].length();
+		}
+		out.write(xml.substring(start).getBytes("UTF-8"));
+	}
+
+	private static void retain(RawContent content) {
+		if (content != null) {
+			content.retain();
+		}
+	}
+
+	private static void release(RawContent content) {
+		if (content != null) {
+			content.release();
+		}
+	}
+
+	/**
+	 * Decodes the payload. Decoded value is not cached.
+	 *
+	 * @throws IllegalStateException
+	 *             if spilled payload can not be read
+	 */
+	@Override
+	public String toString() {
+		try {
+			return new String(toByteArray(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException("Error reading spilled payload", e);
+		}
+	}
+
+	private static final class InMemory extends RawContent {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final byte[]		bytes;
+
+		private InMemory(byte[] bytes, Map<String, String> namespaces) {
+			super(namespaces);
+			this.bytes = bytes;
+		}
+
+		@Override
+		public long length() {
+			return bytes.length;
+		}
+
+		@Override
+		public boolean isInMemory() {
+			return true;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(bytes);
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(bytes);
+		}
+
+		@Override
+		public byte[] toByteArray() {
+			return bytes.clone();
+		}
+
+		@Override
+		public String toString() {
+			try {
+				return new String(bytes, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				// UTF-8 is always supported
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static final class Spilled extends RawContent {
+
+		private static final long	serialVersionUID	= 1L;
+
+		private final File			file;
+
+		private Spilled(File file, Map<String, String> namespaces) {
+			super(namespaces);
+			this.file = file;
+		}
+
+		@Override
+		public long length() {
+			return file.length();
+		}
+
+		@Override
+		public boolean isInMemory() {
+			return false;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return new FileInputStream(file);
+		}
+
+		@Override
+		void free() {
+			if (file.exists() && !file.delete()) {
+				log.warn("Error deleting spilled payload " + file);
+			}
+		}
+
+		@Override
+		protected void finalize() throws Throwable {
+			// safety net for contents never released by their users
+			try {
+				free();
+			} finally {
+				super.finalize();
+			}
+		}
+	}
+}
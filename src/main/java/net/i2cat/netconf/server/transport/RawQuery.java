@@ -0,0 +1,212 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import net.i2cat.netconf.rpc.Query;
+
+/**
+ * {@link Query} whose config and filter are kept as received, and only decoded when they are read with {@link #getConfig()} and
+ * {@link #getFilter()} or the query is serialized with {@link #toXML()}. {@link #writeTo(OutputStream)} serializes it without
+ * decoding them.
+ */
+public class RawQuery extends Query {
+
+	private static final long	serialVersionUID	= 1L;
+
+	// set while serializing, replaced by the raw config and filter
+	private static final String	CONFIG_SLOT			= "netconf-server-config-slot";
+	private static final String	FILTER_SLOT			= "netconf-server-filter-slot";
+
+	private RawContent			rawConfig;
+	private boolean				configDecoded		= true;
+
+	private RawContent			rawFilter;
+	private boolean				filterDecoded		= true;
+
+	// attributes of the filter element and namespaces declared in the message
+	private String				filterType;
+	private String				filterSelect;
+	private Map<String, String>	filterNamespaces	= Collections.emptyMap();
+
+	// default-operation parameter of an edit-config
+	private String				defaultOperation;
+
+	/**
+	 * Sets the config as received, replacing any config set with {@link #setConfig(String)}
+	 * 
+	 * @param rawConfig
+	 *            contents of &lt;config&gt; element
+	 */
+	public synchronized void setRawConfig(RawContent rawConfig) {
+		this.rawConfig = rawConfig;
+		configDecoded = false;
+	}
+
+	/**
+	 * 
+	 * @return config as received, or null if it was set with {@link #setConfig(String)}
+	 */
+	public synchronized RawContent getRawConfig() {
+		return rawConfig;
+	}
+
+	@Override
+	public synchronized String getConfig() {
+		decodeConfig();
+		return super.getConfig();
+	}
+
+	@Override
+	public synchronized void setConfig(String config) {
+		rawConfig = null;
+		configDecoded = true;
+		super.setConfig(config);
+	}
+
+	/**
+	 * Sets the filter as received, replacing any filter set with {@link #setFilter(String)}
+	 * 
+	 * @param rawFilter
+	 *            contents of &lt;filter&gt; element
+	 */
+	public synchronized void setRawFilter(RawContent rawFilter) {
+		this.rawFilter = rawFilter;
+		filterDecoded = false;
+	}
+
+	/**
+	 * 
+	 * @return filter as received, or null if it was set with {@link #setFilter(String)}
+	 */
+	public synchronized RawContent getRawFilter() {
+		return rawFilter;
+	}
+
+	@Override
+	public synchronized String getFilter() {
+		decodeFilter();
+		return super.getFilter();
+	}
+
+	@Override
+	public synchronized void setFilter(String filter) {
+		rawFilter = null;
+		filterDecoded = true;
+		super.setFilter(filter);
+	}
+
+	/**
+	 * 
+	 * @return type attribute of the &lt;filter&gt; element, e.g. "subtree" or "xpath", or null if it has none
+	 */
+	public synchronized String getFilterType() {
+		return filterType;
+	}
+
+	public synchronized void setFilterType(String filterType) {
+		this.filterType = filterType;
+	}
+
+	/**
+	 * 
+	 * @return select attribute of an XPath &lt;filter&gt; element, or null if it has none
+	 */
+	public synchronized String getFilterSelect() {
+		return filterSelect;
+	}
+
+	public synchronized void setFilterSelect(String filterSelect) {
+		this.filterSelect = filterSelect;
+	}
+
+	/**
+	 * 
+	 * @return namespace URIs of the prefixes declared in the message up to the &lt;filter&gt; element, resolving prefixes of
+	 *         its select expression
+	 */
+	public synchronized Map<String, String> getFilterNamespaces() {
+		return filterNamespaces;
+	}
+
+	public synchronized void setFilterNamespaces(Map<String, String> filterNamespaces) {
+		this.filterNamespaces = Collections.unmodifiableMap(filterNamespaces);
+	}
+
+	/**
+	 * 
+	 * @return &lt;default-operation&gt; of an edit-config, e.g. "replace", or null if it has none
+	 */
+	public synchronized String getDefaultOperation() {
+		return defaultOperation;
+	}
+
+	public synchronized void setDefaultOperation(String defaultOperation) {
+		this.defaultOperation = defaultOperation;
+	}
+
+	@Override
+	public String toXML() {
+		synchronized (this) {
+			decodeConfig();
+			decodeFilter();
+		}
+		return super.toXML();
+	}
+
+	/**
+	 * Serializes the query to UTF-8 like {@link #toXML()}, copying config and filter as received instead of decoding them
+	 * 
+	 * @param out
+	 *            destination stream
+	 * @throws IOException
+	 *             if an error occurs reading the payloads or writing the stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		String xml;
+		RawContent config;
+		RawContent filter;
+		synchronized (this) {
+			config = configDecoded ? null : rawConfig;
+			filter = filterDecoded ? null : rawFilter;
+			// marked as decoded while serializing, so slots are not replaced by the decoded payloads
+			if (config != null) {
+				super.setConfig(CONFIG_SLOT);
+				configDecoded = true;
+			}
+			if (filter != null) {
+				super.setFilter(FILTER_SLOT);
+				filterDecoded = true;
+			}
+			try {
+				xml = super.toXML();
+			} finally {
+				if (config != null) {
+					super.setConfig(null);
+					configDecoded = false;
+				}
+				if (filter != null) {
+					super.setFilter(null);
+					filterDecoded = false;
+				}
+			}
+		}
+		RawContent.writeSpliced(out, xml, new String[] { CONFIG_SLOT, FILTER_SLOT }, new RawContent[] { config, filter });
+	}
+
+	private void decodeConfig() {
+		if (!configDecoded) {
+			super.setConfig(rawConfig.toString());
+			configDecoded = true;
+		}
+	}
+
+	private void decodeFilter() {
+		if (!filterDecoded) {
+			super.setFilter(rawFilter.toString());
+			filterDecoded = true;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.i2cat.netconf.rpc.Reply;
+
+/**
+ * {@link Reply} whose contents are kept as received, and only decoded when it is read with {@link #getContain()} or the reply is
+ * serialized with {@link #toXML()}. {@link #writeTo(OutputStream)} serializes it without decoding them.
+ */
+public class RawReply extends Reply {
+
+	private static final long	serialVersionUID	= 1L;
+
+	// set while serializing, replaced by the raw contents
+	private static final String	CONTAIN_SLOT		= "netconf-server-contain-slot";
+
+	private RawContent			rawContain;
+	private boolean				containDecoded		= true;
+
+	/**
+	 * Sets the contents as received, replacing any contents set with {@link #setContain(String)}
+	 * 
+	 * @param rawContain
+	 *            contents of the reply element, e.g. &lt;data&gt;
+	 */
+	public synchronized void setRawContain(RawContent rawContain) {
+		this.rawContain = rawContain;
+		containDecoded = false;
+	}
+
+	/**
+	 * 
+	 * @return contents as received, or null if it was set with {@link #setContain(String)}
+	 */
+	public synchronized RawContent getRawContain() {
+		return rawContain;
+	}
+
+	@Override
+	public synchronized String getContain() {
+		decodeContain();
+		return super.getContain();
+	}
+
+	@Override
+	public synchronized void setContain(String contain) {
+		rawContain = null;
+		containDecoded = true;
+		super.setContain(contain);
+	}
+
+	@Override
+	public String toXML() {
+		synchronized (this) {
+			decodeContain();
+		}
+		return super.toXML();
+	}
+
+	/**
+	 * Serializes the reply to UTF-8 like {@link #toXML()}, copying its contents as received instead of decoding them
+	 * 
+	 * @param out
+	 *            destination stream
+	 * @throws IOException
+	 *             if an error occurs reading the contents or writing the stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		String xml;
+		RawContent contain;
+		synchronized (this) {
+			contain = containDecoded ? null : rawContain;
+			// marked as decoded while serializing, so the slot is not replaced by the decoded contents
+			if (contain != null) {
+				super.setContain(CONTAIN_SLOT);
+				containDecoded = true;
+			}
+			try {
+				xml = super.toXML();
+			} finally {
+				if (contain != null) {
+					super.setContain(null);
+					containDecoded = false;
+				}
+			}
+		}
+		RawContent.writeSpliced(out, xml, new String[] { CONTAIN_SLOT }, new RawContent[] { contain });
+	}
+
+	private void decodeContain() {
+		if (!containDecoded) {
+			super.setContain(rawContain.toString());
+			containDecoded = true;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package net.i2cat.netconf.server.transport;
+
+/**
+ * Locates element contents in the bytes recorded by a {@link FrameRecorder}. It tokenizes recorded bytes lazily, tracking
+ * element depth the same way SAX events do, so the element being reported by the parser can be found by its depth. All
+ * delimiters are ASCII, so UTF-8 bytes are scanned without decoding.
+ * <p>
+ * Comments, CDATA sections and processing instructions are consumed partially, so recorded bytes can be discarded while a big one
+ * is being received.
+ */
+class RawSubtreeLocator {
+
+	static final long			NOT_FOUND	= -1;
+
+	private static final int	INCOMPLETE	= 0;
+	private static final int	TEXT		= 1;
+	private static final int	START_TAG	= 2;
+	private static final int	EMPTY_TAG	= 3;
+	private static final int	END_TAG		= 4;
+	private static final int	OTHER		= 5;
+
+	private FrameRecorder		recorder;
+
+	// frame offset of next token and depth of open elements before it
+	private long				position;
+	private int					depth;
+
+	// name of last start tag
+	private long				nameStart;
+	private long				nameEnd;
+
+	// depth and end tag offset of the element last found by findStart
+	private int					captureDepth;
+	private long				captureEnd;
+
+	// terminator of the partially consumed token, or null
+	private String				pendingTerminator;
+
+	/**
+	 * Starts locating elements in a new frame
+	 */
+	void reset(FrameRecorder recorder) {
+		this.recorder = recorder;
+		position = 0;
+		depth = 0;
+		captureEnd = NOT_FOUND;
+		pendingTerminator = null;
+	}
+
+	/**
+	 * Finds the start tag of an element
+	 *
+	 * @param targetDepth
+	 *            depth of the element, 1 for root element
+	 * @param localName
+	 *            ASCII local name of the element, compared ignoring case
+	 * @return frame offset of the element content, or {@link #NOT_FOUND} if not recorded yet
+	 */
+	long findStart(int targetDepth, String localName) {
+		while (true) {
+			int token = nextToken();
+			if (token == INCOMPLETE) {
+				return NOT_FOUND;
+			}
+			if ((token == START_TAG && depth == targetDepth) || (token == EMPTY_TAG && depth + 1 == targetDepth)) {
+				if (localNameMatches(localName)) {
+					captureDepth = targetDepth;
+					captureEnd = token == EMPTY_TAG ? position : NOT_FOUND;
+					return position;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the end tag of the element last found by {@link #findStart(int, String)}
+	 *
+	 * @param targetDepth
+	 *            depth of the element
+	 * @return frame offset of the end tag, or {@link #NOT_FOUND} if not recorded yet
+	 */
+	long findEnd(int targetDepth) {
+		if (captureEnd == NOT_FOUND || captureDepth != targetDepth) {
+			captureDepth = targetDepth;
+			advance();
+		}
+		long end = captureEnd;
+		captureEnd = NOT_FOUND;
+		return end;
+	}
+
+	/**
+	 * Consumes recorded tokens up to the end tag of the element last found by {@link #findStart(int, String)}, if recorded. Bytes
+	 * before {@link #getPosition()} are not needed after that.
+	 */
+	void advance() {
+		while (captureEnd == NOT_FOUND) {
+			long tokenStart = position;
+			int token = nextToken();
+			if (token == INCOMPLETE) {
+				return;
+			}
+			if (token == END_TAG && depth + 1 == captureDepth) {
+				captureEnd = tokenStart;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return frame offset of the end tag found by {@link #advance()}, or {@link #NOT_FOUND}
+	 */
+	long getCaptureEnd() {
+		return captureEnd;
+	}
+
+	/**
+	 *
+	 * @return frame offset of the next token
+	 */
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Consumes next token. Incomplete tokens are not consumed, except comments, CDATA sections and processing instructions.
+	 */
+	private int nextToken() {
+		long end = recorder.end();
+		long p = position;
+		if (pendingTerminator != null) {
+			return consumeUntil(pendingTerminator, p, end);
+		}
+		if (p >= end) {
+			return INCOMPLETE;
+		}
+
+		if (recorder.byteAt(p) != '<') {
+			// text, may be consumed partially
+			while (p < end && recorder.byteAt(p) != '<') {
+				p++;
+			}
+			position = p;
+			return TEXT;
+		}
+
+		if (p + 1 >= end) {
+			return INCOMPLETE;
+		}
+		byte b = recorder.byteAt(p + 1);
+		if (b == '?') {
+			// processing instruction or XML declaration
+			return consumeUntil("?>", p + 2, end);
+		} else if (b == '!') {
+			if (startsWith(p, "<!--", end)) {
+				return consumeUntil("-->", p + 4, end);
+			} else if (startsWith(p, "<![CDATA[", end)) {
+				return consumeUntil("]]>", p + 9, end);
+			} else if (!hasBytes(p, "<![CDATA[".length(), end)) {
+				// may still be a comment or a CDATA section
+				return INCOMPLETE;
+			}
+			// document type declaration
+			long tokenEnd = indexOf(">", p + 2, end);
+			if (tokenEnd == NOT_FOUND) {
+				return INCOMPLETE;
+			}
+			position = tokenEnd;
+			return OTHER;
+		} else if (b == '/') {
+			long tokenEnd = indexOf(">", p + 2, end);
+			if (tokenEnd == NOT_FOUND) {
+				return INCOMPLETE;
+			}
+			depth--;
+			position = tokenEnd;
+			return END_TAG;
+		}
+		return startTag(p, end);
+	}
+
+	/**
+	 * Consumes a token up to given terminator. If it is not recorded yet, consumes the token partially, leaving unconsumed the
+	 * bytes that may be the beginning of the terminator.
+	 */
+	private int consumeUntil(String terminator, long from, long end) {
+		long tokenEnd = indexOf(terminator, from, end);
+		if (tokenEnd == NOT_FOUND) {
+			pendingTerminator = terminator;
+			position = Math.max(from, end - (terminator.length() - 1));
+			return INCOMPLETE;
+		}
+		pendingTerminator = null;
+		position = tokenEnd;
+		return OTHER;
+	}
+
+	private int startTag(long p, long end) {
+		long q = p + 1;
+		while (q < end && !isNameEnd(recorder.byteAt(q))) {
+			q++;
+		}
+		long tagNameEnd = q;
+
+		// skip attributes, values may contain '>'
+		byte quote = 0;
+		while (q < end) {
+			byte c = recorder.byteAt(q);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				break;
+			}
+			q++;
+		}
+		if (q >= end) {
+			return INCOMPLETE;
+		}
+
+		nameStart = p + 1;
+		nameEnd = tagNameEnd;
+		position = q + 1;
+		if (recorder.byteAt(q - 1) == '/') {
+			return EMPTY_TAG;
+		}
+		depth++;
+		return START_TAG;
+	}
+
+	private boolean localNameMatches(String localName) {
+		long start = nameStart;
+		for (long i = nameEnd - 1; i >= nameStart; i--) {
+			if (recorder.byteAt(i) == ':') {
+				start = i + 1;
+				break;
+			}
+		}
+		if (nameEnd - start != localName.length()) {
+			return false;
+		}
+		for (int i = 0; i < localName.length(); i++) {
+			if (toLowerCase(recorder.byteAt(start + i)) != toLowerCase((byte) localName.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return frame offset after given ASCII sequence, or {@link #NOT_FOUND}
+	 */
+	private long indexOf(String sequence, long from, long end) {
+		for (long i = from; i + sequence.length() <= end; i++) {
+			if (startsWith(i, sequence, end)) {
+				return i + sequence.length();
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	private boolean startsWith(long offset, String sequence, long end) {
+		if (!hasBytes(offset, sequence.length(), end)) {
+			return false;
+		}
+		for (int i = 0; i < sequence.length(); i++) {
+			if (recorder.byteAt(offset + i) != sequence.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean hasBytes(long offset, int length, long end) {
+		return offset + length <= end;
+	}
+
+	private static boolean isNameEnd(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>';
+	}
+
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+}
@@ -1,6 +1,10 @@
 package net.i2cat.netconf.server.transport;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import net.i2cat.netconf.errors.NetconfProtocolException;
 import net.i2cat.netconf.messageQueue.MessageQueue;
@@ -11,8 +15,7 @@ import net.i2cat.netconf.rpc.ErrorTag;
 import net.i2cat.netconf.rpc.ErrorType;
 import net.i2cat.netconf.rpc.Hello;
 import net.i2cat.netconf.rpc.Operation;
-import net.i2cat.netconf.rpc.Query;
-import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.transport.TagTable.Tag;
 import net.i2cat.netconf.transport.TransportContentParser;
 
 import org.apache.commons.logging.Log;
@@ -24,430 +27,623 @@ import org.xml.sax.ext.DefaultHandler2;
 
 /**
  * Transport content parser for Netconf servers based on {@link TransportContentParser}
+ * <p>
+ * Text and payload markup of the element being parsed are accumulated in a single reusable buffer, so parsing a message does
+ * not allocate anything but the resulting message and its strings.
+ * <p>
+ * When the parsed frame is recorded by a {@link FrameRecorder}, &lt;config&gt;, &lt;filter&gt; and &lt;data&gt; payloads are not rebuilt but
+ * sliced from the received bytes, keeping namespaces, attributes and escaping as received. Resulting {@link RawQuery} and
+ * {@link RawReply} messages only decode them if they are read.
  * 
  * @author Julio Carlos Barrera
  * 
  */
 public class ServerTransportContentParser extends DefaultHandler2 {
 
-	private Log				log						= LogFactory.getLog(ServerTransportContentParser.class);
-
-	MessageQueue			messageQueue;
-
-	Hello					hello;
-	Query					query;
-	Reply					reply;
-	String					messageId;
-	Error					error;
+	/** Capability announcing RFC 6241 base protocol and RFC 6242 chunked framing */
+	public static final String			CAPABILITY_BASE_1_1		= "urn:ietf:params:netconf:base:1.1";
+
+	private static final int			INITIAL_CONTENT_SIZE	= 1024;
+	// bigger buffers are released, so a huge payload does not retain memory in pooled parsers
+	private static final int			MAX_RETAINED_SIZE		= 64 * 1024;
+
+	private Log							log						= LogFactory.getLog(ServerTransportContentParser.class);
+
+	/* Query operations (extracted from RFC 4741 Section 7 (http://tools.ietf.org/html/rfc4741#section-7) and JUNOS extensions */
+	private static final Operation[]	DEFAULT_OPERATIONS		= { Operation.GET_CONFIG, Operation.EDIT_CONFIG, Operation.COPY_CONFIG,
+			Operation.DELETE_CONFIG, Operation.LOCK, Operation.UNLOCK, Operation.GET, Operation.CLOSE_SESSION, Operation.KILL_SESSION,
+			Operation.COMMIT, Operation.SET_LOGICAL_ROUTER, Operation.GET_ROUTE_INFO, Operation.GET_INTERFACE_INFO,
+			Operation.GET_SOFTWARE_INFO, Operation.GET_ROLLBACK_INFO, Operation.DISCARD, Operation.OPEN_CONFIG, Operation.CLOSE_CONFIG,
+			Operation.LOAD_CONFIGURATION, Operation.VALIDATE };
+
+	// recognized tags, shared by all parsers and replaced when an operation is registered
+	private static volatile TagTable	tagTable				= createDefaultTagTable();
+
+	/**
+	 * Element whose content is being accumulated
+	 */
+	private enum State {
+		NONE,
+		CAPABILITY,
+		SESSION_ID,
+		/* inside an operation tag, outside its parameters */
+		OPERATION,
+		TARGET,
+		SOURCE,
+		CONFIG,
+		FILTER,
+		DEFAULT_OPERATION,
+		DATA,
+		ERROR_TYPE,
+		ERROR_TAG,
+		ERROR_SEVERITY,
+		ERROR_APP_TAG,
+		ERROR_PATH,
+		ERROR_MESSAGE,
+		ERROR_INFO,
+		/* extra features from JUNOS (out RFC) */
+		INTERFACE_INFO,
+		SOFTWARE_INFO
+	}
 
-	boolean					insideCapabilityTag		= false;
-	StringBuffer			capabilityTagContent	= new StringBuffer();
-	ArrayList<Capability>	capabilities;
+	MessageQueue						messageQueue;
+
+	Hello								hello;
+	RawQuery							query;
+	RawReply							reply;
+	String								messageId;
+	Error								error;
+
+	ArrayList<Capability>				capabilities;
+	boolean								base11Capability		= false;
+
+	State								state					= State.NONE;
+	// content of current element, or markup of current payload (config, data, software-information)
+	StringBuilder						content					= new StringBuilder(INITIAL_CONTENT_SIZE);
+	// nesting level of payload elements, payload ends when its container element closes at level 0
+	int									payloadDepth			= 0;
+	// start of default-operation text in content, appended after a rebuilt config if it comes later
+	int									defaultOperationStart	= 0;
+
+	// raw payload capture
+	FrameRecorder						recorder;
+	RawSubtreeLocator					locator					= new RawSubtreeLocator();
+	int									elementDepth			= 0;
+	// frame offset of current payload, or NOT_FOUND if it is being rebuilt
+	long								rawStart				= RawSubtreeLocator.NOT_FOUND;
+	RawContent							rawContent;
+
+	// prefixes in scope of current element, created when a message declares one
+	Map<String, String>					prefixes;
+	// declared prefixes and the URIs they shadow, restored when declarations go out of scope
+	ArrayList<String[]>					prefixDeclarations;
 
-	boolean					insideSessionIdTag		= false;
-	StringBuffer			sessionIdTagContent		= new StringBuffer();
+	public void setMessageQueue(MessageQueue queue) {
+		this.messageQueue = queue;
+	}
 
-	boolean					insideDataTag			= false;
-	StringBuffer			dataTagContent			= new StringBuffer();
+	/**
+	 * Sets the recorder of parsed frames, allowing to slice payloads from received bytes
+	 */
+	public void setFrameRecorder(FrameRecorder recorder) {
+		this.recorder = recorder;
+	}
 
-	boolean					insideErrorTypeTag		= false;
-	StringBuffer			errorTypeTagContent		= new StringBuffer();
+	/**
+	 * Clears parsing status and message queue, allowing to reuse this handler in another session
+	 */
+	public void reset() {
+		messageQueue = null;
 
-	boolean					insideErrorTagTag		= false;
-	StringBuffer			errorTagTagContent		= new StringBuffer();
+		hello = null;
+		query = null;
+		reply = null;
+		messageId = null;
+		error = null;
 
-	boolean					insideErrorSeverityTag	= false;
-	StringBuffer			errorSeverityTagContent	= new StringBuffer();
+		capabilities = null;
+		base11Capability = false;
 
-	boolean					insideErrorAppTagTag	= false;
-	StringBuffer			errorAppTagTagContent	= new StringBuffer();
+		state = State.NONE;
+		clearContent();
+		payloadDepth = 0;
 
-	boolean					insideErrorPathTag		= false;
-	StringBuffer			errorPathTagContent		= new StringBuffer();
+		discardRawContent();
+		if (recorder != null) {
+			recorder.reset();
+		}
+		elementDepth = 0;
+		rawStart = RawSubtreeLocator.NOT_FOUND;
+		prefixes = null;
+		prefixDeclarations = null;
+	}
 
-	boolean					insideErrorMessageTag	= false;
-	StringBuffer			errorMessageTagContent	= new StringBuffer();
+	private static TagTable createDefaultTagTable() {
+		TagTable table = new TagTable()
+				.with(null, "hello", new TagTable.Entry(Tag.HELLO, null))
+				.with(null, "capabilities", new TagTable.Entry(Tag.CAPABILITIES, null))
+				.with(null, "capability", new TagTable.Entry(Tag.CAPABILITY, null))
+				.with(null, "session-id", new TagTable.Entry(Tag.SESSION_ID, null))
+				.with(null, "rpc", new TagTable.Entry(Tag.RPC, null))
+				.with(null, "target", new TagTable.Entry(Tag.TARGET, null))
+				.with(null, "source", new TagTable.Entry(Tag.SOURCE, null))
+				.with(null, "config", new TagTable.Entry(Tag.CONFIG, null))
+				.with(null, "filter", new TagTable.Entry(Tag.FILTER, null))
+				.with(null, "default-operation", new TagTable.Entry(Tag.DEFAULT_OPERATION, null))
+				.with(null, "rpc-reply", new TagTable.Entry(Tag.RPC_REPLY, null))
+				.with(null, "data", new TagTable.Entry(Tag.DATA, null))
+				.with(null, "ok", new TagTable.Entry(Tag.OK, null))
+				.with(null, "rpc-error", new TagTable.Entry(Tag.RPC_ERROR, null))
+				.with(null, "error-type", new TagTable.Entry(Tag.ERROR_TYPE, null))
+				.with(null, "error-tag", new TagTable.Entry(Tag.ERROR_TAG, null))
+				.with(null, "error-severity", new TagTable.Entry(Tag.ERROR_SEVERITY, null))
+				.with(null, "error-app-tag", new TagTable.Entry(Tag.ERROR_APP_TAG, null))
+				.with(null, "error-path", new TagTable.Entry(Tag.ERROR_PATH, null))
+				.with(null, "error-message", new TagTable.Entry(Tag.ERROR_MESSAGE, null))
+				.with(null, "error-info", new TagTable.Entry(Tag.ERROR_INFO, null))
+				.with(null, "interface-information", new TagTable.Entry(Tag.INTERFACE_INFORMATION, null))
+				.with(null, "get-interface-information", new TagTable.Entry(Tag.GET_INTERFACE_INFORMATION, null))
+				.with(null, "software-information", new TagTable.Entry(Tag.SOFTWARE_INFORMATION, null));
+		for (Operation operation : DEFAULT_OPERATIONS) {
+			table = table.with(null, operation.getName(), new TagTable.Entry(Tag.OPERATION, operation));
+		}
+		return table;
+	}
 
-	boolean					insideErrorInfoTag		= false;
-	StringBuffer			errorInfoTagContent		= new StringBuffer();
+	/**
+	 * Registers an operation recognized by all parsers, in any namespace
+	 * 
+	 * @param operation
+	 *            operation, its name is the RPC element local name
+	 * @throws IllegalArgumentException
+	 *             if operation name is already used by a tag other than an operation
+	 */
+	public static void registerOperation(Operation operation) {
+		registerOperation(null, operation);
+	}
 
-	/* Query operation tags (extracted from RFC 4741 Section 7 (http://tools.ietf.org/html/rfc4741#section-7) */
-	boolean					insideOperationTag		= false;
-	StringBuffer			operationTagContent		= new StringBuffer();
-	boolean					insideTarget			= false;
-	boolean					insideConfig			= false;
+	/**
+	 * Registers an operation recognized by all parsers. Operations registered with a namespace take precedence over the ones
+	 * matching any namespace.
+	 * 
+	 * @param namespace
+	 *            namespace URI of the RPC element, or null to match any namespace
+	 * @param operation
+	 *            operation, its name is the RPC element local name
+	 * @throws IllegalArgumentException
+	 *             if operation name is already used by a tag other than an operation
+	 */
+	public static synchronized void registerOperation(String namespace, Operation operation) {
+		TagTable.Entry existing = tagTable.get(namespace, operation.getName());
+		if (existing != null && existing.getTag() != Tag.OPERATION) {
+			throw new IllegalArgumentException("Operation name is already used by another tag: " + operation.getName());
+		}
+		tagTable = tagTable.with(namespace, operation.getName(), new TagTable.Entry(Tag.OPERATION, operation));
+	}
 
-	/* extra features from JUNOS (out RFC) */
+	/**
+	 * 
+	 * @return true if last received hello contains base:1.1 capability
+	 */
+	public boolean isBase11CapabilityReceived() {
+		return base11Capability;
+	}
 
-	boolean					insideInterfaceInfoTag	= false;
-	StringBuffer			interfaceInfoTagContent	= new StringBuffer();
+	@Override
+	public void startDocument() throws SAXException {
+		super.startDocument();
+		// a previous frame may have been aborted in the middle of an element
+		state = State.NONE;
+		clearContent();
+		payloadDepth = 0;
+		elementDepth = 0;
+		rawStart = RawSubtreeLocator.NOT_FOUND;
+		discardRawContent();
+		if (prefixes != null) {
+			prefixes.clear();
+			prefixDeclarations.clear();
+		}
+		if (recorder != null && recorder.isRecording()) {
+			locator.reset(recorder);
+		}
+	}
 
-	boolean					insideSoftwareInfoTag	= false;
-	StringBuffer			softwareInfoTagContent	= new StringBuffer();
+	@Override
+	public void startPrefixMapping(String prefix, String uri) throws SAXException {
+		super.startPrefixMapping(prefix, uri);
+		// prefixes of XPath filters and payloads may be declared in any ancestor
+		if (prefixes == null) {
+			prefixes = new HashMap<String, String>();
+			prefixDeclarations = new ArrayList<String[]>();
+		}
+		prefixDeclarations.add(new String[] { prefix, prefixes.put(prefix, uri) });
+	}
 
-	public void setMessageQueue(MessageQueue queue) {
-		this.messageQueue = queue;
+	@Override
+	public void endPrefixMapping(String prefix) throws SAXException {
+		super.endPrefixMapping(prefix);
+		// restore the declaration it shadows, if any
+		for (int i = prefixDeclarations.size() - 1; i >= 0; i--) {
+			String[] declaration = prefixDeclarations.get(i);
+			if (declaration[0].equals(prefix)) {
+				prefixDeclarations.remove(i);
+				if (declaration[1] != null) {
+					prefixes.put(prefix, declaration[1]);
+				} else {
+					prefixes.remove(prefix);
+				}
+				return;
+			}
+		}
 	}
 
 	@Override
 	public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
 		super.startElement(uri, localName, qName, attributes);
-
-		// if (insideDataTag && !localName.equalsIgnoreCase("data"))
-		// return;
-
-		if (insideDataTag) {
-			dataTagContent.append("<" + localName + ">");
-		} else if (insideSoftwareInfoTag) {
-			softwareInfoTagContent.append("<" + localName + ">");
-		} else if (insideOperationTag) {
-			if (localName.equalsIgnoreCase("target")) {
-				insideTarget = true;
-			} else if (insideTarget) {
+		elementDepth++;
+
+		// payload elements are only copied, never dispatched
+		switch (state) {
+			case CONFIG:
+			case FILTER:
+			case DATA:
+				payloadDepth++;
+				if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+					appendStartTag(localName, attributes);
+				}
+				return;
+			case SOFTWARE_INFO:
+				payloadDepth++;
+				appendStartTag(localName, attributes);
+				return;
+			case ERROR_INFO:
+				// only text of error info is kept
+				payloadDepth++;
+				return;
+			case TARGET:
 				query.setTarget(localName);
-			} else if (localName.equalsIgnoreCase("config")) {
-				insideConfig = true;
-			} else if (insideConfig) {
-				operationTagContent.append("<" + localName);
-				for (int i = 0; i < attributes.getLength(); i++) {
-					operationTagContent.append(" " + attributes.getQName(i) + "=\"" + attributes.getValue(i) + "\"");
+				payloadDepth++;
+				return;
+			case SOURCE:
+				if (payloadDepth == 0) {
+					TagTable.Entry entry = tagTable.get(uri, localName);
+					if (entry != null && entry.getTag() == Tag.CONFIG) {
+						// inline source of a copy-config, kept as its config
+						state = State.CONFIG;
+						startRawContent(localName);
+						return;
+					}
+					query.setSource(localName);
 				}
-				operationTagContent.append(">");
-			}
+				payloadDepth++;
+				return;
+			default:
+				break;
 		}
 
-		// log.debug("startElement <" + uri + "::" + localName + ">");
+		// single lookup per element
+		TagTable.Entry entry = tagTable.get(uri, localName);
+		if (entry == null) {
+			return;
+		}
 
-		if (localName.equalsIgnoreCase("hello")) {
-			hello = new Hello();
-			capabilities = new ArrayList<Capability>();
+		if (state == State.OPERATION) {
+			if (entry.getTag() == Tag.TARGET) {
+				state = State.TARGET;
+				payloadDepth = 0;
+			} else if (entry.getTag() == Tag.SOURCE) {
+				state = State.SOURCE;
+				payloadDepth = 0;
+			} else if (entry.getTag() == Tag.CONFIG) {
+				state = State.CONFIG;
+				payloadDepth = 0;
+				startRawContent(localName);
+			} else if (entry.getTag() == Tag.FILTER) {
+				query.setFilterType(attributes.getValue("", "type"));
+				query.setFilterSelect(attributes.getValue("", "select"));
+				if (prefixes != null) {
+					query.setFilterNamespaces(new HashMap<String, String>(prefixes));
+				}
+				startContent(State.FILTER);
+				startRawContent(localName);
+			} else if (entry.getTag() == Tag.DEFAULT_OPERATION) {
+				state = State.DEFAULT_OPERATION;
+				defaultOperationStart = content.length();
+			}
+			return;
 		}
-		// if (localName.equalsIgnoreCase("capabilities")) {
-		// insideCapabilityTag = false;
-		// }
-		else if (localName.equalsIgnoreCase("capability")) {
-			insideCapabilityTag = true;
-		} else if (localName.equalsIgnoreCase("session-id")) {
-			insideSessionIdTag = true;
+
+		switch (entry.getTag()) {
+			case HELLO:
+				hello = new Hello();
+				capabilities = new ArrayList<Capability>();
+				base11Capability = false;
+				break;
+			case CAPABILITY:
+				startContent(State.CAPABILITY);
+				break;
+			case SESSION_ID:
+				startContent(State.SESSION_ID);
+				break;
 
 			/* Query tags and operations */
-		} else if (localName.equalsIgnoreCase("rpc")) {
-			query = new Query();
-
-			messageId = attributes.getValue("message-id");
-			if (messageId == null)
-				throw new SAXException(new NetconfProtocolException("Received <rpc> message without a message ID"));
-
-			query.setMessageId(messageId);
-		} else if (localName.equalsIgnoreCase(Operation.GET_CONFIG.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.GET_CONFIG);
-		} else if (localName.equalsIgnoreCase(Operation.EDIT_CONFIG.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.EDIT_CONFIG);
-		} else if (localName.equalsIgnoreCase(Operation.COPY_CONFIG.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.COPY_CONFIG);
-		} else if (localName.equalsIgnoreCase(Operation.DELETE_CONFIG.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.DELETE_CONFIG);
-		} else if (localName.equalsIgnoreCase(Operation.LOCK.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.LOCK);
-		} else if (localName.equalsIgnoreCase(Operation.UNLOCK.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.UNLOCK);
-		} else if (localName.equalsIgnoreCase(Operation.GET.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.GET);
-		} else if (localName.equalsIgnoreCase(Operation.CLOSE_SESSION.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.CLOSE_SESSION);
-		} else if (localName.equalsIgnoreCase(Operation.KILL_SESSION.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.KILL_SESSION);
-		} else if (localName.equalsIgnoreCase(Operation.COMMIT.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.COMMIT);
-		} else if (localName.equalsIgnoreCase(Operation.SET_LOGICAL_ROUTER.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.SET_LOGICAL_ROUTER);
-		} else if (localName.equalsIgnoreCase(Operation.GET_ROUTE_INFO.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.GET_ROUTE_INFO);
-		} else if (localName.equalsIgnoreCase(Operation.GET_INTERFACE_INFO.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.GET_INTERFACE_INFO);
-		} else if (localName.equalsIgnoreCase(Operation.GET_SOFTWARE_INFO.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.GET_SOFTWARE_INFO);
-		} else if (localName.equalsIgnoreCase(Operation.GET_ROLLBACK_INFO.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.GET_ROLLBACK_INFO);
-		} else if (localName.equalsIgnoreCase(Operation.DISCARD.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.DISCARD);
-		} else if (localName.equalsIgnoreCase(Operation.OPEN_CONFIG.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.OPEN_CONFIG);
-		} else if (localName.equalsIgnoreCase(Operation.CLOSE_CONFIG.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.CLOSE_CONFIG);
-		} else if (localName.equalsIgnoreCase(Operation.LOAD_CONFIGURATION.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.LOAD_CONFIGURATION);
-		} else if (localName.equalsIgnoreCase(Operation.VALIDATE.getName())) {
-			insideOperationTag = true;
-			query.setOperation(Operation.VALIDATE);
+			case RPC:
+				query = new RawQuery();
 
-			/* Reply tags */
-		} else if (localName.equalsIgnoreCase("rpc-reply")) {
-			reply = new Reply();
-
-			messageId = attributes.getValue("message-id");
-			if (messageId == null)
-				throw new SAXException(new NetconfProtocolException("Received <rpc-reply> message without a messageId"));
-
-			reply.setMessageId(messageId);
-			reply.setOk(false); // defaults to false
-		} else if (localName.equalsIgnoreCase("data")) {
-			insideDataTag = true;
-		} else if (localName.equalsIgnoreCase("ok")) {
-			reply.setOk(true);
-		} else if (localName.equalsIgnoreCase("rpc-error")) {
-			error = new Error();
-		} else if (localName.equalsIgnoreCase("error-type")) {
-			insideErrorTypeTag = true;
-		} else if (localName.equalsIgnoreCase("error-tag")) {
-			insideErrorTagTag = true;
-		} else if (localName.equalsIgnoreCase("error-severity")) {
-			insideErrorSeverityTag = true;
-		} else if (localName.equalsIgnoreCase("error-app-tag")) {
-			insideErrorAppTagTag = true;
-		} else if (localName.equalsIgnoreCase("error-path")) {
-			insideErrorPathTag = true;
-		} else if (localName.equalsIgnoreCase("error-message")) {
-			insideErrorMessageTag = true;
-		} else if (localName.equalsIgnoreCase("error-info")) {
-			insideErrorInfoTag = true;
-		}
+				messageId = attributes.getValue("message-id");
+				if (messageId == null)
+					throw new SAXException(new NetconfProtocolException("Received <rpc> message without a message ID"));
 
-		/* extra features from JUNOS (out RFC) */
-		else if (localName.equalsIgnoreCase("interface-information")) {
-			insideInterfaceInfoTag = true;
-		} else if (localName.equalsIgnoreCase("software-information")) {
-			// software-information is the root node and leaving it in place
-			// makes gives us a well-formed XML document rather than multiple
-			// top-level nodes.
-			softwareInfoTagContent.append("<" + localName + ">");
-			insideSoftwareInfoTag = true;
-		}
+				query.setMessageId(messageId);
+				break;
+			case OPERATION:
+				startContent(State.OPERATION);
+				query.setOperation(entry.getOperation());
+				break;
 
+			/* Reply tags */
+			case RPC_REPLY:
+				reply = new RawReply();
+
+				messageId = attributes.getValue("message-id");
+				if (messageId == null)
+					throw new SAXException(new NetconfProtocolException("Received <rpc-reply> message without a messageId"));
+
+				reply.setMessageId(messageId);
+				reply.setOk(false); // defaults to false
+				break;
+			case DATA:
+				startContent(State.DATA);
+				startRawContent(localName);
+				break;
+			case OK:
+				reply.setOk(true);
+				break;
+			case RPC_ERROR:
+				error = new Error();
+				break;
+			case ERROR_TYPE:
+				startContent(State.ERROR_TYPE);
+				break;
+			case ERROR_TAG:
+				startContent(State.ERROR_TAG);
+				break;
+			case ERROR_SEVERITY:
+				startContent(State.ERROR_SEVERITY);
+				break;
+			case ERROR_APP_TAG:
+				startContent(State.ERROR_APP_TAG);
+				break;
+			case ERROR_PATH:
+				startContent(State.ERROR_PATH);
+				break;
+			case ERROR_MESSAGE:
+				startContent(State.ERROR_MESSAGE);
+				break;
+			case ERROR_INFO:
+				startContent(State.ERROR_INFO);
+				break;
+
+			/* extra features from JUNOS (out RFC) */
+			case INTERFACE_INFORMATION:
+				startContent(State.INTERFACE_INFO);
+				break;
+			case SOFTWARE_INFORMATION:
+				// software-information is the root node and leaving it in place
+				// makes gives us a well-formed XML document rather than multiple
+				// top-level nodes.
+				startContent(State.SOFTWARE_INFO);
+				appendStartTag(localName, attributes);
+				break;
+			default:
+				break;
+		}
 	}
 
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException {
 		super.characters(ch, start, length);
 
-		// log.info(new String(ch, start, length));
-		// log.info(new String(ch));
-
-		if (insideCapabilityTag) {
-			capabilityTagContent.append(ch, start, length);
-			// log.debug("capability content:" + capabilityTagContent);
-		} else if (insideSessionIdTag) {
-			sessionIdTagContent.append(ch, start, length);
-		} else if (insideDataTag) {
-			dataTagContent.append(ch, start, length);
-		} else if (insideOperationTag) {
-			if (insideConfig) {
-				operationTagContent.append(ch, start, length);
-			}
-		} else if (insideErrorAppTagTag) {
-			errorAppTagTagContent.append(ch, start, length);
-		} else if (insideErrorInfoTag) {
-			errorInfoTagContent.append(ch, start, length);
-		} else if (insideErrorMessageTag) {
-			errorMessageTagContent.append(ch, start, length);
-		} else if (insideErrorPathTag) {
-			errorPathTagContent.append(ch, start, length);
-		} else if (insideErrorSeverityTag) {
-			errorSeverityTagContent.append(ch, start, length);
-		} else if (insideErrorTagTag) {
-			errorTagTagContent.append(ch, start, length);
-		} else if (insideErrorTypeTag) {
-			errorTypeTagContent.append(ch, start, length);
-		}
-
-		/* extra features from JUNOS (out RFC) */
-		else if (insideInterfaceInfoTag) {
-			interfaceInfoTagContent.append(ch, start, length);
-		} else if (insideSoftwareInfoTag) {
-			softwareInfoTagContent.append(ch, start, length);
+		switch (state) {
+			case CONFIG:
+			case FILTER:
+			case DATA:
+				if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+					appendEscaped(ch, start, length);
+				}
+				break;
+			case SOFTWARE_INFO:
+				// markup is being rebuilt, text must be escaped again
+				appendEscaped(ch, start, length);
+				break;
+			case DEFAULT_OPERATION:
+			case CAPABILITY:
+			case SESSION_ID:
+			case ERROR_TYPE:
+			case ERROR_TAG:
+			case ERROR_SEVERITY:
+			case ERROR_APP_TAG:
+			case ERROR_PATH:
+			case ERROR_MESSAGE:
+			case ERROR_INFO:
+			case INTERFACE_INFO:
+				content.append(ch, start, length);
+				break;
+			default:
+				break;
 		}
 	}
 
 	@Override
 	public void endElement(String uri, String localName, String qName) throws SAXException {
 		super.endElement(uri, localName, qName);
+		int depth = elementDepth--;
+
+		// payload elements are only copied, never dispatched
+		switch (state) {
+			case CONFIG:
+				if (payloadDepth-- > 0) {
+					if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+						appendEndTag(localName);
+					}
+				} else {
+					// config is kept until the end of the operation
+					endRawContent(depth);
+					state = State.OPERATION;
+				}
+				return;
+			case FILTER:
+				if (payloadDepth-- > 0) {
+					if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+						appendEndTag(localName);
+					}
+				} else {
+					endRawContent(depth);
+					if (rawContent != null) {
+						query.setRawFilter(rawContent);
+						rawContent = null;
+					} else {
+						query.setFilter(endContent());
+					}
+					state = State.OPERATION;
+				}
+				return;
+			case TARGET:
+			case SOURCE:
+				if (payloadDepth-- == 0) {
+					state = State.OPERATION;
+				}
+				return;
+			case DEFAULT_OPERATION:
+				query.setDefaultOperation(content.substring(defaultOperationStart).trim());
+				// a config rebuilt before the parameter is kept
+				content.setLength(defaultOperationStart);
+				state = State.OPERATION;
+				return;
+			case DATA:
+				if (payloadDepth > 0) {
+					payloadDepth--;
+					if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+						appendEndTag(localName);
+					}
+					return;
+				}
+				endRawContent(depth);
+				break;
+			case SOFTWARE_INFO:
+			case ERROR_INFO:
+				if (payloadDepth > 0) {
+					payloadDepth--;
+					if (state != State.ERROR_INFO) {
+						appendEndTag(localName);
+					}
+					return;
+				}
+				break;
+			default:
+				break;
+		}
 
-		// log.debug("endElement </" + localName + ">");
-
-		// if (insideDataTag && !localName.equalsIgnoreCase("data"))
-		// return;
-
-		if (insideDataTag && !localName.equalsIgnoreCase("data")) {
-			dataTagContent.append("</" + localName + ">");
-		} else if (insideSoftwareInfoTag && !localName.equalsIgnoreCase("software-information")) {
-			softwareInfoTagContent.append("</" + localName + ">");
-		} else if (insideOperationTag) {
-			if (localName.equalsIgnoreCase("target")) {
-				insideTarget = false;
-			} else if (localName.equalsIgnoreCase("config")) {
-				insideConfig = false;
-			} else if (insideConfig) {
-				operationTagContent.append("</" + localName + ">");
-			}
+		// single lookup per element
+		TagTable.Entry entry = tagTable.get(uri, localName);
+		if (entry == null || (state == State.OPERATION && entry.getTag() != Tag.OPERATION)) {
+			// operation parameters other than target, source, config, filter and default-operation are ignored
+			return;
 		}
 
-		if (localName.equalsIgnoreCase("hello")) {
-			messageQueue.put(hello);
-			hello = null;
-		} else if (localName.equalsIgnoreCase("capabilities")) {
-			hello.setCapabilities(capabilities);
-		} else if (localName.equalsIgnoreCase("capability")) {
-			insideCapabilityTag = false;
-			capabilities.add(Capability.getCapabilityByNamespace(capabilityTagContent.toString()));
-			capabilityTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("session-id")) {
-			insideSessionIdTag = false;
-			hello.setSessionId(sessionIdTagContent.toString());
-			sessionIdTagContent = new StringBuffer();
+		switch (entry.getTag()) {
+			case HELLO:
+				messageQueue.put(hello);
+				hello = null;
+				break;
+			case CAPABILITIES:
+				hello.setCapabilities(capabilities);
+				break;
+			case CAPABILITY:
+				String capability = endContent();
+				if (capability.trim().equals(CAPABILITY_BASE_1_1)) {
+					base11Capability = true;
+				}
+				capabilities.add(Capability.getCapabilityByNamespace(capability));
+				break;
+			case SESSION_ID:
+				hello.setSessionId(endContent());
+				break;
 
 			/* Query tags and operations */
-		} else if (localName.equalsIgnoreCase("rpc")) {
-			messageQueue.put(query);
-			query = null;
-		} else if (localName.equalsIgnoreCase(Operation.GET_CONFIG.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.EDIT_CONFIG.getName())) {
-			insideOperationTag = false;
-			query.setConfig(operationTagContent.toString());
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.COPY_CONFIG.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.DELETE_CONFIG.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.LOCK.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.UNLOCK.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.GET.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.CLOSE_SESSION.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.KILL_SESSION.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.COMMIT.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.SET_LOGICAL_ROUTER.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.GET_ROUTE_INFO.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.GET_INTERFACE_INFO.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.GET_SOFTWARE_INFO.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.GET_ROLLBACK_INFO.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.DISCARD.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.OPEN_CONFIG.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.CLOSE_CONFIG.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.LOAD_CONFIGURATION.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase(Operation.VALIDATE.getName())) {
-			insideOperationTag = false;
-			operationTagContent = new StringBuffer();
+			case RPC:
+				messageQueue.put(query);
+				query = null;
+				break;
+			case OPERATION:
+				if (!entry.getOperation().equals(Operation.EDIT_CONFIG) && !entry.getOperation().equals(Operation.COPY_CONFIG)) {
+					// config of other operations is not used
+					discardRawContent();
+					state = State.NONE;
+				} else if (rawContent != null) {
+					state = State.NONE;
+					query.setRawConfig(rawContent);
+					rawContent = null;
+				} else {
+					query.setConfig(endContent());
+				}
+				break;
 
 			/* Reply tags */
-		} else if (localName.equalsIgnoreCase("rpc-reply")) {
-			messageQueue.put(reply);
-			reply = null;
-		} else if (localName.equalsIgnoreCase("data")) {
-			insideDataTag = false;
-			reply.setContain(dataTagContent.toString());
-			reply.setContainName("data");
-			dataTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("rpc-error")) {
-			reply.addError(error);
-		} else if (localName.equalsIgnoreCase("error-type")) {
-			insideErrorTypeTag = false;
-			error.setType(ErrorType.getErrorTypeByValue(errorTypeTagContent.toString()));
-			errorTypeTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("error-tag")) {
-			insideErrorTagTag = false;
-			error.setTag(ErrorTag.getErrorTagByValue((errorTagTagContent.toString())));
-			errorTagTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("error-severity")) {
-			insideErrorSeverityTag = false;
-			error.setSeverity(ErrorSeverity.getErrorSeverityByValue(errorSeverityTagContent.toString()));
-			errorSeverityTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("error-app-tag")) {
-			insideErrorAppTagTag = false;
-			error.setAppTag(errorAppTagTagContent.toString());
-			errorAppTagTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("error-path")) {
-			insideErrorPathTag = false;
-			error.setPath(errorPathTagContent.toString());
-			errorPathTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("error-message")) {
-			insideErrorMessageTag = false;
-			error.setMessage(errorMessageTagContent.toString());
-			errorMessageTagContent = new StringBuffer();
-		} else if (localName.equalsIgnoreCase("error-info")) {
-			insideErrorInfoTag = false;
-			error.setInfo(errorInfoTagContent.toString());
-			errorInfoTagContent = new StringBuffer();
-		}
-
-		/* get extrafunctionalities */
-		else if (localName.equalsIgnoreCase("get-interface-information")) {
-			insideInterfaceInfoTag = false;
-			reply.setContain(interfaceInfoTagContent.toString());
-			reply.setContainName("get-interface-information");
-			interfaceInfoTagContent = new StringBuffer();
-		}
-
-		else if (localName.equalsIgnoreCase("software-information")) {
-			insideSoftwareInfoTag = false;
-			// software-information is the root node and leaving it in place
-			// makes gives us a well-formed XML document rather than multiple
-			// top-level nodes.
-			softwareInfoTagContent.append("</" + localName + ">");
-			reply.setContain(softwareInfoTagContent.toString());
-			reply.setContainName("software-information");
-			softwareInfoTagContent = new StringBuffer();
+			case RPC_REPLY:
+				messageQueue.put(reply);
+				reply = null;
+				break;
+			case DATA:
+				if (rawContent != null) {
+					state = State.NONE;
+					reply.setRawContain(rawContent);
+					rawContent = null;
+				} else {
+					reply.setContain(endContent());
+				}
+				reply.setContainName("data");
+				break;
+			case RPC_ERROR:
+				reply.addError(error);
+				break;
+			case ERROR_TYPE:
+				error.setType(ErrorType.getErrorTypeByValue(endContent()));
+				break;
+			case ERROR_TAG:
+				error.setTag(ErrorTag.getErrorTagByValue(endContent()));
+				break;
+			case ERROR_SEVERITY:
+				error.setSeverity(ErrorSeverity.getErrorSeverityByValue(endContent()));
+				break;
+			case ERROR_APP_TAG:
+				error.setAppTag(endContent());
+				break;
+			case ERROR_PATH:
+				error.setPath(endContent());
+				break;
+			case ERROR_MESSAGE:
+				error.setMessage(endContent());
+				break;
+			case ERROR_INFO:
+				error.setInfo(endContent());
+				break;
+
+			/* get extrafunctionalities */
+			case GET_INTERFACE_INFORMATION:
+				reply.setContain(endContent());
+				reply.setContainName("get-interface-information");
+				break;
+			case SOFTWARE_INFORMATION:
+				// software-information is the root node and leaving it in place
+				// makes gives us a well-formed XML document rather than multiple
+				// top-level nodes.
+				appendEndTag(localName);
+				reply.setContain(endContent());
+				reply.setContainName("software-information");
+				break;
+			default:
+				break;
 		}
 	}
 
@@ -463,4 +659,143 @@ public class ServerTransportContentParser extends DefaultHandler2 {
 		// super.fatalError(e);
 		log.warn(e.getMessage());
 	}
+
+	/**
+	 * Starts slicing current payload from recorded bytes, if possible
+	 */
+	private void startRawContent(String localName) {
+		// e.g. a repeated config element
+		discardRawContent();
+		rawStart = RawSubtreeLocator.NOT_FOUND;
+		if (recorder != null && recorder.isRecording()) {
+			rawStart = locator.findStart(elementDepth, localName);
+			if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+				log.debug("Payload start not found in recorded bytes, rebuilding it");
+			} else {
+				recorder.startCapture(locator, rawStart);
+			}
+		}
+	}
+
+	/**
+	 * Slices current payload, discarding recorded bytes no longer needed
+	 */
+	private void endRawContent(int depth) throws SAXException {
+		if (rawStart == RawSubtreeLocator.NOT_FOUND) {
+			return;
+		}
+		long rawEnd = locator.findEnd(depth);
+		if (rawEnd == RawSubtreeLocator.NOT_FOUND) {
+			// parser has already read the end tag, it must have been recorded
+			throw new SAXException("Payload end not found in recorded bytes");
+		}
+		rawStart = RawSubtreeLocator.NOT_FOUND;
+		try {
+			// declarations of payload elements are already out of scope, the ones of its container element and ancestors remain
+			rawContent = recorder.endCapture(rawEnd, payloadNamespaces());
+		} catch (IOException e) {
+			throw new SAXException("Error capturing payload", e);
+		}
+		recorder.discardBefore(locator.getPosition());
+	}
+
+	/**
+	 * 
+	 * @return prefixes in scope, except the default namespace
+	 */
+	private Map<String, String> payloadNamespaces() {
+		if (prefixes == null || prefixes.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> namespaces = new HashMap<String, String>(prefixes);
+		namespaces.remove("");
+		return namespaces;
+	}
+
+	/**
+	 * Releases a captured payload not set in any message
+	 */
+	private void discardRawContent() {
+		if (rawContent != null) {
+			recorder.discard(rawContent);
+			rawContent = null;
+		}
+	}
+
+	private void startContent(State newState) {
+		state = newState;
+		clearContent();
+		payloadDepth = 0;
+	}
+
+	/**
+	 * 
+	 * @return accumulated content, going back to {@link State#NONE}
+	 */
+	private String endContent() {
+		state = State.NONE;
+		return content.toString();
+	}
+
+	private void clearContent() {
+		if (content.capacity() > MAX_RETAINED_SIZE) {
+			content = new StringBuilder(INITIAL_CONTENT_SIZE);
+		} else {
+			content.setLength(0);
+		}
+	}
+
+	private void appendStartTag(String localName, Attributes attributes) {
+		content.append('<').append(localName);
+		for (int i = 0; i < attributes.getLength(); i++) {
+			content.append(' ').append(attributes.getQName(i)).append("=\"");
+			appendEscaped(attributes.getValue(i));
+			content.append('"');
+		}
+		content.append('>');
+	}
+
+	private void appendEndTag(String localName) {
+		content.append("</").append(localName).append('>');
+	}
+
+	private void appendEscaped(char[] ch, int start, int length) {
+		int end = start + length;
+		int unescaped = start;
+		for (int i = start; i < end; i++) {
+			String entity = entityOf(ch[i]);
+			if (entity != null) {
+				content.append(ch, unescaped, i - unescaped).append(entity);
+				unescaped = i + 1;
+			}
+		}
+		content.append(ch, unescaped, end - unescaped);
+	}
+
+	private void appendEscaped(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			String entity = entityOf(c);
+			if (entity != null) {
+				content.append(entity);
+			} else {
+				content.append(c);
+			}
+		}
+	}
+
+	private static String entityOf(char c) {
+		switch (c) {
+			case '&':
+				return "&amp;";
+			case '<':
+				return "&lt;";
+			case '>':
+				return "&gt;";
+			case '"':
+				return "&quot;";
+			default:
+				return null;
+		}
+	}
 }
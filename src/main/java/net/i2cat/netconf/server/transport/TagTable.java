@@ -0,0 +1,135 @@
+package net.i2cat.netconf.server.transport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.i2cat.netconf.rpc.Operation;
+
+/**
+ * Immutable lookup table of XML tags recognized by {@link ServerTransportContentParser}, keyed by namespace and case-folded
+ * local name. Tags registered without namespace match elements in any namespace.
+ */
+class TagTable {
+
+	/**
+	 * Tag handled by the parser
+	 */
+	enum Tag {
+		HELLO,
+		CAPABILITIES,
+		CAPABILITY,
+		SESSION_ID,
+		RPC,
+		OPERATION,
+		TARGET,
+		SOURCE,
+		CONFIG,
+		FILTER,
+		DEFAULT_OPERATION,
+		RPC_REPLY,
+		DATA,
+		OK,
+		RPC_ERROR,
+		ERROR_TYPE,
+		ERROR_TAG,
+		ERROR_SEVERITY,
+		ERROR_APP_TAG,
+		ERROR_PATH,
+		ERROR_MESSAGE,
+		ERROR_INFO,
+		INTERFACE_INFORMATION,
+		GET_INTERFACE_INFORMATION,
+		SOFTWARE_INFORMATION
+	}
+
+	/**
+	 * Table value: tag and, for operation tags, its {@link Operation}
+	 */
+	static class Entry {
+
+		private final Tag		tag;
+		private final Operation	operation;
+
+		Entry(Tag tag, Operation operation) {
+			this.tag = tag;
+			this.operation = operation;
+		}
+
+		Tag getTag() {
+			return tag;
+		}
+
+		Operation getOperation() {
+			return operation;
+		}
+	}
+
+	// tags matching any namespace
+	private final Map<String, Entry>				anyNamespace;
+	// namespace -> local name -> entry
+	private final Map<String, Map<String, Entry>>	byNamespace;
+
+	TagTable() {
+		this(new HashMap<String, Entry>(), new HashMap<String, Map<String, Entry>>());
+	}
+
+	private TagTable(Map<String, Entry> anyNamespace, Map<String, Map<String, Entry>> byNamespace) {
+		this.anyNamespace = anyNamespace;
+		this.byNamespace = byNamespace;
+	}
+
+	/**
+	 * Looks up an element
+	 *
+	 * @param namespace
+	 *            element namespace URI, may be empty
+	 * @param localName
+	 *            element local name, in any case
+	 * @return entry of the element or null if it is not a recognized tag
+	 */
+	Entry get(String namespace, String localName) {
+		// String.toLowerCase returns the same instance if it is already lower case
+		String key = localName.toLowerCase(Locale.ENGLISH);
+		if (!byNamespace.isEmpty() && namespace != null) {
+			Map<String, Entry> namespaceEntries = byNamespace.get(namespace);
+			if (namespaceEntries != null) {
+				Entry entry = namespaceEntries.get(key);
+				if (entry != null) {
+					return entry;
+				}
+			}
+		}
+		return anyNamespace.get(key);
+	}
+
+	/**
+	 * Creates a copy of this table including given tag, this table is not modified
+	 *
+	 * @param namespace
+	 *            namespace URI of the tag, or null to match any namespace
+	 * @param localName
+	 *            tag local name
+	 * @param entry
+	 *            tag entry
+	 * @return new table
+	 */
+	TagTable with(String namespace, String localName, Entry entry) {
+		String key = localName.toLowerCase(Locale.ENGLISH);
+
+		Map<String, Entry> newAnyNamespace = anyNamespace;
+		Map<String, Map<String, Entry>> newByNamespace = byNamespace;
+		if (namespace == null) {
+			newAnyNamespace = new HashMap<String, Entry>(anyNamespace);
+			newAnyNamespace.put(key, entry);
+		} else {
+			newByNamespace = new HashMap<String, Map<String, Entry>>(byNamespace);
+			Map<String, Entry> namespaceEntries = byNamespace.get(namespace);
+			namespaceEntries = namespaceEntries == null ? new HashMap<String, Entry>() : new HashMap<String, Entry>(namespaceEntries);
+			namespaceEntries.put(key, entry);
+			newByNamespace.put(namespace, Collections.unmodifiableMap(namespaceEntries));
+		}
+		return new TagTable(newAnyNamespace, newByNamespace);
+	}
+}
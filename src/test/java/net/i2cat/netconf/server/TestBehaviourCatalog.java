@@ -0,0 +1,82 @@
+package net.i2cat.netconf.server;
+
+import java.io.File;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link BehaviourCatalog}
+ */
+public class TestBehaviourCatalog {
+
+	private static final String	RPC	= "<rpc message-id=\"1\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">";
+
+	private File				directory;
+
+	@Before
+	public void createDirectory() throws Exception {
+		directory = File.createTempFile("netconf-catalog", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@After
+	public void deleteDirectory() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testCatalogIsReloaded() throws Exception {
+		write("01-candidate.query.xml", RPC + "<get-config><source><candidate/></source></get-config></rpc>");
+		write("01-candidate.reply.xml", "<rpc-reply message-id=\"${message-id}\"><data>candidate</data></rpc-reply>");
+		BehaviourCatalog catalog = new BehaviourCatalog(directory, 0);
+		catalog.defineBehaviour(new Behaviour(query(null), new Reply()));
+		catalog.start();
+
+		Assert.assertEquals(1, catalog.getSize());
+		Assert.assertEquals(2, catalog.getBehaviours().size());
+		Assert.assertEquals("<rpc-reply message-id=\"5\"><data>candidate</data></rpc-reply>", reply(catalog, "candidate"));
+		Assert.assertNotNull("Defined behaviour must be matched after catalog ones", reply(catalog, "running"));
+		Assert.assertFalse(catalog.reloadIfChanged());
+
+		write("02-running.query.xml", RPC + "<get-config><source><running/></source></get-config></rpc>");
+		write("02-running.reply.xml", "<rpc-reply message-id=\"${message-id}\"><data>running</data></rpc-reply>");
+		Assert.assertTrue(catalog.reloadIfChanged());
+		Assert.assertEquals(2, catalog.getReloads());
+		Assert.assertEquals(3, catalog.getBehaviours().size());
+		Assert.assertEquals("<rpc-reply message-id=\"5\"><data>running</data></rpc-reply>", reply(catalog, "running"));
+
+		// invalid files keep the previous catalog
+		write("03-invalid.query.xml", RPC + "<get-config>");
+		Assert.assertFalse(catalog.reloadIfChanged());
+		Assert.assertEquals(1, catalog.getFailedReloads());
+		Assert.assertEquals(3, catalog.getBehaviours().size());
+		catalog.stop();
+	}
+
+	private void write(String name, String content) throws Exception {
+		FileUtils.writeStringToFile(new File(directory, name), content, "UTF-8");
+	}
+
+	private static String reply(BehaviourCatalog catalog, String source) {
+		Query query = query(source);
+		query.setMessageId("5");
+		BehaviourMatch match = catalog.matchBehaviour(query, "1");
+		return match == null ? null : match.getReply().toString(query, "1");
+	}
+
+	private static Query query(String source) {
+		Query query = new Query();
+		query.setOperation(Operation.GET_CONFIG);
+		query.setSource(source);
+		return query;
+	}
+}
@@ -0,0 +1,97 @@
+package net.i2cat.netconf.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.matcher.DatastoreMatcher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link IndexedBehaviourContainer}
+ */
+public class TestIndexedBehaviourContainer {
+
+	@Test
+	public void testBehavioursAreMatchedInDefinitionOrder() {
+		IndexedBehaviourContainer container = new IndexedBehaviourContainer();
+		Behaviour first = new Behaviour(query(Operation.GET_CONFIG), new Reply(), true);
+		Behaviour second = new Behaviour(query(Operation.GET_CONFIG), new Reply());
+		Behaviour other = new Behaviour(query(Operation.LOCK), new Reply());
+		container.defineBehaviour(first);
+		container.defineBehaviour(other);
+		container.defineBehaviour(second);
+
+		Assert.assertSame(first, match(container, query(Operation.GET_CONFIG)));
+		Assert.assertSame("Consumed behaviour must not match again", second, match(container, query(Operation.GET_CONFIG)));
+		Assert.assertSame(second, match(container, query(Operation.GET_CONFIG)));
+		Assert.assertSame(other, match(container, query(Operation.LOCK)));
+		Assert.assertNull(match(container, query(Operation.UNLOCK)));
+		Assert.assertEquals(2, container.getBehaviours().size());
+	}
+
+	@Test
+	public void testBehavioursWithMatcher() {
+		IndexedBehaviourContainer container = new IndexedBehaviourContainer();
+		Behaviour candidate = new Behaviour(query(Operation.GET_CONFIG), new Reply(), true, new DatastoreMatcher(
+				DatastoreMatcher.Parameter.SOURCE, "candidate"));
+		Behaviour fallback = new Behaviour(query(Operation.GET_CONFIG), new Reply());
+		container.defineBehaviour(candidate);
+		container.defineBehaviour(fallback);
+
+		Query running = query(Operation.GET_CONFIG);
+		running.setSource("running");
+		Assert.assertSame("Unmatched behaviour must not be consumed", fallback, match(container, running));
+		Query query = query(Operation.GET_CONFIG);
+		query.setSource("candidate");
+		Assert.assertSame(candidate, match(container, query));
+		Assert.assertSame(fallback, match(container, query));
+	}
+
+	@Test
+	public void testConsumedBehavioursAreClaimedOnce() throws Exception {
+		final IndexedBehaviourContainer container = new IndexedBehaviourContainer();
+		final int behaviours = 10000;
+		for (int i = 0; i < behaviours; i++) {
+			container.defineBehaviour(new Behaviour(query(Operation.GET_CONFIG), new Reply(), true));
+		}
+
+		// several sessions matching queries concurrently
+		final AtomicInteger matched = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					while (match(container, query(Operation.GET_CONFIG)) != null) {
+						matched.incrementAndGet();
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertEquals(behaviours, matched.get());
+		Assert.assertTrue(container.getBehaviours().isEmpty());
+	}
+
+	private static Behaviour match(IndexedBehaviourContainer container, Query query) {
+		BehaviourMatch match = container.matchBehaviour(query, "1");
+		return match == null ? null : match.getBehaviour();
+	}
+
+	private static Query query(Operation operation) {
+		Query query = new Query();
+		query.setOperation(operation);
+		return query;
+	}
+}
@@ -0,0 +1,51 @@
+package net.i2cat.netconf.server;
+
+import java.io.ByteArrayOutputStream;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link ReplyTemplate}
+ */
+public class TestReplyTemplate {
+
+	@Test
+	public void testVariablesAreFilled() throws Exception {
+		ReplyTemplate template = ReplyTemplate.compile("<rpc-reply message-id=\"${message-id}\"><data session=\"${session-id}\">" +
+				"<target>${target}</target><name>${config:/configuration/interface/name}</name><n>${counter}</n>" +
+				"<literal>$${target}</literal></data></rpc-reply>");
+
+		Query query = new Query();
+		query.setOperation(Operation.EDIT_CONFIG);
+		query.setMessageId("a&b");
+		query.setTarget("running");
+		query.setConfig("<configuration><interface><name>ge-0/0/0</name></interface></configuration>");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		template.writeTo(out, query, "5");
+		template.writeTo(out, query, "5");
+		String expected = "<rpc-reply message-id=\"a&amp;b\"><data session=\"5\"><target>running</target><name>ge-0/0/0</name>" +
+				"<n>%d</n><literal>${target}</literal></data></rpc-reply>";
+		Assert.assertEquals(String.format(expected, 1) + String.format(expected, 2), out.toString("UTF-8"));
+		Assert.assertEquals(String.format(expected, 2), template.toString(query, "5"));
+
+		query.setConfig(null);
+		Assert.assertTrue("Missing payload must be written empty", template.toString(query, "5").contains("<name></name>"));
+	}
+
+	@Test
+	public void testInvalidTemplates() {
+		for (String invalid : new String[] { "<ok>${message-id</ok>", "<ok>${unknown}</ok>", "<ok>${config:/a[}</ok>" }) {
+			try {
+				ReplyTemplate.compile(invalid);
+				Assert.fail("Template must be rejected: " + invalid);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
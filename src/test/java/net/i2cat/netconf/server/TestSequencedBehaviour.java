@@ -0,0 +1,111 @@
+package net.i2cat.netconf.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.SequencedBehaviour.Scope;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link SequencedBehaviour}
+ */
+public class TestSequencedBehaviour {
+
+	private static final PreparedReply	FIRST	= SerializedReply.serialize(new Reply());
+	private static final PreparedReply	SECOND	= SerializedReply.serialize(new Reply());
+	private static final PreparedReply	THIRD	= SerializedReply.serialize(new Reply());
+
+	@Test
+	public void testOrderedRepliesPerSession() {
+		IndexedBehaviourContainer container = new IndexedBehaviourContainer();
+		container.defineBehaviour(SequencedBehaviour.ordered(query(), null, Scope.SESSION, true, FIRST, SECOND));
+
+		Assert.assertSame(FIRST, reply(container, "1"));
+		Assert.assertSame(FIRST, reply(container, "2"));
+		Assert.assertSame(SECOND, reply(container, "1"));
+		Assert.assertNull("Sequence of session must be consumed", reply(container, "1"));
+		Assert.assertSame(SECOND, reply(container, "2"));
+		Assert.assertEquals(1, container.getBehaviours().size());
+	}
+
+	@Test
+	public void testSessionCallsAreDiscardedOnSessionEnd() {
+		SequencedBehaviour behaviour = SequencedBehaviour.ordered(query(), null, Scope.SESSION, false, FIRST, SECOND);
+		behaviour.claimReply("1");
+		behaviour.claimReply("1");
+		behaviour.claimReply("2");
+		Assert.assertEquals(2, behaviour.getCalls("1"));
+
+		behaviour.endSession("1");
+		Assert.assertEquals(0, behaviour.getCalls("1"));
+		Assert.assertEquals("Calls of other sessions must be kept", 1, behaviour.getCalls("2"));
+	}
+
+	@Test
+	public void testNthCallFallsThrough() {
+		IndexedBehaviourContainer container = new IndexedBehaviourContainer();
+		container.defineBehaviour(SequencedBehaviour.nthCall(query(), null, Scope.GLOBAL, true, THIRD, 3));
+		container.defineBehaviour(new Behaviour(query(), new Reply()));
+
+		PreparedReply fallback = container.getBehaviours().get(1).getPreparedReply();
+		Assert.assertSame(fallback, reply(container, "1"));
+		Assert.assertSame(fallback, reply(container, "2"));
+		Assert.assertSame(THIRD, reply(container, "1"));
+		Assert.assertSame(fallback, reply(container, "1"));
+		Assert.assertEquals("Behaviour must be removed after its last call", 1, container.getBehaviours().size());
+	}
+
+	@Test
+	public void testConcurrentRoundRobin() throws Exception {
+		final SequencedBehaviour behaviour = SequencedBehaviour.roundRobin(query(), null, Scope.GLOBAL, FIRST, SECOND, THIRD);
+		final int calls = 30000;
+		final AtomicInteger[] counts = { new AtomicInteger(), new AtomicInteger(), new AtomicInteger() };
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < calls / 4; i++) {
+						PreparedReply reply = behaviour.claimReply("1");
+						counts[reply == FIRST ? 0 : reply == SECOND ? 1 : 2].incrementAndGet();
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertEquals(calls, behaviour.getCalls(null));
+		for (AtomicInteger count : counts) {
+			Assert.assertEquals("Replies must be rotated evenly", calls / 3, count.get());
+		}
+	}
+
+	@Test
+	public void testWeightedRandom() {
+		SequencedBehaviour behaviour = SequencedBehaviour.weightedRandom(query(), null, new int[] { 0, 1 }, FIRST, SECOND);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertSame(SECOND, behaviour.claimReply("1"));
+		}
+	}
+
+	private static PreparedReply reply(IndexedBehaviourContainer container, String sessionId) {
+		BehaviourMatch match = container.matchBehaviour(query(), sessionId);
+		return match == null ? null : match.getReply();
+	}
+
+	private static Query query() {
+		Query query = new Query();
+		query.setOperation(Operation.COMMIT);
+		return query;
+	}
+}
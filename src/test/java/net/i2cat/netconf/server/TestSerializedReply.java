@@ -0,0 +1,55 @@
+package net.i2cat.netconf.server;
+
+import java.io.ByteArrayOutputStream;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.netconf.ReplyWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link SerializedReply}
+ */
+public class TestSerializedReply {
+
+	@Test
+	public void testMessageIdIsSpliced() throws Exception {
+		Reply reply = new Reply();
+		reply.setMessageId("1");
+		reply.setOk(true);
+		SerializedReply serialized = SerializedReply.serialize(reply);
+
+		Assert.assertTrue(serialized.hasMessageIdSlot());
+		Assert.assertEquals("Reply must not be modified", "1", reply.getMessageId());
+
+		reply.setMessageId("42");
+		Assert.assertEquals(reply.toXML(), serialized.toString(query("42"), "1"));
+		reply.setMessageId("a&\"b");
+		Assert.assertEquals(reply.toXML().replace("a&\"b", "a&amp;&quot;b"), serialized.toString(query("a&\"b"), "1"));
+	}
+
+	@Test
+	public void testWrittenWithFraming() throws Exception {
+		Reply reply = new Reply();
+		reply.setOk(true);
+		SerializedReply serialized = SerializedReply.serialize(reply);
+		reply.setMessageId("7");
+		String xml = reply.toXML();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ReplyWriter writer = new ReplyWriter(out, FlushPolicy.immediate());
+		writer.write(serialized, query("7"), "1");
+		writer.setChunkedFraming(true);
+		writer.write(serialized, query("7"), "1");
+
+		Assert.assertEquals(xml + "]]>]]>\n" + "\n#" + xml.getBytes("UTF-8").length + "\n" + xml + "\n##\n", out.toString("UTF-8"));
+	}
+
+	private static Query query(String messageId) {
+		Query query = new Query();
+		query.setMessageId(messageId);
+		return query;
+	}
+}
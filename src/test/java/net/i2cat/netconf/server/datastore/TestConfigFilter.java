@@ -0,0 +1,136 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import net.i2cat.netconf.messageQueue.MessageQueue;
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.transport.ParserPool;
+import net.i2cat.netconf.server.transport.ParserPool.PooledParser;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit Tests for {@link ConfigFilter}
+ */
+public class TestConfigFilter {
+
+	private static final int	INTERFACES	= 20;
+
+	private Datastores			datastores;
+
+	@Before
+	public void setUp() {
+		StringBuilder config = new StringBuilder("<configuration xmlns=\"urn:jnx\"><interfaces>");
+		for (int i = 0; i < INTERFACES; i++) {
+			config.append("<interface><name>ge-0/0/").append(i).append("</name><description>port ").append(i)
+					.append("</description><mtu>").append(i % 2 == 0 ? 1500 : 9000).append("</mtu></interface>");
+		}
+		config.append("</interfaces><system><host-name>router</host-name></system></configuration>");
+		datastores = new Datastores(config.toString());
+	}
+
+	@Test
+	public void testSubtreeFilter() {
+		// containment with a key content match and a selection node
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/7</name>" +
+				"<description>port 7</description></interface></interfaces></configuration>",
+				getConfig("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/7</name><description/>" +
+						"</interface></interfaces></configuration>"));
+
+		// content match nodes alone select whole entries, filter elements without namespace match any namespace
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/3</name>" +
+				"<description>port 3</description><mtu>9000</mtu></interface></interfaces></configuration>",
+				getConfig("<configuration><interfaces><interface><name> ge-0/0/3 </name><mtu>9000</mtu></interface>" +
+						"</interfaces></configuration>"));
+
+		// non key content matches visit every entry
+		String mtus = getConfig("<configuration><interfaces><interface><mtu>1500</mtu><name/></interface></interfaces>" +
+				"</configuration>");
+		Assert.assertTrue(mtus.contains("<interface><name>ge-0/0/18</name><mtu>1500</mtu></interface>"));
+		Assert.assertFalse(mtus.contains("ge-0/0/19"));
+
+		// several filter elements selecting the same element
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><system><host-name>router</host-name></system></configuration>",
+				getConfig("<configuration xmlns=\"urn:jnx\"><system/><system><host-name/></system></configuration>"));
+	}
+
+	@Test
+	public void testNothingSelected() {
+		Assert.assertEquals("", getConfig(""));
+		Assert.assertEquals("", getConfig("<configuration xmlns=\"urn:other\"/>"));
+		Assert.assertEquals("", getConfig("<configuration><interfaces><interface><name>ge-0/0/99</name><description/>" +
+				"</interface></interfaces></configuration>"));
+		Assert.assertEquals("", getConfig("<configuration><system><host-name>other</host-name></system></configuration>"));
+	}
+
+	@Test
+	public void testXPathFilter() {
+		RawQuery query = query(null);
+		query.setFilterType(ConfigFilter.XPATH);
+		query.setFilterSelect("/j:configuration/j:interfaces/j:interface[j:name='ge-0/0/5']/j:description | " +
+				"/j:configuration/j:system/j:host-name/text()");
+		query.setFilterNamespaces(Collections.singletonMap("j", "urn:jnx"));
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/5</name>" +
+				"<description>port 5</description></interface></interfaces><system><host-name>router</host-name></system>" +
+				"</configuration>", datastores.process(query).getContain());
+
+		// without prefixes, elements in a namespace are not selected
+		query.setFilterNamespaces(Collections.<String, String> emptyMap());
+		query.setFilterSelect("/configuration");
+		Assert.assertEquals("", datastores.process(query).getContain());
+
+		query.setFilterSelect("/j:configuration[");
+		Reply reply = datastores.process(query);
+		Assert.assertEquals(1, reply.getErrors().size());
+		Assert.assertEquals(ErrorTag.INVALID_VALUE, reply.getErrors().get(0).getTag());
+	}
+
+	@Test
+	public void testPrefixesDeclaredByMessage() throws Exception {
+		// payloads use prefixes declared by their ancestors, base prefixes may be redeclared
+		Query query = parse("<rpc message-id=\"1\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\" xmlns:j=\"urn:jnx\">" +
+				"<get-config><source><running/></source><filter type=\"subtree\"><j:configuration><j:system/></j:configuration>" +
+				"</filter></get-config></rpc>");
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><system><host-name>router</host-name></system></configuration>",
+				datastores.process(query).getContain());
+
+		query = parse("<rpc message-id=\"2\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\" xmlns:j=\"urn:jnx\">" +
+				"<edit-config xmlns:nc=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><target><running/></target><config>" +
+				"<j:configuration><j:system nc:operation=\"delete\"/></j:configuration></config></edit-config></rpc>");
+		Reply reply = datastores.process(query);
+		Assert.assertTrue(reply.getErrors().isEmpty());
+		Assert.assertEquals("", getConfig("<configuration><system/></configuration>"));
+	}
+
+	private String getConfig(String filter) {
+		Reply reply = datastores.process(query(filter));
+		Assert.assertTrue(reply.getErrors().isEmpty());
+		return reply.getContain();
+	}
+
+	private static Query parse(String xml) throws Exception {
+		ParserPool pool = new ParserPool(1);
+		PooledParser parser = pool.borrow();
+		MessageQueue queue = new MessageQueue();
+		parser.getHandler().setMessageQueue(queue);
+		parser.getReader().parse(new InputSource(parser.getRecorder().record(new ByteArrayInputStream(xml.getBytes("UTF-8")))));
+		pool.release(parser);
+		return (Query) queue.blockingConsume();
+	}
+
+	private static RawQuery query(String filter) {
+		RawQuery query = new RawQuery();
+		query.setOperation(Operation.GET_CONFIG);
+		query.setMessageId("1");
+		query.setFilter(filter);
+		return query;
+	}
+}
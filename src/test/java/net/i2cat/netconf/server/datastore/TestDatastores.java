@@ -0,0 +1,234 @@
+package net.i2cat.netconf.server.datastore;
+
+import java.io.File;
+
+import net.i2cat.netconf.rpc.ErrorTag;
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link Datastores}
+ */
+public class TestDatastores {
+
+	private static final String	CONFIG	= "<configuration xmlns=\"urn:jnx\"><interfaces>" +
+												"<interface><name>ge-0/0/1</name><description>uplink</description></interface>" +
+												"<interface><name>ge-0/0/2</name><description>backup</description></interface>" +
+												"</interfaces><system><host-name>router</host-name></system></configuration>";
+
+	@Test
+	public void testEditConfigOperations() {
+		Datastores datastores = new Datastores(CONFIG);
+		ConfigNode original = datastores.getCandidate().getConfig();
+
+		// merge changes a leaf and adds a list entry
+		assertOk(datastores.process(editConfig("<configuration xmlns=\"urn:jnx\"><interfaces>" +
+				"<interface><name>ge-0/0/2</name><description>spare &amp; backup</description></interface>" +
+				"<interface><name>ge-0/0/3</name></interface></interfaces></configuration>")));
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><interfaces>" +
+				"<interface><name>ge-0/0/1</name><description>uplink</description></interface>" +
+				"<interface><name>ge-0/0/2</name><description>spare &amp; backup</description></interface>" +
+				"<interface><name>ge-0/0/3</name></interface>" +
+				"</interfaces><system><host-name>router</host-name></system></configuration>", getConfig(datastores, "candidate"));
+
+		// replace, delete and create with the operation attribute
+		assertOk(datastores.process(editConfig("<configuration xmlns=\"urn:jnx\" xmlns:nc=\"" + ConfigParser.NETCONF_NAMESPACE +
+				"\"><interfaces><interface nc:operation=\"replace\"><name>ge-0/0/1</name></interface>" +
+				"<interface xc:operation=\"delete\"><name>ge-0/0/3</name></interface></interfaces>" +
+				"<system><location nc:operation=\"create\">lab</location></system></configuration>")));
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><interfaces>" + "<interface><name>ge-0/0/1</name></interface>" +
+				"<interface><name>ge-0/0/2</name><description>spare &amp; backup</description></interface>" +
+				"</interfaces><system><host-name>router</host-name><location>lab</location></system></configuration>",
+				getConfig(datastores, "candidate"));
+
+		// failed edits do not change the datastore
+		long version = datastores.getCandidate().getVersion();
+		assertError(ErrorTag.DATA_MISSING, datastores.process(editConfig("<configuration xmlns=\"urn:jnx\">" +
+				"<system><host-name nc:operation=\"delete\"/></system>" +
+				"<interfaces><interface nc:operation=\"delete\"><name>ge-0/0/9</name></interface></interfaces></configuration>")));
+		assertError(ErrorTag.DATA_EXISTS, datastores.process(editConfig("<configuration xmlns=\"urn:jnx\">" +
+				"<system nc:operation=\"create\"/></configuration>")));
+		assertError(ErrorTag.INVALID_VALUE, datastores.process(editConfig("<configuration>")));
+		Assert.assertEquals(version, datastores.getCandidate().getVersion());
+
+		// running and snapshots taken before the edits are not modified
+		Assert.assertEquals(CONFIG, getConfig(datastores, "running"));
+		Assert.assertEquals(CONFIG, original.childrenToXML());
+	}
+
+	@Test
+	public void testCopyCommitAndDelete() {
+		Datastores datastores = new Datastores(CONFIG);
+		assertOk(datastores.process(editConfig("<configuration xmlns=\"urn:jnx\"><system><host-name>edited</host-name>" +
+				"</system></configuration>")));
+		Assert.assertTrue(getConfig(datastores, "running").contains("<host-name>router</host-name>"));
+
+		assertOk(datastores.process(query(Operation.COMMIT, null, null)));
+		Assert.assertTrue(getConfig(datastores, "running").contains("<host-name>edited</host-name>"));
+
+		assertOk(datastores.process(query(Operation.COPY_CONFIG, "startup", "running")));
+		Assert.assertEquals(getConfig(datastores, "running"), getConfig(datastores, "startup"));
+
+		assertOk(datastores.process(query(Operation.DELETE_CONFIG, "startup", null)));
+		Assert.assertEquals("", getConfig(datastores, "startup"));
+		assertError(ErrorTag.OPERATION_FAILED, datastores.process(query(Operation.DELETE_CONFIG, "running", null)));
+		assertError(ErrorTag.INVALID_VALUE, datastores.process(query(Operation.GET_CONFIG, null, "url")));
+
+		Assert.assertNull("Other operations are not processed", datastores.process(query(Operation.GET_ROUTE_INFO, null, null)));
+	}
+
+	@Test
+	public void testDefaultOperation() {
+		Datastores datastores = new Datastores(CONFIG);
+		String system = "<configuration xmlns=\"urn:jnx\"><system><host-name>edited</host-name></system></configuration>";
+
+		// none only applies operations set in the config
+		assertOk(datastores.process(editConfig(system, "none")));
+		Assert.assertEquals(CONFIG, getConfig(datastores, "candidate"));
+		assertOk(datastores.process(editConfig("<configuration xmlns=\"urn:jnx\" xmlns:nc=\"" + ConfigParser.NETCONF_NAMESPACE +
+				"\"><interfaces><interface nc:operation=\"delete\"><name>ge-0/0/2</name></interface></interfaces>" +
+				"</configuration>", "none")));
+		Assert.assertFalse(getConfig(datastores, "candidate").contains("ge-0/0/2"));
+
+		// replace replaces the whole configuration
+		assertOk(datastores.process(editConfig(system, "replace")));
+		Assert.assertEquals(system, getConfig(datastores, "candidate"));
+
+		assertError(ErrorTag.INVALID_VALUE, datastores.process(editConfig(system, "delete")));
+		Assert.assertEquals(system, getConfig(datastores, "candidate"));
+	}
+
+	@Test
+	public void testReplaceAppliesElementOperations() {
+		Datastores datastores = new Datastores(CONFIG);
+		String nc = " xmlns:nc=\"" + ConfigParser.NETCONF_NAMESPACE + "\"";
+
+		assertOk(datastores.process(editConfig("<configuration xmlns=\"urn:jnx\"" + nc + "><interfaces>" +
+				"<interface nc:operation=\"delete\"><name>ge-0/0/1</name></interface>" +
+				"<interface nc:operation=\"remove\"><name>ge-0/0/7</name></interface>" +
+				"<interface><name>ge-0/0/9</name></interface></interfaces></configuration>", "replace")));
+		Assert.assertEquals("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/9</name></interface>" +
+				"</interfaces></configuration>", getConfig(datastores, "candidate"));
+
+		String replaced = getConfig(datastores, "candidate");
+		assertError(ErrorTag.DATA_EXISTS, datastores.process(editConfig("<configuration xmlns=\"urn:jnx\"" + nc + "><interfaces>" +
+				"<interface nc:operation=\"create\"><name>ge-0/0/9</name></interface></interfaces></configuration>", "replace")));
+		assertError(ErrorTag.DATA_MISSING, datastores.process(editConfig("<configuration xmlns=\"urn:jnx\"" + nc + "><interfaces>" +
+				"<interface nc:operation=\"delete\"><name>ge-0/0/1</name></interface></interfaces></configuration>", "replace")));
+		Assert.assertEquals(replaced, getConfig(datastores, "candidate"));
+	}
+
+	@Test
+	public void testCopyInlineConfig() {
+		Datastores datastores = new Datastores(CONFIG);
+		String system = "<configuration xmlns=\"urn:jnx\"><system><host-name>copied</host-name></system></configuration>";
+		Query query = query(Operation.COPY_CONFIG, "startup", null);
+		query.setConfig(system);
+		assertOk(datastores.process(query));
+		Assert.assertEquals(system, getConfig(datastores, "startup"));
+		Assert.assertEquals(CONFIG, getConfig(datastores, "running"));
+	}
+
+	@Test
+	public void testRawConfigIsStreamed() throws Exception {
+		Datastores datastores = new Datastores(CONFIG);
+		File file = File.createTempFile("netconf-config", ".xml");
+		FileUtils.writeStringToFile(file, "<configuration xmlns=\"urn:jnx\"><system><host-name>r\u00e9seau</host-name></system>" +
+				"</configuration>", "UTF-8");
+		RawContent config = RawContent.fromFile(file);
+
+		RawQuery query = new RawQuery();
+		query.setOperation(Operation.EDIT_CONFIG);
+		query.setMessageId("1");
+		query.setTarget("candidate");
+		query.setRawConfig(config);
+		assertOk(datastores.process(query));
+		Assert.assertTrue(getConfig(datastores, "candidate").contains("<host-name>r\u00e9seau</host-name>"));
+
+		// the config was not decoded and kept in the query
+		config.release();
+		Assert.assertFalse(file.exists());
+		try {
+			query.getConfig();
+			Assert.fail("Released config must not be readable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentEditsAreNotLost() throws Exception {
+		final Datastores datastores = new Datastores(CONFIG);
+		final int edits = 500;
+		Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; w++) {
+			final int writer = w;
+			writers[w] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < edits; i++) {
+						datastores.getRunning().edit(
+								Datastores.parse("<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>w" + writer + "-" +
+										i + "</name></interface></interfaces></configuration>"), EditOperation.MERGE);
+					}
+				}
+			};
+			writers[w].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		ConfigNode interfaces = datastores.getRunning().getConfig().getChildren().get(0).getChildren().get(0);
+		Assert.assertEquals(2 + writers.length * edits, interfaces.getChildren().size());
+		Assert.assertEquals(writers.length * edits, datastores.getRunning().getVersion());
+	}
+
+	private static String getConfig(Datastores datastores, String source) {
+		Reply reply = datastores.process(query(Operation.GET_CONFIG, null, source));
+		Assert.assertTrue(reply.getErrors().isEmpty());
+		return reply.getContain();
+	}
+
+	private static Query editConfig(String config) {
+		Query query = query(Operation.EDIT_CONFIG, "candidate", null);
+		query.setConfig(config);
+		return query;
+	}
+
+	private static Query editConfig(String config, String defaultOperation) {
+		RawQuery query = new RawQuery();
+		query.setOperation(Operation.EDIT_CONFIG);
+		query.setMessageId("1");
+		query.setTarget("candidate");
+		query.setConfig(config);
+		query.setDefaultOperation(defaultOperation);
+		return query;
+	}
+
+	private static Query query(Operation operation, String target, String source) {
+		Query query = new Query();
+		query.setOperation(operation);
+		query.setMessageId("1");
+		query.setTarget(target);
+		query.setSource(source);
+		return query;
+	}
+
+	private static void assertOk(Reply reply) {
+		Assert.assertTrue("Reply must be OK: " + reply.toXML(), reply.isOk());
+	}
+
+	private static void assertError(ErrorTag errorTag, Reply reply) {
+		Assert.assertEquals(1, reply.getErrors().size());
+		Assert.assertEquals(errorTag, reply.getErrors().get(0).getTag());
+	}
+}
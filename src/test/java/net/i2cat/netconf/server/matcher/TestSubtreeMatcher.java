@@ -0,0 +1,47 @@
+package net.i2cat.netconf.server.matcher;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link SubtreeMatcher}
+ */
+public class TestSubtreeMatcher {
+
+	private static final String	FILTER	= "<configuration xmlns=\"urn:jnx\"><interfaces>" +
+												"<interface><name>ge-0/0/0</name></interface>" +
+												"<interface unit=\"1\"><name>ge-0/0/1</name><description>uplink</description></interface>" +
+												"</interfaces></configuration>";
+
+	@Test
+	public void testSubtreeIsContained() {
+		MatchContext context = new MatchContext(query(FILTER));
+
+		Assert.assertTrue(new SubtreeMatcher(Payload.FILTER, "<configuration><interfaces><interface><name>ge-0/0/1</name>" +
+				"</interface></interfaces></configuration>").matches(context));
+		Assert.assertTrue(new SubtreeMatcher(Payload.FILTER, "<configuration xmlns=\"urn:jnx\"><interfaces>" +
+				"<interface unit=\"1\"><description> uplink </description></interface></interfaces></configuration>").matches(context));
+	}
+
+	@Test
+	public void testSubtreeIsNotContained() {
+		MatchContext context = new MatchContext(query(FILTER));
+
+		Assert.assertFalse("Text must match", new SubtreeMatcher(Payload.FILTER, "<configuration><interfaces><interface>" +
+				"<name>ge-0/0/2</name></interface></interfaces></configuration>").matches(context));
+		Assert.assertFalse("Namespace must match", new SubtreeMatcher(Payload.FILTER, "<configuration xmlns=\"urn:other\"/>")
+				.matches(context));
+		Assert.assertFalse("Attributes must match", new SubtreeMatcher(Payload.FILTER, "<configuration><interfaces>" +
+				"<interface unit=\"2\"/></interfaces></configuration>").matches(context));
+		Assert.assertFalse("Config must not be inspected", new SubtreeMatcher(Payload.CONFIG, "<configuration/>").matches(context));
+	}
+
+	private static Query query(String filter) {
+		Query query = new Query();
+		query.setFilter(filter);
+		return query;
+	}
+}
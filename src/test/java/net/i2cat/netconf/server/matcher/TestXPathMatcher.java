@@ -0,0 +1,93 @@
+package net.i2cat.netconf.server.matcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.server.matcher.MatchContext.Payload;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link XPathMatcher}
+ */
+public class TestXPathMatcher {
+
+	private static final String	CONFIG	= "<configuration xmlns=\"urn:jnx\"><interfaces><interface><name>ge-0/0/0</name>" +
+												"<disable/></interface></interfaces></configuration>";
+
+	@Test
+	public void testNamespacedConfig() {
+		XPathMatcher matcher = new XPathMatcher(Payload.CONFIG, "/j:configuration/j:interfaces/j:interface[j:name='ge-0/0/0']/j:disable",
+				Collections.singletonMap("j", "urn:jnx"));
+
+		Assert.assertTrue(matcher.matches(new MatchContext(query(CONFIG))));
+		Assert.assertFalse(matcher.matches(new MatchContext(query(CONFIG.replace("ge-0/0/0", "ge-0/0/1")))));
+		Assert.assertFalse("Queries without config must not match", matcher.matches(new MatchContext(query(null))));
+	}
+
+	@Test
+	public void testFragmentConfig() {
+		XPathMatcher matcher = new XPathMatcher(Payload.CONFIG, "count(/fragment/unit) = 2");
+
+		Assert.assertTrue(matcher.matches(new MatchContext(query("<unit>0</unit><unit>1</unit>"))));
+		Assert.assertFalse(matcher.matches(new MatchContext(query("<unit>0</unit>"))));
+	}
+
+	@Test
+	public void testPrefixesDeclaredByMessage() throws Exception {
+		// <rpc xmlns:j="urn:jnx"><edit-config><config><j:configuration>...
+		RawQuery query = new RawQuery();
+		query.setRawConfig(RawContent.fromBytes("<j:configuration><j:system/></j:configuration>".getBytes("UTF-8"),
+				Collections.singletonMap("j", "urn:jnx")));
+		MatchContext context = new MatchContext(query);
+
+		Assert.assertTrue(new XPathMatcher(Payload.CONFIG, "/n:configuration/n:system", Collections.singletonMap("n", "urn:jnx"))
+				.matches(context));
+		Assert.assertEquals(1, context.getElements(Payload.CONFIG).size());
+	}
+
+	@Test
+	public void testConcurrentEvaluation() throws Exception {
+		final XPathMatcher matcher = new XPathMatcher(Payload.CONFIG, "string(/j:configuration/j:interfaces/j:interface/j:name)",
+				Collections.singletonMap("j", "urn:jnx"));
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final String name = "ge-0/0/" + t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					MatchContext context = new MatchContext(query(CONFIG.replace("ge-0/0/0", name)));
+					for (int i = 0; i < 500; i++) {
+						String value = matcher.evaluate(context.getDocument(Payload.CONFIG));
+						if (!name.equals(value)) {
+							failures.add(value);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals("Evaluations must not interfere", Collections.<String> emptyList(), failures);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidExpression() {
+		new XPathMatcher(Payload.FILTER, "/configuration[");
+	}
+
+	private static Query query(String config) {
+		Query query = new Query();
+		query.setConfig(config);
+		return query;
+	}
+}
@@ -0,0 +1,218 @@
+package net.i2cat.netconf.server.netconf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.Behaviour;
+import net.i2cat.netconf.server.BehaviourContainer;
+import net.i2cat.netconf.server.ExecutionModel;
+import net.i2cat.netconf.server.FlushPolicy;
+import net.i2cat.netconf.server.IndexedBehaviourContainer;
+import net.i2cat.netconf.server.datastore.Datastores;
+
+import org.apache.sshd.server.ExitCallback;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link NetconfProcessor}
+ */
+public class TestNetconfProcessor {
+
+	private static final String	EOM		= "]]>]]>";
+
+	private static final String	HELLO	= "<hello xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><capabilities>" +
+												"<capability>urn:ietf:params:netconf:base:1.0</capability></capabilities></hello>";
+
+	@Test
+	public void testPipelinedBarrierInSingleThreadPool() throws Exception {
+		String input = HELLO + EOM +
+				"<rpc message-id=\"1\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><get-config><source><running/></source>" +
+				"</get-config></rpc>" + EOM +
+				"<rpc message-id=\"2\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><close-session/></rpc>" + EOM;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final CountDownLatch exited = new CountDownLatch(1);
+		final CountDownLatch received = new CountDownLatch(3);
+
+		NetconfProcessor processor = new NetconfProcessor(new ByteArrayInputStream(input.getBytes("UTF-8")), out,
+				new ByteArrayOutputStream(), exitCallback(exited)) {
+			@Override
+			public void receiveRPCElement(RPCElement element) {
+				super.receiveRPCElement(element);
+				received.countDown();
+			}
+		};
+
+		// the only message thread is busy until all messages are queued, so close-session is drained while get-config is queued
+		ExecutionModel executionModel = ExecutionModel.sharedPool(1);
+		executionModel.getMessageExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					received.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		processor.setExecutionModel(executionModel);
+		processor.setBehaviors(new IndexedBehaviourContainer());
+		processor.setFlushPolicy(FlushPolicy.immediate());
+		processor.setMaxInFlight(8);
+		try {
+			new Thread(processor).start();
+			Assert.assertTrue("Session must end", exited.await(10, TimeUnit.SECONDS));
+		} finally {
+			executionModel.shutdown();
+		}
+
+		String output = out.toString("UTF-8");
+		int getConfigReply = output.indexOf("message-id=\"1\"");
+		int closeSessionReply = output.indexOf("message-id=\"2\"");
+		Assert.assertTrue("Get-config must be replied", getConfigReply > 0);
+		Assert.assertTrue("Close-session must be replied after get-config", closeSessionReply > getConfigReply);
+		Assert.assertTrue(output.substring(closeSessionReply).contains("ok"));
+	}
+
+	@Test
+	public void testPipelinedEditsAreSeenByLaterQueries() throws Exception {
+		int edits = 50;
+		StringBuilder input = new StringBuilder(HELLO).append(EOM);
+		for (int i = 0; i < edits; i++) {
+			input.append("<rpc message-id=\"e").append(i).append("\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">")
+					.append("<edit-config><target><running/></target><config><configuration><host-name>edit-").append(i)
+					.append("</host-name></configuration></config></edit-config></rpc>").append(EOM);
+			input.append("<rpc message-id=\"g").append(i).append("\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">")
+					.append("<get-config><source><running/></source></get-config></rpc>").append(EOM);
+		}
+		input.append("<rpc message-id=\"close\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><close-session/></rpc>")
+				.append(EOM);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CountDownLatch exited = new CountDownLatch(1);
+
+		NetconfProcessor processor = new NetconfProcessor(new ByteArrayInputStream(input.toString().getBytes("UTF-8")), out,
+				new ByteArrayOutputStream(), exitCallback(exited));
+		ExecutionModel executionModel = ExecutionModel.sharedPool(4);
+		processor.setExecutionModel(executionModel);
+		processor.setBehaviors(new IndexedBehaviourContainer());
+		processor.setDatastores(new Datastores("<configuration><host-name>router</host-name></configuration>"));
+		processor.setFlushPolicy(FlushPolicy.immediate());
+		processor.setMaxInFlight(16);
+		try {
+			new Thread(processor).start();
+			Assert.assertTrue("Session must end", exited.await(10, TimeUnit.SECONDS));
+		} finally {
+			executionModel.shutdown();
+		}
+
+		String output = out.toString("UTF-8");
+		for (int i = 0; i < edits; i++) {
+			int reply = output.indexOf("message-id=\"g" + i + "\"");
+			Assert.assertTrue("Get-config must be replied", reply > 0);
+			String data = output.substring(reply, output.indexOf("</rpc-reply>", reply));
+			Assert.assertTrue("Get-config must see the previous edit: " + data, data.contains("<host-name>edit-" + i +
+					"</host-name>"));
+		}
+	}
+
+	@Test
+	public void testSpilledPayloadsAreDeleted() throws Exception {
+		StringBuilder config = new StringBuilder("<configuration><interfaces>");
+		for (int i = 0; i < 1000; i++) {
+			config.append("<interface><name>ge-0/0/").append(i).append("</name></interface>");
+		}
+		config.append("</interfaces></configuration>");
+		String input = HELLO + EOM +
+				"<rpc message-id=\"1\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><edit-config><target><running/></target>" +
+				"<config>" + config + "</config></edit-config></rpc>" + EOM +
+				"<rpc message-id=\"2\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><close-session/></rpc>" + EOM;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CountDownLatch exited = new CountDownLatch(1);
+
+		File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "netconf-spill-" + System.nanoTime());
+		Assert.assertTrue(spillDirectory.mkdir());
+		try {
+			NetconfProcessor processor = new NetconfProcessor(new ByteArrayInputStream(input.getBytes("UTF-8")), out,
+					new ByteArrayOutputStream(), exitCallback(exited));
+			processor.setBehaviors(new IndexedBehaviourContainer());
+			processor.setFlushPolicy(FlushPolicy.immediate());
+			processor.setSpillThreshold(1024);
+			processor.setSpillDirectory(spillDirectory);
+			new Thread(processor).start();
+			Assert.assertTrue("Session must end", exited.await(10, TimeUnit.SECONDS));
+
+			Assert.assertTrue("Edit-config must be replied", out.toString("UTF-8").contains("message-id=\"1\""));
+			Assert.assertEquals("Spilled payloads must be deleted once replied", 0, spillDirectory.list().length);
+		} finally {
+			for (File file : spillDirectory.listFiles()) {
+				file.delete();
+			}
+			spillDirectory.delete();
+		}
+	}
+
+	@Test
+	public void testContainerWithoutMatchingSupport() throws Exception {
+		final List<Behaviour> behaviours = new ArrayList<Behaviour>();
+		BehaviourContainer container = new BehaviourContainer() {
+			@Override
+			public void defineBehaviour(Behaviour behaviour) {
+				behaviours.add(behaviour);
+			}
+
+			@Override
+			public List<Behaviour> getBehaviours() {
+				return behaviours;
+			}
+		};
+		Query query = new Query();
+		query.setOperation(Operation.GET_CONFIG);
+		Reply reply = new Reply();
+		reply.setOk(true);
+		container.defineBehaviour(new Behaviour(query, reply, true));
+
+		String getConfig = "<get-config><source><running/></source></get-config></rpc>" + EOM;
+		String input = HELLO + EOM +
+				"<rpc message-id=\"1\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" + getConfig +
+				"<rpc message-id=\"2\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" + getConfig;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CountDownLatch exited = new CountDownLatch(1);
+
+		NetconfProcessor processor = new NetconfProcessor(new ByteArrayInputStream(input.getBytes("UTF-8")), out,
+				new ByteArrayOutputStream(), exitCallback(exited));
+		processor.setBehaviors(container);
+		processor.setFlushPolicy(FlushPolicy.immediate());
+		new Thread(processor).start();
+		Assert.assertTrue("Session must end", exited.await(10, TimeUnit.SECONDS));
+
+		String output = out.toString("UTF-8");
+		int secondReply = output.indexOf("message-id=\"2\"");
+		Assert.assertTrue("Behaviour reply must be sent", output.substring(0, secondReply).contains("<ok/>"));
+		Assert.assertTrue("Consumed behaviour must not match again", output.substring(secondReply).contains("<data>"));
+		Assert.assertTrue(behaviours.isEmpty());
+	}
+
+	private static ExitCallback exitCallback(final CountDownLatch exited) {
+		return new ExitCallback() {
+			@Override
+			public void onExit(int exitValue) {
+				exited.countDown();
+			}
+
+			@Override
+			public void onExit(int exitValue, String exitMessage) {
+				exited.countDown();
+			}
+		};
+	}
+}
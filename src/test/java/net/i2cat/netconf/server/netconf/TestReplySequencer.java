@@ -0,0 +1,77 @@
+package net.i2cat.netconf.server.netconf;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.i2cat.netconf.server.FlushPolicy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link ReplySequencer}
+ */
+public class TestReplySequencer {
+
+	@Test
+	public void testOutOfOrderCompletion() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ReplySequencer sequencer = new ReplySequencer(new ReplyWriter(out, FlushPolicy.immediate()));
+
+		long first = sequencer.register();
+		long second = sequencer.register();
+		long third = sequencer.register();
+
+		sequencer.complete(third, "<c/>");
+		sequencer.complete(second, null);
+		Assert.assertEquals("No reply must be sent before first one", 0, out.size());
+		Assert.assertFalse(sequencer.isIdle());
+
+		sequencer.complete(first, "<a/>");
+		Assert.assertEquals("<a/>]]>]]>\n<c/>]]>]]>\n", out.toString("UTF-8"));
+		Assert.assertTrue(sequencer.isIdle());
+	}
+
+	@Test
+	public void testConcurrentCompletion() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ReplySequencer sequencer = new ReplySequencer(new ReplyWriter(out, FlushPolicy.immediate()));
+
+		final int replies = 1000;
+		final long[] sequences = new long[replies];
+		for (int i = 0; i < replies; i++) {
+			sequences[i] = sequencer.register();
+		}
+
+		// complete replies from several threads, in reverse order
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int offset = t;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = replies - 1 - offset; i >= 0; i -= 4) {
+						try {
+							sequencer.complete(sequences[i], "<r" + i + "/>");
+						} catch (Exception e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		sequencer.awaitIdle();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < replies; i++) {
+			expected.append("<r").append(i).append("/>]]>]]>\n");
+		}
+		Assert.assertEquals(expected.toString(), out.toString("UTF-8"));
+	}
+}
@@ -0,0 +1,46 @@
+package net.i2cat.netconf.server.store;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+
+/**
+ * Messages stored by the store tests
+ */
+final class StoreTests {
+
+	private StoreTests() {
+	}
+
+	/**
+	 *
+	 * @return a query without payload
+	 */
+	static Query query(Operation operation, int id) {
+		return query(operation, id, null);
+	}
+
+	/**
+	 *
+	 * @param operation
+	 * @param id
+	 *            message id
+	 * @param config
+	 *            config of the query, or null
+	 * @return a query
+	 */
+	static Query query(Operation operation, int id, String config) {
+		Query query = new Query();
+		query.setOperation(operation);
+		query.setMessageId(Integer.toString(id));
+		query.setConfig(config);
+		return query;
+	}
+
+	/**
+	 *
+	 * @return a small configuration, different for each id
+	 */
+	static String config(int id) {
+		return "<configuration><name>" + id + "</name></configuration>";
+	}
+}
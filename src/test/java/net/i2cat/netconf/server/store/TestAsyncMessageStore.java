@@ -0,0 +1,177 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+import net.i2cat.netconf.server.MessageStore;
+import net.i2cat.netconf.server.store.AsyncMessageStore.Overflow;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link AsyncMessageStore}
+ */
+public class TestAsyncMessageStore {
+
+	@Test
+	public void testMessagesAreStoredInOrder() throws Exception {
+		IndexedMessageStore indexed = new IndexedMessageStore();
+		final AsyncMessageStore store = new AsyncMessageStore(indexed, 1000, 16, Overflow.BLOCK, 1);
+		final int messages = 5000;
+		Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; w++) {
+			final String session = "s" + w;
+			writers[w] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < messages; i++) {
+						store.storeMessage(new MessageInfo(session, Direction.RECEIVED, i, StoreTests.query(Operation.GET_CONFIG, i)));
+					}
+				}
+			};
+			writers[w].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		Assert.assertEquals(writers.length * messages, store.getStoredMessages().size());
+		Assert.assertEquals(0, store.getDropped());
+		Assert.assertEquals(0, store.getPending());
+		Assert.assertTrue(store.getBatches() > 0);
+		Iterator<MessageInfo> session = indexed.query(MessageQuery.all().sessionId("s2"));
+		for (int i = 0; i < messages; i++) {
+			Assert.assertEquals(Integer.toString(i), session.next().getMessage().getMessageId());
+		}
+		store.close();
+	}
+
+	@Test
+	public void testOverflowPolicies() throws Exception {
+		BlockedStore blocked = new BlockedStore();
+		AsyncMessageStore store = new AsyncMessageStore(blocked, 10, 1, Overflow.DROP, 1);
+		// appender is blocked storing the first message, which keeps its room until stored
+		store.storeMessage(StoreTests.query(Operation.GET_CONFIG, 0));
+		blocked.storing.await();
+		for (int i = 1; i <= 20; i++) {
+			store.storeMessage(StoreTests.query(Operation.GET_CONFIG, i));
+		}
+		Assert.assertEquals(10, store.getPending());
+		Assert.assertEquals(11, store.getDropped());
+		Assert.assertEquals(0, store.getBlocked());
+		blocked.release.countDown();
+		Assert.assertEquals(10, store.getStoredMessages().size());
+		store.close();
+
+		blocked = new BlockedStore();
+		final AsyncMessageStore blocking = new AsyncMessageStore(blocked, 10, 1, Overflow.BLOCK, 1);
+		blocking.storeMessage(StoreTests.query(Operation.GET_CONFIG, 0));
+		blocked.storing.await();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 1; i <= 20; i++) {
+					blocking.storeMessage(StoreTests.query(Operation.GET_CONFIG, i));
+				}
+			}
+		};
+		writer.start();
+		while (blocking.getBlocked() == 0) {
+			Thread.sleep(1);
+		}
+		blocked.release.countDown();
+		writer.join();
+		List<RPCElement> stored = blocking.getStoredMessages();
+		Assert.assertEquals(21, stored.size());
+		Assert.assertEquals("20", stored.get(20).getMessageId());
+		Assert.assertEquals(0, blocking.getDropped());
+		Assert.assertTrue(blocking.getBlockedNanos() > 0);
+		blocking.close();
+	}
+
+	@Test
+	public void testPayloadsAreReleasedWhenClosing() throws Exception {
+		// stores nothing, so every payload must be released once the message is stored or dropped
+		final AsyncMessageStore store = new AsyncMessageStore(new BlockedStore() {
+			@Override
+			public void storeMessage(RPCElement message) {
+			}
+		}, 100000, 16, Overflow.DROP, 1);
+		final List<RawContent> payloads = Collections.synchronizedList(new ArrayList<RawContent>());
+		final CountDownLatch closed = new CountDownLatch(1);
+		Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; w++) {
+			writers[w] = new Thread() {
+				@Override
+				public void run() {
+					// keeps storing messages while the store is closed
+					for (int i = 0; closed.getCount() > 0 || i < 1000; i++) {
+						RawQuery query = new RawQuery();
+						query.setRawConfig(RawContent.fromBytes("<configuration/>".getBytes()));
+						store.storeMessage(query);
+						// the session is done with the message
+						RawContent.releasePayloads(query);
+						payloads.add(query.getRawConfig());
+					}
+				}
+			};
+			writers[w].start();
+		}
+		Thread.sleep(20);
+		store.close();
+		closed.countDown();
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		Assert.assertEquals(0, store.getPending());
+		for (RawContent payload : payloads) {
+			try {
+				payload.retain();
+				Assert.fail("Payloads of stored and dropped messages must be released");
+			} catch (IllegalStateException e) {
+				// released
+			}
+		}
+	}
+
+	/**
+	 * Store blocking the first message until released
+	 */
+	private static class BlockedStore implements MessageStore {
+
+		private final CountDownLatch	storing		= new CountDownLatch(1);
+		private final CountDownLatch	release		= new CountDownLatch(1);
+		private final List<RPCElement>	messages	= new ArrayList<RPCElement>();
+
+		@Override
+		public void storeMessage(RPCElement message) {
+			storing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (messages) {
+				messages.add(message);
+			}
+		}
+
+		@Override
+		public List<RPCElement> getStoredMessages() {
+			synchronized (messages) {
+				return new ArrayList<RPCElement>(messages);
+			}
+		}
+	}
+}
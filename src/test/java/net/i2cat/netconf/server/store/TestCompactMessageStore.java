@@ -0,0 +1,87 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+import net.i2cat.netconf.server.store.CompactMessageStore.MessageType;
+import net.i2cat.netconf.server.store.CompactMessageStore.StoredMessage;
+import net.i2cat.netconf.server.transport.RawContent;
+import net.i2cat.netconf.server.transport.RawQuery;
+import net.i2cat.netconf.server.transport.RawReply;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link CompactMessageStore}
+ */
+public class TestCompactMessageStore {
+
+	@Test
+	public void testMessagesAreDecodedWhenRead() {
+		CompactMessageStore store = new CompactMessageStore(4096, true);
+		StringBuilder big = new StringBuilder("<configuration>");
+		for (int i = 0; i < 1000; i++) {
+			big.append("<name>").append(i).append("</name>");
+		}
+		big.append("</configuration>");
+
+		for (int i = 0; i < 500; i++) {
+			Query query = StoreTests.query(Operation.EDIT_CONFIG, i, i == 250 ? big.toString() : StoreTests.config(i));
+			store.storeMessage(new MessageInfo("s" + (i % 2), Direction.RECEIVED, 1000 + i, query));
+		}
+		List<RPCElement> snapshot = store.getStoredMessages();
+		store.storeMessage(StoreTests.query(Operation.EDIT_CONFIG, 500));
+
+		Assert.assertEquals(500, snapshot.size());
+		Assert.assertEquals(501, store.getSize());
+		Assert.assertTrue("Compressed blocks must be smaller", store.getStoredBytes() < store.getMessageBytes() / 2);
+
+		for (int i = 0; i < 500; i++) {
+			Query query = (Query) snapshot.get(i);
+			Assert.assertEquals(Integer.toString(i), query.getMessageId());
+			Assert.assertEquals(Operation.EDIT_CONFIG.getName(), query.getOperation().getName());
+			Assert.assertTrue(query.getConfig().contains(i == 250 ? "<name>999</name>" : "<name>" + i + "</name>"));
+		}
+
+		// last message is still in the block being filled
+		StoredMessage last = store.getMessages().get(500);
+		Assert.assertEquals(MessageType.QUERY, last.getType());
+		Assert.assertEquals("edit-config", last.getOperation());
+		Assert.assertEquals("500", last.getMessageId());
+		Assert.assertEquals("500", last.getMessage().getMessageId());
+
+		MessageInfo info = store.getMessages().get(7).toMessageInfo();
+		Assert.assertEquals("s1", info.getSessionId());
+		Assert.assertEquals(1007, info.getTimestamp());
+		Assert.assertEquals(Direction.RECEIVED, info.getDirection());
+	}
+
+	@Test
+	public void testRawPayloadsAreStoredAsReceived() throws Exception {
+		CompactMessageStore store = new CompactMessageStore(4096, false);
+		RawQuery query = new RawQuery();
+		query.setOperation(Operation.EDIT_CONFIG);
+		query.setMessageId("1");
+		query.setTarget("candidate");
+		query.setRawConfig(RawContent.fromBytes("<configuration><name>r\u00e9seau</name></configuration>".getBytes("UTF-8"),
+				Collections.<String, String> emptyMap()));
+		RawReply reply = new RawReply();
+		reply.setMessageId("1");
+		reply.setRawContain(RawContent.fromBytes("<configuration><name>a &amp; b</name></configuration>".getBytes("UTF-8")));
+		reply.setContainName("data");
+		store.storeMessage(query);
+		store.storeMessage(reply);
+
+		List<RPCElement> messages = store.getStoredMessages();
+		Assert.assertEquals("<configuration><name>r\u00e9seau</name></configuration>", ((Query) messages.get(0)).getConfig());
+		Assert.assertEquals("<configuration><name>a &amp; b</name></configuration>", ((Reply) messages.get(1)).getContain());
+		Assert.assertNotNull("Raw config must not be replaced when stored", query.getRawConfig());
+	}
+}
@@ -0,0 +1,106 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link IndexedMessageStore}
+ */
+public class TestIndexedMessageStore {
+
+	@Test
+	public void testQueries() {
+		IndexedMessageStore store = new IndexedMessageStore();
+		for (int i = 0; i < 1000; i++) {
+			Operation operation = i % 4 == 0 ? Operation.EDIT_CONFIG : Operation.GET_CONFIG;
+			store.storeMessage(new MessageInfo("s" + (i % 3), Direction.RECEIVED, 1000 + i, StoreTests.query(operation, i)));
+		}
+
+		List<MessageInfo> editConfigs = toList(store.query(MessageQuery.all().operation("edit-config").sessionId("s1")));
+		Assert.assertEquals(83, editConfigs.size());
+		for (int i = 0; i < editConfigs.size(); i++) {
+			Assert.assertEquals(Integer.toString(4 + 12 * i), editConfigs.get(i).getMessage().getMessageId());
+		}
+
+		List<MessageInfo> lastMinute = toList(store.query(MessageQuery.all().sessionId("s0").since(1500).until(1510)));
+		Assert.assertEquals(3, lastMinute.size());
+		Assert.assertEquals(1501, lastMinute.get(0).getTimestamp());
+		Assert.assertEquals(1507, lastMinute.get(2).getTimestamp());
+
+		Assert.assertEquals(10, toList(store.query(MessageQuery.all().since(1990))).size());
+		Assert.assertEquals(1, toList(store.query(MessageQuery.all().messageId("42"))).size());
+		Assert.assertFalse(store.query(MessageQuery.all().messageId("1000")).hasNext());
+		Assert.assertFalse(store.query(MessageQuery.all().operation("get")).hasNext());
+		Assert.assertEquals(1000, toList(store.query(MessageQuery.all())).size());
+	}
+
+	@Test
+	public void testSnapshotsWhileStoring() throws Exception {
+		final IndexedMessageStore store = new IndexedMessageStore();
+		final int writers = 4;
+		final int messages = 20000;
+		final CountDownLatch done = new CountDownLatch(writers);
+		final AtomicBoolean failed = new AtomicBoolean();
+		for (int w = 0; w < writers; w++) {
+			final String session = "s" + w;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < messages; i++) {
+							store.storeMessage(new MessageInfo(session, Direction.RECEIVED, System.currentTimeMillis(),
+									StoreTests.query(Operation.EDIT_CONFIG, i)));
+						}
+					} catch (RuntimeException e) {
+						failed.set(true);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		while (done.getCount() > 0) {
+			List<RPCElement> snapshot = store.getStoredMessages();
+			int size = snapshot.size();
+			int count = 0;
+			for (RPCElement message : snapshot) {
+				Assert.assertNotNull(message);
+				count++;
+			}
+			Assert.assertEquals(size, count);
+
+			// messages of a session are returned in the order they were stored
+			Iterator<MessageInfo> cursor = store.query(MessageQuery.all().sessionId("s1"));
+			long previous = -1;
+			while (cursor.hasNext()) {
+				long id = Long.parseLong(cursor.next().getMessage().getMessageId());
+				Assert.assertEquals(previous + 1, id);
+				previous = id;
+			}
+		}
+
+		Assert.assertFalse(failed.get());
+		Assert.assertEquals(writers * messages, store.size());
+		Assert.assertEquals(messages, toList(store.query(MessageQuery.all().sessionId("s3"))).size());
+	}
+
+	private static List<MessageInfo> toList(Iterator<MessageInfo> cursor) {
+		List<MessageInfo> list = new ArrayList<MessageInfo>();
+		while (cursor.hasNext()) {
+			list.add(cursor.next());
+		}
+		return list;
+	}
+}
@@ -0,0 +1,101 @@
+package net.i2cat.netconf.server.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.RPCElement;
+import net.i2cat.netconf.server.MessageInfo;
+import net.i2cat.netconf.server.MessageInfo.Direction;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link JournalMessageStore}
+ */
+public class TestJournalMessageStore {
+
+	private File	directory;
+
+	@Before
+	public void createDirectory() throws Exception {
+		directory = File.createTempFile("netconf-journal", "");
+		directory.delete();
+	}
+
+	@After
+	public void deleteDirectory() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testMessagesAreReplayedAfterReopening() throws Exception {
+		JournalMessageStore journal = new JournalMessageStore(directory, 64 * 1024, 10, 0);
+		for (int i = 0; i < 100; i++) {
+			journal.storeMessage(new MessageInfo("s" + (i % 2), Direction.RECEIVED, 1000 + i, StoreTests.query(Operation.EDIT_CONFIG, i,
+					StoreTests.config(i))));
+		}
+		journal.close();
+
+		// record partially written before stopping: contents without length
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		long end = 0;
+		for (int i = 0; i < 100; i++) {
+			raf.seek(end);
+			end += 4 + raf.readInt();
+		}
+		raf.seek(end + 4);
+		raf.writeLong(123);
+		raf.close();
+
+		journal = new JournalMessageStore(directory, 64 * 1024, 10, 0);
+		Assert.assertEquals(100, journal.getNextIndex());
+		Iterator<MessageInfo> replay = journal.replay(40);
+		for (int i = 40; i < 100; i++) {
+			MessageInfo info = replay.next();
+			Assert.assertEquals("s" + (i % 2), info.getSessionId());
+			Assert.assertEquals(1000 + i, info.getTimestamp());
+			Assert.assertEquals(Direction.RECEIVED, info.getDirection());
+			Assert.assertEquals(Integer.toString(i), info.getMessage().getMessageId());
+			Assert.assertEquals(Operation.EDIT_CONFIG.getName(), ((Query) info.getMessage()).getOperation().getName());
+		}
+		Assert.assertFalse(replay.hasNext());
+
+		journal.storeMessage(StoreTests.query(Operation.EDIT_CONFIG, 100, StoreTests.config(100)));
+		List<RPCElement> messages = journal.getStoredMessages();
+		Assert.assertEquals(101, messages.size());
+		Assert.assertEquals("77", messages.get(77).getMessageId());
+		Assert.assertEquals("100", messages.get(100).getMessageId());
+		journal.close();
+	}
+
+	@Test
+	public void testOldSegmentsAreDeleted() throws Exception {
+		int messageSize = StoreTests.query(Operation.EDIT_CONFIG, 0, StoreTests.config(0)).toXML().length() + 100;
+		JournalMessageStore journal = new JournalMessageStore(directory, 10 * messageSize, 3, 10);
+		List<RPCElement> snapshot = journal.getStoredMessages();
+		for (int i = 0; i < 200; i++) {
+			journal.storeMessage(StoreTests.query(Operation.EDIT_CONFIG, i, StoreTests.config(i)));
+			if (i == 5) {
+				snapshot = journal.getStoredMessages();
+			}
+		}
+
+		Assert.assertEquals(3, journal.getSegmentCount());
+		Assert.assertEquals(3, directory.list().length);
+		Assert.assertTrue(journal.getFirstIndex() > 0);
+		List<RPCElement> messages = journal.getStoredMessages();
+		Assert.assertEquals(200 - journal.getFirstIndex(), messages.size());
+		Assert.assertEquals("199", messages.get(messages.size() - 1).getMessageId());
+		Assert.assertEquals("Snapshots must be readable after their segments are deleted", "5", snapshot.get(5).getMessageId());
+		journal.close();
+	}
+}
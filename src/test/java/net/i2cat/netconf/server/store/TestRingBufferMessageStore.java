@@ -0,0 +1,106 @@
+package net.i2cat.netconf.server.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.RPCElement;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link RingBufferMessageStore}
+ */
+public class TestRingBufferMessageStore {
+
+	@Test
+	public void testOldestMessagesAreEvicted() {
+		RingBufferMessageStore store = new RingBufferMessageStore(3);
+		for (int i = 0; i < 5; i++) {
+			store.storeMessage(StoreTests.query(Operation.GET_CONFIG, i));
+		}
+		Assert.assertEquals(ids(2, 3, 4), ids(store.getStoredMessages()));
+		Assert.assertEquals(2, store.getEvicted());
+		Assert.assertEquals(3, store.getSize());
+	}
+
+	@Test
+	public void testByteLimit() {
+		// config of 100 chars is 200 bytes
+		long messageBytes = MessageSize.OVERHEAD + 200;
+		RingBufferMessageStore store = new RingBufferMessageStore(100, 2 * messageBytes);
+		String config = String.format("%100s", "");
+		for (int i = 0; i < 5; i++) {
+			store.storeMessage(StoreTests.query(Operation.EDIT_CONFIG, i, config));
+		}
+		Assert.assertEquals(ids(3, 4), ids(store.getStoredMessages()));
+		Assert.assertEquals(2 * messageBytes, store.getBytes());
+	}
+
+	@Test
+	public void testSamplingAndQuotas() {
+		RingBufferMessageStore sampling = RingBufferMessageStore.sampling(10, Long.MAX_VALUE, 3);
+		for (int i = 0; i < 7; i++) {
+			sampling.storeMessage(StoreTests.query(Operation.GET_CONFIG, i));
+		}
+		Assert.assertEquals(ids(0, 3, 6), ids(sampling.getStoredMessages()));
+		Assert.assertEquals(4, sampling.getSampledOut());
+
+		RingBufferMessageStore quotas = RingBufferMessageStore.operationQuotas(
+				Collections.singletonMap(Operation.EDIT_CONFIG.getName(), 1), 2, Long.MAX_VALUE);
+		quotas.storeMessage(StoreTests.query(Operation.EDIT_CONFIG, 0));
+		quotas.storeMessage(StoreTests.query(Operation.GET_CONFIG, 1));
+		quotas.storeMessage(StoreTests.query(Operation.LOCK, 2));
+		quotas.storeMessage(StoreTests.query(Operation.EDIT_CONFIG, 3));
+		quotas.storeMessage(StoreTests.query(Operation.GET_CONFIG, 4));
+		Assert.assertEquals(ids(2, 3, 4), ids(quotas.getStoredMessages()));
+	}
+
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		final RingBufferMessageStore store = new RingBufferMessageStore(1000, 200 * (MessageSize.OVERHEAD + 2));
+		final int messages = 20000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int first = t * messages;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < messages; i++) {
+						store.storeMessage(StoreTests.query(Operation.GET_CONFIG, first + i, "a"));
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// concurrent writers may evict a few more messages than needed, but counters must be consistent
+		long size = store.getSize();
+		Assert.assertTrue("Byte limit exceeded: " + size, size > 0 && size <= 200);
+		Assert.assertEquals(size, store.getStoredMessages().size());
+		Assert.assertEquals(4 * messages - size, store.getEvicted());
+		Assert.assertEquals(size * (MessageSize.OVERHEAD + 2), store.getBytes());
+	}
+
+	private static List<String> ids(int... ids) {
+		List<String> list = new ArrayList<String>();
+		for (int id : ids) {
+			list.add(Integer.toString(id));
+		}
+		return list;
+	}
+
+	private static List<String> ids(List<RPCElement> messages) {
+		List<String> list = new ArrayList<String>();
+		for (RPCElement message : messages) {
+			list.add(message.getMessageId());
+		}
+		return list;
+	}
+}
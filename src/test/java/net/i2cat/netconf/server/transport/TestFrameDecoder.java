@@ -0,0 +1,93 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit Tests for {@link FrameDecoder}
+ */
+public class TestFrameDecoder {
+
+	@Test
+	public void testEndOfMessageFrames() throws IOException {
+		FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream("<a/>]]>]]>\n<b>]]</b>]]>]]>]]>]]><c/>".getBytes("UTF-8")));
+
+		Assert.assertEquals("First frame must not contain delimiter", "<a/>", IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertEquals("Second frame must not contain leading whitespace", "<b>]]</b>", IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertEquals("Empty frames must be skipped", "<c/>", IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertNull("No more frames after channel is closed", decoder.nextFrame());
+	}
+
+	@Test
+	public void testDelimiterSplitBetweenReads() throws IOException {
+		StringBuilder message = new StringBuilder("<rpc>");
+		for (int i = 0; i < 5000; i++) {
+			message.append("<name>ge-0/0/").append(i).append("</name>");
+		}
+		message.append("</rpc>");
+
+		FrameDecoder decoder = new FrameDecoder(new OneByteInputStream((message + "]]>]]>" + message + "]]>]]>").getBytes("UTF-8")));
+
+		Assert.assertEquals(message.toString(), IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertEquals(message.toString(), IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertNull(decoder.nextFrame());
+	}
+
+	@Test
+	public void testChunkedFrames() throws IOException {
+		String messages = "<hello/>]]>]]>\n" + "\n#4\n<rpc\n#17\n message-id=\"1\"/>\n##\n" + "\n#6\n<rpc/>\n##\n";
+		FrameDecoder decoder = new FrameDecoder(new OneByteInputStream(messages.getBytes("UTF-8")));
+
+		Assert.assertEquals("<hello/>", IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		decoder.setChunkedFraming(true);
+		Assert.assertEquals("Chunks must be reassembled", "<rpc message-id=\"1\"/>", IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertEquals("<rpc/>", IOUtils.toString(decoder.nextFrame(), "UTF-8"));
+		Assert.assertNull(decoder.nextFrame());
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidChunkSize() throws IOException {
+		FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream("\n#04\n<rpc\n##\n".getBytes("UTF-8")));
+		decoder.setChunkedFraming(true);
+		decoder.nextFrame().read();
+	}
+
+	@Test
+	public void testFrameBytesAvailableBeforeDelimiter() throws IOException {
+		// channel without delimiter yet: bytes must be readable before the frame is complete
+		FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream("<a>]]>x</a>]".getBytes("UTF-8")));
+
+		InputStream frame = decoder.nextFrame();
+		byte[] bytes = new byte[64];
+		int read = frame.read(bytes, 0, bytes.length);
+
+		Assert.assertEquals("Delimiter prefix must be held back", "<a>]]>x</a>", new String(bytes, 0, read, "UTF-8"));
+	}
+
+	/**
+	 * Stream returning a single byte on each read, as a slow channel would do
+	 */
+	private static class OneByteInputStream extends InputStream {
+
+		private ByteArrayInputStream	in;
+
+		public OneByteInputStream(byte[] bytes) {
+			in = new ByteArrayInputStream(bytes);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, Math.min(len, 1));
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package net.i2cat.netconf.server.transport;
+
+import net.i2cat.netconf.server.transport.ParserPool.PooledParser;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * Unit Tests for {@link ParserPool}
+ */
+public class TestParserPool {
+
+	@Test
+	public void testParsersAreReused() throws SAXException {
+		ParserPool pool = new ParserPool(1);
+
+		PooledParser first = pool.borrow();
+		PooledParser second = pool.borrow();
+		Assert.assertEquals("Empty pool must create new parsers", 2, pool.getMisses());
+
+		pool.release(first);
+		pool.release(second);
+		Assert.assertEquals("Parsers exceeding pool size must be discarded", 1, pool.getIdleCount());
+
+		Assert.assertSame("Idle parser must be reused", first, pool.borrow());
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertSame("Parser must be wired to its handler", first.getHandler(), first.getReader().getContentHandler());
+	}
+}
@@ -0,0 +1,293 @@
+package net.i2cat.netconf.server.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Map;
+
+import net.i2cat.netconf.messageQueue.MessageQueue;
+import net.i2cat.netconf.rpc.Operation;
+import net.i2cat.netconf.rpc.Query;
+import net.i2cat.netconf.rpc.Reply;
+import net.i2cat.netconf.server.MemoryBudget;
+import net.i2cat.netconf.server.transport.ParserPool.PooledParser;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Unit Tests for {@link ServerTransportContentParser}
+ */
+public class TestServerTransportContentParser {
+
+	@Test
+	public void testOperationTagsAreCaseInsensitive() throws Exception {
+		Query query = parseQuery("<rpc message-id=\"1\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" +
+				"<Edit-Config><TARGET><candidate/></TARGET><config><get><name a=\"1\">x</name></get></config></Edit-Config></rpc>");
+
+		Assert.assertEquals("1", query.getMessageId());
+		Assert.assertEquals("Operation tags inside config must not change the operation", Operation.EDIT_CONFIG.getName(),
+				query.getOperation().getName());
+		Assert.assertEquals("candidate", query.getTarget());
+		Assert.assertEquals("<get><name a=\"1\">x</name></get>", query.getConfig());
+	}
+
+	@Test
+	public void testUnknownTagsAreIgnored() throws Exception {
+		Query query = parseQuery("<rpc message-id=\"2\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" +
+				"<get-config><source><running/></source><unknown/></get-config></rpc>");
+
+		Assert.assertEquals(Operation.GET_CONFIG.getName(), query.getOperation().getName());
+	}
+
+	@Test
+	public void testPayloadIsRebuiltEscaped() throws Exception {
+		Query query = parseQuery("<rpc message-id=\"3\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" +
+				"<edit-config><target><running/></target><config><interface><config><description a=\"&quot;\">a &amp; b &lt; c</description>" +
+				"</config></interface></config></edit-config></rpc>");
+
+		Assert.assertEquals("Nested config elements must not end the payload",
+				"<interface><config><description a=\"&quot;\">a &amp; b &lt; c</description></config></interface>", query.getConfig());
+	}
+
+	@Test
+	public void testOperationParametersAreIgnored() throws Exception {
+		Query query = parseQuery("<rpc message-id=\"4\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" +
+				"<kill-session><session-id>4</session-id></kill-session></rpc>");
+
+		Assert.assertEquals(Operation.KILL_SESSION.getName(), query.getOperation().getName());
+	}
+
+	@Test
+	public void testRawPayloadIsKeptAsReceived() throws Exception {
+		String config = "<jnx:configuration xmlns:jnx=\"urn:jnx\"><!-- a > b --><name a='>'><![CDATA[</config>]]></name>" +
+				"<empty/></jnx:configuration>";
+		Query query = parseQuery("<?xml version=\"1.0\"?><rpc message-id=\"5\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" +
+				"<edit-config><target><running/></target><nc:config xmlns:nc=\"urn:ietf:params:xml:ns:netconf:base:1.0\">" + config +
+				"</nc:config></edit-config></rpc>");
+
+		Assert.assertTrue(query instanceof RawQuery);
+		Assert.assertEquals(config.length(), ((RawQuery) query).getRawConfig().length());
+		Assert.assertEquals(config, query.getConfig());
+		Assert.assertEquals("running", query.getTarget());
+	}
+
+	@Test
+	public void testEmptyRawPayload() throws Exception {
+		Query query = parseQuery("<rpc message-id=\"6\"><edit-config><target><running/></target><config/></edit-config></rpc>");
+
+		Assert.assertEquals("", query.getConfig());
+	}
+
+	@Test
+	public void testRawReplyData() throws Exception {
+		String data = "<configuration xmlns=\"urn:jnx\"><data>nested</data></configuration>";
+		Reply reply = (Reply) parse("<rpc-reply message-id=\"7\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\"><data>" + data +
+				"</data></rpc-reply>", true);
+
+		Assert.assertEquals(data, ((RawReply) reply).getRawContain().toString());
+		Assert.assertEquals(data, reply.getContain());
+	}
+
+	@Test
+	public void testPayloadIsRebuiltWithoutRecorder() throws Exception {
+		Query query = (Query) parse("<rpc message-id=\"8\"><edit-config><target><running/></target><config><a x=\"1\">&amp;</a>" +
+				"</config></edit-config></rpc>", false);
+
+		Assert.assertNull(((RawQuery) query).getRawConfig());
+		Assert.assertEquals("<a x=\"1\">&amp;</a>", query.getConfig());
+	}
+
+	@Test
+	public void testSourceAndFilter() throws Exception {
+		String filter = "<configuration xmlns=\"urn:jnx\"><interfaces/></configuration>";
+		RawQuery query = (RawQuery) parseQuery("<rpc message-id=\"11\"><get-config><source><candidate/></source>" +
+				"<filter type=\"subtree\">" + filter + "</filter></get-config></rpc>");
+
+		Assert.assertEquals("candidate", query.getSource());
+		Assert.assertEquals(filter, query.getRawFilter().toString());
+		Assert.assertEquals(filter, query.getFilter());
+		Assert.assertEquals("subtree", query.getFilterType());
+		Assert.assertEquals(Operation.GET_CONFIG, query.getOperation());
+	}
+
+	@Test
+	public void testDefaultOperationAndInlineSource() throws Exception {
+		String config = "<configuration><system><host-name>r</host-name></system></configuration>";
+		RawQuery query = (RawQuery) parseQuery("<rpc message-id=\"14\"><edit-config><target><running/></target>" +
+				"<default-operation> replace </default-operation><config>" + config + "</config></edit-config></rpc>");
+		Assert.assertEquals("replace", query.getDefaultOperation());
+		Assert.assertEquals(config, query.getConfig());
+
+		// a config rebuilt before the parameter is kept
+		query = (RawQuery) parse("<rpc message-id=\"15\"><edit-config><target><running/></target><config>" + config +
+				"</config><default-operation>none</default-operation></edit-config></rpc>", false);
+		Assert.assertEquals("none", query.getDefaultOperation());
+		Assert.assertEquals(config, query.getConfig());
+
+		for (boolean record : new boolean[] { true, false }) {
+			query = (RawQuery) parse("<rpc message-id=\"16\"><copy-config><target><startup/></target><source><config>" + config +
+					"</config></source></copy-config></rpc>", record);
+			Assert.assertNull("Inline config is not a datastore", query.getSource());
+			Assert.assertEquals("startup", query.getTarget());
+			Assert.assertEquals(config, query.getConfig());
+		}
+	}
+
+	@Test
+	public void testXPathFilterNamespaces() throws Exception {
+		RawQuery query = (RawQuery) parseQuery("<rpc message-id=\"12\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\" " +
+				"xmlns:j=\"urn:jnx\"><get-config><source><running/></source><filter type=\"xpath\" xmlns:s=\"urn:sys\" " +
+				"select=\"/j:configuration/s:system\"/></get-config></rpc>");
+
+		Assert.assertEquals("xpath", query.getFilterType());
+		Assert.assertEquals("/j:configuration/s:system", query.getFilterSelect());
+		Assert.assertEquals("urn:jnx", query.getFilterNamespaces().get("j"));
+		Assert.assertEquals("urn:sys", query.getFilterNamespaces().get("s"));
+	}
+
+	@Test
+	public void testPayloadNamespacesInScope() throws Exception {
+		RawQuery query = (RawQuery) parseQuery("<rpc message-id=\"13\" xmlns=\"urn:ietf:params:xml:ns:netconf:base:1.0\" " +
+				"xmlns:t=\"urn:t\"><edit-config xmlns:u=\"urn:u\"><target xmlns:v=\"urn:v\"><running/></target>" +
+				"<config xmlns:t=\"urn:t2\"><t:top xmlns:w=\"urn:w\"><u:leaf/></t:top></config></edit-config></rpc>");
+
+		Map<String, String> namespaces = query.getRawConfig().getNamespaces();
+		Assert.assertEquals("Only prefixes in scope of config must be kept", 2, namespaces.size());
+		Assert.assertEquals("urn:t2", namespaces.get("t"));
+		Assert.assertEquals("urn:u", namespaces.get("u"));
+		Assert.assertEquals(" xmlns:t=\"urn:t2\"", RawContent.fromBytes(new byte[0], Collections.singletonMap("t", "urn:t2"))
+				.getNamespaceDeclarations());
+	}
+
+	@Test
+	public void testOversizedPayloadIsSpilled() throws Exception {
+		String config = bigConfig();
+		String xml = "<rpc message-id=\"9\"><edit-config><target><running/></target><config>" + config +
+				"</config></edit-config></rpc>";
+
+		ParserPool pool = new ParserPool(1);
+		PooledParser parser = pool.borrow();
+		parser.getRecorder().setSpillThreshold(1024);
+		RawQuery query = (RawQuery) parse(xml, parser);
+		pool.release(parser);
+
+		RawContent rawConfig = query.getRawConfig();
+		Assert.assertFalse(rawConfig.isInMemory());
+		Assert.assertEquals(config.length(), rawConfig.length());
+		Assert.assertEquals(config, query.getConfig());
+		rawConfig.release();
+	}
+
+	@Test
+	public void testSpilledPayloadIsDeletedByLastUser() throws Exception {
+		String xml = "<rpc message-id=\"14\"><edit-config><target><running/></target><config>" + bigConfig() +
+				"</config></edit-config></rpc>";
+
+		ParserPool pool = new ParserPool(1);
+		PooledParser parser = pool.borrow();
+		parser.getRecorder().setSpillThreshold(1024);
+		RawContent rawConfig = ((RawQuery) parse(xml, parser)).getRawConfig();
+		pool.release(parser);
+
+		rawConfig.retain();
+		rawConfig.release();
+		Assert.assertEquals("Content must be readable until all users release it", rawConfig.length(),
+				rawConfig.toByteArray().length);
+		rawConfig.release();
+		try {
+			rawConfig.toByteArray();
+			Assert.fail("Spilled file must be deleted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUnusedPayloadIsReleased() throws Exception {
+		MemoryBudget budget = new MemoryBudget(1024 * 1024, 32 * 1024);
+
+		ParserPool pool = new ParserPool(1);
+		PooledParser parser = pool.borrow();
+		MemoryBudget.Session session = budget.newSession();
+		parser.getRecorder().setMemoryBudget(session);
+		// config is only kept for edit-config
+		RawQuery query = (RawQuery) parse("<rpc message-id=\"15\"><validate><config><a/></config></validate></rpc>", parser);
+		pool.release(parser);
+
+		Assert.assertNull(query.getRawConfig());
+		Assert.assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testMemoryBudgetIsEnforced() throws Exception {
+		String xml = "<rpc message-id=\"10\"><edit-config><target><running/></target><config>" + bigConfig() +
+				"</config></edit-config></rpc>";
+		MemoryBudget budget = new MemoryBudget(1024 * 1024, 32 * 1024);
+
+		ParserPool pool = new ParserPool(1);
+		PooledParser parser = pool.borrow();
+		MemoryBudget.Session session = budget.newSession();
+		parser.getRecorder().setMemoryBudget(session);
+		try {
+			parse(xml, parser);
+			Assert.fail("Payload exceeding session budget must be rejected");
+		} catch (Exception e) {
+			// expected
+		}
+		Assert.assertEquals(1, budget.getRejections());
+
+		// spilled payloads are not held in memory
+		parser.getRecorder().setSpillThreshold(1024);
+		RawQuery query = (RawQuery) parse(xml, parser);
+		pool.release(parser);
+		Assert.assertFalse(query.getRawConfig().isInMemory());
+		query.getRawConfig().release();
+
+		session.releaseAll();
+		Assert.assertEquals(0, budget.getUsed());
+	}
+
+	private static String bigConfig() {
+		StringBuilder config = new StringBuilder("<configuration><!-- ");
+		for (int i = 0; i < 2000; i++) {
+			config.append("comment ");
+		}
+		config.append("--><interfaces>");
+		for (int i = 0; i < 1000; i++) {
+			config.append("<interface><name>ge-0/0/").append(i).append("</name><![CDATA[</config>]]></interface>");
+		}
+		return config.append("</interfaces></configuration>").toString();
+	}
+
+	private Query parseQuery(String xml) throws Exception {
+		return (Query) parse(xml, true);
+	}
+
+	private Object parse(String xml, boolean record) throws Exception {
+		ParserPool pool = new ParserPool(1);
+		PooledParser parser = pool.borrow();
+		MessageQueue queue = new MessageQueue();
+		parser.getHandler().setMessageQueue(queue);
+		if (record) {
+			parser.getReader().parse(new InputSource(parser.getRecorder().record(new ByteArrayInputStream(xml.getBytes("UTF-8")))));
+		} else {
+			parser.getReader().parse(new InputSource(new StringReader(xml)));
+		}
+		pool.release(parser);
+		return queue.blockingConsume();
+	}
+
+	private Object parse(String xml, PooledParser parser) throws Exception {
+		MessageQueue queue = new MessageQueue();
+		parser.getHandler().setMessageQueue(queue);
+		try {
+			parser.getReader().parse(new InputSource(parser.getRecorder().record(new ByteArrayInputStream(xml.getBytes("UTF-8")))));
+		} finally {
+			parser.getRecorder().clear();
+		}
+		return queue.blockingConsume();
+	}
+}